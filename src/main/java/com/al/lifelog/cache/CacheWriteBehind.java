@@ -0,0 +1,216 @@
+package com.al.lifelog.cache;
+
+import com.al.lifelog.service.PatientSummaryUpdater;
+import com.al.lifelog.service.SubscriptionService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands.SetOption;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cache writes, cache evictions and subscription notifications for the write paths.
+ * Every committed write and delete is also handed to the {@link PatientSummaryUpdater}.
+ *
+ * Inside a transaction nothing happens until it commits; a rollback drops the
+ * buffered work, so uncommitted data never reaches Redis or subscribers. On commit
+ * the write is marked pending in the {@link NearCache}, so reads on this node go
+ * to Mongo rather than to L1 or the old Redis value. All Redis I/O (the SET or
+ * DEL plus the L1 invalidation message for the other nodes) is queued and sent
+ * by a single background drainer in pipelined batches, which then clears the
+ * marks. Outside a transaction the same happens immediately.
+ */
+@Component
+public class CacheWriteBehind {
+
+    private static final Logger log = LoggerFactory.getLogger(CacheWriteBehind.class);
+
+    private static final Duration TTL = Duration.ofMinutes(10);
+
+    private final StringRedisTemplate redisTemplate;
+    private final NearCache nearCache;
+    private final SubscriptionService subscriptionService;
+    private final PatientSummaryUpdater summaryUpdater;
+    private final Executor executor;
+    private final int batchSize;
+
+    private final Queue<CacheOp> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Counter written;
+    private final Counter failed;
+
+    @Autowired
+    public CacheWriteBehind(StringRedisTemplate redisTemplate,
+            NearCache nearCache,
+            SubscriptionService subscriptionService,
+            PatientSummaryUpdater summaryUpdater,
+            @Qualifier("taskExecutor") Executor executor,
+            MeterRegistry meterRegistry,
+            @Value("${lifelog.cache.write-behind.batch-size:256}") int batchSize) {
+        this.redisTemplate = redisTemplate;
+        this.nearCache = nearCache;
+        this.subscriptionService = subscriptionService;
+        this.summaryUpdater = summaryUpdater;
+        this.executor = executor;
+        this.batchSize = Math.max(batchSize, 1);
+        this.written = Counter.builder("fhir.cache.writebehind.ops")
+                .description("Cache writes and evictions sent to Redis after commit")
+                .tag("result", "ok")
+                .register(meterRegistry);
+        this.failed = Counter.builder("fhir.cache.writebehind.ops")
+                .description("Cache writes and evictions sent to Redis after commit")
+                .tag("result", "failed")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Caches {@code json} as the current state of {@code type/id} once committed.
+     */
+    public void put(String type, String id, String json) {
+        enqueue(new CacheOp(type, id, json));
+    }
+
+    /**
+     * Removes {@code type/id} from every cache level once committed.
+     */
+    public void evict(String type, String id) {
+        enqueue(new CacheOp(type, id, null));
+    }
+
+    /**
+     * Notifies subscribers of {@code action} on {@code resourceType} once committed.
+     */
+    public void notifySubscribers(String resourceType, String action, String json) {
+        afterCommit(() -> subscriptionService.notifySubscribers(resourceType, action, json));
+    }
+
+    private void enqueue(CacheOp op) {
+        afterCommit(() -> {
+            nearCache.beginWrite(op.type, op.id);
+            pending.add(op);
+            scheduleDrain();
+            summaryUpdater.changed(op.type, op.id, op.json);
+        });
+    }
+
+    private void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        List<Runnable> actions = (List<Runnable>) TransactionSynchronizationManager.getResource(this);
+        if (actions == null) {
+            List<Runnable> buffer = new ArrayList<>();
+            actions = buffer;
+            TransactionSynchronizationManager.bindResource(this, buffer);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    buffer.forEach(Runnable::run);
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(CacheWriteBehind.this);
+                }
+            });
+        }
+        actions.add(action);
+    }
+
+    private void scheduleDrain() {
+        if (!draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            // Pool saturated: pay the round trip here rather than lose the write
+            drain();
+        }
+    }
+
+    private void drain() {
+        try {
+            List<CacheOp> batch = new ArrayList<>(batchSize);
+            CacheOp op;
+            while ((op = pending.poll()) != null) {
+                batch.add(op);
+                if (batch.size() == batchSize) {
+                    flush(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+            }
+        } finally {
+            draining.set(false);
+            // Ops added between the last poll and the reset would otherwise wait for the next write
+            if (!pending.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+    }
+
+    private void flush(List<CacheOp> batch) {
+        try {
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection redis = (StringRedisConnection) connection;
+                for (CacheOp op : batch) {
+                    String key = op.key();
+                    if (op.json != null) {
+                        redis.set(key, op.json, Expiration.from(TTL), SetOption.upsert());
+                    } else {
+                        redis.del(key);
+                    }
+                    redis.publish(NearCache.INVALIDATION_CHANNEL, nearCache.invalidationMessage(op.type, op.id));
+                }
+                return null;
+            });
+            written.increment(batch.size());
+        } catch (RuntimeException e) {
+            // Redis copies expire on their own TTL, Mongo already has the committed state
+            failed.increment(batch.size());
+            log.warn("Failed to write {} cache entries after commit", batch.size(), e);
+        } finally {
+            batch.forEach(op -> nearCache.endWrite(op.type, op.id));
+        }
+    }
+
+    private static final class CacheOp {
+        private final String type;
+        private final String id;
+        private final String json;
+
+        private CacheOp(String type, String id, String json) {
+            this.type = type;
+            this.id = id;
+            this.json = json;
+        }
+
+        private String key() {
+            return type.toLowerCase() + ":" + id;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.al.lifelog.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process (L1) cache of parsed resources in front of the Redis JSON cache.
+ *
+ * Entries are keyed by {@code type:id:version}, so a cached version never
+ * changes; a small pointer map tracks which version is current for each
+ * {@code type:id} and only ever moves to a newer version. Evicting a pointer
+ * leaves a short-lived tombstone with its version, so a reader that loaded that
+ * version before the eviction cannot put it back. Resources are copied on the way in and out, callers are free
+ * to mutate what they get. Writes evict the pointer locally and publish the key
+ * on {@link #INVALIDATION_CHANNEL} so other nodes drop their copy too. The TTL
+ * bounds staleness if an invalidation message is lost.
+ *
+ * A write committed on this node whose Redis update is still queued is marked
+ * pending ({@link #beginWrite}): until {@link #endWrite} nothing is cached for
+ * it here and readers skip its Redis copy, which still holds the old body.
+ */
+@Component
+public class NearCache implements MessageListener {
+
+    public static final String INVALIDATION_CHANNEL = "lifelog:cache:invalidate";
+
+    private static final String NO_VERSION = "0";
+    private static final long MAX_TOMBSTONES = 100_000;
+
+    private final StringRedisTemplate redisTemplate;
+    private final MeterRegistry meterRegistry;
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final Cache<String, Entry> resources;
+    private final Map<String, String> currentVersions = new ConcurrentHashMap<>();
+    // type:id -> newest version evicted recently, which must not be cached again
+    private final Cache<String, Long> tombstones;
+    // type:id -> committed writes whose Redis update has not been sent yet
+    private final Map<String, Integer> pendingWrites = new ConcurrentHashMap<>();
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    @Autowired
+    public NearCache(StringRedisTemplate redisTemplate,
+            MeterRegistry meterRegistry,
+            @Value("${lifelog.cache.l1.max-weight:50000000}") long maxWeight,
+            @Value("${lifelog.cache.l1.ttl:PT5M}") Duration ttl,
+            @Value("${lifelog.cache.l1.tombstone-ttl:PT30S}") Duration tombstoneTtl) {
+        this.redisTemplate = redisTemplate;
+        this.meterRegistry = meterRegistry;
+        this.resources = Caffeine.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((String key, Entry entry) -> entry.weight)
+                .expireAfterWrite(ttl)
+                .removalListener((String key, Entry entry, RemovalCause cause) -> onRemoval(key, cause))
+                .recordStats()
+                .build();
+        this.tombstones = Caffeine.newBuilder()
+                .maximumSize(MAX_TOMBSTONES)
+                .expireAfterWrite(tombstoneTtl)
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, resources, "fhir.cache.l1");
+    }
+
+    /**
+     * Returns a copy of the current cached version of {@code type/id}, or null.
+     */
+    public <T extends IBaseResource> T get(String type, String id, Class<T> resourceClass) {
+        String key = currentVersions.get(type + ":" + id);
+        Entry entry = key != null ? resources.getIfPresent(key) : null;
+        if (entry == null) {
+            count("fhir.cache.l1.requests", type, "result", "miss");
+            return null;
+        }
+        count("fhir.cache.l1.requests", type, "result", "hit");
+        return resourceClass.cast(entry.resource.copy());
+    }
+
+    /**
+     * Caches a copy of {@code resource} as the current version of {@code type/id}.
+     * {@code weight} is the size of its JSON, which is what bounds the cache.
+     * Ignored when a newer version is already cached or was evicted recently.
+     */
+    public void put(String type, String id, IBaseResource resource, int weight) {
+        if (!(resource instanceof Resource r4) || isPending(type, id)) {
+            return;
+        }
+        String version = resource.getMeta() != null && resource.getMeta().getVersionId() != null
+                ? resource.getMeta().getVersionId()
+                : NO_VERSION;
+        String typeAndId = type + ":" + id;
+        String key = typeAndId + ":" + version;
+        if (evicted(typeAndId, key)) {
+            return;
+        }
+        String current = currentVersions.merge(typeAndId, key,
+                (old, added) -> versionOf(added) >= versionOf(old) ? added : old);
+        if (!key.equals(current)) {
+            return;
+        }
+        resources.put(key, new Entry(r4.copy(), Math.max(weight, 1)));
+        // An eviction between the check above and the pointer update
+        if (evicted(typeAndId, key)) {
+            currentVersions.remove(typeAndId, key);
+        }
+    }
+
+    /**
+     * Drops {@code type/id} here and on every other node.
+     */
+    public void invalidate(String type, String id) {
+        evictLocal(type + ":" + id);
+        redisTemplate.convertAndSend(INVALIDATION_CHANNEL, invalidationMessage(type, id));
+    }
+
+    /**
+     * Drops {@code type/id} on this node only. Callers that batch their Redis
+     * traffic publish {@link #invalidationMessage} themselves.
+     */
+    public void evictLocal(String type, String id) {
+        evictLocal(type + ":" + id);
+    }
+
+    /**
+     * Marks {@code type/id} as written but not yet in Redis and drops it here.
+     */
+    public void beginWrite(String type, String id) {
+        pendingWrites.merge(type + ":" + id, 1, Integer::sum);
+        evictLocal(type + ":" + id);
+    }
+
+    /**
+     * Ends one {@link #beginWrite} once its Redis update has been sent.
+     */
+    public void endWrite(String type, String id) {
+        pendingWrites.computeIfPresent(type + ":" + id, (key, writes) -> writes > 1 ? writes - 1 : null);
+    }
+
+    /**
+     * Whether a write of {@code type/id} is still on its way to Redis, so its
+     * Redis copy must not be read.
+     */
+    public boolean isPending(String type, String id) {
+        return !pendingWrites.isEmpty() && pendingWrites.containsKey(type + ":" + id);
+    }
+
+    String invalidationMessage(String type, String id) {
+        return nodeId + "|" + type + ":" + id;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int separator = body.indexOf('|');
+        if (separator < 0 || nodeId.equals(body.substring(0, separator))) {
+            // Our own invalidation, already applied
+            return;
+        }
+        evictLocal(body.substring(separator + 1));
+    }
+
+    private void evictLocal(String typeAndId) {
+        // Tombstone before dropping the pointer, put re-checks it after setting one
+        String current = currentVersions.get(typeAndId);
+        if (current != null) {
+            tombstones.asMap().merge(typeAndId, versionOf(current), Math::max);
+        }
+        String key = currentVersions.remove(typeAndId);
+        if (key != null) {
+            resources.invalidate(key);
+        }
+    }
+
+    private boolean evicted(String typeAndId, String key) {
+        Long tombstone = tombstones.getIfPresent(typeAndId);
+        return tombstone != null && versionOf(key) <= tombstone;
+    }
+
+    private static long versionOf(String key) {
+        try {
+            return Long.parseLong(key.substring(key.lastIndexOf(':') + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void onRemoval(String key, RemovalCause cause) {
+        if (cause == RemovalCause.REPLACED) {
+            return;
+        }
+        String typeAndId = key.substring(0, key.lastIndexOf(':'));
+        // Only drop the pointer if it still refers to the removed version
+        currentVersions.remove(typeAndId, key);
+        if (cause.wasEvicted()) {
+            count("fhir.cache.l1.evictions", key.substring(0, key.indexOf(':')), "cause", cause.name());
+        }
+    }
+
+    private void count(String name, String type, String tagKey, String tagValue) {
+        counters.computeIfAbsent(name + "|" + type + "|" + tagValue, k -> Counter.builder(name)
+                .tag("type", type)
+                .tag(tagKey, tagValue)
+                .register(meterRegistry))
+                .increment();
+    }
+
+    private static final class Entry {
+        private final Resource resource;
+        private final int weight;
+
+        private Entry(Resource resource, int weight) {
+            this.resource = resource;
+            this.weight = weight;
+        }
+    }
+}
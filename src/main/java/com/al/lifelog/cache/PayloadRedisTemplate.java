@@ -0,0 +1,29 @@
+package com.al.lifelog.cache;
+
+import com.al.lifelog.serialization.PayloadRedisSerializer;
+import org.springframework.data.redis.connection.DefaultStringRedisConnection;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+/**
+ * {@link StringRedisTemplate} whose values go through the payload codec, both
+ * for {@code opsForValue()} and for the {@code StringRedisConnection} handed
+ * to pipelined callbacks.
+ */
+public class PayloadRedisTemplate extends StringRedisTemplate {
+
+    private final PayloadRedisSerializer serializer;
+
+    public PayloadRedisTemplate(RedisConnectionFactory connectionFactory, PayloadRedisSerializer serializer) {
+        this.serializer = serializer;
+        setValueSerializer(serializer);
+        setConnectionFactory(connectionFactory);
+        afterPropertiesSet();
+    }
+
+    @Override
+    protected RedisConnection preProcessConnection(RedisConnection connection, boolean existingConnection) {
+        return new DefaultStringRedisConnection(connection, serializer);
+    }
+}
@@ -0,0 +1,217 @@
+package com.al.lifelog.cache;
+
+import com.al.lifelog.serialization.FhirSerializer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.Document;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.redis.connection.RedisStringCommands.SetOption;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns a page of search keys into resources, preferring the caches.
+ *
+ * The search itself only projects {@code _id} and {@code versionId} out of Mongo.
+ * Bodies come from L1, then a single MGET against Redis, and only what is still
+ * missing is read back from Mongo with one {@code $in} query and written to both
+ * cache levels. A cached body whose version differs from the searched one is
+ * treated as a miss. Sources are counted in {@code fhir.search.hydration}, tagged
+ * with {@code type} and {@code source}.
+ */
+@Component
+public class SearchHydrator {
+
+    private static final Duration TTL = Duration.ofMinutes(10);
+
+    private final StringRedisTemplate redisTemplate;
+    private final MongoTemplate mongoTemplate;
+    private final FhirSerializer serializer;
+    private final NearCache nearCache;
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    @Autowired
+    public SearchHydrator(StringRedisTemplate redisTemplate,
+            MongoTemplate mongoTemplate,
+            FhirSerializer serializer,
+            NearCache nearCache,
+            MeterRegistry meterRegistry,
+            @Value("${lifelog.search.hydrate-from-cache:true}") boolean enabled) {
+        this.redisTemplate = redisTemplate;
+        this.mongoTemplate = mongoTemplate;
+        this.serializer = serializer;
+        this.nearCache = nearCache;
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+    }
+
+    /**
+     * Whether searches should project keys only and hydrate through this class.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds the fields {@link #hydrate} needs to a key-only search projection.
+     */
+    public static Query keysOnly(Query query, String... extraFields) {
+        query.fields().include("_id").include("versionId");
+        for (String field : extraFields) {
+            query.fields().include(field);
+        }
+        return query;
+    }
+
+    /**
+     * Returns the resources for {@code keys} (documents with {@code _id} and
+     * {@code versionId}) in the same order. Keys whose document disappeared since
+     * the search are skipped.
+     */
+    public <T extends Resource> List<T> hydrate(String type, Class<T> resourceClass, Class<?> documentClass,
+            List<Document> keys) {
+        if (keys.isEmpty()) {
+            return List.of();
+        }
+
+        List<String> ids = new ArrayList<>(keys.size());
+        Map<String, String> versions = new HashMap<>();
+        for (Document key : keys) {
+            String id = String.valueOf(key.get("_id"));
+            ids.add(id);
+            Number version = key.get("versionId", Number.class);
+            versions.put(id, version != null ? version.toString() : null);
+        }
+        return load(type, resourceClass, documentClass, ids, versions);
+    }
+
+    /**
+     * Returns the current resources for {@code ids}, in the same order, whatever
+     * version is cached. Ids that do not exist are skipped.
+     */
+    public <T extends Resource> List<T> fetch(String type, Class<T> resourceClass, Class<?> documentClass,
+            Collection<String> ids) {
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+        return load(type, resourceClass, documentClass, new ArrayList<>(new LinkedHashSet<>(ids)), Map.of());
+    }
+
+    private <T extends Resource> List<T> load(String type, Class<T> resourceClass, Class<?> documentClass,
+            List<String> ids, Map<String, String> versions) {
+        Map<String, T> found = new HashMap<>();
+        List<String> redisIds = new ArrayList<>();
+        List<String> mongoIds = new ArrayList<>();
+        for (String id : ids) {
+            T near = nearCache.get(type, id, resourceClass);
+            if (near != null && isCurrent(near, versions.get(id))) {
+                found.put(id, near);
+            } else if (nearCache.isPending(type, id)) {
+                mongoIds.add(id);
+            } else {
+                redisIds.add(id);
+            }
+        }
+        count(type, "l1", found.size());
+        if (!redisIds.isEmpty()) {
+            String prefix = type.toLowerCase() + ":";
+            List<String> bodies = redisTemplate.opsForValue()
+                    .multiGet(redisIds.stream().map(id -> prefix + id).toList());
+            int hits = 0;
+            for (int i = 0; i < redisIds.size(); i++) {
+                String id = redisIds.get(i);
+                String json = bodies != null ? bodies.get(i) : null;
+                T resource = json != null ? serializer.parse(resourceClass, json) : null;
+                if (resource != null && isCurrent(resource, versions.get(id))) {
+                    nearCache.put(type, id, resource, json.length());
+                    found.put(id, resource);
+                    hits++;
+                } else {
+                    mongoIds.add(id);
+                }
+            }
+            count(type, "redis", hits);
+        }
+
+        if (!mongoIds.isEmpty()) {
+            Query query = new Query(Criteria.where("_id").in(mongoIds));
+            query.fields().include("fhirJson");
+            List<Document> docs = mongoTemplate.find(query, Document.class,
+                    mongoTemplate.getCollectionName(documentClass));
+
+            Map<String, String> fills = new HashMap<>();
+            for (Document doc : docs) {
+                String id = String.valueOf(doc.get("_id"));
+                String json = doc.getString("fhirJson");
+                if (json == null) {
+                    continue;
+                }
+                T resource = serializer.parse(resourceClass, json);
+                if (!resource.hasId()) {
+                    resource.setId(id);
+                }
+                nearCache.put(type, id, resource, json.length());
+                found.put(id, resource);
+                fills.put(type.toLowerCase() + ":" + id, json);
+            }
+            count(type, "mongo", docs.size());
+            backfill(fills);
+        }
+
+        List<T> resources = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            T resource = found.get(id);
+            if (resource != null) {
+                resources.add(resource);
+            }
+        }
+        return resources;
+    }
+
+    private static boolean isCurrent(Resource resource, String version) {
+        // Unversioned types have nothing to compare
+        return version == null || version.equals(resource.getMeta().getVersionId());
+    }
+
+    private void backfill(Map<String, String> fills) {
+        if (fills.isEmpty()) {
+            return;
+        }
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection redis = (StringRedisConnection) connection;
+            fills.forEach((key, json) -> redis.set(key, json, Expiration.from(TTL), SetOption.upsert()));
+            return null;
+        });
+    }
+
+    private void count(String type, String source, int amount) {
+        if (amount == 0) {
+            return;
+        }
+        counters.computeIfAbsent(type + "|" + source, k -> Counter.builder("fhir.search.hydration")
+                .description("Search results by where their body was loaded from")
+                .tag("type", type)
+                .tag("source", source)
+                .register(meterRegistry))
+                .increment(amount);
+    }
+}
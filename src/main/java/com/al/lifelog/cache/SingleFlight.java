@@ -0,0 +1,127 @@
+package com.al.lifelog.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent cache-miss loads of the same resource.
+ *
+ * The first caller for a {@code type:id} runs the loader, everyone arriving
+ * while it is in flight waits for that result and gets their own copy. With
+ * {@code lifelog.cache.single-flight.redis-lock} enabled, the loading node also
+ * takes a short Redis lock so other nodes wait for it to refill the shared cache
+ * instead of hitting Mongo themselves. The lock costs one extra round trip per
+ * L1 miss, so it is off by default. Each holder stores its own token in the
+ * lock and only deletes it while the token still matches, so a load that
+ * outlived the TTL never releases the lock another node took since.
+ */
+@Component
+public class SingleFlight {
+
+    private static final long LOCK_POLL_MILLIS = 20;
+
+    private static final RedisScript<Long> RELEASE = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end",
+            Long.class);
+
+    private final StringRedisTemplate redisTemplate;
+    private final MeterRegistry meterRegistry;
+    private final boolean redisLock;
+    private final Duration lockTtl;
+
+    private final Map<String, CompletableFuture<Resource>> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, Counter> coalesced = new ConcurrentHashMap<>();
+
+    @Autowired
+    public SingleFlight(StringRedisTemplate redisTemplate,
+            MeterRegistry meterRegistry,
+            @Value("${lifelog.cache.single-flight.redis-lock:false}") boolean redisLock,
+            @Value("${lifelog.cache.single-flight.lock-ttl:PT2S}") Duration lockTtl) {
+        this.redisTemplate = redisTemplate;
+        this.meterRegistry = meterRegistry;
+        this.redisLock = redisLock;
+        this.lockTtl = lockTtl;
+    }
+
+    /**
+     * Runs {@code loader} unless a load of {@code type/id} is already in flight on
+     * this node, in which case its result is shared. May return null (not found).
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Resource> T load(String type, String id, Supplier<T> loader) {
+        String key = type + ":" + id;
+        CompletableFuture<Resource> mine = new CompletableFuture<>();
+        CompletableFuture<Resource> existing = inFlight.putIfAbsent(key, mine);
+
+        if (existing != null) {
+            coalesced.computeIfAbsent(type, t -> Counter.builder("fhir.cache.singleflight.coalesced")
+                    .description("Cache-miss reads served by another request's in-flight load")
+                    .tag("type", t)
+                    .register(meterRegistry))
+                    .increment();
+            try {
+                Resource shared = existing.join();
+                return shared != null ? (T) shared.copy() : null;
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException re ? re : e;
+            }
+        }
+
+        try {
+            T loaded = redisLock ? loadUnderLock(type, id, loader) : loader.get();
+            // Waiters copy from this instance, so hand them a private one
+            mine.complete(loaded != null ? loaded.copy() : null);
+            return loaded;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private <T extends Resource> T loadUnderLock(String type, String id, Supplier<T> loader) {
+        String cacheKey = type.toLowerCase() + ":" + id;
+        String lockKey = "lock:" + cacheKey;
+
+        String token = UUID.randomUUID().toString();
+        Boolean acquired = redisTemplate.opsForValue().setIfAbsent(lockKey, token, lockTtl);
+        if (Boolean.TRUE.equals(acquired)) {
+            try {
+                return loader.get();
+            } finally {
+                redisTemplate.execute(RELEASE, List.of(lockKey), token);
+            }
+        }
+
+        // Another node is loading: wait for it to fill Redis, then read through
+        long deadline = System.nanoTime() + lockTtl.toNanos();
+        while (System.nanoTime() < deadline
+                && !Boolean.TRUE.equals(redisTemplate.hasKey(cacheKey))
+                && Boolean.TRUE.equals(redisTemplate.hasKey(lockKey))) {
+            try {
+                Thread.sleep(LOCK_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return loader.get();
+    }
+}
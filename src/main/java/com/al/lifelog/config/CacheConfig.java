@@ -0,0 +1,32 @@
+package com.al.lifelog.config;
+
+import com.al.lifelog.cache.NearCache;
+import com.al.lifelog.cache.PayloadRedisTemplate;
+import com.al.lifelog.serialization.PayloadCodec;
+import com.al.lifelog.serialization.PayloadRedisSerializer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+@Configuration
+public class CacheConfig {
+
+    // Cached resource JSON is stored in the same compressed form as in Mongo
+    @Bean
+    public StringRedisTemplate stringRedisTemplate(RedisConnectionFactory connectionFactory, PayloadCodec payloadCodec) {
+        return new PayloadRedisTemplate(connectionFactory, new PayloadRedisSerializer(payloadCodec));
+    }
+
+    // Delivers near-cache invalidations published by other nodes
+    @Bean
+    public RedisMessageListenerContainer nearCacheInvalidationListener(RedisConnectionFactory connectionFactory,
+            NearCache nearCache) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.addMessageListener(nearCache, new ChannelTopic(NearCache.INVALIDATION_CHANNEL));
+        return container;
+    }
+}
@@ -66,6 +66,27 @@ public class FhirRestfulServerConfig {
     @Autowired
     private com.al.lifelog.provider.SubscriptionResourceProvider subscriptionResourceProvider;
 
+    @Autowired
+    private com.al.lifelog.provider.TransactionProvider transactionProvider;
+
+    @Autowired
+    private com.al.lifelog.provider.BulkExportProvider bulkExportProvider;
+
+    @Autowired
+    private com.al.lifelog.provider.BulkImportProvider bulkImportProvider;
+
+    @Autowired
+    private com.al.lifelog.provider.PayloadMigrationProvider payloadMigrationProvider;
+
+    @Autowired
+    private com.al.lifelog.paging.CursorPagingProvider cursorPagingProvider;
+
+    @Autowired
+    private com.al.lifelog.interceptor.RawJsonReadInterceptor rawJsonReadInterceptor;
+
+    @Autowired
+    private com.al.lifelog.interceptor.VersionReadCacheInterceptor versionReadCacheInterceptor;
+
     @Bean
     public SmartOnFhirInterceptor smartOnFhirInterceptor() {
         return new SmartOnFhirInterceptor();
@@ -103,10 +124,24 @@ public class FhirRestfulServerConfig {
                 immunizationResourceProvider,
                 subscriptionResourceProvider));
 
+        // Transaction and batch bundles posted to the base URL
+        server.registerProvider(transactionProvider);
+        // Bulk Data $export kick-off, status and download
+        server.registerProvider(bulkExportProvider);
+        // NDJSON bulk load
+        server.registerProvider(bulkImportProvider);
+        // Rewrites stored bodies with the payload codec
+        server.registerProvider(payloadMigrationProvider);
+
+        // Keyset paging: next links resume searches via _getpages/_pageId
+        server.setPagingProvider(cursorPagingProvider);
+
         // Register Interceptors
         server.registerInterceptor(smartOnFhirInterceptor());
         // server.registerInterceptor(requestValidatingInterceptor(fhirContext));
         server.registerInterceptor(auditLoggingInterceptor);
+        server.registerInterceptor(rawJsonReadInterceptor);
+        server.registerInterceptor(versionReadCacheInterceptor);
 
         ServletRegistrationBean<RestfulServer> registration = new ServletRegistrationBean<>(server, "/fhir/*");
         registration.setName("FhirServlet");
@@ -24,6 +24,11 @@ public class MongoConfig extends AbstractMongoClientConfiguration {
         return "lifelog";
     }
 
+    @Override
+    protected java.util.Collection<String> getMappingBasePackages() {
+        return java.util.Collections.singleton("com.al.lifelog.model");
+    }
+
     @Override
     public MongoClient mongoClient() {
         ConnectionString connectionString = new ConnectionString(mongoUri);
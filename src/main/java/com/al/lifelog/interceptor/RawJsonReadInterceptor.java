@@ -0,0 +1,140 @@
+package com.al.lifelog.interceptor;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.auth.PolicyEnum;
+import ca.uhn.fhir.util.DateUtils;
+import com.al.lifelog.serialization.RawResourceJson;
+import com.al.lifelog.service.RawResourceService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.InstantType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Serves plain JSON reads straight from the stored document.
+ *
+ * For {@code GET [type]/[id]} with no transformation requested, the stored JSON
+ * is written to the response with only id and meta patched, skipping the
+ * parse/encode round trip. Anything else (_summary, _elements, XML, pretty
+ * printing, conditional headers, unknown types) falls through to the normal
+ * HAPI read, which also produces the 404 for missing resources.
+ */
+@Component
+@Interceptor
+public class RawJsonReadInterceptor {
+
+    private static final Logger log = LoggerFactory.getLogger(RawJsonReadInterceptor.class);
+
+    // Parameters that do not change the representation
+    private static final Set<String> PASSTHROUGH_PARAMS = Set.of("_format");
+
+    @Autowired
+    private RawResourceService rawResourceService;
+
+    @Value("${lifelog.read.raw-passthrough:true}")
+    private boolean enabled;
+
+    @Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+    public boolean serveRawRead(RequestDetails theRequestDetails, HttpServletRequest theServletRequest,
+            HttpServletResponse theServletResponse) throws IOException {
+        if (!enabled || !isPlainJsonRead(theRequestDetails, theServletRequest)) {
+            return true;
+        }
+
+        String resourceType = theRequestDetails.getResourceName();
+        String id = theRequestDetails.getId().getIdPart();
+        if (!rawResourceService.supports(resourceType) || !isAllowed(theRequestDetails)) {
+            return true;
+        }
+
+        RawResourceService.RawResource raw = rawResourceService.read(resourceType, id);
+        if (raw == null) {
+            return true;
+        }
+
+        RawResourceJson body;
+        try {
+            body = RawResourceJson.patch(raw.getJson(), id, raw.getVersionId(), raw.getLastUpdated());
+        } catch (IOException e) {
+            log.warn("Stored JSON for {}/{} could not be streamed, using parsed read", resourceType, id, e);
+            return true;
+        }
+
+        theServletResponse.setStatus(HttpServletResponse.SC_OK);
+        theServletResponse.setContentType(
+                RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails).getResourceContentType()
+                        + ";charset=UTF-8");
+        if (body.getVersionId() != null) {
+            theServletResponse.addHeader("ETag", RestfulServerUtils.createEtag(body.getVersionId()));
+        }
+        if (body.getLastUpdated() != null) {
+            theServletResponse.addHeader("Last-Modified",
+                    DateUtils.formatDate(new InstantType(body.getLastUpdated()).getValue()));
+        }
+        theServletResponse.setContentLength(body.getBody().length);
+        theServletResponse.getOutputStream().write(body.getBody());
+        theServletResponse.getOutputStream().flush();
+        return false;
+    }
+
+    private boolean isPlainJsonRead(RequestDetails theRequestDetails, HttpServletRequest theServletRequest) {
+        if (theRequestDetails.getRestOperationType() != RestOperationTypeEnum.READ) {
+            return false;
+        }
+        IIdType id = theRequestDetails.getId();
+        if (id == null || !id.hasIdPart() || id.hasVersionIdPart()) {
+            return false;
+        }
+        if (!PASSTHROUGH_PARAMS.containsAll(theRequestDetails.getParameters().keySet())) {
+            return false;
+        }
+        if (theServletRequest.getHeader("If-None-Match") != null
+                || theServletRequest.getHeader("If-Modified-Since") != null) {
+            return false;
+        }
+        if (RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails)
+                .getEncoding() != EncodingEnum.JSON) {
+            return false;
+        }
+        return !(theRequestDetails.getServer() instanceof RestfulServer server)
+                || !RestfulServerUtils.prettyPrintResponse(server, theRequestDetails);
+    }
+
+    /**
+     * The normal read is authorized in SERVER_INCOMING_REQUEST_PRE_HANDLED, which
+     * never runs for requests answered here, so ask the registered authorization
+     * interceptors up front and only serve the request if they all allow it by id.
+     */
+    private boolean isAllowed(RequestDetails theRequestDetails) {
+        if (!(theRequestDetails.getServer() instanceof RestfulServer server)) {
+            return false;
+        }
+        for (Object interceptor : server.getInterceptorService().getAllRegisteredInterceptors()) {
+            if (interceptor instanceof AuthorizationInterceptor authorization) {
+                AuthorizationInterceptor.Verdict verdict = authorization.applyRulesAndReturnDecision(
+                        RestOperationTypeEnum.READ, theRequestDetails, null, theRequestDetails.getId(), null,
+                        Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED);
+                if (verdict == null || verdict.getDecision() != PolicyEnum.ALLOW) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,29 @@
+package com.al.lifelog.interceptor;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.stereotype.Component;
+
+/**
+ * Lets clients keep vread responses for good: {@code [type]/[id]/_history/[vid]}
+ * never changes once written. Private, since every version is patient data.
+ */
+@Component
+@Interceptor
+public class VersionReadCacheInterceptor {
+
+    static final String IMMUTABLE = "private, max-age=31536000, immutable";
+
+    @Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+    public boolean markImmutable(RequestDetails theRequestDetails, HttpServletResponse theServletResponse) {
+        if (theRequestDetails.getRestOperationType() == RestOperationTypeEnum.VREAD && theServletResponse != null) {
+            theServletResponse.setHeader(Constants.HEADER_CACHE_CONTROL, IMMUTABLE);
+        }
+        return true;
+    }
+}
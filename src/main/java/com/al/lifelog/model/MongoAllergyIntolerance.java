@@ -11,6 +11,7 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 @AllArgsConstructor
 @Document(collection = "allergy_intolerances")
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_subject_id", def = "{'subjectId': 1, '_id': 1}")
 public class MongoAllergyIntolerance {
     @Id
     private String id;
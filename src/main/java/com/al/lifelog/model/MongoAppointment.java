@@ -11,6 +11,7 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 @AllArgsConstructor
 @Document(collection = "appointments")
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_patient_id", def = "{'patientId': 1, '_id': 1}")
 public class MongoAppointment {
     @Id
     private String id;
@@ -11,6 +11,7 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 @AllArgsConstructor
 @Document(collection = "conditions")
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_subject_id", def = "{'subjectId': 1, '_id': 1}")
 public class MongoCondition {
     @Id
     private String id;
@@ -21,6 +22,10 @@ public class MongoCondition {
     @Indexed
     private String code; // SNOMED/ICD code
 
+    // Every coding as system|code and bare code, see CodeTokens
+    @Indexed
+    private java.util.List<String> codes;
+
     // For Optimistic Locking & History
     private Long versionId;
     private java.util.Date lastUpdated;
@@ -11,6 +11,7 @@ import lombok.AllArgsConstructor;
 @NoArgsConstructor
 @AllArgsConstructor
 @Document(collection = "diagnostic_reports")
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_subject_id", def = "{'subjectId': 1, '_id': 1}")
 public class MongoDiagnosticReport {
     @Id
     private String id;
@@ -24,6 +25,10 @@ public class MongoDiagnosticReport {
     @Indexed
     private String code; // LOINC code for the panel/report
 
+    // Every coding as system|code and bare code, see CodeTokens
+    @Indexed
+    private java.util.List<String> codes;
+
     private String fhirJson;
 
     public MongoDiagnosticReport(String id, String fhirJson) {
@@ -11,7 +11,9 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 @AllArgsConstructor
 @Document(collection = "encounters")
-@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_subject_date", def = "{'subjectId': 1, 'periodStart': -1}")
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_subject_date", def = "{'subjectId': 1, 'periodStart': -1, '_id': 1}")
+// Patient/$everything pages in _id order
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_subject_id", def = "{'subjectId': 1, '_id': 1}")
 public class MongoEncounter {
     @Id
     private String id;
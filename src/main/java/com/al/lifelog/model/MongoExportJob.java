@@ -0,0 +1,66 @@
+package com.al.lifelog.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+import lombok.Data;
+import lombok.AllArgsConstructor;
+import lombok.NoArgsConstructor;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A bulk data $export job and its checkpoint.
+ *
+ * Types are exported one after another in {@code _id} order. {@code currentType}
+ * and {@code lastId} record the last resource of the last finished file, so an
+ * interrupted job continues from there with a new file.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "export_jobs")
+public class MongoExportJob {
+
+    public static final String ACCEPTED = "ACCEPTED";
+    public static final String IN_PROGRESS = "IN_PROGRESS";
+    public static final String COMPLETED = "COMPLETED";
+    public static final String FAILED = "FAILED";
+
+    @Id
+    private String id;
+
+    @Indexed
+    private String status;
+
+    private String request;
+    private List<String> types = new ArrayList<>();
+    private Date since;
+    private Date transactionTime;
+
+    // Checkpoint
+    private List<String> completedTypes = new ArrayList<>();
+    private String currentType;
+    private String lastId;
+    private Date heartbeat;
+    // Node whose export directory holds the files, see lifelog.export.shared-directory
+    private String node;
+
+    private List<OutputFile> output = new ArrayList<>();
+    private long resources;
+    private long bytes;
+    private Date startedAt;
+    private Date finishedAt;
+    private String error;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class OutputFile {
+        private String type;
+        private String file;
+        private long count;
+        private long bytes;
+    }
+}
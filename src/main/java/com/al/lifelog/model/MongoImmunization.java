@@ -11,6 +11,7 @@ import lombok.AllArgsConstructor;
 @NoArgsConstructor
 @AllArgsConstructor
 @Document(collection = "immunizations")
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_patient_id", def = "{'patientId': 1, '_id': 1}")
 public class MongoImmunization {
     @Id
     private String id;
@@ -0,0 +1,68 @@
+package com.al.lifelog.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+import lombok.Data;
+import lombok.AllArgsConstructor;
+import lombok.NoArgsConstructor;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A bulk $import job. The counters are incremented by the chunks as they are
+ * written, so they are current while the job runs.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "import_jobs")
+public class MongoImportJob {
+
+    public static final String ACCEPTED = "ACCEPTED";
+    public static final String IN_PROGRESS = "IN_PROGRESS";
+    public static final String COMPLETED = "COMPLETED";
+    public static final String FAILED = "FAILED";
+
+    @Id
+    private String id;
+
+    @Indexed
+    private String status;
+
+    private String request;
+    private List<Input> inputs = new ArrayList<>();
+
+    // Work done inline, everything else can be rebuilt after the load
+    private boolean writeHistory = true;
+    private boolean warmCache;
+    private boolean notifySubscribers;
+
+    private long read;
+    private long imported;
+    private long rejected;
+    // First rejected lines only
+    private List<Rejection> rejections = new ArrayList<>();
+
+    private Date startedAt;
+    private Date finishedAt;
+    private String error;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Input {
+        private String type;
+        private String url;
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Rejection {
+        private String url;
+        private long line;
+        private String reason;
+    }
+}
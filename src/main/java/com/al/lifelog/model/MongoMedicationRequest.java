@@ -11,6 +11,7 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 @AllArgsConstructor
 @Document(collection = "medication_requests")
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_subject_id", def = "{'subjectId': 1, '_id': 1}")
 public class MongoMedicationRequest {
     @Id
     private String id;
@@ -0,0 +1,55 @@
+package com.al.lifelog.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+import lombok.Data;
+import lombok.AllArgsConstructor;
+import lombok.NoArgsConstructor;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A $recompress job rewriting stored {@code fhirJson} bodies with the
+ * configured payload codec, one entry per collection as it is processed.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "migration_jobs")
+public class MongoMigrationJob {
+
+    public static final String ACCEPTED = "ACCEPTED";
+    public static final String IN_PROGRESS = "IN_PROGRESS";
+    public static final String COMPLETED = "COMPLETED";
+    public static final String FAILED = "FAILED";
+
+    @Id
+    private String id;
+
+    @Indexed
+    private String status;
+
+    private String request;
+    private String codec;
+    // Rewrites bodies already compressed, e.g. after a codec or dictionary change
+    private boolean force;
+
+    private List<CollectionProgress> collections = new ArrayList<>();
+
+    private Date startedAt;
+    private Date finishedAt;
+    private String error;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class CollectionProgress {
+        private String collection;
+        private long scanned;
+        private long rewritten;
+        private long bytesBefore;
+        private long bytesAfter;
+    }
+}
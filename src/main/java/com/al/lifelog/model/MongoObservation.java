@@ -11,9 +11,18 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 @AllArgsConstructor
 @Document(collection = "observations")
-@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_subject_code", def = "{'subjectId': 1, 'code': 1}")
-@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_subject_date", def = "{'subjectId': 1, 'effectiveDateTime': -1}")
+// Code searches, and the date range of one code's series for $aggregate
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_subject_codes_date", def = "{'subjectId': 1, 'codes': 1, 'effectiveDateTime': -1}")
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_subject_date", def = "{'subjectId': 1, 'effectiveDateTime': -1, '_id': 1}")
 @org.springframework.data.mongodb.core.index.CompoundIndex(name = "obs_text_index", def = "{'code': 'text'}")
+// value-quantity searches with a unit, on the canonical value, see Quantities
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_subject_code_value", def = "{'subjectId': 1, 'codes': 1, 'quantity.value': 1}")
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_subject_component_value", def = "{'subjectId': 1, 'components.codes': 1, 'components.quantity.value': 1}")
+// ... and the same without a unit, which compare the value as written
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_subject_code_raw", def = "{'subjectId': 1, 'codes': 1, 'quantity.raw': 1}")
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_subject_component_raw", def = "{'subjectId': 1, 'components.codes': 1, 'components.quantity.raw': 1}")
+// Patient/$everything pages in _id order
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_subject_id", def = "{'subjectId': 1, '_id': 1}")
 public class MongoObservation {
     @Id
     private String id;
@@ -24,9 +33,20 @@ public class MongoObservation {
     @Indexed
     private String code; // LOINC code or display name
 
+    // Every coding as system|code and bare code, see CodeTokens
+    @Indexed
+    private java.util.List<String> codes;
+
+    // Every category coding, same form as codes; $lastn filters on it
+    private java.util.List<String> categories;
+
     @Indexed
     private java.util.Date effectiveDateTime;
 
+    // valueQuantity and component values in canonical units
+    private SearchQuantity quantity;
+    private java.util.List<SearchComponent> components;
+
     // For Optimistic Locking & History
     private Long versionId;
     private java.util.Date lastUpdated;
@@ -37,4 +57,21 @@ public class MongoObservation {
         this.id = id;
         this.fhirJson = fhirJson;
     }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class SearchQuantity {
+        private Double value; // in unit
+        private String unit; // canonical UCUM unit, or the code as recorded
+        private Double raw; // value as recorded
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class SearchComponent {
+        private java.util.List<String> codes;
+        private SearchQuantity quantity;
+    }
 }
@@ -0,0 +1,51 @@
+package com.al.lifelog.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+import lombok.Data;
+import lombok.AllArgsConstructor;
+import lombok.NoArgsConstructor;
+
+/**
+ * Consecutive samples of one device stream (same subject, device and
+ * everything else but time and value) within one time window, stored column
+ * by column instead of one Observation document each. See
+ * {@link com.al.lifelog.service.ObservationChunkService}.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "observation_chunks")
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_subject_codes_last", def = "{'subjectId': 1, 'codes': 1, 'last': -1}")
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_subject_last", def = "{'subjectId': 1, 'last': -1}")
+public class MongoObservationChunk {
+    @Id
+    private String id;
+
+    private String subjectId; // "Patient/123"
+    private String device; // "Device/abc"
+    private String code; // first coding, as MongoObservation.code
+
+    // Same keys as MongoObservation, see CodeTokens
+    @Indexed
+    private java.util.List<String> codes;
+    private java.util.List<String> categories;
+
+    private java.util.Date start; // window start
+    private java.util.Date first; // earliest sample
+    private java.util.Date last; // latest sample
+
+    // Index form of the values: canonical = offset + scale * value, in unit
+    private String unit;
+    private Double offset;
+    private Double scale;
+
+    // One entry per sample, in arrival order: ms after start, value as recorded
+    private java.util.List<Long> offsets;
+    private java.util.List<Double> values;
+    private Long count;
+
+    private String templateJson; // a sample without id, meta, effective[x] and value
+    private java.util.Date lastUpdated;
+}
@@ -11,8 +11,9 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 @AllArgsConstructor
 @Document(collection = "patients")
-@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_name", def = "{'family': 1, 'given': 1}")
-@org.springframework.data.mongodb.core.index.CompoundIndex(name = "name_text_index", def = "{'family': 'text', 'given': 'text'}")
+// Name search, see NameKeys
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_name_key", def = "{'nameKeys': 1, '_id': 1}")
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_name_gram", def = "{'nameGrams': 1}")
 public class MongoPatient {
     @Id
     private String id;
@@ -27,6 +28,10 @@ public class MongoPatient {
     @Indexed
     private String gender;
 
+    // Folded name parts and their trigrams
+    private java.util.List<String> nameKeys;
+    private java.util.List<String> nameGrams;
+
     // For Optimistic Locking & History
     private Long versionId;
     private java.util.Date lastUpdated;
@@ -0,0 +1,58 @@
+package com.al.lifelog.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+import lombok.Data;
+import lombok.AllArgsConstructor;
+import lombok.NoArgsConstructor;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * What the clinician landing page shows for one patient, denormalized into a
+ * single document: active conditions, current medications, allergies, the
+ * latest vital sign per code and upcoming appointments. Kept up to date by
+ * {@link com.al.lifelog.service.PatientSummaryUpdater}, built and read by
+ * {@link com.al.lifelog.service.PatientSummaryService}.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "patient_summaries")
+public class MongoPatientSummary {
+
+    @Id
+    private String id; // patient id
+
+    // Bumped by every write; writers replace only the revision they read
+    private long revision;
+    // Layout the summary was built with, older ones are rebuilt
+    private int format;
+    // Set when a change could not be applied in place, rebuilt on the next read
+    private boolean stale;
+
+    private List<Entry> conditions = new ArrayList<>();
+    private List<Entry> medications = new ArrayList<>();
+    private List<Entry> allergies = new ArrayList<>();
+    private List<Entry> vitals = new ArrayList<>();
+    private List<Entry> appointments = new ArrayList<>();
+
+    // "Type/id" of every entry above, to find the summary of a deleted resource
+    @Indexed
+    private List<String> members = new ArrayList<>();
+
+    private Date lastUpdated;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Entry {
+        private String id;
+        private Long versionId; // null for unversioned types
+        private String key; // vitals: the code the entry is latest for
+        private Date time; // vitals: effective time, appointments: start
+        private String json;
+    }
+}
@@ -11,6 +11,9 @@ import lombok.AllArgsConstructor;
 @NoArgsConstructor
 @AllArgsConstructor
 @Document(collection = "practitioners")
+// Name search, see NameKeys
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_name_key", def = "{'nameKeys': 1, '_id': 1}")
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_name_gram", def = "{'nameGrams': 1}")
 public class MongoPractitioner {
     @Id
     private String id;
@@ -24,6 +27,10 @@ public class MongoPractitioner {
     @Indexed
     private String identifier; // e.g. License Number or NPI
 
+    // Folded name parts and their trigrams
+    private java.util.List<String> nameKeys;
+    private java.util.List<String> nameGrams;
+
     private String fhirJson;
 
     public MongoPractitioner(String id, String fhirJson) {
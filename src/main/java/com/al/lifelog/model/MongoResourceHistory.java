@@ -6,26 +6,46 @@ import org.springframework.data.mongodb.core.mapping.Document;
 import lombok.Data;
 import lombok.AllArgsConstructor;
 import lombok.NoArgsConstructor;
+import java.time.Duration;
 import java.util.Date;
 
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 @Document(collection = "resource_history")
+// vread and _history pages are range scans on one resource's versions
+@org.springframework.data.mongodb.core.index.CompoundIndex(name = "by_resource_version", def = "{'resourceType': 1, 'resourceId': 1, 'versionId': -1}")
 public class MongoResourceHistory {
+    public static final Duration RETENTION = Duration.ofDays(90);
+
     @Id
     private String id;
 
-    @Indexed
     private String resourceId;
 
-    @Indexed
     private String resourceType;
 
     private Long versionId;
 
-    @Indexed(expireAfter = "90d") // Purge after 90 days
     private Date lastUpdated;
 
+    // Purged once passed: RETENTION after lastUpdated, raised on the rows a newer
+    // delta is rebuilt from so they outlive it
+    @Indexed(expireAfter = "0s")
+    private Date expireAt;
+
+    // Full resource on snapshot rows, null on delta rows
     private String fhirJson;
+
+    // JSON Patch from the previous version on delta rows
+    private String patch;
+
+    public static Date expiry(Date lastUpdated) {
+        long from = lastUpdated != null ? lastUpdated.getTime() : System.currentTimeMillis();
+        return new Date(from + RETENTION.toMillis());
+    }
+
+    public boolean isSnapshot() {
+        return patch == null && fhirJson != null;
+    }
 }
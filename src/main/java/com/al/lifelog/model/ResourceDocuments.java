@@ -0,0 +1,41 @@
+package com.al.lifelog.model;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which Mongo document class stores each FHIR resource type.
+ */
+public final class ResourceDocuments {
+
+    private static final Map<String, Class<?>> DOCUMENT_TYPES = Map.ofEntries(
+            Map.entry("Patient", MongoPatient.class),
+            Map.entry("Observation", MongoObservation.class),
+            Map.entry("Condition", MongoCondition.class),
+            Map.entry("Encounter", MongoEncounter.class),
+            Map.entry("AllergyIntolerance", MongoAllergyIntolerance.class),
+            Map.entry("Appointment", MongoAppointment.class),
+            Map.entry("DiagnosticReport", MongoDiagnosticReport.class),
+            Map.entry("Immunization", MongoImmunization.class),
+            Map.entry("MedicationRequest", MongoMedicationRequest.class),
+            Map.entry("Organization", MongoOrganization.class),
+            Map.entry("Practitioner", MongoPractitioner.class));
+
+    private ResourceDocuments() {
+    }
+
+    /**
+     * Returns the document class for {@code resourceType}, or null if it is not stored.
+     */
+    public static Class<?> forType(String resourceType) {
+        return resourceType != null ? DOCUMENT_TYPES.get(resourceType) : null;
+    }
+
+    public static boolean isStored(String resourceType) {
+        return forType(resourceType) != null;
+    }
+
+    public static Set<String> types() {
+        return DOCUMENT_TYPES.keySet();
+    }
+}
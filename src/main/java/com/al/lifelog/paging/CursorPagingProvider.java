@@ -0,0 +1,92 @@
+package com.al.lifelog.paging;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.IPagingProvider;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * HAPI paging store for lazy keyset searches.
+ *
+ * Searches are returned as {@link LazyBundleProvider}s, which HAPI stores here
+ * after the first page and links to as {@code ?_getpages=<id>&_getpagesoffset=N}.
+ * Only the provider (query definition plus page cursors) is held, never the
+ * parsed results, and the store is bounded by size and idle time.
+ */
+@Component
+public class CursorPagingProvider implements IPagingProvider {
+
+    private final int defaultPageSize;
+    private final int maximumPageSize;
+    private final Cache<String, IBundleProvider> searches;
+
+    public CursorPagingProvider(
+            @Value("${lifelog.paging.default-page-size:10}") int defaultPageSize,
+            @Value("${lifelog.paging.max-page-size:500}") int maximumPageSize,
+            @Value("${lifelog.paging.max-searches:10000}") long maxSearches,
+            @Value("${lifelog.paging.search-ttl:PT30M}") Duration searchTtl) {
+        this.defaultPageSize = defaultPageSize;
+        this.maximumPageSize = maximumPageSize;
+        this.searches = Caffeine.newBuilder()
+                .maximumSize(maxSearches)
+                .expireAfterAccess(searchTtl)
+                .build();
+    }
+
+    /**
+     * Wraps a keyset search in a bundle provider that fetches pages on demand.
+     */
+    public <T extends IBaseResource> IBundleProvider search(LazyBundleProvider.PageFetcher<T> fetcher) {
+        return search(fetcher, null);
+    }
+
+    /**
+     * Same as {@link #search(LazyBundleProvider.PageFetcher)}, adding the
+     * _include/_revinclude targets of each page as it is loaded.
+     */
+    public <T extends IBaseResource> IBundleProvider search(LazyBundleProvider.PageFetcher<T> fetcher,
+            Function<List<T>, List<? extends IBaseResource>> includes) {
+        return search(fetcher, includes, null);
+    }
+
+    /**
+     * Same as {@link #search(LazyBundleProvider.PageFetcher, Function)}, with the
+     * page size HAPI should use when the request has no {@code _count} of its own
+     * (operations that take {@code _count} as a parameter).
+     */
+    public <T extends IBaseResource> IBundleProvider search(LazyBundleProvider.PageFetcher<T> fetcher,
+            Function<List<T>, List<? extends IBaseResource>> includes, Integer preferredPageSize) {
+        return new LazyBundleProvider<>(fetcher, includes, preferredPageSize);
+    }
+
+    @Override
+    public int getDefaultPageSize() {
+        return defaultPageSize;
+    }
+
+    @Override
+    public int getMaximumPageSize() {
+        return maximumPageSize;
+    }
+
+    @Override
+    public IBundleProvider retrieveResultList(RequestDetails theRequestDetails, String theSearchId) {
+        return searches.getIfPresent(theSearchId);
+    }
+
+    @Override
+    public String storeResultList(RequestDetails theRequestDetails, IBundleProvider theList) {
+        String searchId = theList.getUuid() != null ? theList.getUuid() : UUID.randomUUID().toString();
+        searches.put(searchId, theList);
+        return searchId;
+    }
+}
@@ -0,0 +1,159 @@
+package com.al.lifelog.paging;
+
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.method.ResponsePage;
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.InstantType;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+
+/**
+ * Bundle provider that only loads the slice HAPI asks for.
+ *
+ * Nothing is fetched up front. {@link #getResources(int, int)} runs one keyset
+ * query for the requested window and parses just those documents (plus their
+ * _include targets). The cursor at the end of every window is remembered, so the
+ * usual next/previous links resume with an index seek. Offsets we have no
+ * cursor for are reached by walking forward from the closest known one.
+ *
+ * Offsets count matching rows rather than returned resources: a row whose body
+ * is gone or fails to load still takes its place, so a remembered cursor always
+ * sits where the offset says and paging never skips a result.
+ */
+public class LazyBundleProvider<T extends IBaseResource> implements IBundleProvider {
+
+    /**
+     * Fetches up to {@code count} matches after {@code cursor} (null for the start).
+     */
+    @FunctionalInterface
+    public interface PageFetcher<T extends IBaseResource> {
+        SearchPage<T> fetch(String cursor, int count);
+    }
+
+    private static final String START = "";
+
+    private final String uuid = UUID.randomUUID().toString();
+    private final InstantType published = new InstantType(new Date());
+    private final PageFetcher<T> fetcher;
+    private final Function<List<T>, List<? extends IBaseResource>> includes;
+    private final Integer preferredPageSize;
+
+    // Row offset -> cursor positioned right before that row; START marks a known end
+    private final NavigableMap<Integer, String> cursors = new ConcurrentSkipListMap<>();
+    private volatile Integer size;
+
+    public LazyBundleProvider(PageFetcher<T> fetcher, Function<List<T>, List<? extends IBaseResource>> includes,
+            Integer preferredPageSize) {
+        this.fetcher = fetcher;
+        this.includes = includes;
+        this.preferredPageSize = preferredPageSize;
+        cursors.put(0, START);
+    }
+
+    @Override
+    public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+        return getResources(theFromIndex, theToIndex, new ResponsePage.ResponsePageBuilder());
+    }
+
+    @Override
+    public List<IBaseResource> getResources(int theFromIndex, int theToIndex,
+            ResponsePage.ResponsePageBuilder theResponsePageBuilder) {
+        int count = theToIndex - theFromIndex;
+        Integer knownSize = size;
+        if (count <= 0 || (knownSize != null && theFromIndex >= knownSize)) {
+            return new ArrayList<>();
+        }
+
+        String cursor = seekTo(theFromIndex, count);
+        if (cursor == null) {
+            return new ArrayList<>();
+        }
+
+        SearchPage<T> page = fetcher.fetch(START.equals(cursor) ? null : cursor, count);
+        List<T> matches = page.getResources();
+        remember(theFromIndex + page.getRows(), page);
+
+        List<IBaseResource> resources = new ArrayList<>(matches);
+        int included = 0;
+        if (includes != null && !matches.isEmpty()) {
+            for (IBaseResource include : includes.apply(matches)) {
+                if (include instanceof IAnyResource) {
+                    ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.put((IAnyResource) include,
+                            BundleEntrySearchModeEnum.INCLUDE);
+                }
+                resources.add(include);
+                included++;
+            }
+        }
+
+        // One extra row was read when a next page exists, which is all HAPI needs for its next link
+        theResponsePageBuilder.setIncludedResourceCount(included);
+        theResponsePageBuilder.setTotalRequestedResourcesFetched(page.getRows() + (page.hasNext() ? 1 : 0));
+        return resources;
+    }
+
+    /**
+     * Returns the cursor right before {@code offset}, walking forward in windows of
+     * {@code stride} from the nearest known cursor. Null when the offset lies past
+     * the end of the results.
+     */
+    private String seekTo(int offset, int stride) {
+        Map.Entry<Integer, String> known = cursors.floorEntry(offset);
+        int position = known.getKey();
+        String cursor = known.getValue();
+        while (position < offset) {
+            SearchPage<T> skipped = fetcher.fetch(START.equals(cursor) ? null : cursor,
+                    Math.min(stride, offset - position));
+            position += skipped.getRows();
+            remember(position, skipped);
+            if (!skipped.hasNext()) {
+                return null;
+            }
+            cursor = skipped.getNextCursor();
+        }
+        return cursor;
+    }
+
+    private void remember(int endOffset, SearchPage<T> page) {
+        if (page.hasNext()) {
+            cursors.put(endOffset, page.getNextCursor());
+        } else {
+            size = endOffset;
+        }
+    }
+
+    @Override
+    public IPrimitiveType<Date> getPublished() {
+        return published;
+    }
+
+    @Override
+    public String getUuid() {
+        return uuid;
+    }
+
+    @Override
+    public Integer preferredPageSize() {
+        return preferredPageSize;
+    }
+
+    /**
+     * Unknown until the last page has been read; HAPI then relies on the
+     * fetched row count to decide whether to emit a next link.
+     */
+    @Override
+    public Integer size() {
+        return size;
+    }
+}
@@ -0,0 +1,153 @@
+package com.al.lifelog.paging;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.springframework.data.domain.Sort;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.CriteriaDefinition;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+
+/**
+ * Opaque continuation token for keyset (seek) pagination.
+ *
+ * A cursor remembers the sort key of the last document returned, either
+ * {@code (sortField, _id)} for date ordered searches or just {@code (_id)}.
+ * The next page is then fetched with a range predicate on the index instead of
+ * a {@code skip}, so page N costs the same as page 1.
+ */
+public final class SearchCursor {
+
+    public static final String ID_FIELD = "_id";
+
+    private static final String DATE_KEYED = "d";
+    private static final String ID_KEYED = "i";
+
+    private final boolean dateKeyed;
+    private final Date sortValue;
+    private final String id;
+
+    private SearchCursor(boolean dateKeyed, Date sortValue, String id) {
+        this.dateKeyed = dateKeyed;
+        this.sortValue = sortValue;
+        this.id = id;
+    }
+
+    /**
+     * Cursor positioned after a document ordered by {@code (date desc, _id asc)}.
+     */
+    public static SearchCursor after(Date sortValue, String id) {
+        return new SearchCursor(true, sortValue, id);
+    }
+
+    /**
+     * Cursor positioned after a document ordered by {@code _id asc}.
+     */
+    public static SearchCursor after(String id) {
+        return new SearchCursor(false, null, id);
+    }
+
+    public String encode() {
+        String raw = dateKeyed
+                ? DATE_KEYED + ":" + (sortValue != null ? sortValue.getTime() : "") + ":" + id
+                : ID_KEYED + ":" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static SearchCursor decode(String token) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            String[] parts = raw.split(":", 3);
+            if (DATE_KEYED.equals(parts[0]) && parts.length == 3) {
+                Date sortValue = parts[1].isEmpty() ? null : new Date(Long.parseLong(parts[1]));
+                return new SearchCursor(true, sortValue, parts[2]);
+            }
+            if (ID_KEYED.equals(parts[0]) && parts.length == 2) {
+                return new SearchCursor(false, null, parts[1]);
+            }
+        } catch (IllegalArgumentException e) {
+            // Fall through to the invalid token error below
+        }
+        throw new InvalidRequestException("Invalid or expired paging cursor: " + token);
+    }
+
+    /**
+     * Orders the query by {@code (sortField desc, _id asc)}, positions it after the
+     * given token (if any) and limits it to one more row than the page size so the
+     * caller can tell whether a next page exists.
+     */
+    public static Query seek(Query query, String sortField, String token, int pageSize) {
+        query.with(Sort.by(Sort.Direction.DESC, sortField).and(Sort.by(Sort.Direction.ASC, ID_FIELD)));
+        if (token != null && !token.isEmpty()) {
+            SearchCursor cursor = decode(token);
+            if (!cursor.dateKeyed) {
+                throw new InvalidRequestException("Paging cursor does not match this search: " + token);
+            }
+            query.addCriteria(and(cursor.afterDate(sortField)));
+        }
+        return query.limit(pageSize + 1);
+    }
+
+    /**
+     * Orders the query by {@code _id asc}, positions it after the given token (if
+     * any) and limits it to one more row than the page size.
+     */
+    public static Query seek(Query query, String token, int pageSize) {
+        query.with(Sort.by(Sort.Direction.ASC, ID_FIELD));
+        if (token != null && !token.isEmpty()) {
+            SearchCursor cursor = decode(token);
+            if (cursor.dateKeyed) {
+                throw new InvalidRequestException("Paging cursor does not match this search: " + token);
+            }
+            // Wrapped in $and so it never collides with an _id equality criterion
+            query.addCriteria(and(Criteria.where(ID_FIELD).gt(cursor.id)));
+        }
+        return query.limit(pageSize + 1);
+    }
+
+    /**
+     * {@code $and} of the cursor predicate under its own key: Query allows one
+     * criteria per key and gives every operator-only criteria ($or, $nor) the
+     * same null key, so a plain andOperator would clash with a search's $or.
+     */
+    private static CriteriaDefinition and(Criteria criteria) {
+        Document and = new Criteria().andOperator(criteria).getCriteriaObject();
+        return new CriteriaDefinition() {
+            @Override
+            public Document getCriteriaObject() {
+                return and;
+            }
+
+            @Override
+            public String getKey() {
+                return "$and";
+            }
+        };
+    }
+
+    private Criteria afterDate(String sortField) {
+        // Descending sort puts missing dates last, so a null cursor only has ties left
+        if (sortValue == null) {
+            return new Criteria().andOperator(
+                    Criteria.where(sortField).is(null),
+                    Criteria.where(ID_FIELD).gt(id));
+        }
+        return new Criteria().orOperator(
+                Criteria.where(sortField).lt(sortValue),
+                new Criteria().andOperator(
+                        Criteria.where(sortField).is(sortValue),
+                        Criteria.where(ID_FIELD).gt(id)),
+                Criteria.where(sortField).is(null));
+    }
+
+    public Date getSortValue() {
+        return sortValue;
+    }
+
+    public String getId() {
+        return id;
+    }
+}
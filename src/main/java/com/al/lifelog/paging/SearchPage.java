@@ -0,0 +1,79 @@
+package com.al.lifelog.paging;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * One page of search results plus the cursor for the page after it.
+ * {@code nextCursor} is null on the last page. {@code rows} is how many matching
+ * rows the page consumed, which can exceed the resources returned when some of
+ * them could not be loaded.
+ */
+public class SearchPage<T> {
+
+    private final List<T> resources;
+    private final String nextCursor;
+    private final int rows;
+
+    public SearchPage(List<T> resources, String nextCursor) {
+        this(resources, nextCursor, resources.size());
+    }
+
+    public SearchPage(List<T> resources, String nextCursor, int rows) {
+        this.resources = resources;
+        this.nextCursor = nextCursor;
+        this.rows = rows;
+    }
+
+    /**
+     * Builds a page from documents fetched with {@link SearchCursor#seek}, i.e. at
+     * most {@code pageSize + 1} rows. The extra row only signals that another page
+     * exists and is not returned.
+     */
+    public static <M, T> SearchPage<T> of(List<M> documents, int pageSize,
+            Function<M, SearchCursor> cursorOf, Function<M, T> mapper) {
+        return ofBatch(documents, pageSize, cursorOf, page -> page.stream()
+                .map(mapper)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Same as {@link #of}, but the page is turned into resources in one call, for
+     * loaders that fetch bodies in bulk.
+     */
+    public static <M, T> SearchPage<T> ofBatch(List<M> documents, int pageSize,
+            Function<M, SearchCursor> cursorOf, Function<List<M>, List<T>> loader) {
+        boolean hasMore = documents.size() > pageSize;
+        List<M> page = hasMore ? documents.subList(0, pageSize) : documents;
+
+        String next = null;
+        if (hasMore && !page.isEmpty()) {
+            next = cursorOf.apply(page.get(page.size() - 1)).encode();
+        }
+
+        return new SearchPage<>(page.isEmpty() ? List.of() : loader.apply(page), next, page.size());
+    }
+
+    public static <T> SearchPage<T> empty() {
+        return new SearchPage<>(List.of(), null);
+    }
+
+    public List<T> getResources() {
+        return resources;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+}
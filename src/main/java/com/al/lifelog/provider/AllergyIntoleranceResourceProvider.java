@@ -10,7 +10,9 @@ import org.hl7.fhir.r4.model.AllergyIntolerance;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.util.List;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import com.al.lifelog.paging.CursorPagingProvider;
 
 @Component
 public class AllergyIntoleranceResourceProvider implements IResourceProvider {
@@ -18,6 +20,9 @@ public class AllergyIntoleranceResourceProvider implements IResourceProvider {
     @Autowired
     private AllergyIntoleranceService service;
 
+    @Autowired
+    private CursorPagingProvider pagingProvider;
+
     @Override
     public Class<AllergyIntolerance> getResourceType() {
         return AllergyIntolerance.class;
@@ -39,7 +44,7 @@ public class AllergyIntoleranceResourceProvider implements IResourceProvider {
     }
 
     @Search
-    public List<AllergyIntolerance> search(
+    public IBundleProvider search(
             @OptionalParam(name = AllergyIntolerance.SP_PATIENT) ReferenceParam patient,
             @OptionalParam(name = "_count") ca.uhn.fhir.rest.param.NumberParam count,
             @OptionalParam(name = "_offset") ca.uhn.fhir.rest.param.NumberParam offset) {
@@ -47,8 +52,12 @@ public class AllergyIntoleranceResourceProvider implements IResourceProvider {
         String patientId = (patient != null) ? patient.getIdPart() : null;
 
         int countVal = (count != null) ? count.getValue().intValue() : 10;
-        int offsetVal = (offset != null) ? offset.getValue().intValue() : 0;
 
-        return service.searchAllergyIntolerances(patientId, offsetVal, countVal);
+        if (offset != null) {
+            // Explicit _offset keeps the old skip based paging
+            return new SimpleBundleProvider(
+                    service.searchAllergyIntolerances(patientId, offset.getValue().intValue(), countVal));
+        }
+        return pagingProvider.search((cursor, pageSize) -> service.searchAllergyIntolerances(patientId, cursor, pageSize));
     }
 }
@@ -10,7 +10,9 @@ import org.hl7.fhir.r4.model.Appointment;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.util.List;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import com.al.lifelog.paging.CursorPagingProvider;
 
 @Component
 public class AppointmentResourceProvider implements IResourceProvider {
@@ -18,6 +20,9 @@ public class AppointmentResourceProvider implements IResourceProvider {
     @Autowired
     private AppointmentService service;
 
+    @Autowired
+    private CursorPagingProvider pagingProvider;
+
     @Override
     public Class<Appointment> getResourceType() {
         return Appointment.class;
@@ -39,7 +44,7 @@ public class AppointmentResourceProvider implements IResourceProvider {
     }
 
     @Search
-    public List<Appointment> search(
+    public IBundleProvider search(
             @OptionalParam(name = Appointment.SP_ACTOR) ReferenceParam actor,
             @OptionalParam(name = "_count") ca.uhn.fhir.rest.param.NumberParam count,
             @OptionalParam(name = "_offset") ca.uhn.fhir.rest.param.NumberParam offset) {
@@ -47,8 +52,12 @@ public class AppointmentResourceProvider implements IResourceProvider {
         String patientId = (actor != null) ? actor.getIdPart() : null;
 
         int countVal = (count != null) ? count.getValue().intValue() : 10;
-        int offsetVal = (offset != null) ? offset.getValue().intValue() : 0;
 
-        return service.searchAppointments(patientId, offsetVal, countVal);
+        if (offset != null) {
+            // Explicit _offset keeps the old skip based paging
+            return new SimpleBundleProvider(
+                    service.searchAppointments(patientId, offset.getValue().intValue(), countVal));
+        }
+        return pagingProvider.search((cursor, pageSize) -> service.searchAppointments(patientId, cursor, pageSize));
     }
 }
@@ -0,0 +1,178 @@
+package com.al.lifelog.provider;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.al.lifelog.model.MongoExportJob;
+import com.al.lifelog.service.BulkExportService;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * FHIR Bulk Data export: kick-off ({@code [base]/$export}, {@code Patient/$export}),
+ * status polling ({@code $export-poll-status}) and file download
+ * ({@code $export-download}). Group/$export is not offered, Groups are not stored.
+ */
+@Component
+public class BulkExportProvider {
+
+    private static final JsonMapper JSON = JsonMapper.builder().build();
+
+    private static final Set<String> OUTPUT_FORMATS = Set.of("application/fhir+ndjson", "application/ndjson",
+            "ndjson");
+
+    @Autowired
+    private BulkExportService bulkExportService;
+
+    @Operation(name = "$export", idempotent = true, manualResponse = true)
+    public void exportSystem(@OperationParam(name = "_since") InstantType theSince,
+            @OperationParam(name = "_type") StringType theType,
+            @OperationParam(name = "_outputFormat") StringType theOutputFormat,
+            ServletRequestDetails theRequestDetails) {
+        kickOff(BulkExportService.ALL_TYPES, theSince, theType, theOutputFormat, theRequestDetails);
+    }
+
+    @Operation(name = "$export", type = Patient.class, idempotent = true, manualResponse = true)
+    public void exportPatients(@OperationParam(name = "_since") InstantType theSince,
+            @OperationParam(name = "_type") StringType theType,
+            @OperationParam(name = "_outputFormat") StringType theOutputFormat,
+            ServletRequestDetails theRequestDetails) {
+        kickOff(BulkExportService.PATIENT_COMPARTMENT, theSince, theType, theOutputFormat, theRequestDetails);
+    }
+
+    @Operation(name = "$export-poll-status", idempotent = true, manualResponse = true)
+    public void pollStatus(@OperationParam(name = "_jobId", min = 1) StringType theJobId,
+            ServletRequestDetails theRequestDetails) throws IOException {
+        MongoExportJob job = requireJob(theJobId);
+        HttpServletResponse response = theRequestDetails.getServletResponse();
+
+        switch (job.getStatus()) {
+            case MongoExportJob.COMPLETED -> {
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.setContentType("application/json;charset=UTF-8");
+                JSON.writeValue(response.getOutputStream(), manifest(job, theRequestDetails.getFhirServerBase()));
+            }
+            case MongoExportJob.FAILED -> throw new InternalErrorException("Export failed: " + job.getError());
+            default -> {
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                response.setHeader("X-Progress", progress(job));
+                response.setHeader(Constants.HEADER_RETRY_AFTER, "5");
+            }
+        }
+    }
+
+    @Operation(name = "$export-download", idempotent = true, manualResponse = true)
+    public void download(@OperationParam(name = "_jobId", min = 1) StringType theJobId,
+            @OperationParam(name = "_file", min = 1) StringType theFile,
+            ServletRequestDetails theRequestDetails) throws IOException {
+        MongoExportJob job = requireJob(theJobId);
+        Path file = bulkExportService.outputFile(job, theFile.getValue());
+        if (file == null || !Files.exists(file)) {
+            throw new ResourceNotFoundException("No export file " + theFile.getValue());
+        }
+
+        // Files are stored gzip, clients get them decoded as NDJSON
+        HttpServletResponse response = theRequestDetails.getServletResponse();
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/fhir+ndjson");
+        response.setHeader(Constants.HEADER_CONTENT_ENCODING, Constants.ENCODING_GZIP);
+        response.setContentLengthLong(Files.size(file));
+        Files.copy(file, response.getOutputStream());
+    }
+
+    private void kickOff(List<String> allowedTypes, InstantType theSince, StringType theType,
+            StringType theOutputFormat, ServletRequestDetails theRequestDetails) {
+        if (theOutputFormat != null && !OUTPUT_FORMATS.contains(theOutputFormat.getValue())) {
+            throw new InvalidRequestException("Unsupported _outputFormat " + theOutputFormat.getValue());
+        }
+        List<String> types = new ArrayList<>();
+        if (theType != null && theType.hasValue()) {
+            Arrays.stream(theType.getValue().split(",")).map(String::trim).filter(t -> !t.isEmpty())
+                    .forEach(types::add);
+        }
+        Date since = theSince != null ? theSince.getValue() : null;
+
+        MongoExportJob job = bulkExportService.startExport(types, allowedTypes, since,
+                theRequestDetails.getCompleteUrl());
+
+        HttpServletResponse response = theRequestDetails.getServletResponse();
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        response.setHeader(Constants.HEADER_CONTENT_LOCATION,
+                theRequestDetails.getFhirServerBase() + "/$export-poll-status?_jobId=" + job.getId());
+    }
+
+    private MongoExportJob requireJob(StringType theJobId) {
+        MongoExportJob job = bulkExportService.getJob(theJobId.getValue());
+        if (job == null) {
+            throw new ResourceNotFoundException("No export job " + theJobId.getValue());
+        }
+        return job;
+    }
+
+    static Map<String, Object> manifest(MongoExportJob job, String serverBase) {
+        List<Map<String, Object>> output = new ArrayList<>();
+        for (MongoExportJob.OutputFile file : job.getOutput()) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("type", file.getType());
+            entry.put("url", serverBase + "/$export-download?_jobId=" + job.getId() + "&_file=" + file.getFile());
+            entry.put("count", file.getCount());
+            output.add(entry);
+        }
+
+        Map<String, Object> manifest = new LinkedHashMap<>();
+        manifest.put("transactionTime", new InstantType(job.getTransactionTime()).getValueAsString());
+        manifest.put("request", job.getRequest());
+        manifest.put("requiresAccessToken", true);
+        manifest.put("output", output);
+        manifest.put("error", List.of());
+
+        double seconds = elapsedSeconds(job);
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("resources", job.getResources());
+        stats.put("bytes", job.getBytes());
+        stats.put("seconds", seconds);
+        stats.put("resourcesPerSecond", seconds > 0 ? Math.round(job.getResources() / seconds) : job.getResources());
+        stats.put("bytesPerSecond", seconds > 0 ? Math.round(job.getBytes() / seconds) : job.getBytes());
+        manifest.put("extension", stats);
+        return manifest;
+    }
+
+    static String progress(MongoExportJob job) {
+        double seconds = elapsedSeconds(job);
+        String progress = job.getCompletedTypes().size() + "/" + job.getTypes().size() + " types, "
+                + job.getResources() + " resources";
+        if (seconds > 0) {
+            progress += String.format(", %d resources/s, %d bytes/s",
+                    Math.round(job.getResources() / seconds), Math.round(job.getBytes() / seconds));
+        }
+        return progress;
+    }
+
+    private static double elapsedSeconds(MongoExportJob job) {
+        if (job.getStartedAt() == null) {
+            return 0;
+        }
+        long end = job.getFinishedAt() != null ? job.getFinishedAt().getTime() : System.currentTimeMillis();
+        return Math.max(end - job.getStartedAt().getTime(), 0) / 1000.0;
+    }
+}
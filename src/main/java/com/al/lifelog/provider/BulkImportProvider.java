@@ -0,0 +1,140 @@
+package com.al.lifelog.provider;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.annotation.ResourceParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.al.lifelog.model.MongoImportJob;
+import com.al.lifelog.service.BulkImportService;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Type;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bulk NDJSON load: {@code POST [base]/$import} with a Parameters body
+ * ({@code input} parts holding {@code type} and {@code url}, plus the optional
+ * {@code history}, {@code warmCache} and {@code notify} flags), then
+ * {@code $import-poll-status} for progress and the final report.
+ */
+@Component
+public class BulkImportProvider {
+
+    private static final JsonMapper JSON = JsonMapper.builder().build();
+
+    @Autowired
+    private BulkImportService bulkImportService;
+
+    @Operation(name = "$import", idempotent = false, manualResponse = true)
+    public void importResources(@ResourceParam Parameters theParameters, ServletRequestDetails theRequestDetails) {
+        List<MongoImportJob.Input> inputs = new ArrayList<>();
+        for (ParametersParameterComponent parameter : theParameters.getParameter()) {
+            if (!"input".equals(parameter.getName())) {
+                continue;
+            }
+            String type = null;
+            String url = null;
+            for (ParametersParameterComponent part : parameter.getPart()) {
+                if ("type".equals(part.getName()) && part.hasValue()) {
+                    type = part.getValue().primitiveValue();
+                } else if ("url".equals(part.getName()) && part.hasValue()) {
+                    url = part.getValue().primitiveValue();
+                }
+            }
+            if (type == null || url == null) {
+                throw new InvalidRequestException("Every input needs a type and a url");
+            }
+            inputs.add(new MongoImportJob.Input(type, url));
+        }
+
+        MongoImportJob job = bulkImportService.startImport(inputs,
+                flag(theParameters, "history", true),
+                flag(theParameters, "warmCache", false),
+                flag(theParameters, "notify", false),
+                theRequestDetails.getCompleteUrl());
+
+        HttpServletResponse response = theRequestDetails.getServletResponse();
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        response.setHeader(Constants.HEADER_CONTENT_LOCATION,
+                theRequestDetails.getFhirServerBase() + "/$import-poll-status?_jobId=" + job.getId());
+    }
+
+    @Operation(name = "$import-poll-status", idempotent = true, manualResponse = true)
+    public void pollStatus(@OperationParam(name = "_jobId", min = 1) StringType theJobId,
+            ServletRequestDetails theRequestDetails) throws IOException {
+        MongoImportJob job = bulkImportService.getJob(theJobId.getValue());
+        if (job == null) {
+            throw new ResourceNotFoundException("No import job " + theJobId.getValue());
+        }
+        HttpServletResponse response = theRequestDetails.getServletResponse();
+
+        switch (job.getStatus()) {
+            case MongoImportJob.COMPLETED -> {
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.setContentType("application/json;charset=UTF-8");
+                JSON.writeValue(response.getOutputStream(), report(job));
+            }
+            case MongoImportJob.FAILED -> throw new InternalErrorException("Import failed: " + job.getError());
+            default -> {
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                response.setHeader("X-Progress", job.getImported() + " imported, " + job.getRejected()
+                        + " rejected, " + Math.round(perSecond(job, job.getImported())) + " resources/s");
+                response.setHeader(Constants.HEADER_RETRY_AFTER, "5");
+            }
+        }
+    }
+
+    private static boolean flag(Parameters theParameters, String name, boolean defaultValue) {
+        ParametersParameterComponent parameter = theParameters.getParameter(name);
+        Type value = parameter != null ? parameter.getValue() : null;
+        return value instanceof BooleanType bool && bool.hasValue() ? bool.booleanValue() : defaultValue;
+    }
+
+    static Map<String, Object> report(MongoImportJob job) {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("request", job.getRequest());
+        report.put("read", job.getRead());
+        report.put("imported", job.getImported());
+        report.put("rejected", job.getRejected());
+        report.put("seconds", seconds(job));
+        report.put("resourcesPerSecond", Math.round(perSecond(job, job.getImported())));
+        List<Map<String, Object>> rejections = new ArrayList<>();
+        for (MongoImportJob.Rejection rejection : job.getRejections()) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("url", rejection.getUrl());
+            entry.put("line", rejection.getLine());
+            entry.put("reason", rejection.getReason());
+            rejections.add(entry);
+        }
+        report.put("rejections", rejections);
+        return report;
+    }
+
+    private static double perSecond(MongoImportJob job, long count) {
+        double seconds = seconds(job);
+        return seconds > 0 ? count / seconds : count;
+    }
+
+    private static double seconds(MongoImportJob job) {
+        if (job.getStartedAt() == null) {
+            return 0;
+        }
+        long end = job.getFinishedAt() != null ? job.getFinishedAt().getTime() : System.currentTimeMillis();
+        return Math.max(end - job.getStartedAt().getTime(), 0) / 1000.0;
+    }
+}
@@ -8,10 +8,14 @@ import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.InstantType;
 import org.hl7.fhir.r4.model.Condition;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import com.al.lifelog.paging.CursorPagingProvider;
 import java.util.List;
 
 @Component
@@ -23,14 +27,25 @@ public class ConditionResourceProvider implements IResourceProvider {
     @Autowired
     private ValidationService validationService;
 
+    @Autowired
+    private CursorPagingProvider pagingProvider;
+
     @Override
     public Class<Condition> getResourceType() {
         return Condition.class;
     }
 
-    @Read
+    @Read(version = true)
     public Condition read(@IdParam IdType theId) {
-        Condition condition = conditionService.getCondition(theId.getIdPart());
+        Condition condition;
+        if (theId.hasVersionIdPart()) {
+            // vread; versions are numeric, anything else cannot exist
+            condition = theId.isVersionIdPartValidLong()
+                    ? conditionService.getConditionVersion(theId.getIdPart(), theId.getVersionIdPartAsLong())
+                    : null;
+        } else {
+            condition = conditionService.getCondition(theId.getIdPart());
+        }
         if (condition == null) {
             throw new ResourceNotFoundException(theId);
         }
@@ -47,6 +62,10 @@ public class ConditionResourceProvider implements IResourceProvider {
     @Update
     public ca.uhn.fhir.rest.api.MethodOutcome update(@IdParam IdType theId, @ResourceParam Condition theCondition) {
         validationService.validate(theCondition);
+        if (theId.hasVersionIdPart()) {
+            // If-Match, checked against the stored version when writing
+            theCondition.getMeta().setVersionId(theId.getVersionIdPart());
+        }
         Condition updated = conditionService.updateCondition(theId.getIdPart(), theCondition);
         return new ca.uhn.fhir.rest.api.MethodOutcome(new IdType(updated.getId()));
     }
@@ -58,23 +77,27 @@ public class ConditionResourceProvider implements IResourceProvider {
     }
 
     @History
-    public List<Condition> getHistory(@IdParam IdType theId) {
-        return conditionService.getHistory(theId.getIdPart());
+    public IBundleProvider getHistory(@IdParam IdType theId, @Since InstantType theSince) {
+        java.util.Date since = theSince != null ? theSince.getValue() : null;
+        return pagingProvider.search((cursor, pageSize) -> conditionService.getHistoryPage(theId.getIdPart(), since, cursor, pageSize));
     }
 
     @Search
-    public List<Condition> search(
+    public IBundleProvider search(
             @OptionalParam(name = Condition.SP_SUBJECT) ReferenceParam subject,
             @OptionalParam(name = Condition.SP_CODE) TokenParam code,
             @OptionalParam(name = "_count") ca.uhn.fhir.rest.param.NumberParam count,
             @OptionalParam(name = "_offset") ca.uhn.fhir.rest.param.NumberParam offset) {
 
         String subjectVal = (subject != null) ? subject.getIdPart() : null;
-        String codeVal = (code != null) ? code.getValue() : null;
 
         int countVal = (count != null) ? count.getValue().intValue() : 10;
-        int offsetVal = (offset != null) ? offset.getValue().intValue() : 0;
 
-        return conditionService.searchConditions(subjectVal, codeVal, offsetVal, countVal);
+        if (offset != null) {
+            // Explicit _offset keeps the old skip based paging
+            return new SimpleBundleProvider(
+                    conditionService.searchConditions(subjectVal, code, offset.getValue().intValue(), countVal));
+        }
+        return pagingProvider.search((cursor, pageSize) -> conditionService.searchConditions(subjectVal, code, cursor, pageSize));
     }
 }
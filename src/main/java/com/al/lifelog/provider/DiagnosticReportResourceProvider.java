@@ -3,6 +3,7 @@ package com.al.lifelog.provider;
 import com.al.lifelog.service.DiagnosticReportService;
 import ca.uhn.fhir.rest.annotation.*;
 import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import org.hl7.fhir.r4.model.IdType;
@@ -12,16 +13,19 @@ import org.springframework.stereotype.Component;
 
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.SimpleBundleProvider;
-import java.util.List;
+import com.al.lifelog.paging.CursorPagingProvider;
 
 @Component
 public class DiagnosticReportResourceProvider implements IResourceProvider {
 
     private final DiagnosticReportService diagnosticReportService;
+    private final CursorPagingProvider pagingProvider;
 
     @Autowired
-    public DiagnosticReportResourceProvider(DiagnosticReportService diagnosticReportService) {
+    public DiagnosticReportResourceProvider(DiagnosticReportService diagnosticReportService,
+            CursorPagingProvider pagingProvider) {
         this.diagnosticReportService = diagnosticReportService;
+        this.pagingProvider = pagingProvider;
     }
 
     @Override
@@ -47,18 +51,20 @@ public class DiagnosticReportResourceProvider implements IResourceProvider {
     @Search
     public IBundleProvider search(
             @OptionalParam(name = DiagnosticReport.SP_SUBJECT) StringParam subject,
-            @OptionalParam(name = DiagnosticReport.SP_CODE) StringParam code,
+            @OptionalParam(name = DiagnosticReport.SP_CODE) TokenParam code,
             @OptionalParam(name = "_count") ca.uhn.fhir.rest.param.NumberParam count,
             @OptionalParam(name = "_offset") ca.uhn.fhir.rest.param.NumberParam offset) {
 
         String subjectVal = (subject != null) ? subject.getValue() : null;
-        String codeVal = (code != null) ? code.getValue() : null;
 
         int countVal = (count != null) ? count.getValue().intValue() : 10;
-        int offsetVal = (offset != null) ? offset.getValue().intValue() : 0;
 
-        List<DiagnosticReport> reports = diagnosticReportService.searchDiagnosticReports(subjectVal, codeVal, offsetVal,
-                countVal);
-        return new SimpleBundleProvider(reports);
+        if (offset != null) {
+            // Explicit _offset keeps the old skip based paging
+            return new SimpleBundleProvider(diagnosticReportService.searchDiagnosticReports(subjectVal, code,
+                    offset.getValue().intValue(), countVal));
+        }
+        return pagingProvider.search(
+                (cursor, pageSize) -> diagnosticReportService.searchDiagnosticReports(subjectVal, code, cursor, pageSize));
     }
 }
@@ -7,10 +7,14 @@ import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.InstantType;
 import org.hl7.fhir.r4.model.Encounter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import com.al.lifelog.paging.CursorPagingProvider;
 import java.util.List;
 
 @Component
@@ -22,14 +26,25 @@ public class EncounterResourceProvider implements IResourceProvider {
     @Autowired
     private ValidationService validationService;
 
+    @Autowired
+    private CursorPagingProvider pagingProvider;
+
     @Override
     public Class<Encounter> getResourceType() {
         return Encounter.class;
     }
 
-    @Read
+    @Read(version = true)
     public Encounter read(@IdParam IdType theId) {
-        Encounter encounter = encounterService.getEncounter(theId.getIdPart());
+        Encounter encounter;
+        if (theId.hasVersionIdPart()) {
+            // vread; versions are numeric, anything else cannot exist
+            encounter = theId.isVersionIdPartValidLong()
+                    ? encounterService.getEncounterVersion(theId.getIdPart(), theId.getVersionIdPartAsLong())
+                    : null;
+        } else {
+            encounter = encounterService.getEncounter(theId.getIdPart());
+        }
         if (encounter == null) {
             throw new ResourceNotFoundException(theId);
         }
@@ -46,6 +61,10 @@ public class EncounterResourceProvider implements IResourceProvider {
     @Update
     public ca.uhn.fhir.rest.api.MethodOutcome update(@IdParam IdType theId, @ResourceParam Encounter theEncounter) {
         validationService.validate(theEncounter);
+        if (theId.hasVersionIdPart()) {
+            // If-Match, checked against the stored version when writing
+            theEncounter.getMeta().setVersionId(theId.getVersionIdPart());
+        }
         Encounter updated = encounterService.updateEncounter(theId.getIdPart(), theEncounter);
         return new ca.uhn.fhir.rest.api.MethodOutcome(new IdType(updated.getId()));
     }
@@ -57,12 +76,13 @@ public class EncounterResourceProvider implements IResourceProvider {
     }
 
     @History
-    public List<Encounter> getHistory(@IdParam IdType theId) {
-        return encounterService.getHistory(theId.getIdPart());
+    public IBundleProvider getHistory(@IdParam IdType theId, @Since InstantType theSince) {
+        java.util.Date since = theSince != null ? theSince.getValue() : null;
+        return pagingProvider.search((cursor, pageSize) -> encounterService.getHistoryPage(theId.getIdPart(), since, cursor, pageSize));
     }
 
     @Search
-    public List<Encounter> search(
+    public IBundleProvider search(
             @OptionalParam(name = Encounter.SP_SUBJECT) ReferenceParam subject,
             @OptionalParam(name = Encounter.SP_DATE) ca.uhn.fhir.rest.param.DateRangeParam date,
             @OptionalParam(name = "_count") ca.uhn.fhir.rest.param.NumberParam count,
@@ -74,8 +94,12 @@ public class EncounterResourceProvider implements IResourceProvider {
         java.util.Date to = (date != null) ? date.getUpperBoundAsInstant() : null;
 
         int countVal = (count != null) ? count.getValue().intValue() : 10;
-        int offsetVal = (offset != null) ? offset.getValue().intValue() : 0;
 
-        return encounterService.searchEncounters(subjectVal, from, to, offsetVal, countVal);
+        if (offset != null) {
+            // Explicit _offset keeps the old skip based paging
+            return new SimpleBundleProvider(
+                    encounterService.searchEncounters(subjectVal, from, to, offset.getValue().intValue(), countVal));
+        }
+        return pagingProvider.search((cursor, pageSize) -> encounterService.searchEncounters(subjectVal, from, to, cursor, pageSize));
     }
 }
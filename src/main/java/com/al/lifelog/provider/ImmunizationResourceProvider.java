@@ -12,16 +12,19 @@ import org.springframework.stereotype.Component;
 
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.SimpleBundleProvider;
-import java.util.List;
+import com.al.lifelog.paging.CursorPagingProvider;
 
 @Component
 public class ImmunizationResourceProvider implements IResourceProvider {
 
     private final ImmunizationService immunizationService;
+    private final CursorPagingProvider pagingProvider;
 
     @Autowired
-    public ImmunizationResourceProvider(ImmunizationService immunizationService) {
+    public ImmunizationResourceProvider(ImmunizationService immunizationService,
+            CursorPagingProvider pagingProvider) {
         this.immunizationService = immunizationService;
+        this.pagingProvider = pagingProvider;
     }
 
     @Override
@@ -55,10 +58,13 @@ public class ImmunizationResourceProvider implements IResourceProvider {
         String vaccineCodeVal = (vaccineCode != null) ? vaccineCode.getValue() : null;
 
         int countVal = (count != null) ? count.getValue().intValue() : 10;
-        int offsetVal = (offset != null) ? offset.getValue().intValue() : 0;
 
-        List<Immunization> immunizations = immunizationService.searchImmunizations(patientVal, vaccineCodeVal,
-                offsetVal, countVal);
-        return new SimpleBundleProvider(immunizations);
+        if (offset != null) {
+            // Explicit _offset keeps the old skip based paging
+            return new SimpleBundleProvider(immunizationService.searchImmunizations(patientVal, vaccineCodeVal,
+                    offset.getValue().intValue(), countVal));
+        }
+        return pagingProvider.search(
+                (cursor, pageSize) -> immunizationService.searchImmunizations(patientVal, vaccineCodeVal, cursor, pageSize));
     }
 }
@@ -10,7 +10,9 @@ import org.hl7.fhir.r4.model.MedicationRequest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.util.List;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import com.al.lifelog.paging.CursorPagingProvider;
 
 @Component
 public class MedicationRequestResourceProvider implements IResourceProvider {
@@ -18,6 +20,9 @@ public class MedicationRequestResourceProvider implements IResourceProvider {
     @Autowired
     private MedicationRequestService service;
 
+    @Autowired
+    private CursorPagingProvider pagingProvider;
+
     @Override
     public Class<MedicationRequest> getResourceType() {
         return MedicationRequest.class;
@@ -39,7 +44,7 @@ public class MedicationRequestResourceProvider implements IResourceProvider {
     }
 
     @Search
-    public List<MedicationRequest> search(
+    public IBundleProvider search(
             @OptionalParam(name = MedicationRequest.SP_SUBJECT) ReferenceParam subject,
             @OptionalParam(name = "_count") ca.uhn.fhir.rest.param.NumberParam count,
             @OptionalParam(name = "_offset") ca.uhn.fhir.rest.param.NumberParam offset) {
@@ -47,8 +52,12 @@ public class MedicationRequestResourceProvider implements IResourceProvider {
         String subjectId = (subject != null) ? subject.getIdPart() : null;
 
         int countVal = (count != null) ? count.getValue().intValue() : 10;
-        int offsetVal = (offset != null) ? offset.getValue().intValue() : 0;
 
-        return service.searchMedicationRequests(subjectId, offsetVal, countVal);
+        if (offset != null) {
+            // Explicit _offset keeps the old skip based paging
+            return new SimpleBundleProvider(
+                    service.searchMedicationRequests(subjectId, offset.getValue().intValue(), countVal));
+        }
+        return pagingProvider.search((cursor, pageSize) -> service.searchMedicationRequests(subjectId, cursor, pageSize));
     }
 }
@@ -3,12 +3,24 @@ package com.al.lifelog.provider;
 import com.al.lifelog.service.ObservationService;
 import com.al.lifelog.service.ValidationService;
 import ca.uhn.fhir.rest.annotation.*;
+import ca.uhn.fhir.model.valueset.BundleTypeEnum;
+import ca.uhn.fhir.rest.param.ReferenceAndListParam;
+import ca.uhn.fhir.rest.param.ReferenceOrListParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.CompositeParam;
+import ca.uhn.fhir.rest.param.QuantityParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenAndListParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -17,6 +29,14 @@ import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.SimpleBundleProvider;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import com.al.lifelog.service.PatientService;
+import com.al.lifelog.paging.CursorPagingProvider;
+import com.al.lifelog.service.IncludeResolver;
+import com.al.lifelog.service.ObservationIngestService;
+import ca.uhn.fhir.rest.api.Constants;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.springframework.beans.factory.annotation.Value;
+import java.time.Duration;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -33,14 +53,34 @@ public class ObservationResourceProvider implements IResourceProvider {
     @Autowired
     private ValidationService validationService;
 
+    @Autowired
+    private CursorPagingProvider pagingProvider;
+
+    @Autowired
+    private IncludeResolver includeResolver;
+
+    @Autowired
+    private ObservationIngestService ingestService;
+
+    @Value("${lifelog.ingest.timeout:PT30S}")
+    private Duration ingestTimeout;
+
     @Override
     public Class<Observation> getResourceType() {
         return Observation.class;
     }
 
-    @Read
+    @Read(version = true)
     public Observation read(@IdParam IdType theId) {
-        Observation observation = observationService.getObservation(theId.getIdPart());
+        Observation observation;
+        if (theId.hasVersionIdPart()) {
+            // vread; versions are numeric, anything else cannot exist
+            observation = theId.isVersionIdPartValidLong()
+                    ? observationService.getObservationVersion(theId.getIdPart(), theId.getVersionIdPartAsLong())
+                    : null;
+        } else {
+            observation = observationService.getObservation(theId.getIdPart());
+        }
         if (observation == null) {
             throw new ResourceNotFoundException(theId);
         }
@@ -54,9 +94,124 @@ public class ObservationResourceProvider implements IResourceProvider {
         return new ca.uhn.fhir.rest.api.MethodOutcome(new IdType(created.getId()));
     }
 
+    /**
+     * Bulk ingestion for device data. Takes a Bundle of Observations and answers
+     * with a batch-response Bundle holding one entry per input, in order.
+     */
+    @Operation(name = "$ingest", idempotent = false)
+    public Bundle ingest(@ResourceParam Bundle theBundle) {
+        List<Observation> observations = new java.util.ArrayList<>();
+        for (Bundle.BundleEntryComponent entry : theBundle.getEntry()) {
+            // Anything else is reported as a failed item rather than failing the bundle
+            observations.add(entry.getResource() instanceof Observation o ? o : null);
+        }
+
+        Bundle response = new Bundle();
+        response.setType(Bundle.BundleType.BATCHRESPONSE);
+        for (ObservationIngestService.Outcome outcome : ingestService.ingest(observations, ingestTimeout)) {
+            Bundle.BundleEntryResponseComponent entryResponse = response.addEntry().getResponse();
+            entryResponse.setStatus(outcome.getStatus() + " " + Constants.HTTP_STATUS_NAMES.get(outcome.getStatus()));
+            if (outcome.isSuccess()) {
+                entryResponse.setLocation("Observation/" + outcome.getId() + "/_history/" + outcome.getVersionId());
+            } else {
+                OperationOutcome operationOutcome = new OperationOutcome();
+                operationOutcome.addIssue()
+                        .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                        .setCode(OperationOutcome.IssueType.PROCESSING)
+                        .setDiagnostics(outcome.getMessage());
+                entryResponse.setOutcome(operationOutcome);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Latest {@code max} (default 1) observations per code for one or more
+     * patients, optionally narrowed by {@code category} and {@code code}.
+     */
+    @Operation(name = "$lastn", idempotent = true, bundleType = BundleTypeEnum.SEARCHSET)
+    public IBundleProvider lastN(
+            @OperationParam(name = "patient", typeName = "reference") ReferenceAndListParam thePatient,
+            @OperationParam(name = "subject", typeName = "reference") ReferenceAndListParam theSubject,
+            @OperationParam(name = "category", typeName = "token") TokenAndListParam theCategory,
+            @OperationParam(name = "code", typeName = "token") TokenAndListParam theCode,
+            @OperationParam(name = "max", min = 0, max = 1) IntegerType theMax) {
+        List<String> subjectIds = new java.util.ArrayList<>();
+        for (ReferenceAndListParam references : java.util.Arrays.asList(thePatient, theSubject)) {
+            if (references == null) {
+                continue;
+            }
+            for (ReferenceOrListParam any : references.getValuesAsQueryTokens()) {
+                for (ReferenceParam reference : any.getValuesAsQueryTokens()) {
+                    if (reference.getIdPart() != null) {
+                        subjectIds.add(reference.getIdPart());
+                    }
+                }
+            }
+        }
+        if (subjectIds.isEmpty()) {
+            // Unbounded across patients is not what the index is laid out for
+            throw new InvalidRequestException("$lastn needs a patient or subject");
+        }
+
+        int max = theMax != null && theMax.getValue() != null ? theMax.getValue() : 1;
+        List<Observation> observations = observationService.lastN(subjectIds, theCode, theCategory, max);
+        return new SimpleBundleProvider(new java.util.ArrayList<>(observations));
+    }
+
+    /**
+     * Time-bucketed series of one patient's values for a code, e.g.
+     * {@code subject=Patient/1&code=http://loinc.org|8867-4&bucket=1h&fn=avg,min,max,count}.
+     * Answers with a Parameters holding the bucket, the unit and one
+     * {@code point} (start, count and the functions asked for) per bucket.
+     */
+    @Operation(name = "$aggregate", idempotent = true)
+    public Parameters aggregate(
+            @OperationParam(name = "subject", min = 1, max = 1) StringType theSubject,
+            @OperationParam(name = "code", min = 1, typeName = "token") TokenAndListParam theCode,
+            @OperationParam(name = "date", typeName = "date") ca.uhn.fhir.rest.param.DateRangeParam theDate,
+            @OperationParam(name = "bucket", min = 1, max = 1) StringType theBucket,
+            @OperationParam(name = "fn", max = 1) StringType theFunctions,
+            @OperationParam(name = "unit", max = 1) StringType theUnit) {
+        if (theSubject == null || !theSubject.hasValue() || theCode == null) {
+            throw new InvalidRequestException("$aggregate needs a subject and a code");
+        }
+        String functionList = theFunctions != null && theFunctions.hasValue() ? theFunctions.getValue() : "avg,min,max,count";
+        Set<String> functions = new java.util.LinkedHashSet<>();
+        for (String function : functionList.split(",")) {
+            if (!function.isBlank()) {
+                functions.add(function.trim());
+            }
+        }
+        String bucket = theBucket != null ? theBucket.getValue() : null;
+        String unit = theUnit != null && theUnit.hasValue() ? theUnit.getValue() : null;
+
+        ObservationService.Series series = observationService.aggregate(
+                new ReferenceParam(theSubject.getValue()).getIdPart(), theCode, theDate, bucket, functions, unit);
+
+        Parameters parameters = new Parameters();
+        parameters.addParameter("bucket", bucket);
+        if (series.unit() != null) {
+            parameters.addParameter("unit", series.unit());
+        }
+        for (ObservationService.Point point : series.points()) {
+            Parameters.ParametersParameterComponent part = parameters.addParameter().setName("point");
+            part.addPart().setName("start").setValue(new InstantType(point.start()));
+            point.values().forEach((function, value) -> part.addPart().setName(function)
+                    .setValue("count".equals(function)
+                            ? new IntegerType((int) point.count())
+                            : new org.hl7.fhir.r4.model.DecimalType(value)));
+        }
+        return parameters;
+    }
+
     @Update
     public ca.uhn.fhir.rest.api.MethodOutcome update(@IdParam IdType theId, @ResourceParam Observation theObservation) {
         validationService.validate(theObservation);
+        if (theId.hasVersionIdPart()) {
+            // If-Match, checked against the stored version when writing
+            theObservation.getMeta().setVersionId(theId.getVersionIdPart());
+        }
         Observation updated = observationService.updateObservation(theId.getIdPart(), theObservation);
         return new ca.uhn.fhir.rest.api.MethodOutcome(new IdType(updated.getId()));
     }
@@ -67,8 +222,9 @@ public class ObservationResourceProvider implements IResourceProvider {
     }
 
     @History
-    public List<Observation> getHistory(@IdParam IdType theId) {
-        return observationService.getHistory(theId.getIdPart());
+    public IBundleProvider getHistory(@IdParam IdType theId, @Since InstantType theSince) {
+        java.util.Date since = theSince != null ? theSince.getValue() : null;
+        return pagingProvider.search((cursor, pageSize) -> observationService.getHistoryPage(theId.getIdPart(), since, cursor, pageSize));
     }
 
     @Search
@@ -76,6 +232,12 @@ public class ObservationResourceProvider implements IResourceProvider {
             @OptionalParam(name = Observation.SP_SUBJECT) ReferenceParam subject,
             @OptionalParam(name = Observation.SP_CODE) TokenParam code,
             @OptionalParam(name = Observation.SP_DATE) ca.uhn.fhir.rest.param.DateRangeParam date,
+            @OptionalParam(name = Observation.SP_VALUE_QUANTITY) QuantityParam valueQuantity,
+            @OptionalParam(name = Observation.SP_CODE_VALUE_QUANTITY, compositeTypes = { TokenParam.class,
+                    QuantityParam.class }) CompositeParam<TokenParam, QuantityParam> codeValueQuantity,
+            @OptionalParam(name = Observation.SP_COMPONENT_VALUE_QUANTITY) QuantityParam componentValueQuantity,
+            @OptionalParam(name = Observation.SP_COMPONENT_CODE_VALUE_QUANTITY, compositeTypes = { TokenParam.class,
+                    QuantityParam.class }) CompositeParam<TokenParam, QuantityParam> componentCodeValueQuantity,
             @IncludeParam Set<Include> includes,
             @OptionalParam(name = "_count") ca.uhn.fhir.rest.param.NumberParam count,
             @OptionalParam(name = "_offset") ca.uhn.fhir.rest.param.NumberParam offset) {
@@ -87,7 +249,7 @@ public class ObservationResourceProvider implements IResourceProvider {
             if ("name".equals(chain) || "patient.name".equals(chain)) {
                 // Chained Search: Find patients by name first
                 String nameVal = subject.getValue();
-                List<org.hl7.fhir.r4.model.Patient> patients = patientService.searchPatients(null, nameVal, null, 0,
+                List<org.hl7.fhir.r4.model.Patient> patients = patientService.searchPatients(null, new StringParam(nameVal), null, 0,
                         100);
 
                 if (patients.isEmpty()) {
@@ -107,36 +269,30 @@ public class ObservationResourceProvider implements IResourceProvider {
             }
         }
 
-        String codeVal = (code != null) ? code.getValue() : null;
+        ObservationService.ValueFilters values = new ObservationService.ValueFilters(valueQuantity,
+                codeValueQuantity, componentValueQuantity, componentCodeValueQuantity);
         int countVal = (count != null) ? count.getValue().intValue() : 10;
-        int offsetVal = (offset != null) ? offset.getValue().intValue() : 0;
-
-        List<Observation> observations = observationService.searchObservations(
-                subjectIds, codeVal, date,
-                offsetVal, countVal);
-
-        List<IBaseResource> resources = new java.util.ArrayList<>(observations);
-
-        if (includes != null && !includes.isEmpty()) {
-            for (Include include : includes) {
-                if ("Observation:patient".equals(include.getValue())) {
-                    List<String> patientIds = observations.stream()
-                            .filter(o -> o.hasSubject() && o.getSubject().getReference().startsWith("Patient/"))
-                            .map(o -> o.getSubject().getReference().split("/")[1])
-                            .distinct()
-                            .collect(Collectors.toList());
-                    if (!patientIds.isEmpty()) {
-                        for (String pId : patientIds) {
-                            org.hl7.fhir.r4.model.Patient p = patientService.getPatient(pId);
-                            if (p != null) {
-                                resources.add(p);
-                            }
-                        }
-                    }
-                }
-            }
+
+        if (offset != null) {
+            // Explicit _offset keeps the old skip based paging
+            List<Observation> observations = observationService.searchObservations(
+                    subjectIds, code, date, values,
+                    offset.getValue().intValue(), countVal);
+            List<IBaseResource> resources = new java.util.ArrayList<>(observations);
+            resources.addAll(includedResources(observations, includes));
+            return new SimpleBundleProvider(resources);
         }
 
-        return new SimpleBundleProvider(resources);
+        // Pages are loaded (and their includes resolved) only when HAPI asks for them
+        List<String> searchSubjects = subjectIds;
+        return pagingProvider.search(
+                (cursor, pageSize) -> observationService.searchObservations(
+                        searchSubjects, code, date, values,
+                        cursor, pageSize),
+                observations -> includedResources(observations, includes));
+    }
+
+    private List<IBaseResource> includedResources(List<Observation> observations, Set<Include> includes) {
+        return includeResolver.resolve(observations, includes, null);
     }
 }
@@ -12,16 +12,19 @@ import org.springframework.stereotype.Component;
 
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.SimpleBundleProvider;
-import java.util.List;
+import com.al.lifelog.paging.CursorPagingProvider;
 
 @Component
 public class OrganizationResourceProvider implements IResourceProvider {
 
     private final OrganizationService organizationService;
+    private final CursorPagingProvider pagingProvider;
 
     @Autowired
-    public OrganizationResourceProvider(OrganizationService organizationService) {
+    public OrganizationResourceProvider(OrganizationService organizationService,
+            CursorPagingProvider pagingProvider) {
         this.organizationService = organizationService;
+        this.pagingProvider = pagingProvider;
     }
 
     @Override
@@ -53,9 +56,12 @@ public class OrganizationResourceProvider implements IResourceProvider {
         String nameVal = (name != null) ? name.getValue() : null;
 
         int countVal = (count != null) ? count.getValue().intValue() : 10;
-        int offsetVal = (offset != null) ? offset.getValue().intValue() : 0;
 
-        List<Organization> organizations = organizationService.searchOrganizations(nameVal, offsetVal, countVal);
-        return new SimpleBundleProvider(organizations);
+        if (offset != null) {
+            // Explicit _offset keeps the old skip based paging
+            return new SimpleBundleProvider(
+                    organizationService.searchOrganizations(nameVal, offset.getValue().intValue(), countVal));
+        }
+        return pagingProvider.search((cursor, pageSize) -> organizationService.searchOrganizations(nameVal, cursor, pageSize));
     }
 }
@@ -1,16 +1,24 @@
 package com.al.lifelog.provider;
 
 import com.al.lifelog.service.PatientService;
+import com.al.lifelog.service.PatientEverythingService;
+import com.al.lifelog.service.PatientSummaryService;
 import ca.uhn.fhir.rest.annotation.*;
+import ca.uhn.fhir.model.valueset.BundleTypeEnum;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.Patient;
-import org.hl7.fhir.r4.model.Observation;
-import com.al.lifelog.service.ObservationService;
+import org.hl7.fhir.r4.model.Resource;
 import com.al.lifelog.service.ValidationService;
+import com.al.lifelog.paging.CursorPagingProvider;
+import com.al.lifelog.service.IncludeResolver;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -18,9 +26,10 @@ import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.SimpleBundleProvider;
 import ca.uhn.fhir.model.api.Include;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 @Component
 public class PatientResourceProvider implements IResourceProvider {
@@ -29,19 +38,36 @@ public class PatientResourceProvider implements IResourceProvider {
     private PatientService patientService;
 
     @Autowired
-    private ObservationService observationService;
+    private ValidationService validationService;
 
     @Autowired
-    private ValidationService validationService;
+    private CursorPagingProvider pagingProvider;
+
+    @Autowired
+    private IncludeResolver includeResolver;
+
+    @Autowired
+    private PatientEverythingService everythingService;
+
+    @Autowired
+    private PatientSummaryService summaryService;
 
     @Override
     public Class<Patient> getResourceType() {
         return Patient.class;
     }
 
-    @Read
+    @Read(version = true)
     public Patient read(@IdParam IdType theId) {
-        Patient patient = patientService.getPatient(theId.getIdPart());
+        Patient patient;
+        if (theId.hasVersionIdPart()) {
+            // vread; versions are numeric, anything else cannot exist
+            patient = theId.isVersionIdPartValidLong()
+                    ? patientService.getPatientVersion(theId.getIdPart(), theId.getVersionIdPartAsLong())
+                    : null;
+        } else {
+            patient = patientService.getPatient(theId.getIdPart());
+        }
         if (patient == null) {
             throw new ResourceNotFoundException(theId);
         }
@@ -58,6 +84,10 @@ public class PatientResourceProvider implements IResourceProvider {
     @Update
     public ca.uhn.fhir.rest.api.MethodOutcome update(@IdParam IdType theId, @ResourceParam Patient thePatient) {
         validationService.validate(thePatient);
+        if (theId.hasVersionIdPart()) {
+            // If-Match, checked against the stored version when writing
+            thePatient.getMeta().setVersionId(theId.getVersionIdPart());
+        }
         Patient updated = patientService.updatePatient(theId.getIdPart(), thePatient);
         return new ca.uhn.fhir.rest.api.MethodOutcome(new IdType(updated.getId()));
     }
@@ -69,8 +99,62 @@ public class PatientResourceProvider implements IResourceProvider {
     }
 
     @History
-    public List<Patient> getHistory(@IdParam IdType theId) {
-        return patientService.getHistory(theId.getIdPart());
+    public IBundleProvider getHistory(@IdParam IdType theId, @Since InstantType theSince) {
+        java.util.Date since = theSince != null ? theSince.getValue() : null;
+        return pagingProvider.search((cursor, pageSize) -> patientService.getHistoryPage(theId.getIdPart(), since, cursor, pageSize));
+    }
+
+    /**
+     * The patient and everything in its compartment, optionally only the
+     * {@code _type}s given and what changed since {@code _since}.
+     */
+    @Operation(name = "$everything", idempotent = true, bundleType = BundleTypeEnum.SEARCHSET)
+    public IBundleProvider everything(
+            @IdParam IdType theId,
+            @OperationParam(name = "_since", min = 0, max = 1) InstantType theSince,
+            @OperationParam(name = "_type", min = 0, max = OperationParam.MAX_UNLIMITED) List<StringType> theTypes,
+            @OperationParam(name = "_count", min = 0, max = 1) IntegerType theCount) {
+        if (!everythingService.exists(theId.getIdPart())) {
+            throw new ResourceNotFoundException(theId);
+        }
+        List<String> types = new ArrayList<>();
+        if (theTypes != null) {
+            for (StringType type : theTypes) {
+                // Repeated or comma separated
+                for (String value : type.getValueNotNull().split(",")) {
+                    if (!value.isBlank()) {
+                        types.add(value.trim());
+                    }
+                }
+            }
+        }
+        List<String> compartment = PatientEverythingService.types(types);
+        Date since = theSince != null ? theSince.getValue() : null;
+        Integer count = theCount != null ? theCount.getValue() : null;
+        return pagingProvider.search(
+                (cursor, pageSize) -> everythingService.page(theId.getIdPart(), compartment, since, cursor, pageSize),
+                null, count);
+    }
+
+    /**
+     * Clinician summary: active conditions, current medications, allergies,
+     * latest vital signs and the next appointment, read from one stored document.
+     */
+    @Operation(name = "$summary", idempotent = true)
+    public Bundle summary(@IdParam IdType theId) {
+        List<Resource> resources = summaryService.getSummary(theId.getIdPart());
+        if (resources == null) {
+            throw new ResourceNotFoundException(theId);
+        }
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        bundle.setTimestamp(new Date());
+        for (Resource resource : resources) {
+            bundle.addEntry()
+                    .setFullUrl(resource.fhirType() + "/" + resource.getIdElement().getIdPart())
+                    .setResource(resource);
+        }
+        return bundle;
     }
 
     @Search
@@ -83,50 +167,34 @@ public class PatientResourceProvider implements IResourceProvider {
             @Offset Integer offset,
             @Count Integer count) {
         String idVal = (id != null) ? id.getValue() : null;
-        String nameVal = (name != null) ? name.getValue() : null;
         String genderVal = (gender != null) ? gender.getValue() : null;
 
-        // Defaults
-        int offsetVal = (offset != null) ? offset : 0;
         int countVal = (count != null) ? count : 10;
 
-        List<Patient> patients = patientService.searchPatients(idVal, nameVal, genderVal, offsetVal, countVal);
-        List<IBaseResource> resources = new java.util.ArrayList<>(patients);
-
-        // Handle _include (Forward)
-        if (includes != null && !includes.isEmpty()) {
-            for (Include include : includes) {
-                if ("Patient:observation".equals(include.getValue())) {
-                    List<String> patientIds = patients.stream()
-                            .map(p -> p.getIdElement().getIdPart())
-                            .collect(Collectors.toList());
-                    if (!patientIds.isEmpty()) {
-                        List<Observation> observations = observationService.searchObservations(patientIds, null, null,
-                                0, 100);
-                        resources.addAll(observations);
-                    }
-                }
-            }
+        if (offset != null) {
+            // Explicit _offset keeps the old skip based paging
+            List<Patient> patients = patientService.searchPatients(idVal, name, genderVal, offset, countVal);
+            List<IBaseResource> resources = new java.util.ArrayList<>(patients);
+            resources.addAll(includedResources(patients, includes, revIncludes));
+            return new SimpleBundleProvider(resources);
         }
 
-        // Handle _revinclude (Reverse)
-        if (revIncludes != null && !revIncludes.isEmpty()) {
-            for (Include revInclude : revIncludes) {
-                if ("Observation:patient".equals(revInclude.getValue())) {
-                    List<String> patientIds = patients.stream()
-                            .map(p -> p.getIdElement().getIdPart())
-                            .collect(Collectors.toList());
-                    if (!patientIds.isEmpty()) {
-                        List<Observation> observations = observationService.searchObservations(patientIds, null, null,
-                                0, 100);
-                        // Filter out if already added by _include? HAPI handles duplicates usually if
-                        // we used a Bundle but here we are just adding to a list.
-                        // For simplicity, let's just add.
-                        resources.addAll(observations);
-                    }
-                }
-            }
+        // Pages are loaded (and their includes resolved) only when HAPI asks for them
+        return pagingProvider.search(
+                (cursor, pageSize) -> patientService.searchPatients(idVal, name, genderVal, cursor, pageSize),
+                patients -> includedResources(patients, includes, revIncludes));
+    }
+
+    private List<IBaseResource> includedResources(List<Patient> patients, Set<Include> includes,
+            Set<Include> revIncludes) {
+        Set<Include> reverse = new java.util.HashSet<>();
+        if (revIncludes != null) {
+            reverse.addAll(revIncludes);
+        }
+        // Legacy spelling of _revinclude=Observation:patient
+        if (includes != null && includes.stream().anyMatch(i -> "Patient:observation".equals(i.getValue()))) {
+            reverse.add(new Include("Observation:patient"));
         }
-        return new SimpleBundleProvider(resources);
+        return includeResolver.resolve(patients, includes, reverse);
     }
 }
@@ -0,0 +1,94 @@
+package com.al.lifelog.provider;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.al.lifelog.model.MongoMigrationJob;
+import com.al.lifelog.service.PayloadMigrationService;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.StringType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage maintenance: {@code POST [base]/$recompress} rewrites stored bodies
+ * with the configured payload codec ({@code force=true} also redoes bodies that
+ * are already compressed), {@code $recompress-status} reports per collection.
+ */
+@Component
+public class PayloadMigrationProvider {
+
+    private static final JsonMapper JSON = JsonMapper.builder().build();
+
+    @Autowired
+    private PayloadMigrationService payloadMigrationService;
+
+    @Operation(name = "$recompress", idempotent = false, manualResponse = true)
+    public void recompress(@OperationParam(name = "force") BooleanType theForce,
+            ServletRequestDetails theRequestDetails) {
+        boolean force = theForce != null && theForce.hasValue() && theForce.booleanValue();
+        MongoMigrationJob job = payloadMigrationService.startMigration(force, theRequestDetails.getCompleteUrl());
+
+        HttpServletResponse response = theRequestDetails.getServletResponse();
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        response.setHeader(Constants.HEADER_CONTENT_LOCATION,
+                theRequestDetails.getFhirServerBase() + "/$recompress-status?_jobId=" + job.getId());
+    }
+
+    @Operation(name = "$recompress-status", idempotent = true, manualResponse = true)
+    public void pollStatus(@OperationParam(name = "_jobId", min = 1) StringType theJobId,
+            ServletRequestDetails theRequestDetails) throws IOException {
+        MongoMigrationJob job = payloadMigrationService.getJob(theJobId.getValue());
+        if (job == null) {
+            throw new ResourceNotFoundException("No recompression job " + theJobId.getValue());
+        }
+        HttpServletResponse response = theRequestDetails.getServletResponse();
+
+        switch (job.getStatus()) {
+            case MongoMigrationJob.COMPLETED -> {
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.setContentType("application/json;charset=UTF-8");
+                JSON.writeValue(response.getOutputStream(), report(job));
+            }
+            case MongoMigrationJob.FAILED -> throw new InternalErrorException("Recompression failed: " + job.getError());
+            default -> {
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                long rewritten = job.getCollections().stream()
+                        .mapToLong(MongoMigrationJob.CollectionProgress::getRewritten).sum();
+                response.setHeader("X-Progress", rewritten + " rewritten, " + job.getCollections().size()
+                        + " collections started");
+                response.setHeader(Constants.HEADER_RETRY_AFTER, "5");
+            }
+        }
+    }
+
+    static Map<String, Object> report(MongoMigrationJob job) {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("request", job.getRequest());
+        report.put("codec", job.getCodec());
+        report.put("force", job.isForce());
+        List<Map<String, Object>> collections = new ArrayList<>();
+        for (MongoMigrationJob.CollectionProgress progress : job.getCollections()) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("collection", progress.getCollection());
+            entry.put("scanned", progress.getScanned());
+            entry.put("rewritten", progress.getRewritten());
+            entry.put("bytesBefore", progress.getBytesBefore());
+            entry.put("bytesAfter", progress.getBytesAfter());
+            collections.add(entry);
+        }
+        report.put("collections", collections);
+        return report;
+    }
+}
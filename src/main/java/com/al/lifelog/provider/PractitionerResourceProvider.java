@@ -12,16 +12,19 @@ import org.springframework.stereotype.Component;
 
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.SimpleBundleProvider;
-import java.util.List;
+import com.al.lifelog.paging.CursorPagingProvider;
 
 @Component
 public class PractitionerResourceProvider implements IResourceProvider {
 
     private final PractitionerService practitionerService;
+    private final CursorPagingProvider pagingProvider;
 
     @Autowired
-    public PractitionerResourceProvider(PractitionerService practitionerService) {
+    public PractitionerResourceProvider(PractitionerService practitionerService,
+            CursorPagingProvider pagingProvider) {
         this.practitionerService = practitionerService;
+        this.pagingProvider = pagingProvider;
     }
 
     @Override
@@ -50,12 +53,14 @@ public class PractitionerResourceProvider implements IResourceProvider {
             @OptionalParam(name = "_count") ca.uhn.fhir.rest.param.NumberParam count,
             @OptionalParam(name = "_offset") ca.uhn.fhir.rest.param.NumberParam offset) {
 
-        String nameVal = (name != null) ? name.getValue() : null;
 
         int countVal = (count != null) ? count.getValue().intValue() : 10;
-        int offsetVal = (offset != null) ? offset.getValue().intValue() : 0;
 
-        List<Practitioner> practitioners = practitionerService.searchPractitioners(nameVal, offsetVal, countVal);
-        return new SimpleBundleProvider(practitioners);
+        if (offset != null) {
+            // Explicit _offset keeps the old skip based paging
+            return new SimpleBundleProvider(
+                    practitionerService.searchPractitioners(name, offset.getValue().intValue(), countVal));
+        }
+        return pagingProvider.search((cursor, pageSize) -> practitionerService.searchPractitioners(name, cursor, pageSize));
     }
 }
@@ -0,0 +1,23 @@
+package com.al.lifelog.provider;
+
+import ca.uhn.fhir.rest.annotation.Transaction;
+import ca.uhn.fhir.rest.annotation.TransactionParam;
+import com.al.lifelog.service.BundleTransactionService;
+import org.hl7.fhir.r4.model.Bundle;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * System-level provider for {@code POST [base]} with a transaction or batch bundle.
+ */
+@Component
+public class TransactionProvider {
+
+    @Autowired
+    private BundleTransactionService bundleTransactionService;
+
+    @Transaction
+    public Bundle transaction(@TransactionParam Bundle theBundle) {
+        return bundleTransactionService.execute(theBundle);
+    }
+}
@@ -0,0 +1,10 @@
+package com.al.lifelog.repository;
+
+import com.al.lifelog.model.MongoExportJob;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import java.util.Collection;
+import java.util.List;
+
+public interface ExportJobRepository extends MongoRepository<MongoExportJob, String> {
+    List<MongoExportJob> findByStatusIn(Collection<String> statuses);
+}
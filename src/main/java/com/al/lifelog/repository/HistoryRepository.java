@@ -1,10 +1,31 @@
 package com.al.lifelog.repository;
 
 import com.al.lifelog.model.MongoResourceHistory;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
+import org.springframework.data.mongodb.repository.Update;
+import java.util.Date;
 import java.util.List;
 
 public interface HistoryRepository extends MongoRepository<MongoResourceHistory, String> {
     List<MongoResourceHistory> findByResourceIdAndResourceTypeOrderByVersionIdDesc(String resourceId,
             String resourceType);
+
+    // Bounds are exclusive
+    List<MongoResourceHistory> findByResourceIdAndResourceTypeAndVersionIdBetweenOrderByVersionIdAsc(
+            String resourceId, String resourceType, Long after, Long before);
+
+    List<MongoResourceHistory> findByResourceTypeAndResourceIdAndVersionIdLessThanAndLastUpdatedGreaterThanEqualOrderByVersionIdDesc(
+            String resourceType, String resourceId, Long before, Date since, Limit limit);
+
+    // Raises expireAt of versions [from, before) to at least expireAt
+    @Query("{ 'resourceType': ?0, 'resourceId': ?1, 'versionId': { '$gte': ?2, '$lt': ?3 } }")
+    @Update("{ '$max': { 'expireAt': ?4 } }")
+    long extendExpiry(String resourceType, String resourceId, Long from, Long before, Date expireAt);
+
+    // Rows written while the TTL was on lastUpdated
+    @Query("{ 'expireAt': { '$exists': false } }")
+    @Update(pipeline = "{ '$set': { 'expireAt': { '$add': ['$lastUpdated', ?0] } } }")
+    long backfillExpiry(long retentionMillis);
 }
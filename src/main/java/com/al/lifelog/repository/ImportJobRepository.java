@@ -0,0 +1,7 @@
+package com.al.lifelog.repository;
+
+import com.al.lifelog.model.MongoImportJob;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+public interface ImportJobRepository extends MongoRepository<MongoImportJob, String> {
+}
@@ -0,0 +1,12 @@
+package com.al.lifelog.repository;
+
+import com.al.lifelog.model.MongoMigrationJob;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface MigrationJobRepository extends MongoRepository<MongoMigrationJob, String> {
+
+    List<MongoMigrationJob> findByStatusIn(Collection<String> statuses);
+}
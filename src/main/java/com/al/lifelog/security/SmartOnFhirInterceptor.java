@@ -5,6 +5,8 @@ import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
 import ca.uhn.fhir.rest.server.interceptor.auth.RuleBuilder;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 
@@ -30,26 +32,81 @@ public class SmartOnFhirInterceptor extends AuthorizationInterceptor {
 
         if (hasPatientAllRead || hasUserAllRead) {
             builder.allow().read().allResources().withAnyId().andThen();
+            allowReadOperations(builder);
+        }
+
+        if (hasUserAllRead) {
+            allowExport(builder);
         }
 
         if (hasWrite) {
             builder.allow().write().allResources().withAnyId().andThen();
+            if (hasScope(authentication, "user/*.write")) {
+                allowImport(builder);
+                allowRecompress(builder);
+            }
+            allowIngest(builder);
+            // Each entry is still checked against the rules above
+            builder.allow().transaction().withAnyOperation().andApplyNormalRules().andThen();
         }
 
         // If no specific scopes found, default to full access for authenticated users
         // (legacy)
         // This ensures we don't break existing functionality while transitioning
         if (!hasPatientAllRead && !hasUserAllRead && !hasWrite) {
+            allowExport(builder);
+            allowImport(builder);
+            allowRecompress(builder);
+            allowReadOperations(builder);
             return builder
                     .allow().read().allResources().withAnyId().andThen()
                     .allow().write().allResources().withAnyId().andThen()
                     .allow().delete().allResources().withAnyId().andThen()
+                    .allow().operation().named("$ingest").onType(Observation.class).andAllowAllResponses().andThen()
+                    .allow().transaction().withAnyOperation().andApplyNormalRules().andThen()
                     .allow().metadata().build();
         }
 
         return builder.allow().metadata().build();
     }
 
+    private void allowReadOperations(RuleBuilder builder) {
+        // Searches by another name, what they return still goes through the read rules
+        builder.allow().operation().named("$lastn").onType(Observation.class)
+                .andRequireExplicitResponseAuthorization().andThen()
+                .allow().operation().named("$aggregate").onType(Observation.class)
+                .andRequireExplicitResponseAuthorization().andThen()
+                .allow().operation().named("$everything").onInstancesOfType(Patient.class)
+                .andRequireExplicitResponseAuthorization().andThen()
+                .allow().operation().named("$summary").onInstancesOfType(Patient.class)
+                .andRequireExplicitResponseAuthorization().andThen();
+    }
+
+    private void allowIngest(RuleBuilder builder) {
+        // Only outcomes come back, nothing that needs read access
+        builder.allow().operation().named("$ingest").onType(Observation.class).andAllowAllResponses().andThen();
+    }
+
+    private void allowExport(RuleBuilder builder) {
+        // Exports every patient's data, so not for patient-scoped tokens
+        builder.allow().operation().named("$export").onServer().andAllowAllResponses().andThen()
+                .allow().operation().named("$export").onType(Patient.class).andAllowAllResponses().andThen()
+                .allow().operation().named("$export-poll-status").onServer().andAllowAllResponses().andThen()
+                .allow().operation().named("$export-download").onServer().andAllowAllResponses().andThen();
+    }
+
+    private void allowImport(RuleBuilder builder) {
+        // Loads data for any patient, so not for patient-scoped tokens
+        builder.allow().operation().named("$import").onServer().andAllowAllResponses().andThen()
+                .allow().operation().named("$import-poll-status").onServer().andAllowAllResponses().andThen();
+    }
+
+    private void allowRecompress(RuleBuilder builder) {
+        // Rewrites every collection, same audience as $import
+        builder.allow().operation().named("$recompress").onServer().andAllowAllResponses().andThen()
+                .allow().operation().named("$recompress-status").onServer().andAllowAllResponses().andThen();
+    }
+
     private boolean hasScope(Authentication auth, String scope) {
         return auth.getAuthorities().stream()
                 .anyMatch(a -> a.getAuthority().equals("SCOPE_" + scope) || a.getAuthority().equals(scope));
@@ -0,0 +1,90 @@
+package com.al.lifelog.serialization;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Single place where resources are turned into JSON and back.
+ *
+ * HAPI parsers are not thread safe but are reusable, so each thread keeps its own
+ * instance instead of calling {@code ctx.newJsonParser()} per row. Every call is
+ * timed and its payload size counted, in characters, per resource type:
+ * {@code fhir.serialization.duration} and {@code fhir.serialization.size}, tagged
+ * with {@code type} and {@code op} (encode/decode).
+ */
+@Component
+public class FhirSerializer {
+
+    private static final String ENCODE = "encode";
+    private static final String DECODE = "decode";
+
+    private final FhirContext ctx;
+    private final MeterRegistry meterRegistry;
+    private final ThreadLocal<IParser> parsers;
+    private final Map<String, Meters> meters = new ConcurrentHashMap<>();
+
+    @Autowired
+    public FhirSerializer(FhirContext ctx, MeterRegistry meterRegistry) {
+        this.ctx = ctx;
+        this.meterRegistry = meterRegistry;
+        this.parsers = ThreadLocal.withInitial(ctx::newJsonParser);
+    }
+
+    public String encode(IBaseResource resource) {
+        long start = System.nanoTime();
+        String json = parsers.get().encodeResourceToString(resource);
+        meters(ctx.getResourceType(resource), ENCODE).record(start, json);
+        return json;
+    }
+
+    public <T extends IBaseResource> T parse(Class<T> type, String json) {
+        long start = System.nanoTime();
+        T resource = parsers.get().parseResource(type, json);
+        meters(ctx.getResourceType(type), DECODE).record(start, json);
+        return resource;
+    }
+
+    public FhirContext getContext() {
+        return ctx;
+    }
+
+    private Meters meters(String resourceType, String op) {
+        return meters.computeIfAbsent(resourceType + ":" + op, key -> new Meters(
+                Timer.builder("fhir.serialization.duration")
+                        .description("Time spent encoding or decoding FHIR JSON")
+                        .tag("type", resourceType)
+                        .tag("op", op)
+                        .register(meterRegistry),
+                Counter.builder("fhir.serialization.size")
+                        .description("FHIR JSON encoded or decoded, in characters")
+                        // String length, counting bytes would mean encoding every payload again
+                        .baseUnit("characters")
+                        .tag("type", resourceType)
+                        .tag("op", op)
+                        .register(meterRegistry)));
+    }
+
+    private static final class Meters {
+        private final Timer duration;
+        private final Counter size;
+
+        private Meters(Timer duration, Counter size) {
+            this.duration = duration;
+            this.size = size;
+        }
+
+        private void record(long startNanos, String json) {
+            duration.record(System.nanoTime() - startNanos, java.util.concurrent.TimeUnit.NANOSECONDS);
+            size.increment(json.length());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.al.lifelog.serialization;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * JDK gzip, for deployments that cannot load the zstd native library.
+ */
+public class GzipCompression implements PayloadCompression {
+
+    private static final byte[] MAGIC = {0x1F, (byte) 0x8B};
+
+    @Override
+    public String name() {
+        return "gzip";
+    }
+
+    @Override
+    public boolean accepts(byte[] data) {
+        return PayloadCodec.startsWith(data, MAGIC);
+    }
+
+    @Override
+    public byte[] compress(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public byte[] decompress(byte[] data) {
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return gzip.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
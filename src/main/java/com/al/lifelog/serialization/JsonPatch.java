@@ -0,0 +1,148 @@
+package com.al.lifelog.serialization;
+
+import tools.jackson.databind.JsonNode;
+import tools.jackson.databind.json.JsonMapper;
+import tools.jackson.databind.node.ArrayNode;
+import tools.jackson.databind.node.ObjectNode;
+
+import java.util.Map;
+
+/**
+ * JSON Patch (RFC 6902) between two versions of a resource, restricted to the
+ * {@code add}, {@code remove} and {@code replace} operations a diff needs.
+ *
+ * Objects are diffed per property and arrays per index, with trailing elements
+ * added or removed. When the operations for an array would be larger than the
+ * array itself (e.g. an element inserted at the front) the whole array is
+ * replaced instead.
+ */
+public final class JsonPatch {
+
+    private static final JsonMapper JSON = JsonMapper.builder().build();
+
+    private JsonPatch() {
+    }
+
+    /**
+     * Patch turning {@code source} into {@code target}, as JSON text.
+     */
+    public static String diff(String source, String target) {
+        ArrayNode ops = JSON.createArrayNode();
+        diff("", JSON.readTree(source), JSON.readTree(target), ops);
+        return JSON.writeValueAsString(ops);
+    }
+
+    /**
+     * Applies {@code patch} (as produced by {@link #diff}) to {@code source}.
+     */
+    public static String apply(String source, String patch) {
+        return JSON.writeValueAsString(apply(JSON.readTree(source), JSON.readTree(patch)));
+    }
+
+    static JsonNode apply(JsonNode document, JsonNode ops) {
+        JsonNode root = document;
+        for (JsonNode op : ops) {
+            String path = op.get("path").stringValue();
+            String kind = op.get("op").stringValue();
+            if (path.isEmpty()) {
+                // Only a replace can target the root
+                root = op.get("value");
+                continue;
+            }
+            int slash = path.lastIndexOf('/');
+            JsonNode parent = resolve(root, path.substring(0, slash));
+            String token = unescape(path.substring(slash + 1));
+            if (parent instanceof ObjectNode object) {
+                if ("remove".equals(kind)) {
+                    object.remove(token);
+                } else {
+                    object.set(token, op.get("value"));
+                }
+            } else if (parent instanceof ArrayNode array) {
+                switch (kind) {
+                    case "add" -> {
+                        if ("-".equals(token)) {
+                            array.add(op.get("value"));
+                        } else {
+                            array.insert(Integer.parseInt(token), op.get("value"));
+                        }
+                    }
+                    case "remove" -> array.remove(Integer.parseInt(token));
+                    default -> array.set(Integer.parseInt(token), op.get("value"));
+                }
+            } else {
+                throw new IllegalArgumentException("Patch path " + path + " does not resolve");
+            }
+        }
+        return root;
+    }
+
+    private static void diff(String path, JsonNode source, JsonNode target, ArrayNode ops) {
+        if (source.equals(target)) {
+            return;
+        }
+        if (source.isObject() && target.isObject()) {
+            for (String name : source.propertyNames()) {
+                if (!target.has(name)) {
+                    ops.addObject().put("op", "remove").put("path", path + "/" + escape(name));
+                }
+            }
+            for (Map.Entry<String, JsonNode> property : target.properties()) {
+                JsonNode previous = source.get(property.getKey());
+                String child = path + "/" + escape(property.getKey());
+                if (previous == null) {
+                    ops.addObject().put("op", "add").put("path", child).set("value", property.getValue());
+                } else {
+                    diff(child, previous, property.getValue(), ops);
+                }
+            }
+        } else if (source.isArray() && target.isArray()) {
+            ArrayNode elementOps = JSON.createArrayNode();
+            int common = Math.min(source.size(), target.size());
+            for (int i = 0; i < common; i++) {
+                diff(path + "/" + i, source.get(i), target.get(i), elementOps);
+            }
+            for (int i = common; i < target.size(); i++) {
+                elementOps.addObject().put("op", "add").put("path", path + "/-").set("value", target.get(i));
+            }
+            // From the end, so the remaining indexes stay valid
+            for (int i = source.size() - 1; i >= common; i--) {
+                elementOps.addObject().put("op", "remove").put("path", path + "/" + i);
+            }
+            ObjectNode replace = JSON.createObjectNode().put("op", "replace").put("path", path);
+            replace.set("value", target);
+            String replaceText = JSON.writeValueAsString(replace);
+            // Compared without the enclosing brackets of elementOps
+            if (JSON.writeValueAsString(elementOps).length() - 2 > replaceText.length()) {
+                ops.add(replace);
+            } else {
+                ops.addAll(elementOps);
+            }
+        } else {
+            ops.addObject().put("op", "replace").put("path", path).set("value", target);
+        }
+    }
+
+    private static JsonNode resolve(JsonNode root, String pointer) {
+        JsonNode node = root;
+        if (pointer.isEmpty()) {
+            return node;
+        }
+        for (String token : pointer.substring(1).split("/", -1)) {
+            String name = unescape(token);
+            node = node.isArray() ? node.get(Integer.parseInt(name)) : node.get(name);
+            if (node == null) {
+                throw new IllegalArgumentException("Patch pointer " + pointer + " does not resolve");
+            }
+        }
+        return node;
+    }
+
+    private static String escape(String token) {
+        return token.replace("~", "~0").replace("/", "~1");
+    }
+
+    private static String unescape(String token) {
+        return token.replace("~1", "/").replace("~0", "~");
+    }
+}
@@ -0,0 +1,142 @@
+package com.al.lifelog.serialization;
+
+import org.bson.types.Binary;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Storage form of {@code fhirJson} bodies, shared by Mongo documents, history
+ * rows and Redis values.
+ *
+ * Bodies of at least {@code lifelog.storage.min-size} bytes are written with
+ * the configured {@link PayloadCompression} ({@code zstd}, {@code gzip} or
+ * {@code none}); smaller ones and anything that would not shrink stay plain
+ * UTF-8 JSON. Reads recognise every known format by its magic bytes, so
+ * switching codecs never strands existing data and plain legacy strings keep
+ * working until they are recompressed.
+ */
+@Component
+public class PayloadCodec {
+
+    private final PayloadCompression writer;
+    private final List<PayloadCompression> readers;
+    private final int minSize;
+
+    @Autowired
+    public PayloadCodec(@Value("${lifelog.storage.codec:zstd}") String codec,
+            @Value("${lifelog.storage.level:3}") int level,
+            @Value("${lifelog.storage.dictionary:}") String dictionary,
+            @Value("${lifelog.storage.min-size:256}") int minSize) {
+        ZstdCompression zstd = new ZstdCompression(level, readDictionary(dictionary));
+        GzipCompression gzip = new GzipCompression();
+        this.readers = List.of(zstd, gzip);
+        this.writer = switch (codec) {
+            case "zstd" -> zstd;
+            case "gzip" -> gzip;
+            case "none" -> null;
+            default -> throw new IllegalArgumentException("Unknown lifelog.storage.codec: " + codec);
+        };
+        this.minSize = Math.max(minSize, 1);
+    }
+
+    /** Name of the codec new bodies are written with. */
+    public String name() {
+        return writer != null ? writer.name() : "none";
+    }
+
+    /**
+     * Bytes to store for {@code json}: compressed when it pays off, UTF-8 otherwise.
+     */
+    public byte[] encode(String json) {
+        byte[] utf8 = json.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = compress(utf8);
+        return compressed != null ? compressed : utf8;
+    }
+
+    public String decode(byte[] data) {
+        for (PayloadCompression reader : readers) {
+            if (reader.accepts(data)) {
+                return new String(reader.decompress(data), StandardCharsets.UTF_8);
+            }
+        }
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Value for a document's {@code fhirJson} field: BSON binary when compressed,
+     * the string itself when not.
+     */
+    public Object toStored(String json) {
+        if (json == null) {
+            return null;
+        }
+        byte[] compressed = compress(json.getBytes(StandardCharsets.UTF_8));
+        return compressed != null ? new Binary(compressed) : json;
+    }
+
+    /**
+     * JSON held by a stored {@code fhirJson} value, whatever form it was written in.
+     */
+    public String fromStored(Object stored) {
+        if (stored == null || stored instanceof String) {
+            return (String) stored;
+        }
+        if (stored instanceof Binary binary) {
+            return decode(binary.getData());
+        }
+        if (stored instanceof byte[] bytes) {
+            return decode(bytes);
+        }
+        throw new IllegalArgumentException("Unexpected fhirJson value " + stored.getClass().getName());
+    }
+
+    /**
+     * Whether {@code stored} was written with the configured codec, i.e. whether
+     * a recompression pass would leave it as is.
+     */
+    public boolean isCurrent(Object stored) {
+        if (stored instanceof Binary binary) {
+            return writer != null && writer.accepts(binary.getData());
+        }
+        return writer == null || !(stored instanceof String json) || json.length() < minSize;
+    }
+
+    private byte[] compress(byte[] utf8) {
+        if (writer == null || utf8.length < minSize) {
+            return null;
+        }
+        byte[] compressed = writer.compress(utf8);
+        return compressed.length < utf8.length ? compressed : null;
+    }
+
+    private static byte[] readDictionary(String path) {
+        if (path == null || path.isBlank()) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(Paths.get(path));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read lifelog.storage.dictionary " + path, e);
+        }
+    }
+
+    static boolean startsWith(byte[] data, byte[] magic) {
+        if (data == null || data.length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (data[i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,19 @@
+package com.al.lifelog.serialization;
+
+/**
+ * One compression format {@link PayloadCodec} can write and read back.
+ *
+ * Formats are told apart by their leading magic bytes, none of which can start
+ * a UTF-8 JSON document, so compressed and plain payloads can share a field.
+ */
+public interface PayloadCompression {
+
+    String name();
+
+    /** Whether {@code data} starts with this format's magic bytes. */
+    boolean accepts(byte[] data);
+
+    byte[] compress(byte[] data);
+
+    byte[] decompress(byte[] data);
+}
@@ -0,0 +1,45 @@
+package com.al.lifelog.serialization;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+import org.springframework.stereotype.Component;
+
+/**
+ * Applies {@link PayloadCodec} to the {@code fhirJson} field of everything
+ * written or read through {@code MongoTemplate}, repositories and bulk
+ * operations included, so the models keep a plain {@code String}.
+ *
+ * Only documents that actually carry the body are touched: queries projecting
+ * it away never pay for decompression. Code reading collections through the
+ * driver directly must use {@link PayloadCodec#fromStored} itself.
+ */
+@Component
+public class PayloadMongoListener extends AbstractMongoEventListener<Object> {
+
+    public static final String FIELD = "fhirJson";
+
+    private final PayloadCodec codec;
+
+    public PayloadMongoListener(PayloadCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public void onBeforeSave(BeforeSaveEvent<Object> event) {
+        Document document = event.getDocument();
+        if (document != null && document.get(FIELD) instanceof String json) {
+            document.put(FIELD, codec.toStored(json));
+        }
+    }
+
+    @Override
+    public void onAfterLoad(AfterLoadEvent<Object> event) {
+        Document document = event.getDocument();
+        if (document != null && document.get(FIELD) instanceof Binary binary) {
+            document.put(FIELD, codec.decode(binary.getData()));
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.al.lifelog.serialization;
+
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+/**
+ * Redis string serializer that stores values through {@link PayloadCodec}.
+ *
+ * Keys, channel names and invalidation messages are far below the codec's
+ * minimum size and go out as plain UTF-8, exactly as with the default
+ * serializer.
+ */
+public class PayloadRedisSerializer implements RedisSerializer<String> {
+
+    private final PayloadCodec codec;
+
+    public PayloadRedisSerializer(PayloadCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public byte[] serialize(String value) {
+        return value != null ? codec.encode(value) : null;
+    }
+
+    @Override
+    public String deserialize(byte[] bytes) {
+        return bytes != null ? codec.decode(bytes) : null;
+    }
+}
@@ -0,0 +1,161 @@
+package com.al.lifelog.serialization;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.hl7.fhir.r4.model.InstantType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Stored resource JSON ready to be written to a response as is.
+ *
+ * {@link #patch} copies the stored document token by token with Jackson's
+ * streaming API, forcing the logical id and (when given) {@code meta.versionId}
+ * and {@code meta.lastUpdated}. No HAPI model is built, so a read costs one
+ * byte buffer instead of a full resource tree plus its re-encoding.
+ */
+public final class RawResourceJson {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final byte[] body;
+    private final String versionId;
+    private final String lastUpdated;
+
+    private RawResourceJson(byte[] body, String versionId, String lastUpdated) {
+        this.body = body;
+        this.versionId = versionId;
+        this.lastUpdated = lastUpdated;
+    }
+
+    /**
+     * Rewrites {@code json} with the given id and meta values. Null meta values
+     * keep whatever the stored document has; the effective values are exposed
+     * for the ETag and Last-Modified headers.
+     *
+     * @throws IOException if the stored document is not a JSON object
+     */
+    public static RawResourceJson patch(String json, String id, Long versionId, Date lastUpdated)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length() + 128);
+        MetaValues meta = new MetaValues(
+                versionId != null ? String.valueOf(versionId) : null,
+                lastUpdated != null ? new InstantType(lastUpdated).getValueAsString() : null);
+
+        try (JsonParser parser = JSON.createParser(json);
+                JsonGenerator gen = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Stored resource is not a JSON object");
+            }
+            gen.writeStartObject();
+
+            boolean idWritten = false;
+            boolean metaWritten = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                if ("id".equals(field)) {
+                    parser.nextToken();
+                    parser.skipChildren();
+                    continue;
+                }
+                if ("meta".equals(field) && parser.nextToken() == JsonToken.START_OBJECT) {
+                    copyMeta(parser, gen, meta);
+                    metaWritten = true;
+                    continue;
+                }
+                if ("meta".equals(field)) {
+                    // Not an object, leave it alone
+                    gen.writeFieldName(field);
+                    gen.copyCurrentStructure(parser);
+                    metaWritten = true;
+                    continue;
+                }
+
+                gen.copyCurrentStructure(parser);
+                if ("resourceType".equals(field) && !idWritten) {
+                    // Same position HAPI uses: right after resourceType
+                    gen.writeStringField("id", id);
+                    idWritten = true;
+                }
+            }
+
+            if (!idWritten) {
+                gen.writeStringField("id", id);
+            }
+            if (!metaWritten && (meta.versionId != null || meta.lastUpdated != null)) {
+                gen.writeFieldName("meta");
+                gen.writeStartObject();
+                meta.writeTo(gen);
+                gen.writeEndObject();
+            }
+            gen.writeEndObject();
+        }
+
+        return new RawResourceJson(out.toByteArray(), meta.versionId, meta.lastUpdated);
+    }
+
+    private static void copyMeta(JsonParser parser, JsonGenerator gen, MetaValues meta) throws IOException {
+        gen.writeFieldName("meta");
+        gen.writeStartObject();
+        meta.writeTo(gen);
+
+        boolean versionForced = meta.versionId != null;
+        boolean updatedForced = meta.lastUpdated != null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            if ("versionId".equals(field) && versionForced || "lastUpdated".equals(field) && updatedForced) {
+                parser.nextToken();
+                parser.skipChildren();
+                continue;
+            }
+            parser.nextToken();
+            if ("versionId".equals(field)) {
+                meta.versionId = parser.getValueAsString();
+            } else if ("lastUpdated".equals(field)) {
+                meta.lastUpdated = parser.getValueAsString();
+            }
+            gen.writeFieldName(field);
+            gen.copyCurrentStructure(parser);
+        }
+        gen.writeEndObject();
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getVersionId() {
+        return versionId;
+    }
+
+    /**
+     * FHIR instant string, or null if the resource has none.
+     */
+    public String getLastUpdated() {
+        return lastUpdated;
+    }
+
+    private static final class MetaValues {
+        private String versionId;
+        private String lastUpdated;
+
+        private MetaValues(String versionId, String lastUpdated) {
+            this.versionId = versionId;
+            this.lastUpdated = lastUpdated;
+        }
+
+        private void writeTo(JsonGenerator gen) throws IOException {
+            if (versionId != null) {
+                gen.writeStringField("versionId", versionId);
+            }
+            if (lastUpdated != null) {
+                gen.writeStringField("lastUpdated", lastUpdated);
+            }
+        }
+    }
+}
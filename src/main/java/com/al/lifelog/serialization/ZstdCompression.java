@@ -0,0 +1,55 @@
+package com.al.lifelog.serialization;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+
+/**
+ * Zstandard frames, optionally against a shared dictionary.
+ *
+ * A dictionary trained on FHIR JSON (e.g. {@code zstd --train} over an export)
+ * lets small resources reuse the field names and code systems every resource
+ * repeats. Frames record the dictionary id, so a dictionary must stay
+ * configured for as long as documents written with it exist.
+ */
+public class ZstdCompression implements PayloadCompression {
+
+    private static final byte[] MAGIC = {0x28, (byte) 0xB5, 0x2F, (byte) 0xFD};
+
+    private final int level;
+    private final ZstdDictCompress compressDictionary;
+    private final ZstdDictDecompress decompressDictionary;
+
+    public ZstdCompression(int level, byte[] dictionary) {
+        this.level = level;
+        boolean hasDictionary = dictionary != null && dictionary.length > 0;
+        this.compressDictionary = hasDictionary ? new ZstdDictCompress(dictionary, level) : null;
+        this.decompressDictionary = hasDictionary ? new ZstdDictDecompress(dictionary) : null;
+    }
+
+    @Override
+    public String name() {
+        return "zstd";
+    }
+
+    @Override
+    public boolean accepts(byte[] data) {
+        return PayloadCodec.startsWith(data, MAGIC);
+    }
+
+    @Override
+    public byte[] compress(byte[] data) {
+        return compressDictionary != null ? Zstd.compress(data, compressDictionary) : Zstd.compress(data, level);
+    }
+
+    @Override
+    public byte[] decompress(byte[] data) {
+        long size = Zstd.getFrameContentSize(data);
+        if (size < 0 || size > Integer.MAX_VALUE) {
+            throw new IllegalStateException("zstd frame without a usable content size");
+        }
+        return decompressDictionary != null
+                ? Zstd.decompress(data, decompressDictionary, (int) size)
+                : Zstd.decompress(data, (int) size);
+    }
+}
@@ -1,9 +1,13 @@
 package com.al.lifelog.service;
 
 import com.al.lifelog.model.MongoAllergyIntolerance;
+import com.al.lifelog.paging.SearchCursor;
+import com.al.lifelog.paging.SearchPage;
 import com.al.lifelog.repository.AllergyIntoleranceRepository;
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import com.al.lifelog.cache.CacheWriteBehind;
+import com.al.lifelog.cache.NearCache;
+import com.al.lifelog.cache.SingleFlight;
+import com.al.lifelog.serialization.FhirSerializer;
 import org.hl7.fhir.r4.model.AllergyIntolerance;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
@@ -17,8 +21,7 @@ import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 
 import java.util.stream.Collectors;
 
@@ -27,17 +30,26 @@ public class AllergyIntoleranceService {
 
     private final AllergyIntoleranceRepository repository;
     private final StringRedisTemplate redisTemplate;
-    private final FhirContext ctx;
+    private final FhirSerializer serializer;
+    private final NearCache nearCache;
+    private final SingleFlight singleFlight;
+    private final CacheWriteBehind cacheWriteBehind;
     private final MongoTemplate mongoTemplate;
 
     @Autowired
     public AllergyIntoleranceService(AllergyIntoleranceRepository repository,
             StringRedisTemplate redisTemplate,
-            FhirContext ctx,
-            MongoTemplate mongoTemplate) {
+            FhirSerializer serializer,
+            MongoTemplate mongoTemplate,
+            NearCache nearCache,
+            SingleFlight singleFlight,
+            CacheWriteBehind cacheWriteBehind) {
         this.repository = repository;
         this.redisTemplate = redisTemplate;
-        this.ctx = ctx;
+        this.serializer = serializer;
+        this.nearCache = nearCache;
+        this.singleFlight = singleFlight;
+        this.cacheWriteBehind = cacheWriteBehind;
         this.mongoTemplate = mongoTemplate;
     }
 
@@ -52,6 +64,23 @@ public class AllergyIntoleranceService {
         }
 
         // 2. Prepare Mongo Document
+        MongoAllergyIntolerance mongoAllergy = toDocument(id, allergy);
+        String json = mongoAllergy.getFhirJson();
+
+        // 3. Save
+        repository.save(mongoAllergy);
+
+        // 4. Cache
+        cacheWriteBehind.put("AllergyIntolerance", id, json);
+
+        return allergy;
+    }
+
+    /**
+     * Builds the document stored for {@code allergy}, search fields and JSON included.
+     */
+    public MongoAllergyIntolerance toDocument(String id, AllergyIntolerance allergy) {
+        // Prepare Mongo Document
         MongoAllergyIntolerance mongoAllergy = new MongoAllergyIntolerance();
         mongoAllergy.setId(id);
 
@@ -59,46 +88,47 @@ public class AllergyIntoleranceService {
             mongoAllergy.setSubjectId(allergy.getPatient().getReferenceElement().getIdPart());
         }
 
-        // 3. Serialize
-        IParser parser = ctx.newJsonParser();
-        String json = parser.encodeResourceToString(allergy);
+        // Serialize
+        String json = serializer.encode(allergy);
         mongoAllergy.setFhirJson(json);
+        return mongoAllergy;
+    }
 
-        // 4. Save
-        repository.save(mongoAllergy);
-
-        // 5. Cache
-        redisTemplate.opsForValue().set("allergyintolerance:" + id, json, Duration.ofMinutes(10));
+    public AllergyIntolerance getAllergyIntolerance(String id) {
+        AllergyIntolerance near = nearCache.get("AllergyIntolerance", id, AllergyIntolerance.class);
+        if (near != null) {
+            return near;
+        }
 
-        return allergy;
+        return singleFlight.load("AllergyIntolerance", id, () -> loadAllergyIntolerance(id));
     }
 
-    public AllergyIntolerance getAllergyIntolerance(String id) {
-        String cached = redisTemplate.opsForValue().get("allergyintolerance:" + id);
+    private AllergyIntolerance loadAllergyIntolerance(String id) {
+        String cached = nearCache.isPending("AllergyIntolerance", id) ? null
+                : redisTemplate.opsForValue().get("allergyintolerance:" + id);
         if (cached != null) {
-            return ctx.newJsonParser().parseResource(AllergyIntolerance.class, cached);
+            AllergyIntolerance fromRedis = serializer.parse(AllergyIntolerance.class, cached);
+            nearCache.put("AllergyIntolerance", id, fromRedis, cached.length());
+            return fromRedis;
         }
 
         Optional<MongoAllergyIntolerance> result = repository.findById(id);
         if (result.isPresent()) {
-            AllergyIntolerance ai = ctx.newJsonParser().parseResource(AllergyIntolerance.class,
+            AllergyIntolerance ai = serializer.parse(AllergyIntolerance.class,
                     result.get().getFhirJson());
             if (!ai.hasId()) {
                 ai.setId(id);
             }
             redisTemplate.opsForValue().set("allergyintolerance:" + id, result.get().getFhirJson(),
                     Duration.ofMinutes(10));
+            nearCache.put("AllergyIntolerance", id, ai, result.get().getFhirJson().length());
             return ai;
         }
         return null;
     }
 
     public List<AllergyIntolerance> searchAllergyIntolerances(String subjectId, int offset, int count) {
-        Query query = new Query();
-
-        if (subjectId != null && !subjectId.isEmpty()) {
-            query.addCriteria(Criteria.where("subjectId").is(subjectId));
-        }
+        Query query = buildSearchQuery(subjectId);
 
         if (query.getQueryObject().isEmpty()) {
             if (offset == 0 && count <= 0) {
@@ -109,23 +139,51 @@ public class AllergyIntoleranceService {
             }
         }
 
+        // Exact offset, same order as the keyset search
         int limit = (count > 0) ? count : 10;
         int skip = (offset >= 0) ? offset : 0;
 
-        Pageable pageable = PageRequest.of(skip / limit, limit);
-        query.with(pageable);
+        query.with(Sort.by(Sort.Direction.ASC, "_id"));
+        query.skip(skip).limit(limit);
 
         List<MongoAllergyIntolerance> results = mongoTemplate.find(query, MongoAllergyIntolerance.class);
 
         return results.stream()
-                .map(alg -> {
-                    AllergyIntolerance ai = ctx.newJsonParser().parseResource(AllergyIntolerance.class,
-                            alg.getFhirJson());
-                    if (ai.getId() == null || ai.getId().isEmpty()) {
-                        ai.setId(alg.getId());
-                    }
-                    return ai;
-                })
+                .map(this::toAllergyIntolerance)
                 .collect(Collectors.toList());
     }
+
+    /**
+     * Keyset variant of {@link #searchAllergyIntolerances(String, int, int)},
+     * ordered by _id and resuming right after {@code cursor}.
+     */
+    public SearchPage<AllergyIntolerance> searchAllergyIntolerances(String subjectId, String cursor, int count) {
+        Query query = buildSearchQuery(subjectId);
+
+        int limit = (count > 0) ? count : 10;
+        SearchCursor.seek(query, cursor, limit);
+
+        List<MongoAllergyIntolerance> results = mongoTemplate.find(query, MongoAllergyIntolerance.class);
+
+        return SearchPage.of(results, limit, alg -> SearchCursor.after(alg.getId()), this::toAllergyIntolerance);
+    }
+
+    private Query buildSearchQuery(String subjectId) {
+        Query query = new Query();
+
+        if (subjectId != null && !subjectId.isEmpty()) {
+            query.addCriteria(Criteria.where("subjectId").is(subjectId));
+        }
+
+        return query;
+    }
+
+    private AllergyIntolerance toAllergyIntolerance(MongoAllergyIntolerance alg) {
+        AllergyIntolerance ai = serializer.parse(AllergyIntolerance.class,
+                alg.getFhirJson());
+        if (ai.getId() == null || ai.getId().isEmpty()) {
+            ai.setId(alg.getId());
+        }
+        return ai;
+    }
 }
@@ -1,9 +1,13 @@
 package com.al.lifelog.service;
 
 import com.al.lifelog.model.MongoAppointment;
+import com.al.lifelog.paging.SearchCursor;
+import com.al.lifelog.paging.SearchPage;
 import com.al.lifelog.repository.AppointmentRepository;
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import com.al.lifelog.cache.CacheWriteBehind;
+import com.al.lifelog.cache.NearCache;
+import com.al.lifelog.cache.SingleFlight;
+import com.al.lifelog.serialization.FhirSerializer;
 import org.hl7.fhir.r4.model.Appointment;
 import org.hl7.fhir.r4.model.Appointment.AppointmentParticipantComponent;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -18,8 +22,7 @@ import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 
 import java.util.stream.Collectors;
 
@@ -28,17 +31,26 @@ public class AppointmentService {
 
     private final AppointmentRepository repository;
     private final StringRedisTemplate redisTemplate;
-    private final FhirContext ctx;
+    private final FhirSerializer serializer;
+    private final NearCache nearCache;
+    private final SingleFlight singleFlight;
+    private final CacheWriteBehind cacheWriteBehind;
     private final MongoTemplate mongoTemplate;
 
     @Autowired
     public AppointmentService(AppointmentRepository repository,
             StringRedisTemplate redisTemplate,
-            FhirContext ctx,
-            MongoTemplate mongoTemplate) {
+            FhirSerializer serializer,
+            MongoTemplate mongoTemplate,
+            NearCache nearCache,
+            SingleFlight singleFlight,
+            CacheWriteBehind cacheWriteBehind) {
         this.repository = repository;
         this.redisTemplate = redisTemplate;
-        this.ctx = ctx;
+        this.serializer = serializer;
+        this.nearCache = nearCache;
+        this.singleFlight = singleFlight;
+        this.cacheWriteBehind = cacheWriteBehind;
         this.mongoTemplate = mongoTemplate;
     }
 
@@ -53,6 +65,23 @@ public class AppointmentService {
         }
 
         // 2. Prepare Mongo Document
+        MongoAppointment mongoAppt = toDocument(id, appointment);
+        String json = mongoAppt.getFhirJson();
+
+        // 3. Save
+        repository.save(mongoAppt);
+
+        // 4. Cache
+        cacheWriteBehind.put("Appointment", id, json);
+
+        return appointment;
+    }
+
+    /**
+     * Builds the document stored for {@code appointment}, search fields and JSON included.
+     */
+    public MongoAppointment toDocument(String id, Appointment appointment) {
+        // Prepare Mongo Document
         MongoAppointment mongoAppt = new MongoAppointment();
         mongoAppt.setId(id);
 
@@ -70,44 +99,45 @@ public class AppointmentService {
             }
         }
 
-        // 3. Serialize
-        IParser parser = ctx.newJsonParser();
-        String json = parser.encodeResourceToString(appointment);
+        // Serialize
+        String json = serializer.encode(appointment);
         mongoAppt.setFhirJson(json);
+        return mongoAppt;
+    }
 
-        // 4. Save
-        repository.save(mongoAppt);
-
-        // 5. Cache
-        redisTemplate.opsForValue().set("appointment:" + id, json, Duration.ofMinutes(10));
+    public Appointment getAppointment(String id) {
+        Appointment near = nearCache.get("Appointment", id, Appointment.class);
+        if (near != null) {
+            return near;
+        }
 
-        return appointment;
+        return singleFlight.load("Appointment", id, () -> loadAppointment(id));
     }
 
-    public Appointment getAppointment(String id) {
-        String cached = redisTemplate.opsForValue().get("appointment:" + id);
+    private Appointment loadAppointment(String id) {
+        String cached = nearCache.isPending("Appointment", id) ? null
+                : redisTemplate.opsForValue().get("appointment:" + id);
         if (cached != null) {
-            return ctx.newJsonParser().parseResource(Appointment.class, cached);
+            Appointment fromRedis = serializer.parse(Appointment.class, cached);
+            nearCache.put("Appointment", id, fromRedis, cached.length());
+            return fromRedis;
         }
 
         Optional<MongoAppointment> result = repository.findById(id);
         if (result.isPresent()) {
-            Appointment a = ctx.newJsonParser().parseResource(Appointment.class, result.get().getFhirJson());
+            Appointment a = serializer.parse(Appointment.class, result.get().getFhirJson());
             if (!a.hasId()) {
                 a.setId(id);
             }
             redisTemplate.opsForValue().set("appointment:" + id, result.get().getFhirJson(), Duration.ofMinutes(10));
+            nearCache.put("Appointment", id, a, result.get().getFhirJson().length());
             return a;
         }
         return null;
     }
 
     public List<Appointment> searchAppointments(String patientId, int offset, int count) {
-        Query query = new Query();
-
-        if (patientId != null && !patientId.isEmpty()) {
-            query.addCriteria(Criteria.where("patientId").is(patientId));
-        }
+        Query query = buildSearchQuery(patientId);
 
         if (query.getQueryObject().isEmpty()) {
             if (offset == 0 && count <= 0) {
@@ -117,22 +147,50 @@ public class AppointmentService {
             }
         }
 
+        // Exact offset, same order as the keyset search
         int limit = (count > 0) ? count : 10;
         int skip = (offset >= 0) ? offset : 0;
 
-        Pageable pageable = PageRequest.of(skip / limit, limit);
-        query.with(pageable);
+        query.with(Sort.by(Sort.Direction.ASC, "_id"));
+        query.skip(skip).limit(limit);
 
         List<MongoAppointment> results = mongoTemplate.find(query, MongoAppointment.class);
 
         return results.stream()
-                .map(appt -> {
-                    Appointment a = ctx.newJsonParser().parseResource(Appointment.class, appt.getFhirJson());
-                    if (a.getId() == null || a.getId().isEmpty()) {
-                        a.setId(appt.getId());
-                    }
-                    return a;
-                })
+                .map(this::toAppointment)
                 .collect(Collectors.toList());
     }
+
+    /**
+     * Keyset variant of {@link #searchAppointments(String, int, int)},
+     * ordered by _id and resuming right after {@code cursor}.
+     */
+    public SearchPage<Appointment> searchAppointments(String patientId, String cursor, int count) {
+        Query query = buildSearchQuery(patientId);
+
+        int limit = (count > 0) ? count : 10;
+        SearchCursor.seek(query, cursor, limit);
+
+        List<MongoAppointment> results = mongoTemplate.find(query, MongoAppointment.class);
+
+        return SearchPage.of(results, limit, appt -> SearchCursor.after(appt.getId()), this::toAppointment);
+    }
+
+    private Query buildSearchQuery(String patientId) {
+        Query query = new Query();
+
+        if (patientId != null && !patientId.isEmpty()) {
+            query.addCriteria(Criteria.where("patientId").is(patientId));
+        }
+
+        return query;
+    }
+
+    private Appointment toAppointment(MongoAppointment appt) {
+        Appointment a = serializer.parse(Appointment.class, appt.getFhirJson());
+        if (a.getId() == null || a.getId().isEmpty()) {
+            a.setId(appt.getId());
+        }
+        return a;
+    }
 }
@@ -2,30 +2,53 @@ package com.al.lifelog.service;
 
 import com.al.lifelog.model.MongoAuditEvent;
 import com.al.lifelog.repository.AuditRepository;
-import ca.uhn.fhir.context.FhirContext;
+import com.al.lifelog.serialization.FhirSerializer;
 import org.hl7.fhir.r4.model.AuditEvent;
 import org.hl7.fhir.r4.model.Reference;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 import java.util.UUID;
 
 @Service
 public class AuditService {
 
     private final AuditRepository repository;
-    private final FhirContext ctx;
+    private final FhirSerializer serializer;
 
     @Autowired
-    public AuditService(AuditRepository repository, FhirContext ctx) {
+    public AuditService(AuditRepository repository, FhirSerializer serializer) {
         this.repository = repository;
-        this.ctx = ctx;
+        this.serializer = serializer;
     }
 
     @Async
     public void log(String type, String resourceType, String resourceId, String outcome, String practitionerId,
             String remoteAddr) {
+        repository.save(event(type, resourceType, resourceId, outcome, practitionerId, remoteAddr));
+    }
+
+    /**
+     * Same as {@link #log} for many resources at once, written with one bulk insert.
+     */
+    @Async
+    public void logAll(String type, String resourceType, Collection<String> resourceIds, String outcome) {
+        if (resourceIds.isEmpty()) {
+            return;
+        }
+        List<MongoAuditEvent> events = new ArrayList<>(resourceIds.size());
+        for (String resourceId : resourceIds) {
+            events.add(event(type, resourceType, resourceId, outcome, null, null));
+        }
+        repository.insert(events);
+    }
+
+    private MongoAuditEvent event(String type, String resourceType, String resourceId, String outcome,
+            String practitionerId, String remoteAddr) {
         AuditEvent audit = new AuditEvent();
         audit.setId(UUID.randomUUID().toString());
         audit.setRecorded(new Date());
@@ -52,8 +75,7 @@ public class AuditService {
         mongoAudit.setOutcome(outcome);
         mongoAudit.setPractitionerId(practitionerId);
         mongoAudit.setRemoteAddr(remoteAddr);
-        mongoAudit.setFhirJson(ctx.newJsonParser().encodeResourceToString(audit));
-
-        repository.save(mongoAudit);
+        mongoAudit.setFhirJson(serializer.encode(audit));
+        return mongoAudit;
     }
 }
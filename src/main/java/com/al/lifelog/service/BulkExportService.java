@@ -0,0 +1,364 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.al.lifelog.model.MongoExportJob;
+import com.al.lifelog.model.ResourceDocuments;
+import com.al.lifelog.repository.ExportJobRepository;
+import com.al.lifelog.serialization.PayloadCodec;
+import com.al.lifelog.serialization.RawResourceJson;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * FHIR Bulk Data $export as background jobs writing gzip NDJSON to local disk.
+ *
+ * Each requested type is read with one Mongo cursor in {@code _id} order and the
+ * stored {@code fhirJson} is streamed into the file through {@link RawResourceJson}
+ * (id and meta patched, no HAPI parse). Files are cut every
+ * {@code lifelog.export.max-resources-per-file} resources and every finished file
+ * is a checkpoint: the job records the last {@code _id} written, so a job whose
+ * worker died is picked up again once its heartbeat is older than
+ * {@code lifelog.export.lease} and continues with the next file. The heartbeat
+ * is refreshed while a file is written, so a large file does not look stale.
+ *
+ * The files of a job live on the node that started it ({@code lifelog.export.node},
+ * the host name by default) and only that node resumes it. When several nodes
+ * serve the API, {@code lifelog.export.directory} has to be shared between them,
+ * with {@code lifelog.export.shared-directory} set, so any node can resume a job
+ * and serve its files.
+ */
+@Service
+public class BulkExportService {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkExportService.class);
+
+    /** Types with a reference to the patient, exported by Patient/$export. */
+    public static final List<String> PATIENT_COMPARTMENT = List.of("Patient", "Observation", "Condition",
+            "Encounter", "AllergyIntolerance", "Appointment", "DiagnosticReport", "Immunization",
+            "MedicationRequest");
+
+    public static final List<String> ALL_TYPES = List.of("Patient", "Observation", "Condition", "Encounter",
+            "AllergyIntolerance", "Appointment", "DiagnosticReport", "Immunization", "MedicationRequest",
+            "Organization", "Practitioner");
+
+    private final MongoTemplate mongoTemplate;
+    private final PayloadCodec payloadCodec;
+    private final ExportJobRepository repository;
+    private final MeterRegistry meterRegistry;
+    private final Path directory;
+    private final int maxResourcesPerFile;
+    private final int cursorBatchSize;
+    private final Duration lease;
+    private final String node;
+    private final boolean sharedDirectory;
+    private final ScheduledExecutorService executor;
+
+    @Autowired
+    public BulkExportService(MongoTemplate mongoTemplate,
+            PayloadCodec payloadCodec,
+            ExportJobRepository repository,
+            MeterRegistry meterRegistry,
+            @Value("${lifelog.export.directory:${java.io.tmpdir}/lifelog-export}") String directory,
+            @Value("${lifelog.export.max-resources-per-file:50000}") int maxResourcesPerFile,
+            @Value("${lifelog.export.cursor-batch-size:1000}") int cursorBatchSize,
+            @Value("${lifelog.export.lease:PT5M}") Duration lease,
+            @Value("${lifelog.export.workers:1}") int workers,
+            @Value("${lifelog.export.node:}") String node,
+            @Value("${lifelog.export.shared-directory:false}") boolean sharedDirectory) {
+        this.mongoTemplate = mongoTemplate;
+        this.payloadCodec = payloadCodec;
+        this.repository = repository;
+        this.meterRegistry = meterRegistry;
+        this.directory = Paths.get(directory);
+        this.maxResourcesPerFile = Math.max(maxResourcesPerFile, 1);
+        this.cursorBatchSize = Math.max(cursorBatchSize, 1);
+        this.lease = lease;
+        this.node = node == null || node.isBlank() ? hostName() : node;
+        this.sharedDirectory = sharedDirectory;
+        this.executor = new ScheduledThreadPoolExecutor(Math.max(workers, 1), r -> {
+            Thread thread = new Thread(r, "LifeLogExport");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException("Cannot resolve the host name, set lifelog.export.node", e);
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        // Picks up jobs left behind by a stopped node
+        executor.scheduleWithFixedDelay(this::resumeStale, 0, lease.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Creates a job exporting {@code types} (all of {@code allowedTypes} when
+     * empty) changed since {@code since}, and starts it in the background.
+     */
+    public MongoExportJob startExport(List<String> types, List<String> allowedTypes, Date since, String request) {
+        List<String> selected = types == null || types.isEmpty() ? allowedTypes : types;
+        for (String type : selected) {
+            if (!allowedTypes.contains(type) || !ResourceDocuments.isStored(type)) {
+                throw new InvalidRequestException("_type " + type + " cannot be exported here");
+            }
+        }
+
+        MongoExportJob job = new MongoExportJob();
+        job.setId(UUID.randomUUID().toString());
+        job.setStatus(MongoExportJob.ACCEPTED);
+        job.setRequest(request);
+        job.setTypes(new ArrayList<>(selected.stream().distinct().toList()));
+        job.setSince(since);
+        job.setTransactionTime(new Date());
+        job.setNode(node);
+        repository.insert(job);
+
+        executor.execute(() -> run(job.getId()));
+        return job;
+    }
+
+    public MongoExportJob getJob(String id) {
+        return repository.findById(id).orElse(null);
+    }
+
+    /**
+     * Returns the path of {@code file} if it is an output of {@code job}.
+     */
+    public Path outputFile(MongoExportJob job, String file) {
+        boolean known = job.getOutput().stream().anyMatch(o -> o.getFile().equals(file));
+        return known ? directory.resolve(job.getId()).resolve(file) : null;
+    }
+
+    void resumeStale() {
+        try {
+            for (MongoExportJob job : repository.findByStatusIn(
+                    Set.of(MongoExportJob.ACCEPTED, MongoExportJob.IN_PROGRESS))) {
+                if (isStale(job) && canResume(job)) {
+                    executor.execute(() -> run(job.getId()));
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("Looking for interrupted export jobs failed", e);
+        }
+    }
+
+    private boolean isStale(MongoExportJob job) {
+        return job.getHeartbeat() == null
+                || job.getHeartbeat().before(new Date(System.currentTimeMillis() - lease.toMillis()));
+    }
+
+    private boolean canResume(MongoExportJob job) {
+        return sharedDirectory || job.getNode() == null || job.getNode().equals(node);
+    }
+
+    void run(String jobId) {
+        MongoExportJob job = claim(jobId);
+        if (job == null) {
+            // Finished, or running on another node
+            return;
+        }
+        try {
+            Files.createDirectories(directory.resolve(job.getId()));
+            for (String type : job.getTypes()) {
+                if (job.getCompletedTypes().contains(type)) {
+                    continue;
+                }
+                if (!exportType(job, type)) {
+                    // Shutting down, another node resumes from the checkpoint
+                    return;
+                }
+                job.getCompletedTypes().add(type);
+                job.setCurrentType(null);
+                job.setLastId(null);
+                checkpoint(job);
+            }
+            job.setStatus(MongoExportJob.COMPLETED);
+            job.setFinishedAt(new Date());
+            repository.save(job);
+            log.info("Export {} finished: {} resources, {} bytes", job.getId(), job.getResources(), job.getBytes());
+        } catch (IOException | RuntimeException e) {
+            log.error("Export {} failed", job.getId(), e);
+            job.setStatus(MongoExportJob.FAILED);
+            job.setError(e.getMessage());
+            job.setFinishedAt(new Date());
+            repository.save(job);
+        }
+    }
+
+    /**
+     * Takes the job if nobody holds it, so a resumed job never runs twice. Without
+     * a shared directory only the node holding its files may take it.
+     */
+    private MongoExportJob claim(String jobId) {
+        Date now = new Date();
+        Criteria criteria = Criteria.where("_id").is(jobId)
+                .and("status").in(MongoExportJob.ACCEPTED, MongoExportJob.IN_PROGRESS)
+                .orOperator(Criteria.where("heartbeat").is(null),
+                        Criteria.where("heartbeat").lt(new Date(now.getTime() - lease.toMillis())));
+        if (!sharedDirectory) {
+            // Jobs from before nodes were recorded have no node
+            criteria.and("node").in(node, null);
+        }
+        Update update = new Update().set("status", MongoExportJob.IN_PROGRESS).set("heartbeat", now)
+                .set("node", node);
+        MongoExportJob job = mongoTemplate.findAndModify(new Query(criteria), update,
+                FindAndModifyOptions.options().returnNew(true), MongoExportJob.class);
+        if (job != null && job.getStartedAt() == null) {
+            job.setStartedAt(now);
+        }
+        return job;
+    }
+
+    /**
+     * Streams one type into as many files as it needs. Returns false if the
+     * worker was interrupted between two files.
+     */
+    private boolean exportType(MongoExportJob job, String type) throws IOException {
+        Document filter = new Document();
+        if (type.equals(job.getCurrentType()) && job.getLastId() != null) {
+            filter.append("_id", new Document("$gt", job.getLastId()));
+        }
+        if (job.getSince() != null) {
+            // Types without lastUpdated cannot be filtered, they are always included
+            filter.append("$or", List.of(
+                    new Document("lastUpdated", new Document("$gte", job.getSince())),
+                    new Document("lastUpdated", new Document("$exists", false))));
+        }
+        job.setCurrentType(type);
+
+        String collection = mongoTemplate.getCollectionName(ResourceDocuments.forType(type));
+        try (MongoCursor<Document> cursor = mongoTemplate.getCollection(collection)
+                .find(filter)
+                .projection(Projections.include("fhirJson", "versionId", "lastUpdated"))
+                .sort(Sorts.ascending("_id"))
+                .batchSize(cursorBatchSize)
+                .iterator()) {
+            while (cursor.hasNext()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                writeFile(job, type, cursor);
+            }
+        }
+        return true;
+    }
+
+    private void writeFile(MongoExportJob job, String type, MongoCursor<Document> cursor) throws IOException {
+        long part = job.getOutput().stream().filter(o -> o.getType().equals(type)).count() + 1;
+        String name = type + "-" + part + ".ndjson.gz";
+        // Overwrites what an interrupted run left after the checkpoint
+        Path path = directory.resolve(job.getId()).resolve(name);
+
+        long count = 0;
+        String lastId = null;
+        long beatEvery = lease.toMillis() / 4;
+        long lastBeat = System.currentTimeMillis();
+        try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(path)), 65536)) {
+            while (count < maxResourcesPerFile && cursor.hasNext()) {
+                Document document = cursor.next();
+                lastId = String.valueOf(document.get("_id"));
+                // Read through the driver, so the body is still in its stored form
+                String json = payloadCodec.fromStored(document.get("fhirJson"));
+                if (json == null) {
+                    continue;
+                }
+                Number version = document.get("versionId", Number.class);
+                try {
+                    out.write(RawResourceJson.patch(json, lastId, version != null ? version.longValue() : null,
+                            document.getDate("lastUpdated")).getBody());
+                } catch (IOException e) {
+                    log.warn("Skipping {}/{} in export {}, stored JSON is not readable", type, lastId, job.getId());
+                    continue;
+                }
+                out.write('\n');
+                count++;
+                if (System.currentTimeMillis() - lastBeat >= beatEvery) {
+                    heartbeat(job);
+                    lastBeat = job.getHeartbeat().getTime();
+                }
+            }
+        }
+
+        if (count == 0) {
+            Files.deleteIfExists(path);
+        } else {
+            long bytes = Files.size(path);
+            job.getOutput().add(new MongoExportJob.OutputFile(type, name, count, bytes));
+            job.setResources(job.getResources() + count);
+            job.setBytes(job.getBytes() + bytes);
+            Counter.builder("fhir.export.resources")
+                    .description("Resources written by $export")
+                    .tag("type", type)
+                    .register(meterRegistry)
+                    .increment(count);
+            Counter.builder("fhir.export.bytes")
+                    .description("Compressed bytes written by $export")
+                    .tag("type", type)
+                    .register(meterRegistry)
+                    .increment(bytes);
+        }
+        if (lastId != null) {
+            job.setLastId(lastId);
+            checkpoint(job);
+        }
+    }
+
+    /**
+     * Refreshes only the heartbeat: the checkpoint moves when the file is done.
+     */
+    private void heartbeat(MongoExportJob job) {
+        job.setHeartbeat(new Date());
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(job.getId())),
+                new Update().set("heartbeat", job.getHeartbeat()), MongoExportJob.class);
+    }
+
+    private void checkpoint(MongoExportJob job) {
+        job.setHeartbeat(new Date());
+        repository.save(job);
+    }
+}
@@ -0,0 +1,376 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.al.lifelog.cache.CacheWriteBehind;
+import com.al.lifelog.model.MongoImportJob;
+import com.al.lifelog.model.MongoResourceHistory;
+import com.al.lifelog.model.ResourceDocuments;
+import com.al.lifelog.repository.ImportJobRepository;
+import com.al.lifelog.serialization.FhirSerializer;
+import com.al.lifelog.serialization.PayloadCodec;
+import com.mongodb.bulk.BulkWriteError;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Bulk $import of NDJSON files (optionally gzip) from {@code lifelog.import.directory}.
+ *
+ * One job thread reads each file and cuts it into chunks of
+ * {@code lifelog.import.chunk-size} lines. Chunks run on a fork-join pool sized to
+ * the cores: parse, search-field extraction (the services' {@code toDocument}) and
+ * one unordered bulk insert per chunk. At most {@code lifelog.import.max-in-flight}
+ * chunks are queued, so reading never outruns the writes.
+ *
+ * Only the resource write is mandatory. History rows are written per chunk unless
+ * the job turns them off; cache warm-up and subscription notifications are off
+ * unless asked for. No validation, no per-resource audit. Bad lines and duplicate
+ * ids are rejected one by one and counted, the first ones are kept on the job.
+ */
+@Service
+public class BulkImportService {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkImportService.class);
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoTemplate mongoTemplate;
+    private final FhirSerializer serializer;
+    private final PayloadCodec payloadCodec;
+    private final ResourceDocumentMapper documentMapper;
+    private final CacheWriteBehind cacheWriteBehind;
+    private final SubscriptionService subscriptionService;
+    private final ImportJobRepository repository;
+    private final MeterRegistry meterRegistry;
+    private final Path directory;
+    private final int chunkSize;
+    private final int maxInFlight;
+    private final int maxRejections;
+    private final ForkJoinPool pool;
+    private final ExecutorService runner;
+
+    @Autowired
+    public BulkImportService(MongoTemplate mongoTemplate,
+            FhirSerializer serializer,
+            PayloadCodec payloadCodec,
+            ResourceDocumentMapper documentMapper,
+            CacheWriteBehind cacheWriteBehind,
+            SubscriptionService subscriptionService,
+            ImportJobRepository repository,
+            MeterRegistry meterRegistry,
+            @Value("${lifelog.import.directory:${java.io.tmpdir}/lifelog-import}") String directory,
+            @Value("${lifelog.import.chunk-size:1000}") int chunkSize,
+            @Value("${lifelog.import.parallelism:0}") int parallelism,
+            @Value("${lifelog.import.max-in-flight:0}") int maxInFlight,
+            @Value("${lifelog.import.max-rejections:100}") int maxRejections) {
+        this.mongoTemplate = mongoTemplate;
+        this.serializer = serializer;
+        this.payloadCodec = payloadCodec;
+        this.documentMapper = documentMapper;
+        this.cacheWriteBehind = cacheWriteBehind;
+        this.subscriptionService = subscriptionService;
+        this.repository = repository;
+        this.meterRegistry = meterRegistry;
+        this.directory = Paths.get(directory).toAbsolutePath().normalize();
+        this.chunkSize = Math.max(chunkSize, 1);
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.maxInFlight = maxInFlight > 0 ? maxInFlight : threads * 2;
+        this.maxRejections = maxRejections;
+        this.pool = new ForkJoinPool(threads);
+        this.runner = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "LifeLogImport");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        runner.shutdownNow();
+        pool.shutdownNow();
+    }
+
+    /**
+     * Checks the inputs, records the job and starts it in the background.
+     */
+    public MongoImportJob startImport(List<MongoImportJob.Input> inputs, boolean writeHistory, boolean warmCache,
+            boolean notifySubscribers, String request) {
+        if (inputs == null || inputs.isEmpty()) {
+            throw new InvalidRequestException("At least one input is required");
+        }
+        for (MongoImportJob.Input input : inputs) {
+            if (!documentMapper.supports(input.getType())) {
+                throw new InvalidRequestException("Resource type " + input.getType() + " cannot be imported");
+            }
+            Path path = resolve(input.getUrl());
+            if (path == null || !Files.isRegularFile(path)) {
+                throw new InvalidRequestException("Input " + input.getUrl() + " is not a file under the import directory");
+            }
+        }
+
+        MongoImportJob job = new MongoImportJob();
+        job.setId(UUID.randomUUID().toString());
+        job.setStatus(MongoImportJob.ACCEPTED);
+        job.setRequest(request);
+        job.setInputs(new ArrayList<>(inputs));
+        job.setWriteHistory(writeHistory);
+        job.setWarmCache(warmCache);
+        job.setNotifySubscribers(notifySubscribers);
+        repository.insert(job);
+
+        runner.execute(() -> run(job));
+        return job;
+    }
+
+    public MongoImportJob getJob(String id) {
+        return repository.findById(id).orElse(null);
+    }
+
+    /**
+     * Resolves {@code url} (a path, or a {@code file:} URL) inside the import
+     * directory; anything outside it is refused.
+     */
+    Path resolve(String url) {
+        if (url == null || url.isBlank()) {
+            return null;
+        }
+        String location = url.startsWith("file:") ? url.substring("file:".length()) : url;
+        Path path;
+        try {
+            path = Paths.get(location);
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        path = (path.isAbsolute() ? path : directory.resolve(path)).normalize();
+        return path.startsWith(directory) ? path : null;
+    }
+
+    void run(MongoImportJob job) {
+        job.setStatus(MongoImportJob.IN_PROGRESS);
+        job.setStartedAt(new Date());
+        repository.save(job);
+
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        try {
+            for (MongoImportJob.Input input : job.getInputs()) {
+                readInput(job, input, inFlight);
+            }
+            // Wait for the last chunks
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+
+            MongoImportJob done = getJob(job.getId());
+            done.setStatus(MongoImportJob.COMPLETED);
+            done.setFinishedAt(new Date());
+            repository.save(done);
+            log.info("Import {} finished: {} imported, {} rejected", done.getId(), done.getImported(),
+                    done.getRejected());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(job, "Interrupted");
+        } catch (IOException | RuntimeException e) {
+            log.error("Import {} failed", job.getId(), e);
+            fail(job, e.getMessage());
+        }
+    }
+
+    private void fail(MongoImportJob job, String error) {
+        MongoImportJob current = getJob(job.getId());
+        MongoImportJob failed = current != null ? current : job;
+        failed.setStatus(MongoImportJob.FAILED);
+        failed.setError(error);
+        failed.setFinishedAt(new Date());
+        repository.save(failed);
+    }
+
+    private void readInput(MongoImportJob job, MongoImportJob.Input input, Semaphore inFlight)
+            throws IOException, InterruptedException {
+        Path path = resolve(input.getUrl());
+        InputStream in = Files.newInputStream(path);
+        if (path.getFileName().toString().endsWith(".gz")) {
+            in = new GZIPInputStream(in, 65536);
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16)) {
+            List<String> lines = new ArrayList<>(chunkSize);
+            long firstLine = 1;
+            long lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                lines.add(line);
+                if (lines.size() == chunkSize) {
+                    submit(job, input, firstLine, lines, inFlight);
+                    lines = new ArrayList<>(chunkSize);
+                    firstLine = lineNumber + 1;
+                }
+            }
+            if (!lines.isEmpty()) {
+                submit(job, input, firstLine, lines, inFlight);
+            }
+        }
+    }
+
+    private void submit(MongoImportJob job, MongoImportJob.Input input, long firstLine, List<String> lines,
+            Semaphore inFlight) throws InterruptedException {
+        inFlight.acquire();
+        pool.execute(() -> {
+            try {
+                importChunk(job, input, firstLine, lines);
+            } catch (RuntimeException e) {
+                log.warn("Import {}: chunk at {}:{} failed", job.getId(), input.getUrl(), firstLine, e);
+                List<MongoImportJob.Rejection> rejections = List.of(
+                        new MongoImportJob.Rejection(input.getUrl(), firstLine, "Chunk failed: " + e.getMessage()));
+                progress(job, input.getType(), lines.size(), 0, lines.size(), rejections);
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    void importChunk(MongoImportJob job, MongoImportJob.Input input, long firstLine, List<String> lines) {
+        String type = input.getType();
+        Class<? extends Resource> resourceClass = documentMapper.resourceClass(type);
+        List<MongoImportJob.Rejection> rejections = new ArrayList<>();
+        List<Document> documents = new ArrayList<>(lines.size());
+        List<Long> lineNumbers = new ArrayList<>(lines.size());
+
+        long read = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.isBlank()) {
+                continue;
+            }
+            read++;
+            long lineNumber = firstLine + i;
+            Resource resource;
+            try {
+                resource = serializer.parse(resourceClass, line);
+            } catch (RuntimeException e) {
+                rejections.add(new MongoImportJob.Rejection(input.getUrl(), lineNumber, e.getMessage()));
+                continue;
+            }
+            String id = resource.getIdElement().hasIdPart() ? resource.getIdElement().getIdPart()
+                    : UUID.randomUUID().toString();
+            resource.setId(id);
+            documents.add(documentMapper.toDocument(type, id, resource, 1L));
+            lineNumbers.add(lineNumber);
+        }
+
+        List<Document> written = write(type, documents, lineNumbers, input.getUrl(), rejections);
+        if (!written.isEmpty()) {
+            afterWrite(job, type, written);
+        }
+        progress(job, type, read, written.size(), rejections.size(), rejections);
+    }
+
+    private List<Document> write(String type, List<Document> documents, List<Long> lineNumbers, String url,
+            List<MongoImportJob.Rejection> rejections) {
+        if (documents.isEmpty()) {
+            return documents;
+        }
+        Map<Integer, BulkWriteError> errors = new HashMap<>();
+        String collection = mongoTemplate.getCollectionName(ResourceDocuments.forType(type));
+        try {
+            mongoTemplate.bulkOps(BulkMode.UNORDERED, collection).insert(documents).execute();
+        } catch (BulkOperationException e) {
+            e.getErrors().forEach(error -> errors.put(error.getIndex(), error));
+        }
+        if (errors.isEmpty()) {
+            return documents;
+        }
+
+        List<Document> written = new ArrayList<>(documents.size());
+        for (int i = 0; i < documents.size(); i++) {
+            BulkWriteError error = errors.get(i);
+            if (error == null) {
+                written.add(documents.get(i));
+            } else {
+                String reason = error.getCode() == DUPLICATE_KEY
+                        ? type + "/" + documents.get(i).get("_id") + " already exists"
+                        : error.getMessage();
+                rejections.add(new MongoImportJob.Rejection(url, lineNumbers.get(i), reason));
+            }
+        }
+        return written;
+    }
+
+    private void afterWrite(MongoImportJob job, String type, List<Document> written) {
+        if (job.isWriteHistory() && documentMapper.isVersioned(type)) {
+            List<MongoResourceHistory> rows = new ArrayList<>(written.size());
+            for (Document document : written) {
+                MongoResourceHistory history = new MongoResourceHistory();
+                history.setResourceId(document.getString("_id"));
+                history.setResourceType(type);
+                history.setFhirJson(payloadCodec.fromStored(document.get("fhirJson")));
+                history.setVersionId(1L);
+                history.setLastUpdated(document.getDate("lastUpdated"));
+                history.setExpireAt(MongoResourceHistory.expiry(history.getLastUpdated()));
+                rows.add(history);
+            }
+            mongoTemplate.bulkOps(BulkMode.UNORDERED, MongoResourceHistory.class).insert(rows).execute();
+        }
+        if (job.isWarmCache()) {
+            written.forEach(d -> cacheWriteBehind.put(type, d.getString("_id"), payloadCodec.fromStored(d.get("fhirJson"))));
+        }
+        if (job.isNotifySubscribers()) {
+            subscriptionService.notifySubscribers(type, "CREATE",
+                    written.stream().map(d -> payloadCodec.fromStored(d.get("fhirJson"))).toList());
+        }
+    }
+
+    private void progress(MongoImportJob job, String type, long read, long imported, long rejected,
+            List<MongoImportJob.Rejection> rejections) {
+        Update update = new Update().inc("read", read).inc("imported", imported).inc("rejected", rejected);
+        if (!rejections.isEmpty()) {
+            update.push("rejections").slice(maxRejections).each(rejections.toArray());
+        }
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(job.getId())), update, MongoImportJob.class);
+
+        Counter.builder("fhir.import.resources")
+                .description("Resources processed by $import")
+                .tag("type", type)
+                .tag("result", "imported")
+                .register(meterRegistry)
+                .increment(imported);
+        Counter.builder("fhir.import.resources")
+                .description("Resources processed by $import")
+                .tag("type", type)
+                .tag("result", "rejected")
+                .register(meterRegistry)
+                .increment(rejected);
+    }
+}
@@ -0,0 +1,454 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.PayloadTooLargeException;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+import com.al.lifelog.cache.CacheWriteBehind;
+import com.al.lifelog.model.MongoResourceHistory;
+import com.al.lifelog.model.ResourceDocuments;
+import com.al.lifelog.serialization.FhirSerializer;
+import com.al.lifelog.serialization.PayloadCodec;
+import com.mongodb.bulk.BulkWriteError;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.Document;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Executes FHIR {@code transaction} and {@code batch} bundles.
+ *
+ * POST entries get their ids up front so {@code urn:uuid:} references between
+ * entries can be rewritten before anything is stored. Entries are then grouped by
+ * resource type and each group goes to Mongo as one bulk write (inserts for POST,
+ * upserting replaces on {@code {_id, versionId}} for PUT, removes for DELETE),
+ * followed by one bulk insert into {@code resource_history}.
+ *
+ * A transaction runs all of that in one Mongo session and fails as a whole on the
+ * first bad entry. A batch has no session and writes unordered; every entry gets
+ * its own status, a failed entry does not stop the others.
+ */
+@Service
+public class BundleTransactionService {
+
+    private static final int DUPLICATE_KEY = 11000;
+    // Types whose create outside a bundle notifies subscribers
+    private static final Set<String> NOTIFIED_ON_CREATE = Set.of("Patient", "Observation");
+
+    private final MongoTemplate mongoTemplate;
+    private final FhirSerializer serializer;
+    private final PayloadCodec payloadCodec;
+    private final ResourceDocumentMapper documentMapper;
+    private final CacheWriteBehind cacheWriteBehind;
+    private final AuditService auditService;
+    private final TransactionTemplate transactionTemplate;
+    private final int maxEntries;
+    private final Counter observationCreatedCounter;
+
+    @Autowired
+    public BundleTransactionService(MongoTemplate mongoTemplate,
+            FhirSerializer serializer,
+            PayloadCodec payloadCodec,
+            ResourceDocumentMapper documentMapper,
+            CacheWriteBehind cacheWriteBehind,
+            AuditService auditService,
+            PlatformTransactionManager transactionManager,
+            MeterRegistry meterRegistry,
+            @Value("${lifelog.transaction.max-entries:1000}") int maxEntries) {
+        this.mongoTemplate = mongoTemplate;
+        this.serializer = serializer;
+        this.payloadCodec = payloadCodec;
+        this.documentMapper = documentMapper;
+        this.cacheWriteBehind = cacheWriteBehind;
+        this.auditService = auditService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.maxEntries = maxEntries;
+        this.observationCreatedCounter = Counter.builder("fhir.observation.created")
+                .description("Total number of observations created")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Executes {@code bundle} and returns the matching transaction-response or
+     * batch-response, one entry per request entry and in the same order.
+     */
+    public Bundle execute(Bundle bundle) {
+        if (bundle == null || !bundle.hasType()) {
+            throw new InvalidRequestException("Bundle.type must be transaction or batch");
+        }
+        if (bundle.getEntry().size() > maxEntries) {
+            throw new PayloadTooLargeException("Bundle has " + bundle.getEntry().size()
+                    + " entries, at most " + maxEntries + " are accepted");
+        }
+
+        if (bundle.getType() == BundleType.TRANSACTION) {
+            List<Entry> entries = transactionTemplate.execute(status -> write(bundle, true));
+            return response(BundleType.TRANSACTIONRESPONSE, entries);
+        }
+        if (bundle.getType() == BundleType.BATCH) {
+            return response(BundleType.BATCHRESPONSE, write(bundle, false));
+        }
+        throw new InvalidRequestException("Bundle.type must be transaction or batch, not "
+                + bundle.getType().toCode());
+    }
+
+    private List<Entry> write(Bundle bundle, boolean atomic) {
+        List<Entry> entries = new ArrayList<>(bundle.getEntry().size());
+        Map<String, String> assigned = new HashMap<>();
+        for (int i = 0; i < bundle.getEntry().size(); i++) {
+            Entry entry = parse(i, bundle.getEntry().get(i));
+            failFast(entry, atomic);
+            entries.add(entry);
+            String fullUrl = bundle.getEntry().get(i).getFullUrl();
+            if (entry.failure == null && entry.method == HTTPVerb.POST && isPlaceholder(fullUrl)) {
+                assigned.put(fullUrl, entry.type + "/" + entry.id);
+            }
+        }
+        if (!assigned.isEmpty()) {
+            rewriteReferences(entries, assigned);
+        }
+
+        Map<String, List<Entry>> byType = new LinkedHashMap<>();
+        for (Entry entry : entries) {
+            if (entry.failure == null) {
+                byType.computeIfAbsent(entry.type, t -> new ArrayList<>()).add(entry);
+            }
+        }
+
+        List<Entry> stored = new ArrayList<>(entries.size());
+        for (Map.Entry<String, List<Entry>> group : byType.entrySet()) {
+            prepare(group.getKey(), group.getValue(), atomic);
+            writeGroup(group.getKey(), group.getValue(), atomic);
+            group.getValue().stream().filter(e -> e.failure == null).forEach(stored::add);
+        }
+        writeHistory(stored);
+        afterWrite(stored);
+        return entries;
+    }
+
+    private Entry parse(int index, BundleEntryComponent component) {
+        Entry entry = new Entry(index);
+        Bundle.BundleEntryRequestComponent request = component.getRequest();
+        if (!request.hasMethod()) {
+            return entry.fail(400, "request.method is required");
+        }
+        entry.method = request.getMethod();
+
+        Resource resource = component.getResource();
+        switch (entry.method) {
+            case POST -> {
+                if (resource == null) {
+                    return entry.fail(400, "POST needs a resource");
+                }
+                entry.type = resource.fhirType();
+                // The server assigns ids on create, whatever the client sent
+                entry.id = UUID.randomUUID().toString();
+            }
+            case PUT, DELETE -> {
+                IdType target = new IdType(request.getUrl());
+                if (!target.hasResourceType() || !target.hasIdPart() || request.getUrl().contains("?")) {
+                    return entry.fail(400, "request.url must be [type]/[id], conditional requests are not supported");
+                }
+                entry.type = target.getResourceType();
+                entry.id = target.getIdPart();
+                if (entry.method == HTTPVerb.PUT
+                        && (resource == null || !resource.fhirType().equals(entry.type))) {
+                    return entry.fail(400, "PUT needs a " + entry.type + " resource");
+                }
+            }
+            default -> {
+                return entry.fail(400, entry.method.toCode() + " entries are not supported");
+            }
+        }
+        if (!documentMapper.supports(entry.type) || !ResourceDocuments.isStored(entry.type)) {
+            return entry.fail(400, "Resource type " + entry.type + " is not supported");
+        }
+
+        entry.resource = resource;
+        if (resource != null) {
+            resource.setId(entry.id);
+        }
+        if (request.hasIfMatch()) {
+            entry.ifMatch = parseVersion(request.getIfMatch());
+            if (entry.ifMatch == null) {
+                return entry.fail(400, "Malformed If-Match: " + request.getIfMatch());
+            }
+        } else if (resource != null && resource.getMeta().hasVersionId()) {
+            entry.ifMatch = parseVersion(resource.getMeta().getVersionId());
+        }
+        return entry;
+    }
+
+    private void rewriteReferences(List<Entry> entries, Map<String, String> assigned) {
+        for (Entry entry : entries) {
+            if (entry.resource == null) {
+                continue;
+            }
+            for (Reference reference : serializer.getContext().newTerser()
+                    .getAllPopulatedChildElementsOfType(entry.resource, Reference.class)) {
+                String target = assigned.get(reference.getReference());
+                if (target != null) {
+                    reference.setReference(target);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the stored versions of everything the group replaces (one query) and
+     * builds the documents to write.
+     */
+    private void prepare(String type, List<Entry> group, boolean atomic) {
+        String collection = mongoTemplate.getCollectionName(ResourceDocuments.forType(type));
+        boolean versioned = documentMapper.isVersioned(type);
+
+        List<String> replaced = group.stream().filter(e -> e.method == HTTPVerb.PUT).map(e -> e.id).toList();
+        Map<String, Document> current = new HashMap<>();
+        if (!replaced.isEmpty()) {
+            Query query = new Query(Criteria.where("_id").in(replaced));
+            query.fields().include("versionId");
+            for (Document document : mongoTemplate.find(query, Document.class, collection)) {
+                current.put(document.getString("_id"), document);
+            }
+        }
+
+        for (Entry entry : group) {
+            long version = 1L;
+            if (entry.method == HTTPVerb.PUT) {
+                Document stored = current.get(entry.id);
+                entry.created = stored == null;
+                Number storedVersion = stored != null ? stored.get("versionId", Number.class) : null;
+                if (versioned && entry.ifMatch != null && storedVersion != null
+                        && storedVersion.longValue() != entry.ifMatch) {
+                    entry.fail(412, "Version conflict: Client sent version " + entry.ifMatch
+                            + " but current version is " + storedVersion);
+                    failFast(entry, atomic);
+                    continue;
+                }
+                // Legacy documents without a version become version 2
+                version = stored == null ? 1L : storedVersion != null ? storedVersion.longValue() + 1 : 2L;
+                entry.expectedVersion = storedVersion != null ? storedVersion.longValue() : null;
+            } else if (entry.method == HTTPVerb.POST) {
+                entry.created = true;
+            }
+
+            if (entry.resource != null) {
+                entry.document = documentMapper.toDocument(type, entry.id, entry.resource, version);
+                entry.versionId = versioned ? version : null;
+            }
+        }
+    }
+
+    private void writeGroup(String type, List<Entry> group, boolean atomic) {
+        String collection = mongoTemplate.getCollectionName(ResourceDocuments.forType(type));
+        boolean versioned = documentMapper.isVersioned(type);
+
+        List<Entry> queued = new ArrayList<>(group.size());
+        BulkOperations ops = mongoTemplate.bulkOps(atomic ? BulkMode.ORDERED : BulkMode.UNORDERED, collection);
+        for (Entry entry : group) {
+            if (entry.failure != null) {
+                continue;
+            }
+            switch (entry.method) {
+                case POST -> ops.insert(entry.document);
+                case PUT -> {
+                    Criteria filter = Criteria.where("_id").is(entry.id);
+                    if (versioned) {
+                        // Another writer in between turns the upsert into a duplicate key
+                        filter = filter.and("versionId").is(entry.expectedVersion);
+                    }
+                    ops.replaceOne(new Query(filter), entry.document, FindAndReplaceOptions.options().upsert());
+                }
+                default -> ops.remove(new Query(Criteria.where("_id").is(entry.id)));
+            }
+            queued.add(entry);
+        }
+        if (queued.isEmpty()) {
+            return;
+        }
+
+        try {
+            ops.execute();
+        } catch (BulkOperationException e) {
+            for (BulkWriteError error : e.getErrors()) {
+                Entry entry = queued.get(error.getIndex());
+                if (error.getCode() != DUPLICATE_KEY) {
+                    entry.fail(500, error.getMessage());
+                } else if (entry.method == HTTPVerb.POST) {
+                    entry.fail(409, entry.type + "/" + entry.id + " already exists");
+                } else {
+                    entry.fail(412, "Version conflict: " + entry.type + "/" + entry.id + " changed during the write");
+                }
+                failFast(entry, atomic);
+            }
+        }
+    }
+
+    private void writeHistory(List<Entry> stored) {
+        List<MongoResourceHistory> rows = new ArrayList<>();
+        for (Entry entry : stored) {
+            if (entry.versionId == null || entry.document == null) {
+                continue;
+            }
+            MongoResourceHistory history = new MongoResourceHistory();
+            history.setResourceId(entry.id);
+            history.setResourceType(entry.type);
+            history.setFhirJson(payloadCodec.fromStored(entry.document.get("fhirJson")));
+            history.setVersionId(entry.versionId);
+            history.setLastUpdated(entry.document.getDate("lastUpdated"));
+            history.setExpireAt(MongoResourceHistory.expiry(history.getLastUpdated()));
+            rows.add(history);
+        }
+        if (!rows.isEmpty()) {
+            mongoTemplate.bulkOps(BulkMode.UNORDERED, MongoResourceHistory.class).insert(rows).execute();
+        }
+    }
+
+    private void afterWrite(List<Entry> stored) {
+        // Deferred to commit when running inside the transaction
+        for (Entry entry : stored) {
+            if (entry.method == HTTPVerb.DELETE) {
+                cacheWriteBehind.evict(entry.type, entry.id);
+            } else {
+                // The bulk write left the body in its stored form
+                String json = payloadCodec.fromStored(entry.document.get("fhirJson"));
+                cacheWriteBehind.put(entry.type, entry.id, json);
+                if (entry.method == HTTPVerb.POST && NOTIFIED_ON_CREATE.contains(entry.type)) {
+                    cacheWriteBehind.notifySubscribers(entry.type, "CREATE", json);
+                }
+                if (entry.method == HTTPVerb.POST && "Observation".equals(entry.type)) {
+                    observationCreatedCounter.increment();
+                }
+            }
+            if ("Patient".equals(entry.type)) {
+                String action = entry.method == HTTPVerb.DELETE ? "delete" : entry.created ? "create" : "update";
+                auditService.log(action, "Patient", entry.id, "Success", null, null);
+            }
+        }
+    }
+
+    private static Bundle response(BundleType type, List<Entry> entries) {
+        Bundle response = new Bundle();
+        response.setType(type);
+        for (Entry entry : entries) {
+            Bundle.BundleEntryResponseComponent out = response.addEntry().getResponse();
+            if (entry.failure != null) {
+                out.setStatus(status(entry.status));
+                OperationOutcome outcome = new OperationOutcome();
+                outcome.addIssue()
+                        .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                        .setCode(OperationOutcome.IssueType.PROCESSING)
+                        .setDiagnostics(entry.failure);
+                out.setOutcome(outcome);
+                continue;
+            }
+            if (entry.method == HTTPVerb.DELETE) {
+                out.setStatus(status(Constants.STATUS_HTTP_204_NO_CONTENT));
+                continue;
+            }
+            out.setStatus(status(entry.created ? Constants.STATUS_HTTP_201_CREATED : Constants.STATUS_HTTP_200_OK));
+            String location = entry.type + "/" + entry.id;
+            if (entry.versionId != null) {
+                location += "/_history/" + entry.versionId;
+                out.setEtag("W/\"" + entry.versionId + "\"");
+            }
+            out.setLocation(location);
+            Date lastUpdated = entry.document.getDate("lastUpdated");
+            if (lastUpdated != null) {
+                out.setLastModified(lastUpdated);
+            }
+        }
+        return response;
+    }
+
+    private static void failFast(Entry entry, boolean atomic) {
+        if (!atomic || entry.failure == null) {
+            return;
+        }
+        String message = "Entry " + entry.index + ": " + entry.failure;
+        BaseServerResponseException e = switch (entry.status) {
+            case 400 -> new InvalidRequestException(message);
+            case 409 -> new ResourceVersionConflictException(message);
+            case 412 -> new PreconditionFailedException(message);
+            default -> new InternalErrorException(message);
+        };
+        throw e;
+    }
+
+    private static boolean isPlaceholder(String fullUrl) {
+        return fullUrl != null && (fullUrl.startsWith("urn:uuid:") || fullUrl.startsWith("urn:oid:"));
+    }
+
+    static Long parseVersion(String value) {
+        String version = value.trim();
+        if (version.startsWith("W/")) {
+            version = version.substring(2);
+        }
+        version = version.replace("\"", "");
+        try {
+            return Long.parseLong(version);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String status(int code) {
+        return code + " " + Constants.HTTP_STATUS_NAMES.get(code);
+    }
+
+    private static final class Entry {
+        private final int index;
+        private HTTPVerb method;
+        private String type;
+        private String id;
+        private Resource resource;
+        private Long ifMatch;
+        private Long expectedVersion;
+        private Long versionId;
+        private boolean created;
+        private Document document;
+        private int status;
+        private String failure;
+
+        private Entry(int index) {
+            this.index = index;
+        }
+
+        private Entry fail(int status, String failure) {
+            this.status = status;
+            this.failure = failure;
+            return this;
+        }
+    }
+}
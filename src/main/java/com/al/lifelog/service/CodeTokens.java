@@ -0,0 +1,121 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.springframework.data.mongodb.core.query.Criteria;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Index keys behind FHIR token searches on codes (Observation, Condition,
+ * DiagnosticReport).
+ *
+ * Every coding of the concept is stored in the multikey {@code codes} array
+ * twice: as {@code system|code} ({@code |code} when it has no system) and as
+ * the bare {@code code}. Each token form is then a single index lookup:
+ * {@code system|code} and {@code |code} match their key, {@code code} the bare
+ * one and {@code system|} a prefix range. {@code :in} and {@code :not-in}
+ * expand a local ValueSet through {@link ValueSets}.
+ */
+public final class CodeTokens {
+
+    public static final String FIELD = "codes";
+
+    private CodeTokens() {
+    }
+
+    /** Key of one coding, {@code system|code}. */
+    public static String token(String system, String code) {
+        return (system != null ? system : "") + "|" + code;
+    }
+
+    public static List<String> tokens(CodeableConcept concept) {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (concept != null) {
+            for (Coding coding : concept.getCoding()) {
+                if (coding.hasCode()) {
+                    tokens.add(token(coding.getSystem(), coding.getCode()));
+                    tokens.add(coding.getCode());
+                }
+            }
+        }
+        return new ArrayList<>(tokens);
+    }
+
+    /**
+     * Criteria for a token parameter on {@code codes}, or null when there is none.
+     */
+    public static Criteria criteria(TokenParam code, ValueSets valueSets) {
+        return criteria(FIELD, code, valueSets);
+    }
+
+    /**
+     * Same as {@link #criteria(TokenParam, ValueSets)} on another token array
+     * stored the same way (e.g. Observation {@code categories}).
+     */
+    public static Criteria criteria(String field, TokenParam code, ValueSets valueSets) {
+        if (code == null || code.isEmpty()) {
+            return null;
+        }
+        if (code.getModifier() == null) {
+            return matching(field, code);
+        }
+        return switch (code.getModifier()) {
+            // No element matches, which also keeps resources without codes
+            case NOT -> new Criteria().norOperator(matching(field, code));
+            case IN -> in(field, valueSets.expand(url(code)));
+            case NOT_IN -> new Criteria().norOperator(in(field, valueSets.expand(url(code))));
+            default -> throw new InvalidRequestException(
+                    "Modifier " + code.getModifier().getValue() + " is not supported on code");
+        };
+    }
+
+    private static Criteria matching(String field, TokenParam code) {
+        if (code.getSystem() != null && !code.getSystem().isEmpty()
+                && (code.getValue() == null || code.getValue().isEmpty())) {
+            // system| : any code of that system
+            return Criteria.where(field).regex("^" + escape(code.getSystem() + "|"));
+        }
+        return Criteria.where(field).is(key(code));
+    }
+
+    private static String key(TokenParam code) {
+        return code.getSystem() == null ? code.getValue() : token(code.getSystem(), code.getValue());
+    }
+
+    private static Criteria in(String field, ValueSets.Expansion expansion) {
+        if (expansion.isEmpty()) {
+            return Criteria.where(field).in(List.of());
+        }
+        List<Criteria> any = new ArrayList<>();
+        if (!expansion.tokens().isEmpty()) {
+            any.add(Criteria.where(field).in(expansion.tokens()));
+        }
+        for (String system : expansion.systems()) {
+            any.add(Criteria.where(field).regex("^" + escape(system + "|")));
+        }
+        return any.size() == 1 ? any.get(0) : new Criteria().orOperator(any);
+    }
+
+    private static String url(TokenParam code) {
+        // A versioned canonical arrives split at its bar
+        return code.getSystem() != null ? code.getSystem() + "|" + code.getValue() : code.getValue();
+    }
+
+    /** Backslash before every regex metacharacter, so Mongo still sees a plain prefix. */
+    static String escape(String literal) {
+        StringBuilder escaped = new StringBuilder(literal.length() + 8);
+        for (char c : literal.toCharArray()) {
+            if ("\\^$.|?*+()[]{}".indexOf(c) >= 0) {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+}
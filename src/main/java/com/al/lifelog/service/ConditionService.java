@@ -1,9 +1,14 @@
 package com.al.lifelog.service;
 
+import ca.uhn.fhir.rest.param.TokenParam;
 import com.al.lifelog.model.MongoCondition;
+import com.al.lifelog.paging.SearchCursor;
+import com.al.lifelog.paging.SearchPage;
 import com.al.lifelog.repository.ConditionRepository;
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import com.al.lifelog.cache.CacheWriteBehind;
+import com.al.lifelog.cache.NearCache;
+import com.al.lifelog.cache.SingleFlight;
+import com.al.lifelog.serialization.FhirSerializer;
 import org.hl7.fhir.r4.model.Condition;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
@@ -15,11 +20,11 @@ import org.springframework.transaction.annotation.Transactional;
 
 import java.time.Duration;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import java.util.stream.Collectors;
 
 @Service
@@ -27,20 +32,35 @@ public class ConditionService {
 
     private final ConditionRepository repository;
     private final StringRedisTemplate redisTemplate;
-    private final FhirContext ctx;
+    private final FhirSerializer serializer;
+    private final NearCache nearCache;
+    private final SingleFlight singleFlight;
+    private final VersionedWriter versionedWriter;
+    private final CacheWriteBehind cacheWriteBehind;
     private final MongoTemplate mongoTemplate;
 
     private final HistoryService historyService;
+    private final ValueSets valueSets;
 
     @Autowired
     public ConditionService(ConditionRepository repository,
             StringRedisTemplate redisTemplate,
-            FhirContext ctx,
+            FhirSerializer serializer,
             MongoTemplate mongoTemplate,
-            HistoryService historyService) {
+            HistoryService historyService,
+            NearCache nearCache,
+            SingleFlight singleFlight,
+            VersionedWriter versionedWriter,
+            CacheWriteBehind cacheWriteBehind,
+            ValueSets valueSets) {
         this.repository = repository;
+        this.valueSets = valueSets;
         this.redisTemplate = redisTemplate;
-        this.ctx = ctx;
+        this.serializer = serializer;
+        this.nearCache = nearCache;
+        this.singleFlight = singleFlight;
+        this.versionedWriter = versionedWriter;
+        this.cacheWriteBehind = cacheWriteBehind;
         this.mongoTemplate = mongoTemplate;
         this.historyService = historyService;
     }
@@ -72,10 +92,10 @@ public class ConditionService {
         if (condition.hasCode() && !condition.getCode().getCoding().isEmpty()) {
             mongoCond.setCode(condition.getCode().getCodingFirstRep().getCode());
         }
+        mongoCond.setCodes(CodeTokens.tokens(condition.getCode()));
 
         // 3. Serialize
-        IParser parser = ctx.newJsonParser();
-        String json = parser.encodeResourceToString(condition);
+        String json = serializer.encode(condition);
         mongoCond.setFhirJson(json);
 
         // 4. Save
@@ -85,7 +105,7 @@ public class ConditionService {
         historyService.saveHistory(id, "Condition", json, version, mongoCond.getLastUpdated());
 
         // 6. Cache
-        redisTemplate.opsForValue().set("condition:" + id, json, Duration.ofMinutes(10));
+        cacheWriteBehind.put("Condition", id, json);
         return condition;
     }
 
@@ -95,42 +115,34 @@ public class ConditionService {
             throw new IllegalArgumentException("ID cannot be null or empty for update");
         }
 
-        // Check if exists
-        Optional<MongoCondition> existingOpt = repository.findById(id);
-        long newVersion = 1L;
-
-        if (existingOpt.isPresent()) {
-            MongoCondition existing = existingOpt.get();
-            // Optimistic Locking Check
-            if (condition.hasMeta() && condition.getMeta().hasVersionId()) {
-                String clientVersionStr = condition.getMeta().getVersionId();
-                try {
-                    long clientVersion = Long.parseLong(clientVersionStr);
-                    if (existing.getVersionId() != null && clientVersion != existing.getVersionId()) {
-                        throw new ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException(
-                                "Version conflict: Client sent version " + clientVersion +
-                                        " but current version is " + existing.getVersionId());
-                    }
-                } catch (NumberFormatException e) {
-                    // Ignore
-                }
-            }
-            if (existing.getVersionId() != null) {
-                newVersion = existing.getVersionId() + 1;
-            } else {
-                newVersion = 2L;
-            }
+        // Ensure ID matches
+        if (condition.getIdElement().isEmpty() || !condition.getIdElement().getIdPart().equals(id)) {
+            condition.setId(id);
         }
 
+        // One conditional replace on {_id, versionId}, 412 if another write got there first
+        MongoCondition mongoCond = versionedWriter.update(MongoCondition.class, id, condition,
+                version -> toDocument(id, condition, version));
+        long newVersion = mongoCond.getVersionId();
+        String json = mongoCond.getFhirJson();
+
+        // Save History
+        historyService.saveHistory(id, "Condition", json, newVersion, mongoCond.getLastUpdated());
+
+        // Cache
+        cacheWriteBehind.put("Condition", id, json);
+        return condition;
+    }
+
+    /**
+     * Stamps {@code condition} with {@code newVersion} and builds the document
+     * stored for it, search fields and JSON included.
+     */
+    public MongoCondition toDocument(String id, Condition condition, long newVersion) {
         // Update Metadata
         condition.getMeta().setVersionId(String.valueOf(newVersion));
         condition.getMeta().setLastUpdated(new java.util.Date());
 
-        // Ensure ID matches
-        if (condition.getIdElement().isEmpty() || !condition.getIdElement().getIdPart().equals(id)) {
-            condition.setId(id);
-        }
-
         // Prepare Mongo Document
         MongoCondition mongoCond = new MongoCondition();
         mongoCond.setId(id);
@@ -143,21 +155,12 @@ public class ConditionService {
         if (condition.hasCode() && !condition.getCode().getCoding().isEmpty()) {
             mongoCond.setCode(condition.getCode().getCodingFirstRep().getCode());
         }
+        mongoCond.setCodes(CodeTokens.tokens(condition.getCode()));
 
         // Serialize
-        IParser parser = ctx.newJsonParser();
-        String json = parser.encodeResourceToString(condition);
+        String json = serializer.encode(condition);
         mongoCond.setFhirJson(json);
-
-        // Save
-        repository.save(mongoCond);
-
-        // Save History
-        historyService.saveHistory(id, "Condition", json, newVersion, mongoCond.getLastUpdated());
-
-        // Cache
-        redisTemplate.opsForValue().set("condition:" + id, json, Duration.ofMinutes(10));
-        return condition;
+        return mongoCond;
     }
 
     @Transactional
@@ -167,74 +170,134 @@ public class ConditionService {
 
         if (repository.existsById(id)) {
             repository.deleteById(id);
-            redisTemplate.delete("condition:" + id);
+            cacheWriteBehind.evict("Condition", id);
         }
     }
 
     public Condition getCondition(String id) {
-        String cached = redisTemplate.opsForValue().get("condition:" + id);
+        Condition near = nearCache.get("Condition", id, Condition.class);
+        if (near != null) {
+            return near;
+        }
+
+        return singleFlight.load("Condition", id, () -> loadCondition(id));
+    }
+
+    private Condition loadCondition(String id) {
+        String cached = nearCache.isPending("Condition", id) ? null
+                : redisTemplate.opsForValue().get("condition:" + id);
         if (cached != null) {
-            return ctx.newJsonParser().parseResource(Condition.class, cached);
+            Condition fromRedis = serializer.parse(Condition.class, cached);
+            nearCache.put("Condition", id, fromRedis, cached.length());
+            return fromRedis;
         }
 
         Optional<MongoCondition> result = repository.findById(id);
         if (result.isPresent()) {
-            Condition c = ctx.newJsonParser().parseResource(Condition.class, result.get().getFhirJson());
+            Condition c = serializer.parse(Condition.class, result.get().getFhirJson());
             if (!c.hasId()) {
                 c.setId(id);
             }
             redisTemplate.opsForValue().set("condition:" + id, result.get().getFhirJson(), Duration.ofMinutes(10));
+            nearCache.put("Condition", id, c, result.get().getFhirJson().length());
             return c;
         }
         return null;
     }
 
-    public List<Condition> searchConditions(String subject, String code, int offset, int count) {
-        Query query = new Query();
-
-        if (subject != null && !subject.isEmpty()) {
-            String searchSubject = subject.startsWith("Patient/") ? subject : "Patient/" + subject;
-            query.addCriteria(Criteria.where("subjectId").is(searchSubject));
-        }
-
-        if (code != null && !code.isEmpty()) {
-            query.addCriteria(Criteria.where("code").is(code));
-        }
+    public List<Condition> searchConditions(String subject, TokenParam code, int offset, int count) {
+        Query query = buildSearchQuery(subject, code);
 
         if (query.getQueryObject().isEmpty()) {
             if (offset == 0 && count <= 0)
                 return Collections.emptyList();
         }
 
+        // Exact offset, same order as the keyset search
         int limit = (count > 0) ? count : 10;
         int skip = (offset >= 0) ? offset : 0;
 
-        Pageable pageable = PageRequest.of(skip / limit, limit);
-        query.with(pageable);
+        query.with(Sort.by(Sort.Direction.ASC, "_id"));
+        query.skip(skip).limit(limit);
 
         List<MongoCondition> results = mongoTemplate.find(query, MongoCondition.class);
 
         return results.stream()
-                .map(mc -> {
-                    Condition c = ctx.newJsonParser().parseResource(Condition.class, mc.getFhirJson());
-                    if (c.getId() == null || c.getId().isEmpty()) {
-                        c.setId(mc.getId());
-                    }
-                    return c;
-                })
+                .map(this::toCondition)
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Keyset variant of {@link #searchConditions(String, TokenParam, int, int)},
+     * ordered by _id and resuming right after {@code cursor}.
+     */
+    public SearchPage<Condition> searchConditions(String subject, TokenParam code, String cursor, int count) {
+        Query query = buildSearchQuery(subject, code);
+
+        int limit = (count > 0) ? count : 10;
+        SearchCursor.seek(query, cursor, limit);
+
+        List<MongoCondition> results = mongoTemplate.find(query, MongoCondition.class);
+
+        return SearchPage.of(results, limit, mc -> SearchCursor.after(mc.getId()), this::toCondition);
+    }
+
+    private Query buildSearchQuery(String subject, TokenParam code) {
+        Query query = new Query();
+
+        if (subject != null && !subject.isEmpty()) {
+            String searchSubject = subject.startsWith("Patient/") ? subject : "Patient/" + subject;
+            query.addCriteria(Criteria.where("subjectId").is(searchSubject));
+        }
+
+        Criteria codeCriteria = CodeTokens.criteria(code, valueSets);
+        if (codeCriteria != null) {
+            query.addCriteria(codeCriteria);
+        }
+
+        return query;
+    }
+
+    private Condition toCondition(MongoCondition mc) {
+        Condition c = serializer.parse(Condition.class, mc.getFhirJson());
+        if (c.getId() == null || c.getId().isEmpty()) {
+            c.setId(mc.getId());
+        }
+        return c;
+    }
+
     public List<Condition> getHistory(String id) {
         List<com.al.lifelog.model.MongoResourceHistory> history = historyService.getHistory(id, "Condition");
         return history.stream()
-                .map(mh -> {
-                    Condition c = ctx.newJsonParser().parseResource(Condition.class, mh.getFhirJson());
-                    c.setId(id);
-                    c.getMeta().setVersionId(String.valueOf(mh.getVersionId()));
-                    c.getMeta().setLastUpdated(mh.getLastUpdated());
-                    return c;
-                })
+                .map(mh -> fromHistory(id, mh))
                 .collect(Collectors.toList());
     }
+
+    /**
+     * Version {@code version} of {@code id}, or null if history has no such version.
+     */
+    public Condition getConditionVersion(String id, long version) {
+        com.al.lifelog.model.MongoResourceHistory mh = historyService.getVersion(id, "Condition", version);
+        if (mh != null) {
+            return fromHistory(id, mh);
+        }
+        // Documents older than their history rows only have the current version
+        Condition current = getCondition(id);
+        return current != null && String.valueOf(version).equals(current.getMeta().getVersionId()) ? current : null;
+    }
+
+    /**
+     * One page of {@code _history}, newest version first.
+     */
+    public SearchPage<Condition> getHistoryPage(String id, Date since, String cursor, int count) {
+        return historyService.getHistoryPage(id, "Condition", since, cursor, count, mh -> fromHistory(id, mh));
+    }
+
+    private Condition fromHistory(String id, com.al.lifelog.model.MongoResourceHistory mh) {
+        Condition c = serializer.parse(Condition.class, mh.getFhirJson());
+        c.setId(id);
+        c.getMeta().setVersionId(String.valueOf(mh.getVersionId()));
+        c.getMeta().setLastUpdated(mh.getLastUpdated());
+        return c;
+    }
 }
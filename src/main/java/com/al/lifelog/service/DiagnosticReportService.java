@@ -1,9 +1,14 @@
 package com.al.lifelog.service;
 
+import ca.uhn.fhir.rest.param.TokenParam;
 import com.al.lifelog.model.MongoDiagnosticReport;
+import com.al.lifelog.paging.SearchCursor;
+import com.al.lifelog.paging.SearchPage;
 import com.al.lifelog.repository.DiagnosticReportRepository;
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import com.al.lifelog.cache.CacheWriteBehind;
+import com.al.lifelog.cache.NearCache;
+import com.al.lifelog.cache.SingleFlight;
+import com.al.lifelog.serialization.FhirSerializer;
 import org.hl7.fhir.r4.model.DiagnosticReport;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
@@ -17,8 +22,7 @@ import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import java.util.stream.Collectors;
 
 @Service
@@ -26,17 +30,29 @@ public class DiagnosticReportService {
 
     private final DiagnosticReportRepository repository;
     private final StringRedisTemplate redisTemplate;
-    private final FhirContext ctx;
+    private final FhirSerializer serializer;
+    private final NearCache nearCache;
+    private final SingleFlight singleFlight;
+    private final CacheWriteBehind cacheWriteBehind;
     private final MongoTemplate mongoTemplate;
+    private final ValueSets valueSets;
 
     @Autowired
     public DiagnosticReportService(DiagnosticReportRepository repository,
             StringRedisTemplate redisTemplate,
-            FhirContext ctx,
-            MongoTemplate mongoTemplate) {
+            FhirSerializer serializer,
+            MongoTemplate mongoTemplate,
+            NearCache nearCache,
+            SingleFlight singleFlight,
+            CacheWriteBehind cacheWriteBehind,
+            ValueSets valueSets) {
         this.repository = repository;
+        this.valueSets = valueSets;
         this.redisTemplate = redisTemplate;
-        this.ctx = ctx;
+        this.serializer = serializer;
+        this.nearCache = nearCache;
+        this.singleFlight = singleFlight;
+        this.cacheWriteBehind = cacheWriteBehind;
         this.mongoTemplate = mongoTemplate;
     }
 
@@ -51,6 +67,23 @@ public class DiagnosticReportService {
         }
 
         // 2. Prepare Mongo Document
+        MongoDiagnosticReport mongoReport = toDocument(id, report);
+        String json = mongoReport.getFhirJson();
+
+        // 3. Save
+        repository.save(mongoReport);
+
+        // 4. Cache
+        cacheWriteBehind.put("DiagnosticReport", id, json);
+
+        return report;
+    }
+
+    /**
+     * Builds the document stored for {@code report}, search fields and JSON included.
+     */
+    public MongoDiagnosticReport toDocument(String id, DiagnosticReport report) {
+        // Prepare Mongo Document
         MongoDiagnosticReport mongoReport = new MongoDiagnosticReport();
         mongoReport.setId(id);
 
@@ -65,50 +98,48 @@ public class DiagnosticReportService {
         if (report.hasCode() && !report.getCode().getCoding().isEmpty()) {
             mongoReport.setCode(report.getCode().getCodingFirstRep().getCode());
         }
+        mongoReport.setCodes(CodeTokens.tokens(report.getCode()));
 
-        // 3. Serialize
-        IParser parser = ctx.newJsonParser();
-        String json = parser.encodeResourceToString(report);
+        // Serialize
+        String json = serializer.encode(report);
         mongoReport.setFhirJson(json);
+        return mongoReport;
+    }
 
-        // 4. Save
-        repository.save(mongoReport);
-
-        // 5. Cache
-        redisTemplate.opsForValue().set("diagnosticreport:" + id, json, Duration.ofMinutes(10));
+    public DiagnosticReport getDiagnosticReport(String id) {
+        DiagnosticReport near = nearCache.get("DiagnosticReport", id, DiagnosticReport.class);
+        if (near != null) {
+            return near;
+        }
 
-        return report;
+        return singleFlight.load("DiagnosticReport", id, () -> loadDiagnosticReport(id));
     }
 
-    public DiagnosticReport getDiagnosticReport(String id) {
-        String cached = redisTemplate.opsForValue().get("diagnosticreport:" + id);
+    private DiagnosticReport loadDiagnosticReport(String id) {
+        String cached = nearCache.isPending("DiagnosticReport", id) ? null
+                : redisTemplate.opsForValue().get("diagnosticreport:" + id);
         if (cached != null) {
-            return ctx.newJsonParser().parseResource(DiagnosticReport.class, cached);
+            DiagnosticReport fromRedis = serializer.parse(DiagnosticReport.class, cached);
+            nearCache.put("DiagnosticReport", id, fromRedis, cached.length());
+            return fromRedis;
         }
 
         Optional<MongoDiagnosticReport> result = repository.findById(id);
         if (result.isPresent()) {
-            DiagnosticReport r = ctx.newJsonParser().parseResource(DiagnosticReport.class, result.get().getFhirJson());
+            DiagnosticReport r = serializer.parse(DiagnosticReport.class, result.get().getFhirJson());
             if (!r.hasId()) {
                 r.setId(id);
             }
             redisTemplate.opsForValue().set("diagnosticreport:" + id, result.get().getFhirJson(),
                     Duration.ofMinutes(10));
+            nearCache.put("DiagnosticReport", id, r, result.get().getFhirJson().length());
             return r;
         }
         return null;
     }
 
-    public List<DiagnosticReport> searchDiagnosticReports(String subjectId, String code, int offset, int count) {
-        Query query = new Query();
-
-        if (subjectId != null && !subjectId.isEmpty()) {
-            query.addCriteria(Criteria.where("subjectId").is(subjectId));
-        }
-
-        if (code != null && !code.isEmpty()) {
-            query.addCriteria(Criteria.where("code").is(code));
-        }
+    public List<DiagnosticReport> searchDiagnosticReports(String subjectId, TokenParam code, int offset, int count) {
+        Query query = buildSearchQuery(subjectId, code);
 
         if (query.getQueryObject().isEmpty()) {
             if (offset == 0 && count <= 0) {
@@ -118,22 +149,55 @@ public class DiagnosticReportService {
             }
         }
 
+        // Exact offset, same order as the keyset search
         int limit = (count > 0) ? count : 10;
         int skip = (offset >= 0) ? offset : 0;
 
-        Pageable pageable = PageRequest.of(skip / limit, limit);
-        query.with(pageable);
+        query.with(Sort.by(Sort.Direction.ASC, "_id"));
+        query.skip(skip).limit(limit);
 
         List<MongoDiagnosticReport> results = mongoTemplate.find(query, MongoDiagnosticReport.class);
 
         return results.stream()
-                .map(rep -> {
-                    DiagnosticReport r = ctx.newJsonParser().parseResource(DiagnosticReport.class, rep.getFhirJson());
-                    if (r.getId() == null || r.getId().isEmpty()) {
-                        r.setId(rep.getId());
-                    }
-                    return r;
-                })
+                .map(this::toDiagnosticReport)
                 .collect(Collectors.toList());
     }
+
+    /**
+     * Keyset variant of {@link #searchDiagnosticReports(String, TokenParam, int, int)},
+     * ordered by _id and resuming right after {@code cursor}.
+     */
+    public SearchPage<DiagnosticReport> searchDiagnosticReports(String subjectId, TokenParam code, String cursor, int count) {
+        Query query = buildSearchQuery(subjectId, code);
+
+        int limit = (count > 0) ? count : 10;
+        SearchCursor.seek(query, cursor, limit);
+
+        List<MongoDiagnosticReport> results = mongoTemplate.find(query, MongoDiagnosticReport.class);
+
+        return SearchPage.of(results, limit, rep -> SearchCursor.after(rep.getId()), this::toDiagnosticReport);
+    }
+
+    private Query buildSearchQuery(String subjectId, TokenParam code) {
+        Query query = new Query();
+
+        if (subjectId != null && !subjectId.isEmpty()) {
+            query.addCriteria(Criteria.where("subjectId").is(subjectId));
+        }
+
+        Criteria codeCriteria = CodeTokens.criteria(code, valueSets);
+        if (codeCriteria != null) {
+            query.addCriteria(codeCriteria);
+        }
+
+        return query;
+    }
+
+    private DiagnosticReport toDiagnosticReport(MongoDiagnosticReport rep) {
+        DiagnosticReport r = serializer.parse(DiagnosticReport.class, rep.getFhirJson());
+        if (r.getId() == null || r.getId().isEmpty()) {
+            r.setId(rep.getId());
+        }
+        return r;
+    }
 }
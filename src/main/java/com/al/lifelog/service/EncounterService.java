@@ -1,9 +1,13 @@
 package com.al.lifelog.service;
 
 import com.al.lifelog.model.MongoEncounter;
+import com.al.lifelog.paging.SearchCursor;
+import com.al.lifelog.paging.SearchPage;
 import com.al.lifelog.repository.EncounterRepository;
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import com.al.lifelog.cache.CacheWriteBehind;
+import com.al.lifelog.cache.NearCache;
+import com.al.lifelog.cache.SingleFlight;
+import com.al.lifelog.serialization.FhirSerializer;
 import org.hl7.fhir.r4.model.Encounter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
@@ -15,11 +19,11 @@ import org.springframework.transaction.annotation.Transactional;
 
 import java.time.Duration;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import java.util.stream.Collectors;
 
 @Service
@@ -27,19 +31,31 @@ public class EncounterService {
 
     private final EncounterRepository repository;
     private final StringRedisTemplate redisTemplate;
-    private final FhirContext ctx;
+    private final FhirSerializer serializer;
+    private final NearCache nearCache;
+    private final SingleFlight singleFlight;
+    private final VersionedWriter versionedWriter;
+    private final CacheWriteBehind cacheWriteBehind;
     private final MongoTemplate mongoTemplate;
     private final HistoryService historyService;
 
     @Autowired
     public EncounterService(EncounterRepository repository,
             StringRedisTemplate redisTemplate,
-            FhirContext ctx,
+            FhirSerializer serializer,
             MongoTemplate mongoTemplate,
-            HistoryService historyService) {
+            HistoryService historyService,
+            NearCache nearCache,
+            SingleFlight singleFlight,
+            VersionedWriter versionedWriter,
+            CacheWriteBehind cacheWriteBehind) {
         this.repository = repository;
         this.redisTemplate = redisTemplate;
-        this.ctx = ctx;
+        this.serializer = serializer;
+        this.nearCache = nearCache;
+        this.singleFlight = singleFlight;
+        this.versionedWriter = versionedWriter;
+        this.cacheWriteBehind = cacheWriteBehind;
         this.mongoTemplate = mongoTemplate;
         this.historyService = historyService;
     }
@@ -74,8 +90,7 @@ public class EncounterService {
         }
 
         // 3. Serialize
-        IParser parser = ctx.newJsonParser();
-        String json = parser.encodeResourceToString(encounter);
+        String json = serializer.encode(encounter);
         mongoEnc.setFhirJson(json);
 
         // 4. Save
@@ -85,7 +100,7 @@ public class EncounterService {
         historyService.saveHistory(id, "Encounter", json, version, mongoEnc.getLastUpdated());
 
         // 6. Cache
-        redisTemplate.opsForValue().set("encounter:" + id, json, Duration.ofMinutes(10));
+        cacheWriteBehind.put("Encounter", id, json);
         return encounter;
     }
 
@@ -95,42 +110,34 @@ public class EncounterService {
             throw new IllegalArgumentException("ID cannot be null or empty for update");
         }
 
-        // Check if exists
-        Optional<MongoEncounter> existingOpt = repository.findById(id);
-        long newVersion = 1L;
-
-        if (existingOpt.isPresent()) {
-            MongoEncounter existing = existingOpt.get();
-            // Optimistic Locking Check
-            if (encounter.hasMeta() && encounter.getMeta().hasVersionId()) {
-                String clientVersionStr = encounter.getMeta().getVersionId();
-                try {
-                    long clientVersion = Long.parseLong(clientVersionStr);
-                    if (existing.getVersionId() != null && clientVersion != existing.getVersionId()) {
-                        throw new ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException(
-                                "Version conflict: Client sent version " + clientVersion +
-                                        " but current version is " + existing.getVersionId());
-                    }
-                } catch (NumberFormatException e) {
-                    // Ignore
-                }
-            }
-            if (existing.getVersionId() != null) {
-                newVersion = existing.getVersionId() + 1;
-            } else {
-                newVersion = 2L;
-            }
+        // Ensure ID matches
+        if (encounter.getIdElement().isEmpty() || !encounter.getIdElement().getIdPart().equals(id)) {
+            encounter.setId(id);
         }
 
+        // One conditional replace on {_id, versionId}, 412 if another write got there first
+        MongoEncounter mongoEnc = versionedWriter.update(MongoEncounter.class, id, encounter,
+                version -> toDocument(id, encounter, version));
+        long newVersion = mongoEnc.getVersionId();
+        String json = mongoEnc.getFhirJson();
+
+        // Save History
+        historyService.saveHistory(id, "Encounter", json, newVersion, mongoEnc.getLastUpdated());
+
+        // Cache
+        cacheWriteBehind.put("Encounter", id, json);
+        return encounter;
+    }
+
+    /**
+     * Stamps {@code encounter} with {@code newVersion} and builds the document
+     * stored for it, search fields and JSON included.
+     */
+    public MongoEncounter toDocument(String id, Encounter encounter, long newVersion) {
         // Update Metadata
         encounter.getMeta().setVersionId(String.valueOf(newVersion));
         encounter.getMeta().setLastUpdated(new java.util.Date());
 
-        // Ensure ID matches
-        if (encounter.getIdElement().isEmpty() || !encounter.getIdElement().getIdPart().equals(id)) {
-            encounter.setId(id);
-        }
-
         // Prepare Mongo Document
         MongoEncounter mongoEnc = new MongoEncounter();
         mongoEnc.setId(id);
@@ -145,19 +152,9 @@ public class EncounterService {
         }
 
         // Serialize
-        IParser parser = ctx.newJsonParser();
-        String json = parser.encodeResourceToString(encounter);
+        String json = serializer.encode(encounter);
         mongoEnc.setFhirJson(json);
-
-        // Save
-        repository.save(mongoEnc);
-
-        // Save History
-        historyService.saveHistory(id, "Encounter", json, newVersion, mongoEnc.getLastUpdated());
-
-        // Cache
-        redisTemplate.opsForValue().set("encounter:" + id, json, Duration.ofMinutes(10));
-        return encounter;
+        return mongoEnc;
     }
 
     @Transactional
@@ -167,23 +164,36 @@ public class EncounterService {
 
         if (repository.existsById(id)) {
             repository.deleteById(id);
-            redisTemplate.delete("encounter:" + id);
+            cacheWriteBehind.evict("Encounter", id);
         }
     }
 
     public Encounter getEncounter(String id) {
-        String cached = redisTemplate.opsForValue().get("encounter:" + id);
+        Encounter near = nearCache.get("Encounter", id, Encounter.class);
+        if (near != null) {
+            return near;
+        }
+
+        return singleFlight.load("Encounter", id, () -> loadEncounter(id));
+    }
+
+    private Encounter loadEncounter(String id) {
+        String cached = nearCache.isPending("Encounter", id) ? null
+                : redisTemplate.opsForValue().get("encounter:" + id);
         if (cached != null) {
-            return ctx.newJsonParser().parseResource(Encounter.class, cached);
+            Encounter fromRedis = serializer.parse(Encounter.class, cached);
+            nearCache.put("Encounter", id, fromRedis, cached.length());
+            return fromRedis;
         }
 
         Optional<MongoEncounter> result = repository.findById(id);
         if (result.isPresent()) {
-            Encounter e = ctx.newJsonParser().parseResource(Encounter.class, result.get().getFhirJson());
+            Encounter e = serializer.parse(Encounter.class, result.get().getFhirJson());
             if (!e.hasId()) {
                 e.setId(id);
             }
             redisTemplate.opsForValue().set("encounter:" + id, result.get().getFhirJson(), Duration.ofMinutes(10));
+            nearCache.put("Encounter", id, e, result.get().getFhirJson().length());
             return e;
         }
         return null;
@@ -191,54 +201,112 @@ public class EncounterService {
 
     public List<Encounter> searchEncounters(String subject, java.util.Date from, java.util.Date to, int offset,
             int count) {
-        Query query = new Query();
-
-        if (subject != null && !subject.isEmpty()) {
-            String searchSubject = subject.startsWith("Patient/") ? subject : "Patient/" + subject;
-            query.addCriteria(Criteria.where("subjectId").is(searchSubject));
-        }
-
-        if (from != null) {
-            query.addCriteria(Criteria.where("periodStart").gte(from));
-        }
-        if (to != null) {
-            query.addCriteria(Criteria.where("periodStart").lte(to));
-        }
+        Query query = buildSearchQuery(subject, from, to);
 
         if (query.getQueryObject().isEmpty()) {
             if (offset == 0 && count <= 0)
                 return Collections.emptyList();
         }
 
+        // Exact offset, same order as the keyset search
         int limit = (count > 0) ? count : 10;
         int skip = (offset >= 0) ? offset : 0;
 
-        Pageable pageable = PageRequest.of(skip / limit, limit);
-        query.with(pageable);
+        query.with(Sort.by(Sort.Direction.DESC, "periodStart").and(Sort.by(Sort.Direction.ASC, "_id")));
+        query.skip(skip).limit(limit);
 
         List<MongoEncounter> results = mongoTemplate.find(query, MongoEncounter.class);
 
         return results.stream()
-                .map(me -> {
-                    Encounter e = ctx.newJsonParser().parseResource(Encounter.class, me.getFhirJson());
-                    if (e.getId() == null || e.getId().isEmpty()) {
-                        e.setId(me.getId());
-                    }
-                    return e;
-                })
+                .map(this::toEncounter)
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Keyset variant of {@link #searchEncounters(String, java.util.Date, java.util.Date, int, int)},
+     * ordered by (periodStart desc, _id asc) and resuming right after {@code cursor}.
+     */
+    public SearchPage<Encounter> searchEncounters(String subject, java.util.Date from, java.util.Date to,
+            String cursor, int count) {
+        Query query = buildSearchQuery(subject, from, to);
+
+        if (query.getQueryObject().isEmpty() && cursor == null && count <= 0) {
+            return SearchPage.empty();
+        }
+
+        int limit = (count > 0) ? count : 10;
+        SearchCursor.seek(query, "periodStart", cursor, limit);
+
+        List<MongoEncounter> results = mongoTemplate.find(query, MongoEncounter.class);
+
+        return SearchPage.of(results, limit,
+                me -> SearchCursor.after(me.getPeriodStart(), me.getId()),
+                this::toEncounter);
+    }
+
+    private Query buildSearchQuery(String subject, java.util.Date from, java.util.Date to) {
+        Query query = new Query();
+
+        if (subject != null && !subject.isEmpty()) {
+            String searchSubject = subject.startsWith("Patient/") ? subject : "Patient/" + subject;
+            query.addCriteria(Criteria.where("subjectId").is(searchSubject));
+        }
+
+        if (from != null || to != null) {
+            // Both bounds go on one criteria, Query rejects the same key twice
+            Criteria period = Criteria.where("periodStart");
+            if (from != null) {
+                period.gte(from);
+            }
+            if (to != null) {
+                period.lte(to);
+            }
+            query.addCriteria(period);
+        }
+
+        return query;
+    }
+
+    private Encounter toEncounter(MongoEncounter me) {
+        Encounter e = serializer.parse(Encounter.class, me.getFhirJson());
+        if (e.getId() == null || e.getId().isEmpty()) {
+            e.setId(me.getId());
+        }
+        return e;
+    }
+
     public List<Encounter> getHistory(String id) {
         List<com.al.lifelog.model.MongoResourceHistory> history = historyService.getHistory(id, "Encounter");
         return history.stream()
-                .map(mh -> {
-                    Encounter e = ctx.newJsonParser().parseResource(Encounter.class, mh.getFhirJson());
-                    e.setId(id);
-                    e.getMeta().setVersionId(String.valueOf(mh.getVersionId()));
-                    e.getMeta().setLastUpdated(mh.getLastUpdated());
-                    return e;
-                })
+                .map(mh -> fromHistory(id, mh))
                 .collect(Collectors.toList());
     }
+
+    /**
+     * Version {@code version} of {@code id}, or null if history has no such version.
+     */
+    public Encounter getEncounterVersion(String id, long version) {
+        com.al.lifelog.model.MongoResourceHistory mh = historyService.getVersion(id, "Encounter", version);
+        if (mh != null) {
+            return fromHistory(id, mh);
+        }
+        // Documents older than their history rows only have the current version
+        Encounter current = getEncounter(id);
+        return current != null && String.valueOf(version).equals(current.getMeta().getVersionId()) ? current : null;
+    }
+
+    /**
+     * One page of {@code _history}, newest version first.
+     */
+    public SearchPage<Encounter> getHistoryPage(String id, Date since, String cursor, int count) {
+        return historyService.getHistoryPage(id, "Encounter", since, cursor, count, mh -> fromHistory(id, mh));
+    }
+
+    private Encounter fromHistory(String id, com.al.lifelog.model.MongoResourceHistory mh) {
+        Encounter e = serializer.parse(Encounter.class, mh.getFhirJson());
+        e.setId(id);
+        e.getMeta().setVersionId(String.valueOf(mh.getVersionId()));
+        e.getMeta().setLastUpdated(mh.getLastUpdated());
+        return e;
+    }
 }
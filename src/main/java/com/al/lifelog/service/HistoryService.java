@@ -1,33 +1,282 @@
 package com.al.lifelog.service;
 
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import com.al.lifelog.model.MongoResourceHistory;
+import com.al.lifelog.paging.SearchCursor;
+import com.al.lifelog.paging.SearchPage;
 import com.al.lifelog.repository.HistoryRepository;
+import com.al.lifelog.serialization.JsonPatch;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
 import org.springframework.stereotype.Service;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
 
+/**
+ * Version history as periodic full snapshots plus JSON Patch deltas.
+ *
+ * A version is stored as a delta against the previous one when that version can
+ * be rebuilt from the last {@code lifelog.history.snapshot-interval} rows and the
+ * patch is less than half the size of the resource; otherwise it is a snapshot.
+ * So every version has a snapshot at most {@code interval - 1} versions back and
+ * rebuilding one never reads more than {@code interval} rows. Rows written in
+ * bulk (ingest, import, bundles) are always snapshots.
+ *
+ * Rows are purged {@link MongoResourceHistory#RETENTION} after their last update
+ * through a TTL on {@code expireAt}. Writing a delta raises the {@code expireAt}
+ * of the snapshot and deltas it is rebuilt from to its own, so no row outlives
+ * its chain. Rows whose snapshot is missing anyway can no longer be rebuilt and
+ * are left out of the results.
+ *
+ * Rebuilt versions never change, so vread keeps them in a local cache bounded by
+ * {@code lifelog.history.version-cache-max-weight} characters with no
+ * invalidation at all.
+ */
 @Service
 public class HistoryService {
 
+    private static final Logger log = LoggerFactory.getLogger(HistoryService.class);
+
     private final HistoryRepository historyRepository;
+    private final MongoTemplate mongoTemplate;
+    private final int snapshotInterval;
+    private final Counter snapshotBytes;
+    private final Counter deltaBytes;
+    private final Cache<String, MongoResourceHistory> versions;
+    private final ExecutorService runner;
 
     @Autowired
-    public HistoryService(HistoryRepository historyRepository) {
+    public HistoryService(HistoryRepository historyRepository, MongoTemplate mongoTemplate,
+            MeterRegistry meterRegistry,
+            @Value("${lifelog.history.snapshot-interval:10}") int snapshotInterval,
+            @Value("${lifelog.history.version-cache-max-weight:20000000}") long versionCacheMaxWeight) {
         this.historyRepository = historyRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.snapshotInterval = Math.max(snapshotInterval, 1);
+        this.versions = Caffeine.newBuilder()
+                .maximumWeight(versionCacheMaxWeight)
+                .weigher((String key, MongoResourceHistory row) -> row.getFhirJson().length())
+                .build();
+        this.snapshotBytes = bytesCounter(meterRegistry, "snapshot");
+        this.deltaBytes = bytesCounter(meterRegistry, "delta");
+        this.runner = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "LifeLogHistoryExpiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    public void start() {
+        runner.execute(this::migrateExpiry);
+    }
+
+    @PreDestroy
+    public void stop() {
+        runner.shutdownNow();
+    }
+
+    /**
+     * Moves rows written while the TTL was on {@code lastUpdated} over to
+     * {@code expireAt}: drops that index, which would otherwise keep purging
+     * snapshots ahead of their deltas, and fills in {@code expireAt}.
+     */
+    void migrateExpiry() {
+        try {
+            IndexOperations indexes = mongoTemplate.indexOps(MongoResourceHistory.class);
+            for (IndexInfo index : indexes.getIndexInfo()) {
+                if (index.isIndexForFields(List.of("lastUpdated")) && index.getExpireAfter().isPresent()) {
+                    indexes.dropIndex(index.getName());
+                }
+            }
+            long filled = historyRepository.backfillExpiry(MongoResourceHistory.RETENTION.toMillis());
+            if (filled > 0) {
+                log.info("Set expireAt on {} history rows", filled);
+            }
+        } catch (RuntimeException e) {
+            log.error("History expiry migration failed", e);
+        }
+    }
+
+    private static Counter bytesCounter(MeterRegistry meterRegistry, String kind) {
+        return Counter.builder("fhir.history.bytes")
+                .description("Characters of resource JSON or patch written to history")
+                .tag("kind", kind)
+                .register(meterRegistry);
     }
 
     public void saveHistory(String resourceId, String type, String json, Long version, Date lastUpdated) {
         MongoResourceHistory history = new MongoResourceHistory();
         history.setResourceId(resourceId);
         history.setResourceType(type);
-        history.setFhirJson(json);
         history.setVersionId(version);
         history.setLastUpdated(lastUpdated);
+        history.setExpireAt(MongoResourceHistory.expiry(lastUpdated));
+
+        Delta delta = delta(resourceId, type, json, version);
+        if (delta != null) {
+            // Before the delta exists, so a failure here leaves nothing unrebuildable
+            historyRepository.extendExpiry(type, resourceId, delta.baseVersion(), version, history.getExpireAt());
+            history.setPatch(delta.patch());
+            deltaBytes.increment(delta.patch().length());
+        } else {
+            history.setFhirJson(json);
+            snapshotBytes.increment(json.length());
+        }
         historyRepository.save(history);
     }
 
+    /**
+     * Every version still rebuildable, newest first, with {@code fhirJson} filled in.
+     */
     public List<MongoResourceHistory> getHistory(String resourceId, String type) {
-        return historyRepository.findByResourceIdAndResourceTypeOrderByVersionIdDesc(resourceId, type);
+        List<MongoResourceHistory> rows = new ArrayList<>(
+                historyRepository.findByResourceIdAndResourceTypeOrderByVersionIdDesc(resourceId, type));
+        Collections.reverse(rows);
+        List<MongoResourceHistory> rebuilt = rebuild(rows);
+        Collections.reverse(rebuilt);
+        return rebuilt;
+    }
+
+    /**
+     * One version with {@code fhirJson} filled in, or null if it does not exist or
+     * can no longer be rebuilt.
+     */
+    public MongoResourceHistory getVersion(String resourceId, String type, long version) {
+        String key = type + "/" + resourceId + "/" + version;
+        MongoResourceHistory cached = versions.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+        for (MongoResourceHistory row : rebuild(window(resourceId, type, version - snapshotInterval, version + 1))) {
+            if (row.getVersionId() == version) {
+                versions.put(key, row);
+                return row;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * One page of versions, newest first, starting after {@code cursor} and
+     * limited to those updated at or after {@code since}. Only the page's rows
+     * and the chain below its oldest delta are read.
+     */
+    public <T> SearchPage<T> getHistoryPage(String resourceId, String type, Date since, String cursor, int count,
+            Function<MongoResourceHistory, T> mapper) {
+        int limit = count > 0 ? count : 10;
+        long before = cursor != null ? versionAfter(cursor) : Long.MAX_VALUE;
+        List<MongoResourceHistory> page = new ArrayList<>(historyRepository
+                .findByResourceTypeAndResourceIdAndVersionIdLessThanAndLastUpdatedGreaterThanEqualOrderByVersionIdDesc(
+                        type, resourceId, before, since != null ? since : new Date(0), Limit.of(limit + 1)));
+        if (page.isEmpty()) {
+            return SearchPage.empty();
+        }
+
+        Collections.reverse(page);
+        long oldest = page.get(0).getVersionId();
+        List<MongoResourceHistory> chain = new ArrayList<>();
+        if (!page.get(0).isSnapshot()) {
+            chain.addAll(window(resourceId, type, oldest - snapshotInterval, oldest));
+        }
+        chain.addAll(page);
+        List<MongoResourceHistory> rebuilt = new ArrayList<>(rebuild(chain));
+        // Keep the page rows only; the extra one tells whether a next page exists
+        rebuilt.removeIf(row -> row.getVersionId() < oldest);
+        Collections.reverse(rebuilt);
+        return SearchPage.of(rebuilt, limit, row -> SearchCursor.after(String.valueOf(row.getVersionId())), mapper);
+    }
+
+    private static long versionAfter(String cursor) {
+        try {
+            return Long.parseLong(SearchCursor.decode(cursor).getId());
+        } catch (NumberFormatException e) {
+            throw new InvalidRequestException("Invalid or expired paging cursor: " + cursor);
+        }
+    }
+
+    /**
+     * A JSON Patch from the previous version, and the snapshot version its chain
+     * starts from.
+     */
+    private record Delta(String patch, long baseVersion) {
+    }
+
+    private Delta delta(String resourceId, String type, String json, Long version) {
+        if (version == null || version <= 1 || snapshotInterval == 1) {
+            return null;
+        }
+        // Versions [version - interval + 1, version - 1]: a delta is only allowed while
+        // one of them is a snapshot
+        List<MongoResourceHistory> previous = rebuild(window(resourceId, type, version - snapshotInterval, version));
+        Long base = null;
+        for (MongoResourceHistory row : previous) {
+            if (row.isSnapshot()) {
+                base = row.getVersionId();
+            }
+        }
+        if (base == null) {
+            return null;
+        }
+        MongoResourceHistory last = previous.get(previous.size() - 1);
+        if (last.getVersionId() != version - 1) {
+            return null;
+        }
+        String patch = JsonPatch.diff(last.getFhirJson(), json);
+        // A big change is cheaper to store, and to read back, in full
+        return patch.length() * 2 < json.length() ? new Delta(patch, base) : null;
+    }
+
+    private List<MongoResourceHistory> window(String resourceId, String type, long after, long before) {
+        return historyRepository.findByResourceIdAndResourceTypeAndVersionIdBetweenOrderByVersionIdAsc(
+                resourceId, type, after, before);
+    }
+
+    /**
+     * Rolls {@code ascending} forward from each snapshot, filling in the JSON of the
+     * deltas. Deltas without an unbroken chain back to a snapshot are dropped.
+     */
+    static List<MongoResourceHistory> rebuild(List<MongoResourceHistory> ascending) {
+        List<MongoResourceHistory> rebuilt = new ArrayList<>(ascending.size());
+        String current = null;
+        Long currentVersion = null;
+        for (MongoResourceHistory row : ascending) {
+            if (row.isSnapshot()) {
+                current = row.getFhirJson();
+            } else if (current != null && row.getPatch() != null && currentVersion != null
+                    && row.getVersionId() != null && row.getVersionId() == currentVersion + 1) {
+                try {
+                    current = JsonPatch.apply(current, row.getPatch());
+                } catch (RuntimeException e) {
+                    // Corrupt patch: nothing after it can be rebuilt until the next snapshot
+                    current = null;
+                }
+                row.setFhirJson(current);
+            } else {
+                current = null;
+            }
+            currentVersion = row.getVersionId();
+            if (current != null) {
+                rebuilt.add(row);
+            }
+        }
+        return rebuilt;
     }
 }
@@ -1,9 +1,13 @@
 package com.al.lifelog.service;
 
 import com.al.lifelog.model.MongoImmunization;
+import com.al.lifelog.paging.SearchCursor;
+import com.al.lifelog.paging.SearchPage;
 import com.al.lifelog.repository.ImmunizationRepository;
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import com.al.lifelog.cache.CacheWriteBehind;
+import com.al.lifelog.cache.NearCache;
+import com.al.lifelog.cache.SingleFlight;
+import com.al.lifelog.serialization.FhirSerializer;
 import org.hl7.fhir.r4.model.Immunization;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
@@ -17,8 +21,7 @@ import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import java.util.stream.Collectors;
 
 @Service
@@ -26,17 +29,26 @@ public class ImmunizationService {
 
     private final ImmunizationRepository repository;
     private final StringRedisTemplate redisTemplate;
-    private final FhirContext ctx;
+    private final FhirSerializer serializer;
+    private final NearCache nearCache;
+    private final SingleFlight singleFlight;
+    private final CacheWriteBehind cacheWriteBehind;
     private final MongoTemplate mongoTemplate;
 
     @Autowired
     public ImmunizationService(ImmunizationRepository repository,
             StringRedisTemplate redisTemplate,
-            FhirContext ctx,
-            MongoTemplate mongoTemplate) {
+            FhirSerializer serializer,
+            MongoTemplate mongoTemplate,
+            NearCache nearCache,
+            SingleFlight singleFlight,
+            CacheWriteBehind cacheWriteBehind) {
         this.repository = repository;
         this.redisTemplate = redisTemplate;
-        this.ctx = ctx;
+        this.serializer = serializer;
+        this.nearCache = nearCache;
+        this.singleFlight = singleFlight;
+        this.cacheWriteBehind = cacheWriteBehind;
         this.mongoTemplate = mongoTemplate;
     }
 
@@ -51,6 +63,23 @@ public class ImmunizationService {
         }
 
         // 2. Prepare Mongo Document
+        MongoImmunization mongoImm = toDocument(id, immunization);
+        String json = mongoImm.getFhirJson();
+
+        // 3. Save
+        repository.save(mongoImm);
+
+        // 4. Cache
+        cacheWriteBehind.put("Immunization", id, json);
+
+        return immunization;
+    }
+
+    /**
+     * Builds the document stored for {@code immunization}, search fields and JSON included.
+     */
+    public MongoImmunization toDocument(String id, Immunization immunization) {
+        // Prepare Mongo Document
         MongoImmunization mongoImm = new MongoImmunization();
         mongoImm.setId(id);
 
@@ -66,48 +95,45 @@ public class ImmunizationService {
             mongoImm.setVaccineCode(immunization.getVaccineCode().getCodingFirstRep().getCode());
         }
 
-        // 3. Serialize
-        IParser parser = ctx.newJsonParser();
-        String json = parser.encodeResourceToString(immunization);
+        // Serialize
+        String json = serializer.encode(immunization);
         mongoImm.setFhirJson(json);
+        return mongoImm;
+    }
 
-        // 4. Save
-        repository.save(mongoImm);
-
-        // 5. Cache
-        redisTemplate.opsForValue().set("immunization:" + id, json, Duration.ofMinutes(10));
+    public Immunization getImmunization(String id) {
+        Immunization near = nearCache.get("Immunization", id, Immunization.class);
+        if (near != null) {
+            return near;
+        }
 
-        return immunization;
+        return singleFlight.load("Immunization", id, () -> loadImmunization(id));
     }
 
-    public Immunization getImmunization(String id) {
-        String cached = redisTemplate.opsForValue().get("immunization:" + id);
+    private Immunization loadImmunization(String id) {
+        String cached = nearCache.isPending("Immunization", id) ? null
+                : redisTemplate.opsForValue().get("immunization:" + id);
         if (cached != null) {
-            return ctx.newJsonParser().parseResource(Immunization.class, cached);
+            Immunization fromRedis = serializer.parse(Immunization.class, cached);
+            nearCache.put("Immunization", id, fromRedis, cached.length());
+            return fromRedis;
         }
 
         Optional<MongoImmunization> result = repository.findById(id);
         if (result.isPresent()) {
-            Immunization i = ctx.newJsonParser().parseResource(Immunization.class, result.get().getFhirJson());
+            Immunization i = serializer.parse(Immunization.class, result.get().getFhirJson());
             if (!i.hasId()) {
                 i.setId(id);
             }
             redisTemplate.opsForValue().set("immunization:" + id, result.get().getFhirJson(), Duration.ofMinutes(10));
+            nearCache.put("Immunization", id, i, result.get().getFhirJson().length());
             return i;
         }
         return null;
     }
 
     public List<Immunization> searchImmunizations(String patientId, String vaccineCode, int offset, int count) {
-        Query query = new Query();
-
-        if (patientId != null && !patientId.isEmpty()) {
-            query.addCriteria(Criteria.where("patientId").is(patientId));
-        }
-
-        if (vaccineCode != null && !vaccineCode.isEmpty()) {
-            query.addCriteria(Criteria.where("vaccineCode").is(vaccineCode));
-        }
+        Query query = buildSearchQuery(patientId, vaccineCode);
 
         if (query.getQueryObject().isEmpty()) {
             if (offset == 0 && count <= 0) {
@@ -117,22 +143,54 @@ public class ImmunizationService {
             }
         }
 
+        // Exact offset, same order as the keyset search
         int limit = (count > 0) ? count : 10;
         int skip = (offset >= 0) ? offset : 0;
 
-        Pageable pageable = PageRequest.of(skip / limit, limit);
-        query.with(pageable);
+        query.with(Sort.by(Sort.Direction.ASC, "_id"));
+        query.skip(skip).limit(limit);
 
         List<MongoImmunization> results = mongoTemplate.find(query, MongoImmunization.class);
 
         return results.stream()
-                .map(imm -> {
-                    Immunization i = ctx.newJsonParser().parseResource(Immunization.class, imm.getFhirJson());
-                    if (i.getId() == null || i.getId().isEmpty()) {
-                        i.setId(imm.getId());
-                    }
-                    return i;
-                })
+                .map(this::toImmunization)
                 .collect(Collectors.toList());
     }
+
+    /**
+     * Keyset variant of {@link #searchImmunizations(String, String, int, int)},
+     * ordered by _id and resuming right after {@code cursor}.
+     */
+    public SearchPage<Immunization> searchImmunizations(String patientId, String vaccineCode, String cursor, int count) {
+        Query query = buildSearchQuery(patientId, vaccineCode);
+
+        int limit = (count > 0) ? count : 10;
+        SearchCursor.seek(query, cursor, limit);
+
+        List<MongoImmunization> results = mongoTemplate.find(query, MongoImmunization.class);
+
+        return SearchPage.of(results, limit, imm -> SearchCursor.after(imm.getId()), this::toImmunization);
+    }
+
+    private Query buildSearchQuery(String patientId, String vaccineCode) {
+        Query query = new Query();
+
+        if (patientId != null && !patientId.isEmpty()) {
+            query.addCriteria(Criteria.where("patientId").is(patientId));
+        }
+
+        if (vaccineCode != null && !vaccineCode.isEmpty()) {
+            query.addCriteria(Criteria.where("vaccineCode").is(vaccineCode));
+        }
+
+        return query;
+    }
+
+    private Immunization toImmunization(MongoImmunization imm) {
+        Immunization i = serializer.parse(Immunization.class, imm.getFhirJson());
+        if (i.getId() == null || i.getId().isEmpty()) {
+            i.setId(imm.getId());
+        }
+        return i;
+    }
 }
@@ -0,0 +1,244 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.util.FhirTerser;
+import com.al.lifelog.cache.SearchHydrator;
+import com.al.lifelog.model.ResourceDocuments;
+import com.al.lifelog.serialization.FhirSerializer;
+import org.bson.Document;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves _include and _revinclude for a page of search results in bulk.
+ *
+ * Forward includes follow the reference search parameter on the page's resources,
+ * collect every referenced id per target type and load each type with one cache
+ * lookup plus one {@code $in} query. Reverse includes query the referencing
+ * collection once on its stored reference field. Resources already on the page, or
+ * included twice, are returned only once. Every included patient is audited as
+ * a read, like a direct one, with one bulk insert per page.
+ */
+@Service
+public class IncludeResolver {
+
+    /**
+     * Stored reference fields usable for _revinclude, keyed by {@code Type:param}.
+     */
+    private static final Map<String, ReverseField> REVERSE_FIELDS = Map.ofEntries(
+            Map.entry("Observation:patient", new ReverseField("subjectId", true)),
+            Map.entry("Observation:subject", new ReverseField("subjectId", true)),
+            Map.entry("Condition:patient", new ReverseField("subjectId", true)),
+            Map.entry("Condition:subject", new ReverseField("subjectId", true)),
+            Map.entry("Encounter:patient", new ReverseField("subjectId", true)),
+            Map.entry("Encounter:subject", new ReverseField("subjectId", true)),
+            Map.entry("AllergyIntolerance:patient", new ReverseField("subjectId", false)),
+            Map.entry("DiagnosticReport:patient", new ReverseField("subjectId", false)),
+            Map.entry("DiagnosticReport:subject", new ReverseField("subjectId", false)),
+            Map.entry("MedicationRequest:patient", new ReverseField("subjectId", false)),
+            Map.entry("MedicationRequest:subject", new ReverseField("subjectId", false)),
+            Map.entry("Immunization:patient", new ReverseField("patientId", false)),
+            Map.entry("Appointment:patient", new ReverseField("patientId", false)));
+
+    private final FhirContext ctx;
+    private final MongoTemplate mongoTemplate;
+    private final SearchHydrator searchHydrator;
+    private final AuditService auditService;
+    private final int maxRevIncludes;
+
+    @Autowired
+    public IncludeResolver(FhirSerializer serializer,
+            MongoTemplate mongoTemplate,
+            SearchHydrator searchHydrator,
+            AuditService auditService,
+            @Value("${lifelog.search.max-revincludes:1000}") int maxRevIncludes) {
+        this.ctx = serializer.getContext();
+        this.mongoTemplate = mongoTemplate;
+        this.searchHydrator = searchHydrator;
+        this.auditService = auditService;
+        this.maxRevIncludes = maxRevIncludes;
+    }
+
+    /**
+     * Returns the resources {@code includes} and {@code revIncludes} add to
+     * {@code page}, without duplicates and without anything already on the page.
+     * Unsupported include values are ignored.
+     */
+    public List<IBaseResource> resolve(List<? extends IBaseResource> page, Set<Include> includes,
+            Set<Include> revIncludes) {
+        if (page.isEmpty() || (isEmpty(includes) && isEmpty(revIncludes))) {
+            return List.of();
+        }
+
+        Map<String, IBaseResource> included = new LinkedHashMap<>();
+        Set<String> seen = new LinkedHashSet<>();
+        for (IBaseResource resource : page) {
+            seen.add(key(resource));
+        }
+
+        if (!isEmpty(includes)) {
+            // Type -> ids, across all includes, so each type is loaded once
+            Map<String, Set<String>> references = new LinkedHashMap<>();
+            for (Include include : includes) {
+                collectReferences(page, include, references);
+            }
+            references.forEach((type, ids) -> {
+                ids.removeIf(id -> seen.contains(type + "/" + id));
+                add(load(type, ids), seen, included);
+            });
+        }
+
+        if (!isEmpty(revIncludes)) {
+            for (Include revInclude : revIncludes) {
+                add(loadReverse(page, revInclude), seen, included);
+            }
+        }
+
+        List<String> patients = new ArrayList<>();
+        for (IBaseResource resource : included.values()) {
+            if ("Patient".equals(ctx.getResourceType(resource))) {
+                patients.add(resource.getIdElement().getIdPart());
+            }
+        }
+        auditService.logAll("read", "Patient", patients, "Success");
+
+        return new ArrayList<>(included.values());
+    }
+
+    private void collectReferences(List<? extends IBaseResource> page, Include include,
+            Map<String, Set<String>> references) {
+        String sourceType = include.getParamType();
+        RuntimeSearchParam param = searchParam(sourceType, include.getParamName());
+        if (param == null) {
+            return;
+        }
+
+        FhirTerser terser = ctx.newTerser();
+        for (IBaseResource resource : page) {
+            if (!sourceType.equals(ctx.getResourceType(resource))) {
+                continue;
+            }
+            for (String path : param.getPathsSplit()) {
+                for (IBaseReference reference : terser.getValues(resource, elementPath(path), IBaseReference.class)) {
+                    IIdType target = reference.getReferenceElement();
+                    if (target == null || !target.hasResourceType() || !target.hasIdPart() || target.isAbsolute()) {
+                        continue;
+                    }
+                    String targetType = target.getResourceType();
+                    if (include.getParamTargetType() != null && !include.getParamTargetType().equals(targetType)) {
+                        continue;
+                    }
+                    if (!param.getTargets().isEmpty() && !param.getTargets().contains(targetType)) {
+                        continue;
+                    }
+                    references.computeIfAbsent(targetType, t -> new LinkedHashSet<>()).add(target.getIdPart());
+                }
+            }
+        }
+    }
+
+    private List<? extends Resource> load(String type, Collection<String> ids) {
+        Class<?> documentClass = ResourceDocuments.forType(type);
+        if (documentClass == null || ids.isEmpty()) {
+            return List.of();
+        }
+        return searchHydrator.fetch(type, resourceClass(type), documentClass, ids);
+    }
+
+    private List<? extends Resource> loadReverse(List<? extends IBaseResource> page, Include revInclude) {
+        String sourceType = revInclude.getParamType();
+        ReverseField field = REVERSE_FIELDS.get(sourceType + ":" + revInclude.getParamName());
+        Class<?> documentClass = ResourceDocuments.forType(sourceType);
+        if (field == null || documentClass == null) {
+            return List.of();
+        }
+
+        // All supported reverse fields point at Patient
+        List<String> values = new ArrayList<>();
+        for (IBaseResource resource : page) {
+            if ("Patient".equals(ctx.getResourceType(resource))) {
+                String id = resource.getIdElement().getIdPart();
+                values.add(field.prefixed ? "Patient/" + id : id);
+            }
+        }
+        if (values.isEmpty()) {
+            return List.of();
+        }
+
+        Query query = new Query(Criteria.where(field.name).in(values)).limit(maxRevIncludes);
+        SearchHydrator.keysOnly(query);
+        List<Document> keys = mongoTemplate.find(query, Document.class,
+                mongoTemplate.getCollectionName(documentClass));
+        return searchHydrator.hydrate(sourceType, resourceClass(sourceType), documentClass, keys);
+    }
+
+    private RuntimeSearchParam searchParam(String resourceType, String paramName) {
+        if (resourceType == null || paramName == null || !ResourceDocuments.isStored(resourceType)) {
+            return null;
+        }
+        RuntimeSearchParam param = ctx.getResourceDefinition(resourceType).getSearchParam(paramName);
+        return param != null && param.getParamType() == RestSearchParameterTypeEnum.REFERENCE ? param : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Class<? extends Resource> resourceClass(String type) {
+        RuntimeResourceDefinition definition = ctx.getResourceDefinition(type);
+        return (Class<? extends Resource>) definition.getImplementingClass();
+    }
+
+    /**
+     * Search parameter paths are FHIRPath; the terser only walks plain element
+     * paths, so drop any {@code .where(...)} filter (targets are checked separately).
+     */
+    static String elementPath(String path) {
+        int where = path.indexOf(".where(");
+        return where < 0 ? path.trim() : path.substring(0, where).trim();
+    }
+
+    private void add(List<? extends IBaseResource> resources, Set<String> seen, Map<String, IBaseResource> included) {
+        for (IBaseResource resource : resources) {
+            String key = key(resource);
+            if (seen.add(key)) {
+                included.put(key, resource);
+            }
+        }
+    }
+
+    private String key(IBaseResource resource) {
+        return ctx.getResourceType(resource) + "/" + resource.getIdElement().getIdPart();
+    }
+
+    private static boolean isEmpty(Set<Include> includes) {
+        return includes == null || includes.isEmpty();
+    }
+
+    private static final class ReverseField {
+        private final String name;
+        private final boolean prefixed;
+
+        private ReverseField(String name, boolean prefixed) {
+            this.name = name;
+            this.prefixed = prefixed;
+        }
+    }
+}
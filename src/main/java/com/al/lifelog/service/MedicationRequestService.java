@@ -1,9 +1,13 @@
 package com.al.lifelog.service;
 
 import com.al.lifelog.model.MongoMedicationRequest;
+import com.al.lifelog.paging.SearchCursor;
+import com.al.lifelog.paging.SearchPage;
 import com.al.lifelog.repository.MedicationRequestRepository;
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import com.al.lifelog.cache.CacheWriteBehind;
+import com.al.lifelog.cache.NearCache;
+import com.al.lifelog.cache.SingleFlight;
+import com.al.lifelog.serialization.FhirSerializer;
 import org.hl7.fhir.r4.model.MedicationRequest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
@@ -17,8 +21,7 @@ import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 
 import java.util.stream.Collectors;
 
@@ -27,17 +30,26 @@ public class MedicationRequestService {
 
     private final MedicationRequestRepository repository;
     private final StringRedisTemplate redisTemplate;
-    private final FhirContext ctx;
+    private final FhirSerializer serializer;
+    private final NearCache nearCache;
+    private final SingleFlight singleFlight;
+    private final CacheWriteBehind cacheWriteBehind;
     private final MongoTemplate mongoTemplate;
 
     @Autowired
     public MedicationRequestService(MedicationRequestRepository repository,
             StringRedisTemplate redisTemplate,
-            FhirContext ctx,
-            MongoTemplate mongoTemplate) {
+            FhirSerializer serializer,
+            MongoTemplate mongoTemplate,
+            NearCache nearCache,
+            SingleFlight singleFlight,
+            CacheWriteBehind cacheWriteBehind) {
         this.repository = repository;
         this.redisTemplate = redisTemplate;
-        this.ctx = ctx;
+        this.serializer = serializer;
+        this.nearCache = nearCache;
+        this.singleFlight = singleFlight;
+        this.cacheWriteBehind = cacheWriteBehind;
         this.mongoTemplate = mongoTemplate;
     }
 
@@ -52,6 +64,23 @@ public class MedicationRequestService {
         }
 
         // 2. Prepare Mongo Document
+        MongoMedicationRequest mongoRequest = toDocument(id, request);
+        String json = mongoRequest.getFhirJson();
+
+        // 3. Save
+        repository.save(mongoRequest);
+
+        // 4. Cache
+        cacheWriteBehind.put("MedicationRequest", id, json);
+
+        return request;
+    }
+
+    /**
+     * Builds the document stored for {@code request}, search fields and JSON included.
+     */
+    public MongoMedicationRequest toDocument(String id, MedicationRequest request) {
+        // Prepare Mongo Document
         MongoMedicationRequest mongoRequest = new MongoMedicationRequest();
         mongoRequest.setId(id);
 
@@ -63,46 +92,47 @@ public class MedicationRequestService {
             mongoRequest.setStatus(request.getStatus().toCode());
         }
 
-        // 3. Serialize
-        IParser parser = ctx.newJsonParser();
-        String json = parser.encodeResourceToString(request);
+        // Serialize
+        String json = serializer.encode(request);
         mongoRequest.setFhirJson(json);
+        return mongoRequest;
+    }
 
-        // 4. Save
-        repository.save(mongoRequest);
-
-        // 5. Cache
-        redisTemplate.opsForValue().set("medicationrequest:" + id, json, Duration.ofMinutes(10));
+    public MedicationRequest getMedicationRequest(String id) {
+        MedicationRequest near = nearCache.get("MedicationRequest", id, MedicationRequest.class);
+        if (near != null) {
+            return near;
+        }
 
-        return request;
+        return singleFlight.load("MedicationRequest", id, () -> loadMedicationRequest(id));
     }
 
-    public MedicationRequest getMedicationRequest(String id) {
-        String cached = redisTemplate.opsForValue().get("medicationrequest:" + id);
+    private MedicationRequest loadMedicationRequest(String id) {
+        String cached = nearCache.isPending("MedicationRequest", id) ? null
+                : redisTemplate.opsForValue().get("medicationrequest:" + id);
         if (cached != null) {
-            return ctx.newJsonParser().parseResource(MedicationRequest.class, cached);
+            MedicationRequest fromRedis = serializer.parse(MedicationRequest.class, cached);
+            nearCache.put("MedicationRequest", id, fromRedis, cached.length());
+            return fromRedis;
         }
 
         Optional<MongoMedicationRequest> result = repository.findById(id);
         if (result.isPresent()) {
-            MedicationRequest mr = ctx.newJsonParser().parseResource(MedicationRequest.class,
+            MedicationRequest mr = serializer.parse(MedicationRequest.class,
                     result.get().getFhirJson());
             if (!mr.hasId()) {
                 mr.setId(id);
             }
             redisTemplate.opsForValue().set("medicationrequest:" + id, result.get().getFhirJson(),
                     Duration.ofMinutes(10));
+            nearCache.put("MedicationRequest", id, mr, result.get().getFhirJson().length());
             return mr;
         }
         return null;
     }
 
     public List<MedicationRequest> searchMedicationRequests(String subjectId, int offset, int count) {
-        Query query = new Query();
-
-        if (subjectId != null && !subjectId.isEmpty()) {
-            query.addCriteria(Criteria.where("subjectId").is(subjectId));
-        }
+        Query query = buildSearchQuery(subjectId);
 
         if (query.getQueryObject().isEmpty()) {
             if (offset == 0 && count <= 0) {
@@ -127,23 +157,51 @@ public class MedicationRequestService {
             // We just need to add pagination to the query.
         }
 
+        // Exact offset, same order as the keyset search
         int limit = (count > 0) ? count : 10;
         int skip = (offset >= 0) ? offset : 0;
 
-        Pageable pageable = PageRequest.of(skip / limit, limit);
-        query.with(pageable);
+        query.with(Sort.by(Sort.Direction.ASC, "_id"));
+        query.skip(skip).limit(limit);
 
         List<MongoMedicationRequest> results = mongoTemplate.find(query, MongoMedicationRequest.class);
 
         return results.stream()
-                .map(req -> {
-                    MedicationRequest mr = ctx.newJsonParser().parseResource(MedicationRequest.class,
-                            req.getFhirJson());
-                    if (mr.getId() == null || mr.getId().isEmpty()) {
-                        mr.setId(req.getId());
-                    }
-                    return mr;
-                })
+                .map(this::toMedicationRequest)
                 .collect(Collectors.toList());
     }
+
+    /**
+     * Keyset variant of {@link #searchMedicationRequests(String, int, int)},
+     * ordered by _id and resuming right after {@code cursor}.
+     */
+    public SearchPage<MedicationRequest> searchMedicationRequests(String subjectId, String cursor, int count) {
+        Query query = buildSearchQuery(subjectId);
+
+        int limit = (count > 0) ? count : 10;
+        SearchCursor.seek(query, cursor, limit);
+
+        List<MongoMedicationRequest> results = mongoTemplate.find(query, MongoMedicationRequest.class);
+
+        return SearchPage.of(results, limit, req -> SearchCursor.after(req.getId()), this::toMedicationRequest);
+    }
+
+    private Query buildSearchQuery(String subjectId) {
+        Query query = new Query();
+
+        if (subjectId != null && !subjectId.isEmpty()) {
+            query.addCriteria(Criteria.where("subjectId").is(subjectId));
+        }
+
+        return query;
+    }
+
+    private MedicationRequest toMedicationRequest(MongoMedicationRequest req) {
+        MedicationRequest mr = serializer.parse(MedicationRequest.class,
+                req.getFhirJson());
+        if (mr.getId() == null || mr.getId().isEmpty()) {
+            mr.setId(req.getId());
+        }
+        return mr;
+    }
 }
@@ -0,0 +1,77 @@
+package com.al.lifelog.service;
+
+import com.al.lifelog.model.MongoAuditEvent;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.IndexResolver;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.stereotype.Service;
+
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the indexes declared on the document classes ({@code @CompoundIndex},
+ * {@code @Indexed}), which keyset paging, the search keys and the history TTL
+ * rely on. Runs once per start in the background, one index at a time, instead
+ * of through Spring Data's auto index creation on first use of each entity.
+ *
+ * The audit collection is left out: its indexes have never been created, and
+ * creating them would turn on the 90 day TTL on {@code timestamp} and start
+ * purging the audit trail.
+ */
+@Service
+public class MongoIndexes {
+
+    private static final Logger log = LoggerFactory.getLogger(MongoIndexes.class);
+
+    private static final Set<Class<?>> SKIPPED = Set.of(MongoAuditEvent.class);
+
+    private final MongoTemplate mongoTemplate;
+    private final ExecutorService runner;
+
+    @Autowired
+    public MongoIndexes(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+        this.runner = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "LifeLogIndexes");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    public void start() {
+        runner.execute(this::run);
+    }
+
+    @PreDestroy
+    public void stop() {
+        runner.shutdownNow();
+    }
+
+    void run() {
+        IndexResolver resolver = IndexResolver.create(mongoTemplate.getConverter().getMappingContext());
+        for (MongoPersistentEntity<?> entity : mongoTemplate.getConverter().getMappingContext().getPersistentEntities()) {
+            if (!entity.isAnnotationPresent(org.springframework.data.mongodb.core.mapping.Document.class)
+                    || SKIPPED.contains(entity.getType())) {
+                continue;
+            }
+            IndexOperations indexes = mongoTemplate.indexOps(entity.getType());
+            for (IndexDefinition index : resolver.resolveIndexFor(entity.getTypeInformation())) {
+                try {
+                    indexes.createIndex(index);
+                } catch (RuntimeException e) {
+                    log.error("Could not create index {} on {}", index.getIndexKeys(), entity.getCollection(), e);
+                }
+            }
+        }
+    }
+}
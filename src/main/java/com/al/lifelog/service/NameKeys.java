@@ -0,0 +1,128 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.rest.param.StringParam;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.StringType;
+import org.springframework.data.mongodb.core.query.Criteria;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Index keys behind the FHIR {@code name} search on Patient and Practitioner.
+ *
+ * Every part of every name (family, given, prefix, suffix, text) is stored in
+ * {@code nameKeys} case-folded and accent-stripped, whole and word by word,
+ * and {@code nameGrams} holds the trigrams of those keys. The default
+ * (starts-with) search and {@code :exact} then become anchored scans of the
+ * {@code nameKeys} index, and {@code :contains} an intersection of trigrams
+ * narrowed down by the key itself.
+ */
+public final class NameKeys {
+
+    public static final String KEYS = "nameKeys";
+    public static final String GRAMS = "nameGrams";
+
+    private static final int GRAM = 3;
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private NameKeys() {
+    }
+
+    /**
+     * Lower case, no diacritics, words separated by single spaces.
+     */
+    public static String normalize(String value) {
+        if (value == null) {
+            return "";
+        }
+        String folded = MARKS.matcher(Normalizer.normalize(value, Normalizer.Form.NFD)).replaceAll("");
+        return SEPARATORS.matcher(folded.toLowerCase(Locale.ROOT)).replaceAll(" ").trim();
+    }
+
+    public static List<String> keys(List<HumanName> names) {
+        Set<String> keys = new LinkedHashSet<>();
+        for (HumanName name : names) {
+            add(keys, name.getFamily());
+            add(keys, name.getText());
+            for (StringType part : name.getGiven()) {
+                add(keys, part.getValue());
+            }
+            for (StringType part : name.getPrefix()) {
+                add(keys, part.getValue());
+            }
+            for (StringType part : name.getSuffix()) {
+                add(keys, part.getValue());
+            }
+        }
+        return new ArrayList<>(keys);
+    }
+
+    public static List<String> grams(Collection<String> keys) {
+        Set<String> grams = new LinkedHashSet<>();
+        for (String key : keys) {
+            grams.addAll(gramsOf(key));
+        }
+        return new ArrayList<>(grams);
+    }
+
+    /**
+     * Criteria for a {@code name} parameter, or null when there is none. Never a
+     * top-level {@code $and}, which the keyset cursor already uses.
+     */
+    public static Criteria criteria(StringParam name) {
+        if (name == null || name.getValue() == null || name.getValue().isEmpty()) {
+            return null;
+        }
+        String value = normalize(name.getValue());
+        if (value.isEmpty()) {
+            // Nothing but punctuation, which no key holds
+            return Criteria.where(KEYS).in(List.of());
+        }
+        if (name.isExact()) {
+            // The folded key finds the candidates, the stored parts decide
+            String raw = Pattern.quote(name.getValue());
+            return Criteria.where(KEYS).is(value).orOperator(
+                    Criteria.where("family").is(name.getValue()),
+                    Criteria.where("given").regex("(^| )" + raw + "( |$)"));
+        }
+        // Keys hold letters, digits and spaces only, so the value needs no escaping
+        if (name.isContains()) {
+            List<String> grams = gramsOf(value);
+            if (grams.isEmpty()) {
+                // Too short for a trigram: still a scan of the keys, not the documents
+                return Criteria.where(KEYS).regex(value);
+            }
+            return Criteria.where(GRAMS).all(grams).and(KEYS).regex(value);
+        }
+        return Criteria.where(KEYS).regex("^" + value);
+    }
+
+    private static void add(Set<String> keys, String part) {
+        String key = normalize(part);
+        if (key.isEmpty()) {
+            return;
+        }
+        keys.add(key);
+        if (key.indexOf(' ') >= 0) {
+            for (String word : key.split(" ")) {
+                keys.add(word);
+            }
+        }
+    }
+
+    private static List<String> gramsOf(String key) {
+        List<String> grams = new ArrayList<>();
+        for (int i = 0; i + GRAM <= key.length(); i++) {
+            grams.add(key.substring(i, i + GRAM));
+        }
+        return grams;
+    }
+}
@@ -0,0 +1,433 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import com.al.lifelog.model.MongoObservation;
+import com.al.lifelog.model.MongoObservationChunk;
+import com.al.lifelog.paging.SearchCursor;
+import com.al.lifelog.serialization.FhirSerializer;
+import org.bson.Document;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Compacted storage for high-frequency device streams.
+ *
+ * With {@code lifelog.ingest.chunking.enabled}, an ingested Observation that is
+ * a plain device sample (subject, device, effectiveDateTime, valueQuantity, no
+ * components and no client id) is not stored as its own document. It is
+ * appended to the {@link MongoObservationChunk} of its stream and time window
+ * ({@code lifelog.ingest.chunking.window}): one upsert per chunk and batch,
+ * no history row and no cache key per sample. A stream is everything in the
+ * sample but its id, meta, time and value, so a chunk expands back into the
+ * samples it was given, except that times come back in UTC with millisecond
+ * precision and values as decimals.
+ *
+ * Each sample gets the virtual id {@code <chunk id>.<ms after window start>}
+ * and version 1. Reads, searches, {@code $lastn} and {@code $aggregate} expand
+ * the chunks into virtual Observations; they cannot be updated or deleted one
+ * by one.
+ */
+@Service
+public class ObservationChunkService {
+
+    private static final char SEPARATOR = '.';
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    // Search order: newest first, then id
+    private static final Comparator<Row> ORDER = Comparator.comparing(Row::time, Comparator.reverseOrder())
+            .thenComparing(Row::id);
+
+    private final MongoTemplate mongoTemplate;
+    private final FhirSerializer serializer;
+    private final boolean enabled;
+    private final long windowMillis;
+
+    @Autowired
+    public ObservationChunkService(MongoTemplate mongoTemplate,
+            FhirSerializer serializer,
+            @Value("${lifelog.ingest.chunking.enabled:false}") boolean enabled,
+            @Value("${lifelog.ingest.chunking.window:PT1H}") Duration window) {
+        this.mongoTemplate = mongoTemplate;
+        this.serializer = serializer;
+        this.enabled = enabled;
+        this.windowMillis = Math.max(window.toMillis(), 1);
+    }
+
+    /**
+     * {@code observation} as a chunk sample, or null when chunking is off or it is
+     * not a plain device sample. The observation gets its virtual id and meta.
+     */
+    public Sample sample(Observation observation) {
+        if (!enabled || !isPlainSample(observation)) {
+            return null;
+        }
+        Date time = observation.getEffectiveDateTimeType().getValue();
+        long start = Math.floorDiv(time.getTime(), windowMillis) * windowMillis;
+        long offset = time.getTime() - start;
+
+        Observation template = observation.copy();
+        template.setId((String) null);
+        template.setMeta(null);
+        template.setEffective(null);
+        template.getValueQuantity().setValue((BigDecimal) null);
+        String templateJson = serializer.encode(template);
+        String chunkId = UUID.nameUUIDFromBytes((start + "\n" + templateJson).getBytes(StandardCharsets.UTF_8))
+                .toString();
+
+        // Index form of the unit: two points fix the (affine) conversion
+        Quantity quantity = observation.getValueQuantity();
+        MongoObservation.SearchQuantity zero = Quantities.index(quantity.copy().setValue(0));
+        MongoObservation.SearchQuantity one = Quantities.index(quantity.copy().setValue(1));
+
+        MongoObservationChunk header = new MongoObservationChunk();
+        header.setSubjectId(observation.getSubject().getReference());
+        header.setDevice(observation.getDevice().getReference());
+        header.setCode(observation.getCode().getCodingFirstRep().getCode());
+        header.setCodes(CodeTokens.tokens(observation.getCode()));
+        header.setCategories(ObservationService.categories(observation));
+        header.setStart(new Date(start));
+        header.setUnit(zero.getUnit());
+        header.setOffset(zero.getValue());
+        header.setScale(one.getValue() - zero.getValue());
+        header.setTemplateJson(templateJson);
+
+        observation.setId(chunkId + SEPARATOR + offset);
+        observation.getMeta().setVersionId("1");
+        observation.getMeta().setLastUpdated(new Date());
+        return new Sample(observation.getIdElement().getIdPart(), time, quantity.getValue().doubleValue(),
+                serializer.encode(observation), header);
+    }
+
+    private static boolean isPlainSample(Observation observation) {
+        return (!observation.hasIdElement() || observation.getIdElement().isEmpty())
+                && observation.hasSubject() && observation.getSubject().hasReference()
+                && observation.hasDevice() && observation.getDevice().hasReference()
+                && observation.hasEffectiveDateTimeType() && observation.getEffectiveDateTimeType().getValue() != null
+                && observation.hasValueQuantity() && observation.getValueQuantity().hasValue()
+                && !observation.hasComponent();
+    }
+
+    /**
+     * Appends {@code samples} to their chunks, one upsert per chunk.
+     */
+    public void write(List<Sample> samples) {
+        if (samples.isEmpty()) {
+            return;
+        }
+        Map<String, List<Sample>> byChunk = new LinkedHashMap<>();
+        for (Sample sample : samples) {
+            byChunk.computeIfAbsent(sample.chunkId(), id -> new ArrayList<>()).add(sample);
+        }
+
+        Date now = new Date();
+        BulkOperations ops = mongoTemplate.bulkOps(BulkMode.UNORDERED, MongoObservationChunk.class);
+        byChunk.forEach((chunkId, chunkSamples) -> {
+            MongoObservationChunk header = chunkSamples.get(0).header();
+            long start = header.getStart().getTime();
+            Object[] offsets = chunkSamples.stream().map(s -> s.time().getTime() - start).toArray();
+            Object[] values = chunkSamples.stream().map(Sample::value).toArray();
+            Date first = chunkSamples.stream().map(Sample::time).min(Date::compareTo).orElseThrow();
+            Date last = chunkSamples.stream().map(Sample::time).max(Date::compareTo).orElseThrow();
+
+            Update update = new Update()
+                    .setOnInsert("subjectId", header.getSubjectId())
+                    .setOnInsert("device", header.getDevice())
+                    .setOnInsert("code", header.getCode())
+                    .setOnInsert("codes", header.getCodes())
+                    .setOnInsert("categories", header.getCategories())
+                    .setOnInsert("start", header.getStart())
+                    .setOnInsert("unit", header.getUnit())
+                    .setOnInsert("offset", header.getOffset())
+                    .setOnInsert("scale", header.getScale())
+                    .setOnInsert("templateJson", header.getTemplateJson())
+                    .min("first", first)
+                    .max("last", last)
+                    .max("lastUpdated", now)
+                    .inc("count", chunkSamples.size());
+            update.push("offsets").each(offsets);
+            update.push("values").each(values);
+            ops.upsert(new Query(Criteria.where("_id").is(chunkId)), update);
+        });
+        ops.execute();
+    }
+
+    /**
+     * The virtual Observation {@code id}, or null when it is not a chunked sample.
+     */
+    public Observation read(String id) {
+        int separator = id.lastIndexOf(SEPARATOR);
+        if (separator < 0) {
+            return null;
+        }
+        long offset;
+        try {
+            offset = Long.parseLong(id.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        MongoObservationChunk chunk = mongoTemplate.findById(id.substring(0, separator), MongoObservationChunk.class);
+        if (chunk == null) {
+            return null;
+        }
+        List<Long> offsets = chunk.getOffsets();
+        for (int i = 0; i < offsets.size(); i++) {
+            if (offsets.get(i) == offset) {
+                return expand(chunk, template(chunk), i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Up to {@code limit} samples of {@code subjects} (any when empty) matching
+     * {@code codes} and {@code dateRange}, in search order and after
+     * {@code after} when given.
+     *
+     * Chunks are read newest {@code last} first, and reading stops at the first
+     * chunk whose latest sample is older than the {@code limit}-th one kept.
+     */
+    public List<Observation> search(List<String> subjects, Criteria codes, DateRangeParam dateRange,
+            SearchCursor after, int limit) {
+        if (after != null && after.getSortValue() == null) {
+            // Past the undated documents, which sort last; samples always have a time
+            return List.of();
+        }
+        Query query = new Query();
+        if (subjects != null && !subjects.isEmpty()) {
+            query.addCriteria(Criteria.where("subjectId").in(subjects));
+        }
+        if (codes != null) {
+            query.addCriteria(codes);
+        }
+        overlapping(dateRange, after).forEach(query::addCriteria);
+        query.with(Sort.by(Sort.Direction.DESC, "last"));
+
+        List<Row> rows = new ArrayList<>();
+        try (Stream<MongoObservationChunk> chunks = mongoTemplate.stream(query, MongoObservationChunk.class)) {
+            Iterator<MongoObservationChunk> iterator = chunks.iterator();
+            while (iterator.hasNext()) {
+                MongoObservationChunk chunk = iterator.next();
+                if (rows.size() >= limit && chunk.getLast().before(rows.get(limit - 1).time())) {
+                    break;
+                }
+                for (Row row : rows(chunk)) {
+                    if (matches(dateRange, row.time()) && (after == null || isAfter(row, after))) {
+                        rows.add(row);
+                    }
+                }
+                rows.sort(ORDER);
+                if (rows.size() > limit) {
+                    rows.subList(limit, rows.size()).clear();
+                }
+            }
+        }
+        return toObservations(rows);
+    }
+
+    /**
+     * {@code $lastn} over chunks: the {@code max} latest samples of each subject
+     * and code, grouped like {@link ObservationService#lastN}. A group's winners
+     * lie in its {@code max} chunks with the latest {@code last}, which one
+     * aggregation picks before any chunk is read.
+     */
+    public List<Observation> latest(List<String> subjects, List<Criteria> filters, int max) {
+        Criteria match = Criteria.where("subjectId").in(subjects);
+        if (!filters.isEmpty()) {
+            match.andOperator(filters);
+        }
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(match),
+                Aggregation.sort(Sort.by(Sort.Direction.DESC, "last")),
+                context -> new Document("$group", new Document("_id",
+                        new Document("subject", "$subjectId").append("code", "$code"))
+                        .append("chunks", new Document("$firstN", new Document("input", "$_id").append("n", max)))),
+                context -> new Document("$sort", new Document("_id.subject", 1).append("_id.code", 1)));
+        List<Document> groups = mongoTemplate.aggregate(aggregation,
+                mongoTemplate.getCollectionName(MongoObservationChunk.class), Document.class).getMappedResults();
+        if (groups.isEmpty()) {
+            return List.of();
+        }
+
+        List<Object> ids = new ArrayList<>();
+        groups.forEach(group -> ids.addAll(group.getList("chunks", Object.class)));
+        Map<Object, MongoObservationChunk> chunks = new HashMap<>();
+        for (MongoObservationChunk chunk : mongoTemplate.find(new Query(Criteria.where("_id").in(ids)),
+                MongoObservationChunk.class)) {
+            chunks.put(chunk.getId(), chunk);
+        }
+
+        List<Row> winners = new ArrayList<>();
+        for (Document group : groups) {
+            List<Row> rows = new ArrayList<>();
+            for (Object id : group.getList("chunks", Object.class)) {
+                MongoObservationChunk chunk = chunks.get(id);
+                if (chunk != null) {
+                    rows.addAll(rows(chunk));
+                }
+            }
+            rows.sort(ORDER);
+            winners.addAll(rows.subList(0, Math.min(max, rows.size())));
+        }
+        return toObservations(winners);
+    }
+
+    /**
+     * {@code $unionWith} stage adding {@code subjectId}'s chunked samples
+     * matching {@code filters} and {@code dateRange} to an {@code $aggregate}
+     * pipeline, one {@code {t, v, u}} document per sample: {@code v} in the
+     * canonical unit {@code u}, only from chunks in {@code canonicalUnit} when
+     * given.
+     */
+    public Document unionWith(String subjectId, String canonicalUnit, List<Criteria> filters,
+            DateRangeParam dateRange) {
+        Criteria match = Criteria.where("subjectId").is(subjectId);
+        if (canonicalUnit != null) {
+            match.and("unit").is(canonicalUnit);
+        }
+        List<Criteria> all = new ArrayList<>(filters);
+        all.addAll(overlapping(dateRange, null));
+        if (!all.isEmpty()) {
+            match.andOperator(all);
+        }
+        Criteria dates = ObservationService.dateCriteria("t", dateRange);
+
+        Document recorded = new Document("$arrayElemAt", List.of("$s", 1));
+        Document value = new Document("$add", List.of("$offset", new Document("$multiply", List.of("$scale", recorded))));
+        List<Document> pipeline = new ArrayList<>();
+        pipeline.add(new Document("$match", match.getCriteriaObject()));
+        pipeline.add(new Document("$project", new Document("start", 1).append("offset", 1).append("scale", 1)
+                .append("unit", 1)
+                .append("s", new Document("$zip", new Document("inputs", List.of("$offsets", "$values"))))));
+        pipeline.add(new Document("$unwind", "$s"));
+        pipeline.add(new Document("$project", new Document("_id", 0)
+                .append("t", new Document("$add", List.of("$start", new Document("$arrayElemAt", List.of("$s", 0)))))
+                .append("v", value).append("u", "$unit")));
+        if (dates != null) {
+            pipeline.add(new Document("$match", dates.getCriteriaObject()));
+        }
+        return new Document("$unionWith", new Document("coll",
+                mongoTemplate.getCollectionName(MongoObservationChunk.class)).append("pipeline", pipeline));
+    }
+
+    /**
+     * Chunk level bounds: chunks that may hold samples within {@code dateRange}
+     * and at or before {@code after}. Samples are checked one by one afterwards.
+     */
+    private static List<Criteria> overlapping(DateRangeParam dateRange, SearchCursor after) {
+        List<Criteria> bounds = new ArrayList<>();
+        Date upper = dateRange != null && dateRange.getUpperBound() != null ? dateRange.getUpperBound().getValue() : null;
+        if (after != null && (upper == null || after.getSortValue().before(upper))) {
+            upper = after.getSortValue();
+        }
+        if (upper != null) {
+            bounds.add(Criteria.where("first").lte(upper));
+        }
+        if (dateRange != null && dateRange.getLowerBound() != null) {
+            bounds.add(Criteria.where("last").gte(dateRange.getLowerBound().getValue()));
+        }
+        return bounds;
+    }
+
+    private static List<Row> rows(MongoObservationChunk chunk) {
+        long start = chunk.getStart().getTime();
+        List<Row> rows = new ArrayList<>(chunk.getOffsets().size());
+        for (int i = 0; i < chunk.getOffsets().size(); i++) {
+            long offset = chunk.getOffsets().get(i);
+            rows.add(new Row(new Date(start + offset), chunk.getId() + SEPARATOR + offset, chunk, i));
+        }
+        return rows;
+    }
+
+    private List<Observation> toObservations(List<Row> rows) {
+        Map<String, Observation> templates = new HashMap<>();
+        List<Observation> observations = new ArrayList<>(rows.size());
+        for (Row row : rows) {
+            Observation template = templates.computeIfAbsent(row.chunk().getId(), id -> template(row.chunk()));
+            observations.add(expand(row.chunk(), template, row.index()));
+        }
+        return observations;
+    }
+
+    private Observation template(MongoObservationChunk chunk) {
+        return serializer.parse(Observation.class, chunk.getTemplateJson());
+    }
+
+    private static Observation expand(MongoObservationChunk chunk, Observation template, int index) {
+        long offset = chunk.getOffsets().get(index);
+        Observation observation = template.copy();
+        observation.setId(chunk.getId() + SEPARATOR + offset);
+        observation.getMeta().setVersionId("1");
+        observation.getMeta().setLastUpdated(chunk.getLastUpdated());
+        observation.setEffective(new DateTimeType(new Date(chunk.getStart().getTime() + offset),
+                TemporalPrecisionEnum.MILLI, UTC));
+        observation.getValueQuantity().setValue(BigDecimal.valueOf(chunk.getValues().get(index)));
+        return observation;
+    }
+
+    private static boolean isAfter(Row row, SearchCursor after) {
+        int byTime = row.time().compareTo(after.getSortValue());
+        return byTime < 0 || (byTime == 0 && row.id().compareTo(after.getId()) > 0);
+    }
+
+    private static boolean matches(DateRangeParam dateRange, Date time) {
+        if (dateRange == null) {
+            return true;
+        }
+        if (dateRange.getLowerBound() != null) {
+            int c = time.compareTo(dateRange.getLowerBound().getValue());
+            if (c < 0 || (c == 0 && dateRange.getLowerBound().getPrefix() == ParamPrefixEnum.GREATERTHAN)) {
+                return false;
+            }
+        }
+        if (dateRange.getUpperBound() != null) {
+            int c = time.compareTo(dateRange.getUpperBound().getValue());
+            if (c > 0 || (c == 0 && dateRange.getUpperBound().getPrefix() == ParamPrefixEnum.LESSTHAN)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * One ingested sample: its virtual id, time and value, the stored body (for
+     * subscribers) and the fields of the chunk it goes into.
+     */
+    public record Sample(String id, Date time, double value, String json, MongoObservationChunk header) {
+
+        String chunkId() {
+            return id.substring(0, id.lastIndexOf(SEPARATOR));
+        }
+    }
+
+    private record Row(Date time, String id, MongoObservationChunk chunk, int index) {
+    }
+}
@@ -0,0 +1,404 @@
+package com.al.lifelog.service;
+
+import com.al.lifelog.cache.CacheWriteBehind;
+import com.al.lifelog.model.MongoObservation;
+import com.al.lifelog.model.MongoResourceHistory;
+import com.mongodb.bulk.BulkWriteError;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.hl7.fhir.r4.model.Observation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * High-volume Observation writes (wearables, monitors).
+ *
+ * Observations from all concurrent requests go into one bounded queue. Flusher
+ * threads take micro-batches from it, up to {@code lifelog.ingest.batch-size}
+ * items or whatever arrived within {@code lifelog.ingest.max-wait} of the first
+ * one, and write each batch with one unordered bulk insert into
+ * {@code observations} and one into {@code resource_history}. Cache writes go
+ * through {@link CacheWriteBehind} (pipelined) and subscribers get one
+ * notification task per batch. Every item gets its own outcome, a duplicate id
+ * only fails that item.
+ *
+ * Plain device samples go to their stream's chunk instead when chunking is on,
+ * see {@link ObservationChunkService}.
+ *
+ * Items are only checked for the fields the search indexes need; the full
+ * profile validation of the regular create would cost more than the write.
+ */
+@Service
+public class ObservationIngestService {
+
+    private static final Logger log = LoggerFactory.getLogger(ObservationIngestService.class);
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoTemplate mongoTemplate;
+    private final ObservationService observationService;
+    private final ObservationChunkService chunkService;
+    private final CacheWriteBehind cacheWriteBehind;
+    private final SubscriptionService subscriptionService;
+    private final PatientSummaryUpdater summaryUpdater;
+    private final int batchSize;
+    private final Duration maxWait;
+    private final int flushers;
+
+    private final BlockingQueue<Pending> queue;
+    private final List<Thread> flusherThreads = new ArrayList<>();
+    private volatile boolean running;
+
+    private final Counter created;
+    private final Counter accepted;
+    private final Counter rejected;
+    private final DistributionSummary batchSizes;
+
+    @Autowired
+    public ObservationIngestService(MongoTemplate mongoTemplate,
+            ObservationService observationService,
+            ObservationChunkService chunkService,
+            CacheWriteBehind cacheWriteBehind,
+            SubscriptionService subscriptionService,
+            PatientSummaryUpdater summaryUpdater,
+            MeterRegistry meterRegistry,
+            @Value("${lifelog.ingest.batch-size:500}") int batchSize,
+            @Value("${lifelog.ingest.max-wait:PT0.02S}") Duration maxWait,
+            @Value("${lifelog.ingest.queue-capacity:100000}") int queueCapacity,
+            @Value("${lifelog.ingest.flushers:2}") int flushers) {
+        this.mongoTemplate = mongoTemplate;
+        this.observationService = observationService;
+        this.chunkService = chunkService;
+        this.cacheWriteBehind = cacheWriteBehind;
+        this.subscriptionService = subscriptionService;
+        this.summaryUpdater = summaryUpdater;
+        this.batchSize = Math.max(batchSize, 1);
+        this.maxWait = maxWait;
+        this.flushers = Math.max(flushers, 1);
+        this.queue = new LinkedBlockingQueue<>(Math.max(queueCapacity, this.batchSize));
+        this.created = Counter.builder("fhir.observation.created")
+                .description("Total number of observations created")
+                .register(meterRegistry);
+        this.accepted = Counter.builder("fhir.ingest.items")
+                .description("Observations received on the bulk ingestion path")
+                .tag("result", "created")
+                .register(meterRegistry);
+        this.rejected = Counter.builder("fhir.ingest.items")
+                .description("Observations received on the bulk ingestion path")
+                .tag("result", "failed")
+                .register(meterRegistry);
+        this.batchSizes = DistributionSummary.builder("fhir.ingest.batch.size")
+                .description("Observations written per bulk insert")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        for (int i = 0; i < flushers; i++) {
+            Thread thread = new Thread(this::flushLoop, "LifeLogIngest-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            flusherThreads.add(thread);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        flusherThreads.forEach(Thread::interrupt);
+    }
+
+    /**
+     * Stores {@code observations} and returns one outcome per item, in order.
+     * Blocks until every accepted item has been written or has failed.
+     */
+    public List<Outcome> ingest(List<Observation> observations, Duration timeout) {
+        List<CompletableFuture<Outcome>> futures = new ArrayList<>(observations.size());
+        for (Observation observation : observations) {
+            futures.add(submit(observation));
+        }
+
+        long deadline = System.nanoTime() + timeout.toNanos();
+        List<Outcome> outcomes = new ArrayList<>(futures.size());
+        for (int i = 0; i < futures.size(); i++) {
+            Observation observation = observations.get(i);
+            String id = observation != null ? observation.getIdElement().getIdPart() : null;
+            outcomes.add(await(futures.get(i), id, deadline));
+        }
+        return outcomes;
+    }
+
+    private CompletableFuture<Outcome> submit(Observation observation) {
+        String problem = check(observation);
+        if (problem != null) {
+            rejected.increment();
+            return CompletableFuture.completedFuture(Outcome.failed(null, 400, problem));
+        }
+
+        Pending pending;
+        ObservationChunkService.Sample sample = chunkService.sample(observation);
+        if (sample != null) {
+            pending = new Pending(sample.id(), sample);
+        } else {
+            String id = observation.hasIdElement() && !observation.getIdElement().isEmpty()
+                    ? observation.getIdElement().getIdPart()
+                    : UUID.randomUUID().toString();
+            observation.setId(id);
+            pending = new Pending(id, observationService.toDocument(id, observation, 1L));
+        }
+        if (!queue.offer(pending)) {
+            rejected.increment();
+            return CompletableFuture.completedFuture(
+                    Outcome.failed(pending.id, 503, "Ingestion queue is full, retry later"));
+        }
+        return pending.result;
+    }
+
+    private static Outcome await(CompletableFuture<Outcome> future, String id, long deadline) {
+        try {
+            return future.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // Still queued or being written, the client may see it later
+            return Outcome.failed(id, 504, "Timed out waiting for the batch to be written");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Outcome.failed(id, 503, "Interrupted");
+        } catch (ExecutionException e) {
+            return Outcome.failed(id, 500, String.valueOf(e.getCause()));
+        }
+    }
+
+    private static String check(Observation observation) {
+        if (observation == null) {
+            return "Entry is not an Observation";
+        }
+        if (!observation.hasStatus()) {
+            return "Observation.status is required";
+        }
+        if (!observation.hasCode()) {
+            return "Observation.code is required";
+        }
+        return null;
+    }
+
+    private void flushLoop() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                Pending first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxWait.toNanos();
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0) {
+                        break;
+                    }
+                    Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException e) {
+                log.error("Ingestion batch of {} failed", batch.size(), e);
+                batch.forEach(p -> p.result.complete(Outcome.failed(p.id, 500, e.getMessage())));
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    void flush(List<Pending> batch) {
+        batchSizes.record(batch.size());
+
+        List<Pending> documents = new ArrayList<>(batch.size());
+        List<Pending> samples = new ArrayList<>();
+        for (Pending pending : batch) {
+            (pending.sample != null ? samples : documents).add(pending);
+        }
+        flushSamples(samples);
+        if (!documents.isEmpty()) {
+            flushDocuments(documents);
+        }
+    }
+
+    private void flushSamples(List<Pending> samples) {
+        if (samples.isEmpty()) {
+            return;
+        }
+        try {
+            chunkService.write(samples.stream().map(p -> p.sample).toList());
+        } catch (RuntimeException e) {
+            log.error("Chunk write for {} ingested samples failed", samples.size(), e);
+            rejected.increment(samples.size());
+            samples.forEach(p -> p.result.complete(Outcome.failed(p.id, 500, e.getMessage())));
+            return;
+        }
+        // No history row and no cache key per sample, that is the point of chunks
+        subscriptionService.notifySubscribers("Observation", "CREATE",
+                samples.stream().map(p -> p.sample.json()).toList());
+        samples.forEach(p -> summaryUpdater.changed("Observation", p.id, p.sample.json()));
+        created.increment(samples.size());
+        accepted.increment(samples.size());
+        samples.forEach(p -> p.result.complete(Outcome.created(p.id, 1L)));
+    }
+
+    private void flushDocuments(List<Pending> batch) {
+        Map<Integer, BulkWriteError> errors = new HashMap<>();
+        try {
+            mongoTemplate.bulkOps(BulkMode.UNORDERED, MongoObservation.class)
+                    .insert(batch.stream().map(p -> p.document).toList())
+                    .execute();
+        } catch (BulkOperationException e) {
+            e.getErrors().forEach(error -> errors.put(error.getIndex(), error));
+        }
+
+        List<Pending> written = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            Pending pending = batch.get(i);
+            BulkWriteError error = errors.get(i);
+            if (error == null) {
+                written.add(pending);
+            } else if (error.getCode() == DUPLICATE_KEY) {
+                pending.result.complete(Outcome.failed(pending.id, 409, "Observation/" + pending.id + " already exists"));
+            } else {
+                pending.result.complete(Outcome.failed(pending.id, 500, error.getMessage()));
+            }
+        }
+        rejected.increment(batch.size() - written.size());
+        if (written.isEmpty()) {
+            return;
+        }
+
+        try {
+            mongoTemplate.bulkOps(BulkMode.UNORDERED, MongoResourceHistory.class)
+                    .insert(written.stream().map(ObservationIngestService::history).toList())
+                    .execute();
+        } catch (RuntimeException e) {
+            // The observations are stored; a missing history row only affects _history
+            log.warn("History for {} ingested observations could not be written", written.size(), e);
+        }
+
+        List<String> bodies = new ArrayList<>(written.size());
+        for (Pending pending : written) {
+            cacheWriteBehind.put("Observation", pending.id, pending.document.getFhirJson());
+            bodies.add(pending.document.getFhirJson());
+        }
+        subscriptionService.notifySubscribers("Observation", "CREATE", bodies);
+
+        created.increment(written.size());
+        accepted.increment(written.size());
+        written.forEach(p -> p.result.complete(Outcome.created(p.id, p.document.getVersionId())));
+    }
+
+    private static MongoResourceHistory history(Pending pending) {
+        MongoResourceHistory history = new MongoResourceHistory();
+        history.setResourceId(pending.id);
+        history.setResourceType("Observation");
+        history.setFhirJson(pending.document.getFhirJson());
+        history.setVersionId(pending.document.getVersionId());
+        history.setLastUpdated(pending.document.getLastUpdated());
+        history.setExpireAt(MongoResourceHistory.expiry(history.getLastUpdated()));
+        return history;
+    }
+
+    static final class Pending {
+        private final String id;
+        private final MongoObservation document;
+        private final ObservationChunkService.Sample sample;
+        private final CompletableFuture<Outcome> result = new CompletableFuture<>();
+
+        Pending(String id, MongoObservation document) {
+            this.id = id;
+            this.document = document;
+            this.sample = null;
+        }
+
+        Pending(String id, ObservationChunkService.Sample sample) {
+            this.id = id;
+            this.document = null;
+            this.sample = sample;
+        }
+
+        CompletableFuture<Outcome> getResult() {
+            return result;
+        }
+    }
+
+    /**
+     * What happened to one submitted Observation: an HTTP status, plus the id and
+     * version when it was stored or a message when it was not.
+     */
+    public static class Outcome {
+        private final String id;
+        private final Long versionId;
+        private final int status;
+        private final String message;
+
+        private Outcome(String id, Long versionId, int status, String message) {
+            this.id = id;
+            this.versionId = versionId;
+            this.status = status;
+            this.message = message;
+        }
+
+        static Outcome created(String id, Long versionId) {
+            return new Outcome(id, versionId, 201, null);
+        }
+
+        static Outcome failed(String id, int status, String message) {
+            return new Outcome(id, null, status, message);
+        }
+
+        public boolean isSuccess() {
+            return status == 201;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public Long getVersionId() {
+            return versionId;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
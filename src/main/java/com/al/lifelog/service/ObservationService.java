@@ -1,12 +1,25 @@
 package com.al.lifelog.service;
 
+import ca.uhn.fhir.rest.param.CompositeParam;
+import ca.uhn.fhir.rest.param.QuantityParam;
+import ca.uhn.fhir.rest.param.TokenAndListParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import com.al.lifelog.model.MongoObservation;
+import com.al.lifelog.paging.SearchCursor;
+import com.al.lifelog.paging.SearchPage;
 import com.al.lifelog.repository.ObservationRepository;
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import com.al.lifelog.cache.CacheWriteBehind;
+import com.al.lifelog.cache.NearCache;
+import com.al.lifelog.cache.SearchHydrator;
+import com.al.lifelog.cache.SingleFlight;
+import com.al.lifelog.serialization.FhirSerializer;
+import org.bson.Document;
 import org.hl7.fhir.r4.model.Observation;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 
@@ -19,39 +32,70 @@ import io.micrometer.core.instrument.Counter;
 import java.time.Duration;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import java.util.stream.Collectors;
 import java.util.Date;
 
 @Service
 public class ObservationService {
 
+    public static final String CATEGORIES = "categories";
+
+    /** Functions {@code $aggregate} can compute per bucket. */
+    public static final Set<String> AGGREGATE_FUNCTIONS = Set.of("avg", "min", "max", "sum", "count");
+
+    // Past this a chart is better served by a wider bucket
+    private static final int MAX_BUCKETS = 10_000;
+
+    private static final java.util.regex.Pattern BUCKET = java.util.regex.Pattern.compile("(\\d+)(s|min|h|d|wk|mo|a)");
+    private static final Map<String, String> BUCKET_UNITS = Map.of("s", "second", "min", "minute", "h", "hour",
+            "d", "day", "wk", "week", "mo", "month", "a", "year");
+
     private final ObservationRepository repository;
     private final StringRedisTemplate redisTemplate;
-    private final FhirContext ctx;
+    private final FhirSerializer serializer;
+    private final NearCache nearCache;
+    private final SingleFlight singleFlight;
+    private final VersionedWriter versionedWriter;
+    private final CacheWriteBehind cacheWriteBehind;
+    private final SearchHydrator searchHydrator;
     private final MongoTemplate mongoTemplate;
     private final HistoryService historyService;
+    private final ValueSets valueSets;
+    private final ObservationChunkService chunkService;
 
     private final Counter observationCreatedCounter;
-    private final SubscriptionService subscriptionService;
 
     @Autowired
     public ObservationService(ObservationRepository repository,
             StringRedisTemplate redisTemplate,
-            FhirContext ctx,
+            FhirSerializer serializer,
             MongoTemplate mongoTemplate,
             HistoryService historyService,
             MeterRegistry meterRegistry,
-            SubscriptionService subscriptionService) {
+            NearCache nearCache,
+            SingleFlight singleFlight,
+            VersionedWriter versionedWriter,
+            CacheWriteBehind cacheWriteBehind,
+            SearchHydrator searchHydrator,
+            ValueSets valueSets,
+            ObservationChunkService chunkService) {
         this.repository = repository;
+        this.valueSets = valueSets;
+        this.chunkService = chunkService;
         this.redisTemplate = redisTemplate;
-        this.ctx = ctx;
+        this.serializer = serializer;
+        this.nearCache = nearCache;
+        this.singleFlight = singleFlight;
+        this.versionedWriter = versionedWriter;
+        this.cacheWriteBehind = cacheWriteBehind;
+        this.searchHydrator = searchHydrator;
         this.mongoTemplate = mongoTemplate;
         this.historyService = historyService;
-        this.subscriptionService = subscriptionService;
         this.observationCreatedCounter = Counter.builder("fhir.observation.created")
                 .description("Total number of observations created")
                 .register(meterRegistry);
@@ -87,6 +131,7 @@ public class ObservationService {
             // Take the first code (e.g., LOINC)
             mongoObs.setCode(observation.getCode().getCodingFirstRep().getCode());
         }
+        indexSearchFields(mongoObs, observation);
 
         if (observation.hasEffectiveDateTimeType()) {
             mongoObs.setEffectiveDateTime(observation.getEffectiveDateTimeType().getValue());
@@ -95,20 +140,19 @@ public class ObservationService {
         }
 
         // 3. Serialize
-        IParser parser = ctx.newJsonParser();
-        String json = parser.encodeResourceToString(observation);
+        String json = serializer.encode(observation);
         mongoObs.setFhirJson(json);
 
         // 4. Save
         repository.save(mongoObs);
         observationCreatedCounter.increment();
-        subscriptionService.notifySubscribers("Observation", "CREATE", json);
+        cacheWriteBehind.notifySubscribers("Observation", "CREATE", json);
 
         // 5. Save History
         historyService.saveHistory(id, "Observation", json, version, mongoObs.getLastUpdated());
 
         // 6. Cache
-        redisTemplate.opsForValue().set("observation:" + id, json, Duration.ofMinutes(10));
+        cacheWriteBehind.put("Observation", id, json);
         return observation;
     }
 
@@ -118,43 +162,35 @@ public class ObservationService {
             throw new IllegalArgumentException("ID cannot be null or empty for update");
         }
 
-        // Check if exists
-        Optional<MongoObservation> existingOpt = repository.findById(id);
-        long newVersion = 1L;
-
-        if (existingOpt.isPresent()) {
-            MongoObservation existing = existingOpt.get();
-            // Optimistic Locking Check
-            if (observation.hasMeta() && observation.getMeta().hasVersionId()) {
-                String clientVersionStr = observation.getMeta().getVersionId();
-                try {
-                    long clientVersion = Long.parseLong(clientVersionStr);
-                    if (existing.getVersionId() != null && clientVersion != existing.getVersionId()) {
-                        throw new ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException(
-                                "Version conflict: Client sent version " + clientVersion +
-                                        " but current version is " + existing.getVersionId());
-                    }
-                } catch (NumberFormatException e) {
-                    // Ignore
-                }
-            }
-
-            if (existing.getVersionId() != null) {
-                newVersion = existing.getVersionId() + 1;
-            } else {
-                newVersion = 2L;
-            }
+        // Ensure ID matches
+        if (observation.getIdElement().isEmpty() || !observation.getIdElement().getIdPart().equals(id)) {
+            observation.setId(id);
         }
 
+        // One conditional replace on {_id, versionId}, 412 if another write got there first
+        MongoObservation mongoObs = versionedWriter.update(MongoObservation.class, id, observation,
+                version -> toDocument(id, observation, version));
+        long newVersion = mongoObs.getVersionId();
+        String json = mongoObs.getFhirJson();
+
+        // Save History
+        historyService.saveHistory(id, "Observation", json, newVersion, mongoObs.getLastUpdated());
+
+        // Cache
+        cacheWriteBehind.put("Observation", id, json);
+
+        return observation;
+    }
+
+    /**
+     * Stamps {@code observation} with {@code newVersion} and builds the document
+     * stored for it, search fields and JSON included.
+     */
+    public MongoObservation toDocument(String id, Observation observation, long newVersion) {
         // Update Metadata
         observation.getMeta().setVersionId(String.valueOf(newVersion));
         observation.getMeta().setLastUpdated(new java.util.Date());
 
-        // Ensure ID matches
-        if (observation.getIdElement().isEmpty() || !observation.getIdElement().getIdPart().equals(id)) {
-            observation.setId(id);
-        }
-
         // Prepare Mongo Document
         MongoObservation mongoObs = new MongoObservation();
         mongoObs.setId(id);
@@ -168,6 +204,7 @@ public class ObservationService {
         if (observation.hasCode() && !observation.getCode().getCoding().isEmpty()) {
             mongoObs.setCode(observation.getCode().getCodingFirstRep().getCode());
         }
+        indexSearchFields(mongoObs, observation);
         if (observation.hasEffectiveDateTimeType()) {
             mongoObs.setEffectiveDateTime(observation.getEffectiveDateTimeType().getValue());
         } else if (observation.hasEffectivePeriod()) {
@@ -175,20 +212,9 @@ public class ObservationService {
         }
 
         // Serialize
-        IParser parser = ctx.newJsonParser();
-        String json = parser.encodeResourceToString(observation);
+        String json = serializer.encode(observation);
         mongoObs.setFhirJson(json);
-
-        // Save
-        repository.save(mongoObs);
-
-        // Save History
-        historyService.saveHistory(id, "Observation", json, newVersion, mongoObs.getLastUpdated());
-
-        // Cache
-        redisTemplate.opsForValue().set("observation:" + id, json, Duration.ofMinutes(10));
-
-        return observation;
+        return mongoObs;
     }
 
     @Transactional
@@ -198,73 +224,52 @@ public class ObservationService {
 
         if (repository.existsById(id)) {
             repository.deleteById(id);
-            redisTemplate.delete("observation:" + id);
+            cacheWriteBehind.evict("Observation", id);
         }
     }
 
     public Observation getObservation(String id) {
-        String cached = redisTemplate.opsForValue().get("observation:" + id);
+        Observation near = nearCache.get("Observation", id, Observation.class);
+        if (near != null) {
+            return near;
+        }
+
+        return singleFlight.load("Observation", id, () -> loadObservation(id));
+    }
+
+    private Observation loadObservation(String id) {
+        String cached = nearCache.isPending("Observation", id) ? null
+                : redisTemplate.opsForValue().get("observation:" + id);
         if (cached != null) {
-            return ctx.newJsonParser().parseResource(Observation.class, cached);
+            Observation fromRedis = serializer.parse(Observation.class, cached);
+            nearCache.put("Observation", id, fromRedis, cached.length());
+            return fromRedis;
         }
 
         Optional<MongoObservation> result = repository.findById(id);
         if (result.isPresent()) {
-            Observation o = ctx.newJsonParser().parseResource(Observation.class, result.get().getFhirJson());
+            Observation o = serializer.parse(Observation.class, result.get().getFhirJson());
             if (!o.hasId()) {
                 o.setId(id);
             }
             redisTemplate.opsForValue().set("observation:" + id, result.get().getFhirJson(), Duration.ofMinutes(10));
+            nearCache.put("Observation", id, o, result.get().getFhirJson().length());
             return o;
         }
-        return null;
+        // A sample compacted into a device stream chunk
+        return chunkService.read(id);
     }
 
-    public List<Observation> searchObservations(List<String> subjects, String code,
+    public List<Observation> searchObservations(List<String> subjects, TokenParam code,
             ca.uhn.fhir.rest.param.DateRangeParam dateRange,
             int offset, int count) {
-        Query query = new Query();
-
-        if (subjects != null && !subjects.isEmpty()) {
-            List<String> searchSubjects = subjects.stream()
-                    .filter(java.util.Objects::nonNull)
-                    .map(s -> s.startsWith("Patient/") ? s : "Patient/" + s)
-                    .collect(Collectors.toList());
-            if (!searchSubjects.isEmpty()) {
-                query.addCriteria(Criteria.where("subjectId").in(searchSubjects));
-            }
-        }
-
-        if (code != null && !code.isEmpty()) {
-            query.addCriteria(Criteria.where("code").is(code));
-        }
+        return searchObservations(subjects, code, dateRange, null, offset, count);
+    }
 
-        if (dateRange != null) {
-            if (dateRange.getLowerBound() != null) {
-                Date from = dateRange.getLowerBound().getValue();
-                switch (dateRange.getLowerBound().getPrefix()) {
-                    case GREATERTHAN:
-                        query.addCriteria(Criteria.where("effectiveDateTime").gt(from));
-                        break;
-                    case GREATERTHAN_OR_EQUALS:
-                    default:
-                        query.addCriteria(Criteria.where("effectiveDateTime").gte(from));
-                        break;
-                }
-            }
-            if (dateRange.getUpperBound() != null) {
-                Date to = dateRange.getUpperBound().getValue();
-                switch (dateRange.getUpperBound().getPrefix()) {
-                    case LESSTHAN:
-                        query.addCriteria(Criteria.where("effectiveDateTime").lt(to));
-                        break;
-                    case LESSTHAN_OR_EQUALS:
-                    default:
-                        query.addCriteria(Criteria.where("effectiveDateTime").lte(to));
-                        break;
-                }
-            }
-        }
+    public List<Observation> searchObservations(List<String> subjects, TokenParam code,
+            ca.uhn.fhir.rest.param.DateRangeParam dateRange, ValueFilters values,
+            int offset, int count) {
+        Query query = buildSearchQuery(subjects, code, dateRange, values);
 
         if (query.getQueryObject().isEmpty()) {
             // Return empty list if no criteria, or handle differently if needed
@@ -278,40 +283,538 @@ public class ObservationService {
             // accidental full table scan.
         }
 
-        // Apply Pagination
+        // Apply Pagination (exact offset, same order as the keyset search)
         int limit = (count > 0) ? count : 10;
         int skip = (offset >= 0) ? offset : 0;
 
-        Pageable pageable = PageRequest.of(skip / limit, limit);
-        query.with(pageable);
+        query.with(Sort.by(Sort.Direction.DESC, "effectiveDateTime").and(Sort.by(Sort.Direction.ASC, "_id")));
+
+        List<Observation> chunked = chunkedSamples(subjects, code, dateRange, values, null, skip + limit);
+        if (!chunked.isEmpty()) {
+            // Both sources up to the end of the page, merged, then the offset
+            query.limit(skip + limit);
+            List<Keyed> rows = merge(mongoTemplate.find(query, MongoObservation.class), chunked, skip + limit);
+            return rows.subList(Math.min(skip, rows.size()), rows.size()).stream()
+                    .map(Keyed::observation)
+                    .collect(Collectors.toList());
+        }
+
+        query.skip(skip).limit(limit);
 
         List<MongoObservation> results = mongoTemplate.find(query, MongoObservation.class);
 
         return results.stream()
-                .map(mp -> {
-                    if (mp.getFhirJson() == null) {
-                        return null;
-                    }
-                    Observation o = ctx.newJsonParser().parseResource(Observation.class, mp.getFhirJson());
-                    if (o.getId() == null || o.getId().isEmpty()) {
-                        o.setId(mp.getId());
-                    }
-                    return o;
-                })
+                .map(this::toObservation)
+                .filter(java.util.Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    public SearchPage<Observation> searchObservations(List<String> subjects, TokenParam code,
+            ca.uhn.fhir.rest.param.DateRangeParam dateRange,
+            String cursor, int count) {
+        return searchObservations(subjects, code, dateRange, null, cursor, count);
+    }
+
+    /**
+     * Keyset variant of {@link #searchObservations(List, TokenParam, ca.uhn.fhir.rest.param.DateRangeParam, ValueFilters, int, int)}.
+     * Results are ordered by (effectiveDateTime desc, _id asc) and the next page
+     * starts right after {@code cursor}.
+     */
+    public SearchPage<Observation> searchObservations(List<String> subjects, TokenParam code,
+            ca.uhn.fhir.rest.param.DateRangeParam dateRange, ValueFilters values,
+            String cursor, int count) {
+        Query query = buildSearchQuery(subjects, code, dateRange, values);
+
+        if (query.getQueryObject().isEmpty() && cursor == null && count <= 0) {
+            return SearchPage.empty();
+        }
+
+        int limit = (count > 0) ? count : 10;
+        SearchCursor.seek(query, "effectiveDateTime", cursor, limit);
+
+        List<Observation> chunked = chunkedSamples(subjects, code, dateRange, values,
+                cursor != null && !cursor.isEmpty() ? SearchCursor.decode(cursor) : null, limit + 1);
+        if (!chunked.isEmpty()) {
+            // Pages mixing in chunked samples read their bodies directly
+            List<Keyed> rows = merge(mongoTemplate.find(query, MongoObservation.class), chunked, limit + 1);
+            return SearchPage.of(rows, limit, Keyed::key, Keyed::observation);
+        }
+
+        if (searchHydrator.isEnabled()) {
+            // Keys only, bodies come from the caches where possible
+            SearchHydrator.keysOnly(query, "effectiveDateTime");
+            List<Document> keys = mongoTemplate.find(query, Document.class,
+                    mongoTemplate.getCollectionName(MongoObservation.class));
+            return SearchPage.ofBatch(keys, limit,
+                    doc -> SearchCursor.after(doc.getDate("effectiveDateTime"), String.valueOf(doc.get("_id"))),
+                    page -> searchHydrator.hydrate("Observation", Observation.class, MongoObservation.class, page));
+        }
+
+        List<MongoObservation> results = mongoTemplate.find(query, MongoObservation.class);
+
+        return SearchPage.of(results, limit,
+                mo -> SearchCursor.after(mo.getEffectiveDateTime(), mo.getId()),
+                this::toObservation);
+    }
+
+    /**
+     * {@code $lastn}: the {@code max} most recent observations of each code for
+     * each of {@code subjects}, newest first within a code. {@code code} and
+     * {@code category} are optional token filters (and of ors).
+     *
+     * One aggregation picks the winners from the keys alone: match on subject and
+     * filters, sort the way {@code by_subject_date} is laid out, and keep the first
+     * {@code max} ids of each subject and code. Only those documents are then
+     * loaded, through the caches when search hydration is on.
+     */
+    public List<Observation> lastN(List<String> subjects, TokenAndListParam code, TokenAndListParam category,
+            int max) {
+        if (max < 1) {
+            throw new InvalidRequestException("max must be a positive integer");
+        }
+        List<String> searchSubjects = subjectIds(subjects);
+        if (searchSubjects.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Criteria match = Criteria.where("subjectId").in(searchSubjects);
+        List<Criteria> filters = new java.util.ArrayList<>();
+        filters.addAll(tokenFilters(CodeTokens.FIELD, code));
+        filters.addAll(tokenFilters(CATEGORIES, category));
+        if (!filters.isEmpty()) {
+            match.andOperator(filters);
+        }
+
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(match),
+                Aggregation.sort(Sort.by(Sort.Direction.ASC, "subjectId")
+                        .and(Sort.by(Sort.Direction.DESC, "effectiveDateTime"))
+                        .and(Sort.by(Sort.Direction.ASC, "_id"))),
+                // Grouped on the first coding, the one code has always held
+                context -> new Document("$group", new Document("_id",
+                        new Document("subject", "$subjectId").append("code", "$code"))
+                        .append("ids", new Document("$firstN", new Document("input", "$_id").append("n", max)))),
+                context -> new Document("$sort", new Document("_id.subject", 1).append("_id.code", 1)));
+        List<String> ids = new java.util.ArrayList<>();
+        for (Document group : mongoTemplate.aggregate(aggregation,
+                mongoTemplate.getCollectionName(MongoObservation.class), Document.class).getMappedResults()) {
+            for (Object id : group.getList("ids", Object.class)) {
+                ids.add(String.valueOf(id));
+            }
+        }
+
+        List<Observation> stored;
+        if (ids.isEmpty()) {
+            stored = Collections.emptyList();
+        } else if (searchHydrator.isEnabled()) {
+            stored = searchHydrator.fetch("Observation", Observation.class, MongoObservation.class, ids);
+        } else {
+            java.util.Map<String, MongoObservation> byId = mongoTemplate
+                    .find(new Query(Criteria.where("_id").in(ids)), MongoObservation.class).stream()
+                    .collect(Collectors.toMap(MongoObservation::getId, mo -> mo));
+            stored = ids.stream()
+                    .map(byId::get)
+                    .filter(java.util.Objects::nonNull)
+                    .map(this::toObservation)
+                    .filter(java.util.Objects::nonNull)
+                    .collect(Collectors.toList());
+        }
+
+        List<Observation> chunked = chunkService.latest(searchSubjects, filters, max);
+        if (chunked.isEmpty()) {
+            return stored;
+        }
+        // Same groups from both sources, each cut back to max
+        java.util.Map<String, List<Observation>> groups = new java.util.TreeMap<>();
+        for (List<Observation> source : List.of(stored, chunked)) {
+            for (Observation observation : source) {
+                String group = observation.getSubject().getReference() + "|"
+                        + observation.getCode().getCodingFirstRep().getCode();
+                groups.computeIfAbsent(group, g -> new java.util.ArrayList<>()).add(observation);
+            }
+        }
+        List<Observation> latest = new java.util.ArrayList<>();
+        for (List<Observation> group : groups.values()) {
+            List<Keyed> rows = merge(List.of(), group, max);
+            rows.forEach(row -> latest.add(row.observation()));
+        }
+        return latest;
+    }
+
+    /**
+     * {@code $aggregate}: the values of {@code subject}'s observations matching
+     * {@code code}, grouped into buckets of {@code bucket} (a count and a UCUM
+     * time unit: {@code 15min}, {@code 1h}, {@code 1d}, {@code 1wk}, {@code 1mo},
+     * UTC) with {@code functions} computed per bucket, oldest bucket first.
+     *
+     * Values are compared in canonical units. With a UCUM {@code unit}, only
+     * values convertible to it count and they are returned in {@code unit};
+     * without one, they are returned in their canonical unit, and values in
+     * units that do not convert to each other are rejected rather than mixed.
+     * Bucketing and the functions run in Mongo ({@code $dateTrunc} and
+     * {@code $group}), over stored documents and chunked samples alike; no
+     * resource is read.
+     */
+    public Series aggregate(String subject, TokenAndListParam code, ca.uhn.fhir.rest.param.DateRangeParam dateRange,
+            String bucket, Set<String> functions, String unit) {
+        java.util.regex.Matcher size = BUCKET.matcher(bucket != null ? bucket : "");
+        if (!size.matches() || Integer.parseInt(size.group(1)) < 1) {
+            throw new InvalidRequestException("bucket must be a count and one of s, min, h, d, wk, mo, a (e.g. 1h)");
+        }
+        for (String function : functions) {
+            if (!AGGREGATE_FUNCTIONS.contains(function)) {
+                throw new InvalidRequestException("Unknown function " + function + ", expected one of "
+                        + String.join(", ", new java.util.TreeSet<>(AGGREGATE_FUNCTIONS)));
+            }
+        }
+        Quantities.Conversion conversion = null;
+        if (unit != null) {
+            conversion = Quantities.conversion(unit);
+            if (conversion == null) {
+                throw new InvalidRequestException("unit " + unit + " is not a UCUM unit");
+            }
+        }
+        String canonicalUnit = conversion != null ? conversion.canonicalUnit() : null;
+
+        String subjectId = subject.startsWith("Patient/") ? subject : "Patient/" + subject;
+        Criteria match = Criteria.where("subjectId").is(subjectId);
+        if (canonicalUnit != null) {
+            match.and("quantity.unit").is(canonicalUnit);
+        }
+        match.and("quantity.value").exists(true);
+        List<Criteria> tokens = tokenFilters(CodeTokens.FIELD, code);
+        List<Criteria> filters = new java.util.ArrayList<>(tokens);
+        Criteria dates = dateCriteria("effectiveDateTime", dateRange);
+        if (dates != null) {
+            filters.add(dates);
+        }
+        if (!filters.isEmpty()) {
+            match.andOperator(filters);
+        }
+
+        // Stored documents and chunked samples both as {t, v, u}
+        Document group = new Document("_id", new Document("$dateTrunc", new Document("date", "$t")
+                .append("unit", BUCKET_UNITS.get(size.group(2)))
+                .append("binSize", Integer.parseInt(size.group(1)))))
+                .append("count", new Document("$sum", 1))
+                .append("units", new Document("$addToSet", "$u"));
+        for (String function : functions) {
+            if (!"count".equals(function)) {
+                group.append(function, new Document("$" + function, "$v"));
+            }
+        }
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(match),
+                context -> new Document("$project", new Document("_id", 0)
+                        .append("t", "$effectiveDateTime").append("v", "$quantity.value")
+                        .append("u", "$quantity.unit")),
+                context -> chunkService.unionWith(subjectId, canonicalUnit, tokens, dateRange),
+                context -> new Document("$group", group),
+                context -> new Document("$sort", new Document("_id", 1)),
+                Aggregation.limit(MAX_BUCKETS + 1));
+        List<Document> buckets = mongoTemplate.aggregate(aggregation,
+                mongoTemplate.getCollectionName(MongoObservation.class), Document.class).getMappedResults();
+        if (buckets.size() > MAX_BUCKETS) {
+            throw new InvalidRequestException("More than " + MAX_BUCKETS + " buckets, use a wider bucket or date range");
+        }
+        Set<String> units = new java.util.TreeSet<>();
+        for (Document b : buckets) {
+            for (Object u : b.getList("units", Object.class, List.of())) {
+                units.add(String.valueOf(u));
+            }
+        }
+        if (conversion == null && units.size() > 1) {
+            throw new InvalidRequestException("Values are recorded in units that do not convert to each other ("
+                    + String.join(", ", units) + "), pass unit to aggregate one of them");
+        }
+
+        List<Point> points = new java.util.ArrayList<>(buckets.size());
+        for (Document b : buckets) {
+            long count = b.get("count", Number.class).longValue();
+            Map<String, Double> values = new java.util.LinkedHashMap<>();
+            for (String function : functions) {
+                Number value = b.get(function, Number.class);
+                if (value != null) {
+                    values.put(function, "count".equals(function) ? value.doubleValue()
+                            : inUnit(conversion, function, value.doubleValue(), count));
+                }
+            }
+            points.add(new Point(b.getDate("_id"), count, values));
+        }
+        return new Series(unit != null ? unit : units.stream().findFirst().orElse(null), points);
+    }
+
+    private static double inUnit(Quantities.Conversion conversion, String function, double value, long count) {
+        if (conversion == null) {
+            return value;
+        }
+        // A sum carries the offset once per value
+        return "sum".equals(function)
+                ? (value - count * conversion.offset()) / conversion.scale()
+                : conversion.fromCanonical(value);
+    }
+
+    /** An {@code $aggregate} result, {@code unit} null when no value matched. */
+    public record Series(String unit, List<Point> points) {
+    }
+
+    /** One bucket: its start, how many values fell in it and the requested functions. */
+    public record Point(Date start, long count, Map<String, Double> values) {
+    }
+
+    private List<Criteria> tokenFilters(String field, TokenAndListParam tokens) {
+        List<Criteria> filters = new java.util.ArrayList<>();
+        if (tokens == null) {
+            return filters;
+        }
+        for (TokenOrListParam any : tokens.getValuesAsQueryTokens()) {
+            List<Criteria> alternatives = any.getValuesAsQueryTokens().stream()
+                    .map(token -> CodeTokens.criteria(field, token, valueSets))
+                    .filter(java.util.Objects::nonNull)
+                    .collect(Collectors.toList());
+            if (alternatives.size() == 1) {
+                filters.add(alternatives.get(0));
+            } else if (alternatives.size() > 1) {
+                filters.add(new Criteria().orOperator(alternatives));
+            }
+        }
+        return filters;
+    }
+
+    /**
+     * Chunked samples for a search, in search order. Value-quantity filters are
+     * only indexed on stored documents, so searches using them leave chunks out.
+     */
+    private List<Observation> chunkedSamples(List<String> subjects, TokenParam code,
+            ca.uhn.fhir.rest.param.DateRangeParam dateRange, ValueFilters values, SearchCursor after, int limit) {
+        if (values != null && !values.criteria(valueSets).isEmpty()) {
+            return Collections.emptyList();
+        }
+        return chunkService.search(subjectIds(subjects), CodeTokens.criteria(code, valueSets), dateRange, after, limit);
+    }
+
+    /**
+     * Stored and chunked results in search order, at most {@code limit}.
+     */
+    private List<Keyed> merge(List<MongoObservation> stored, List<Observation> chunked, int limit) {
+        List<Keyed> rows = new java.util.ArrayList<>(stored.size() + chunked.size());
+        for (MongoObservation mo : stored) {
+            Observation observation = toObservation(mo);
+            if (observation != null) {
+                rows.add(new Keyed(SearchCursor.after(mo.getEffectiveDateTime(), mo.getId()), observation));
+            }
+        }
+        for (Observation observation : chunked) {
+            rows.add(new Keyed(SearchCursor.after(effective(observation),
+                    observation.getIdElement().getIdPart()), observation));
+        }
+        rows.sort(java.util.Comparator.comparing((Keyed row) -> row.key().getSortValue(),
+                java.util.Comparator.nullsLast(java.util.Comparator.reverseOrder()))
+                .thenComparing(row -> row.key().getId()));
+        return rows.size() > limit ? rows.subList(0, limit) : rows;
+    }
+
+    private record Keyed(SearchCursor key, Observation observation) {
+    }
+
+    /** The time effectiveDateTime is indexed with. */
+    private static Date effective(Observation observation) {
+        if (observation.hasEffectiveDateTimeType()) {
+            return observation.getEffectiveDateTimeType().getValue();
+        }
+        return observation.hasEffectivePeriod() ? observation.getEffectivePeriod().getStart() : null;
+    }
+
+    private static List<String> subjectIds(List<String> subjects) {
+        if (subjects == null) {
+            return List.of();
+        }
+        return subjects.stream()
                 .filter(java.util.Objects::nonNull)
+                .map(s -> s.startsWith("Patient/") ? s : "Patient/" + s)
                 .collect(Collectors.toList());
     }
 
+    private Query buildSearchQuery(List<String> subjects, TokenParam code,
+            ca.uhn.fhir.rest.param.DateRangeParam dateRange, ValueFilters values) {
+        Query query = new Query();
+
+        List<String> searchSubjects = subjectIds(subjects);
+        if (!searchSubjects.isEmpty()) {
+            query.addCriteria(Criteria.where("subjectId").in(searchSubjects));
+        }
+
+        // code and the value searches may share fields, so they are combined
+        List<Criteria> filters = new java.util.ArrayList<>();
+        Criteria codeCriteria = CodeTokens.criteria(code, valueSets);
+        if (codeCriteria != null) {
+            filters.add(codeCriteria);
+        }
+        if (values != null) {
+            filters.addAll(values.criteria(valueSets));
+        }
+        if (filters.size() == 1) {
+            query.addCriteria(filters.get(0));
+        } else if (filters.size() > 1) {
+            // One $or branch holding the $and, SearchCursor.seek already uses the top-level $and
+            query.addCriteria(new Criteria().orOperator(new Criteria().andOperator(filters)));
+        }
+
+        Criteria dateCriteria = dateCriteria("effectiveDateTime", dateRange);
+        if (dateCriteria != null) {
+            query.addCriteria(dateCriteria);
+        }
+
+        return query;
+    }
+
+    /**
+     * Criteria on {@code field} for {@code dateRange}, or null when it has no bounds.
+     */
+    static Criteria dateCriteria(String field, ca.uhn.fhir.rest.param.DateRangeParam dateRange) {
+        if (dateRange == null || (dateRange.getLowerBound() == null && dateRange.getUpperBound() == null)) {
+            return null;
+        }
+        // Both bounds go on one criteria, Query rejects the same key twice
+        Criteria dateCriteria = Criteria.where(field);
+        if (dateRange.getLowerBound() != null) {
+            Date from = dateRange.getLowerBound().getValue();
+            switch (dateRange.getLowerBound().getPrefix()) {
+                case GREATERTHAN:
+                    dateCriteria.gt(from);
+                    break;
+                case GREATERTHAN_OR_EQUALS:
+                default:
+                    dateCriteria.gte(from);
+                    break;
+            }
+        }
+        if (dateRange.getUpperBound() != null) {
+            Date to = dateRange.getUpperBound().getValue();
+            switch (dateRange.getUpperBound().getPrefix()) {
+                case LESSTHAN:
+                    dateCriteria.lt(to);
+                    break;
+                case LESSTHAN_OR_EQUALS:
+                default:
+                    dateCriteria.lte(to);
+                    break;
+            }
+        }
+        return dateCriteria;
+    }
+
+    /**
+     * The {@code value-quantity} family of search parameters, any of them null.
+     */
+    public record ValueFilters(QuantityParam valueQuantity,
+            CompositeParam<TokenParam, QuantityParam> codeValueQuantity,
+            QuantityParam componentValueQuantity,
+            CompositeParam<TokenParam, QuantityParam> componentCodeValueQuantity) {
+
+        List<Criteria> criteria(ValueSets valueSets) {
+            List<Criteria> criteria = new java.util.ArrayList<>();
+            if (valueQuantity != null) {
+                criteria.add(Quantities.criteria("quantity", valueQuantity));
+            }
+            if (codeValueQuantity != null) {
+                criteria.add(CodeTokens.criteria(codeValueQuantity.getLeftValue(), valueSets));
+                criteria.add(Quantities.criteria("quantity", codeValueQuantity.getRightValue()));
+            }
+            if (componentValueQuantity != null) {
+                criteria.add(Criteria.where("components")
+                        .elemMatch(Quantities.criteria("quantity", componentValueQuantity)));
+            }
+            if (componentCodeValueQuantity != null) {
+                // Code and value of the same component
+                criteria.add(Criteria.where("components").elemMatch(new Criteria().andOperator(
+                        CodeTokens.criteria(componentCodeValueQuantity.getLeftValue(), valueSets),
+                        Quantities.criteria("quantity", componentCodeValueQuantity.getRightValue()))));
+            }
+            criteria.removeIf(java.util.Objects::isNull);
+            return criteria;
+        }
+    }
+
+    /**
+     * Sets the derived search keys: every coding, the categories, the value and
+     * the component values.
+     */
+    static void indexSearchFields(MongoObservation mongoObs, Observation observation) {
+        mongoObs.setCodes(CodeTokens.tokens(observation.getCode()));
+        mongoObs.setCategories(categories(observation));
+        if (observation.hasValueQuantity()) {
+            mongoObs.setQuantity(Quantities.index(observation.getValueQuantity()));
+        }
+        List<MongoObservation.SearchComponent> components = new java.util.ArrayList<>();
+        for (Observation.ObservationComponentComponent component : observation.getComponent()) {
+            if (component.hasValueQuantity()) {
+                MongoObservation.SearchQuantity quantity = Quantities.index(component.getValueQuantity());
+                if (quantity != null) {
+                    components.add(new MongoObservation.SearchComponent(
+                            CodeTokens.tokens(component.getCode()), quantity));
+                }
+            }
+        }
+        mongoObs.setComponents(components.isEmpty() ? null : components);
+    }
+
+    /** Tokens of every category coding, as stored in {@code categories}. */
+    static List<String> categories(Observation observation) {
+        List<String> categories = new java.util.ArrayList<>();
+        for (org.hl7.fhir.r4.model.CodeableConcept category : observation.getCategory()) {
+            for (String token : CodeTokens.tokens(category)) {
+                if (!categories.contains(token)) {
+                    categories.add(token);
+                }
+            }
+        }
+        return categories;
+    }
+
+    private Observation toObservation(MongoObservation mp) {
+        if (mp.getFhirJson() == null) {
+            return null;
+        }
+        Observation o = serializer.parse(Observation.class, mp.getFhirJson());
+        if (o.getId() == null || o.getId().isEmpty()) {
+            o.setId(mp.getId());
+        }
+        return o;
+    }
+
     public List<Observation> getHistory(String id) {
         List<com.al.lifelog.model.MongoResourceHistory> history = historyService.getHistory(id, "Observation");
         return history.stream()
-                .map(mh -> {
-                    Observation o = ctx.newJsonParser().parseResource(Observation.class, mh.getFhirJson());
-                    o.setId(id);
-                    o.getMeta().setVersionId(String.valueOf(mh.getVersionId()));
-                    o.getMeta().setLastUpdated(mh.getLastUpdated());
-                    return o;
-                })
+                .map(mh -> fromHistory(id, mh))
                 .collect(Collectors.toList());
     }
+
+    /**
+     * Version {@code version} of {@code id}, or null if history has no such version.
+     */
+    public Observation getObservationVersion(String id, long version) {
+        com.al.lifelog.model.MongoResourceHistory mh = historyService.getVersion(id, "Observation", version);
+        if (mh != null) {
+            return fromHistory(id, mh);
+        }
+        // Documents older than their history rows only have the current version
+        Observation current = getObservation(id);
+        return current != null && String.valueOf(version).equals(current.getMeta().getVersionId()) ? current : null;
+    }
+
+    /**
+     * One page of {@code _history}, newest version first.
+     */
+    public SearchPage<Observation> getHistoryPage(String id, Date since, String cursor, int count) {
+        return historyService.getHistoryPage(id, "Observation", since, cursor, count, mh -> fromHistory(id, mh));
+    }
+
+    private Observation fromHistory(String id, com.al.lifelog.model.MongoResourceHistory mh) {
+        Observation o = serializer.parse(Observation.class, mh.getFhirJson());
+        o.setId(id);
+        o.getMeta().setVersionId(String.valueOf(mh.getVersionId()));
+        o.getMeta().setLastUpdated(mh.getLastUpdated());
+        return o;
+    }
 }
@@ -1,9 +1,13 @@
 package com.al.lifelog.service;
 
 import com.al.lifelog.model.MongoOrganization;
+import com.al.lifelog.paging.SearchCursor;
+import com.al.lifelog.paging.SearchPage;
 import com.al.lifelog.repository.OrganizationRepository;
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import com.al.lifelog.cache.CacheWriteBehind;
+import com.al.lifelog.cache.NearCache;
+import com.al.lifelog.cache.SingleFlight;
+import com.al.lifelog.serialization.FhirSerializer;
 import org.hl7.fhir.r4.model.Organization;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
@@ -17,8 +21,7 @@ import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import java.util.stream.Collectors;
 
 @Service
@@ -26,17 +29,26 @@ public class OrganizationService {
 
     private final OrganizationRepository repository;
     private final StringRedisTemplate redisTemplate;
-    private final FhirContext ctx;
+    private final FhirSerializer serializer;
+    private final NearCache nearCache;
+    private final SingleFlight singleFlight;
+    private final CacheWriteBehind cacheWriteBehind;
     private final MongoTemplate mongoTemplate;
 
     @Autowired
     public OrganizationService(OrganizationRepository repository,
             StringRedisTemplate redisTemplate,
-            FhirContext ctx,
-            MongoTemplate mongoTemplate) {
+            FhirSerializer serializer,
+            MongoTemplate mongoTemplate,
+            NearCache nearCache,
+            SingleFlight singleFlight,
+            CacheWriteBehind cacheWriteBehind) {
         this.repository = repository;
         this.redisTemplate = redisTemplate;
-        this.ctx = ctx;
+        this.serializer = serializer;
+        this.nearCache = nearCache;
+        this.singleFlight = singleFlight;
+        this.cacheWriteBehind = cacheWriteBehind;
         this.mongoTemplate = mongoTemplate;
     }
 
@@ -51,6 +63,23 @@ public class OrganizationService {
         }
 
         // 2. Prepare Mongo Document
+        MongoOrganization mongoOrg = toDocument(id, organization);
+        String json = mongoOrg.getFhirJson();
+
+        // 3. Save
+        repository.save(mongoOrg);
+
+        // 4. Cache
+        cacheWriteBehind.put("Organization", id, json);
+
+        return organization;
+    }
+
+    /**
+     * Builds the document stored for {@code organization}, search fields and JSON included.
+     */
+    public MongoOrganization toDocument(String id, Organization organization) {
+        // Prepare Mongo Document
         MongoOrganization mongoOrg = new MongoOrganization();
         mongoOrg.setId(id);
 
@@ -62,44 +91,45 @@ public class OrganizationService {
             mongoOrg.setIdentifier(organization.getIdentifierFirstRep().getValue());
         }
 
-        // 3. Serialize
-        IParser parser = ctx.newJsonParser();
-        String json = parser.encodeResourceToString(organization);
+        // Serialize
+        String json = serializer.encode(organization);
         mongoOrg.setFhirJson(json);
+        return mongoOrg;
+    }
 
-        // 4. Save
-        repository.save(mongoOrg);
-
-        // 5. Cache
-        redisTemplate.opsForValue().set("organization:" + id, json, Duration.ofMinutes(10));
+    public Organization getOrganization(String id) {
+        Organization near = nearCache.get("Organization", id, Organization.class);
+        if (near != null) {
+            return near;
+        }
 
-        return organization;
+        return singleFlight.load("Organization", id, () -> loadOrganization(id));
     }
 
-    public Organization getOrganization(String id) {
-        String cached = redisTemplate.opsForValue().get("organization:" + id);
+    private Organization loadOrganization(String id) {
+        String cached = nearCache.isPending("Organization", id) ? null
+                : redisTemplate.opsForValue().get("organization:" + id);
         if (cached != null) {
-            return ctx.newJsonParser().parseResource(Organization.class, cached);
+            Organization fromRedis = serializer.parse(Organization.class, cached);
+            nearCache.put("Organization", id, fromRedis, cached.length());
+            return fromRedis;
         }
 
         Optional<MongoOrganization> result = repository.findById(id);
         if (result.isPresent()) {
-            Organization o = ctx.newJsonParser().parseResource(Organization.class, result.get().getFhirJson());
+            Organization o = serializer.parse(Organization.class, result.get().getFhirJson());
             if (!o.hasId()) {
                 o.setId(id);
             }
             redisTemplate.opsForValue().set("organization:" + id, result.get().getFhirJson(), Duration.ofMinutes(10));
+            nearCache.put("Organization", id, o, result.get().getFhirJson().length());
             return o;
         }
         return null;
     }
 
     public List<Organization> searchOrganizations(String name, int offset, int count) {
-        Query query = new Query();
-
-        if (name != null && !name.isEmpty()) {
-            query.addCriteria(Criteria.where("name").regex(name, "i"));
-        }
+        Query query = buildSearchQuery(name);
 
         if (query.getQueryObject().isEmpty()) {
             if (offset == 0 && count <= 0) {
@@ -109,22 +139,50 @@ public class OrganizationService {
             }
         }
 
+        // Exact offset, same order as the keyset search
         int limit = (count > 0) ? count : 10;
         int skip = (offset >= 0) ? offset : 0;
 
-        Pageable pageable = PageRequest.of(skip / limit, limit);
-        query.with(pageable);
+        query.with(Sort.by(Sort.Direction.ASC, "_id"));
+        query.skip(skip).limit(limit);
 
         List<MongoOrganization> results = mongoTemplate.find(query, MongoOrganization.class);
 
         return results.stream()
-                .map(org -> {
-                    Organization o = ctx.newJsonParser().parseResource(Organization.class, org.getFhirJson());
-                    if (o.getId() == null || o.getId().isEmpty()) {
-                        o.setId(org.getId());
-                    }
-                    return o;
-                })
+                .map(this::toOrganization)
                 .collect(Collectors.toList());
     }
+
+    /**
+     * Keyset variant of {@link #searchOrganizations(String, int, int)},
+     * ordered by _id and resuming right after {@code cursor}.
+     */
+    public SearchPage<Organization> searchOrganizations(String name, String cursor, int count) {
+        Query query = buildSearchQuery(name);
+
+        int limit = (count > 0) ? count : 10;
+        SearchCursor.seek(query, cursor, limit);
+
+        List<MongoOrganization> results = mongoTemplate.find(query, MongoOrganization.class);
+
+        return SearchPage.of(results, limit, org -> SearchCursor.after(org.getId()), this::toOrganization);
+    }
+
+    private Query buildSearchQuery(String name) {
+        Query query = new Query();
+
+        if (name != null && !name.isEmpty()) {
+            query.addCriteria(Criteria.where("name").regex(name, "i"));
+        }
+
+        return query;
+    }
+
+    private Organization toOrganization(MongoOrganization org) {
+        Organization o = serializer.parse(Organization.class, org.getFhirJson());
+        if (o.getId() == null || o.getId().isEmpty()) {
+            o.setId(org.getId());
+        }
+        return o;
+    }
 }
@@ -0,0 +1,238 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.al.lifelog.cache.SearchHydrator;
+import com.al.lifelog.model.MongoPatient;
+import com.al.lifelog.model.ResourceDocuments;
+import com.al.lifelog.paging.SearchCursor;
+import com.al.lifelog.paging.SearchPage;
+import com.al.lifelog.serialization.FhirSerializer;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Patient/$everything.
+ *
+ * The compartment is read as one sequence ordered by type (the patient first,
+ * then {@link BulkExportService#PATIENT_COMPARTMENT} order) and {@code _id}, and
+ * the paging cursor remembers the last type and id returned. A page queries
+ * every type from the cursor on at the same time, one virtual thread each,
+ * keys only and at most one page per type, so it costs the slowest of those
+ * queries rather than their sum. Only the resources that made the page are then
+ * loaded, again one type per thread, through {@link SearchHydrator} when it is
+ * enabled.
+ *
+ * Chunked device samples ({@link ObservationChunkService}) are left out; their
+ * series are read with {@code $lastn} and {@code $aggregate}.
+ */
+@Service
+public class PatientEverythingService {
+
+    private final MongoTemplate mongoTemplate;
+    private final SearchHydrator searchHydrator;
+    private final FhirSerializer serializer;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    @Autowired
+    public PatientEverythingService(MongoTemplate mongoTemplate,
+            SearchHydrator searchHydrator,
+            FhirSerializer serializer) {
+        this.mongoTemplate = mongoTemplate;
+        this.searchHydrator = searchHydrator;
+        this.serializer = serializer;
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Whether {@code patientId} exists; its compartment is only read for a
+     * stored patient.
+     */
+    public boolean exists(String patientId) {
+        return mongoTemplate.exists(new Query(Criteria.where("_id").is(patientId)), MongoPatient.class);
+    }
+
+    /**
+     * Checks {@code types} (all of the compartment when empty) and returns them in
+     * compartment order.
+     */
+    public static List<String> types(List<String> types) {
+        if (types == null || types.isEmpty()) {
+            return BulkExportService.PATIENT_COMPARTMENT;
+        }
+        for (String type : types) {
+            if (!BulkExportService.PATIENT_COMPARTMENT.contains(type)) {
+                throw new InvalidRequestException("_type " + type + " is not in the Patient compartment");
+            }
+        }
+        return BulkExportService.PATIENT_COMPARTMENT.stream().filter(types::contains).toList();
+    }
+
+    /**
+     * Up to {@code count} resources of {@code patientId}'s compartment of the
+     * given {@code types} (as returned by {@link #types}), changed since
+     * {@code since} when given, after {@code cursor}.
+     */
+    public SearchPage<Resource> page(String patientId, List<String> types, Date since, String cursor, int count) {
+        int limit = (count > 0) ? count : 10;
+        int from = 0;
+        String afterId = null;
+        if (cursor != null && !cursor.isEmpty()) {
+            // Id keyed cursor holding "Type/id"
+            String position = SearchCursor.decode(cursor).getId();
+            int slash = position != null ? position.indexOf('/') : -1;
+            from = slash > 0 ? types.indexOf(position.substring(0, slash)) : -1;
+            if (from < 0) {
+                throw new InvalidRequestException("Paging cursor does not match this search: " + cursor);
+            }
+            afterId = position.substring(slash + 1);
+        }
+
+        List<Future<List<Document>>> queries = new ArrayList<>();
+        for (int i = from; i < types.size(); i++) {
+            String type = types.get(i);
+            String after = i == from ? afterId : null;
+            queries.add(executor.submit(() -> keys(type, patientId, since, after, limit + 1)));
+        }
+
+        List<Key> rows = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i++) {
+            if (rows.size() > limit) {
+                // Enough rows from earlier types, the rest cannot make this page
+                queries.get(i).cancel(true);
+                continue;
+            }
+            String type = types.get(from + i);
+            for (Document key : await(queries.get(i))) {
+                rows.add(new Key(type, key));
+            }
+        }
+
+        return SearchPage.ofBatch(rows, limit,
+                row -> SearchCursor.after(row.type() + "/" + row.id()),
+                this::load);
+    }
+
+    private List<Document> keys(String type, String patientId, Date since, String afterId, int limit) {
+        if (afterId != null && "Patient".equals(type)) {
+            // The patient itself was the last row
+            return List.of();
+        }
+        Query query = new Query(patientCriteria(type, patientId));
+        if (afterId != null) {
+            query.addCriteria(Criteria.where("_id").gt(afterId));
+        }
+        if (since != null) {
+            // Types without lastUpdated cannot be filtered, they are always included
+            query.addCriteria(new Criteria().orOperator(
+                    Criteria.where("lastUpdated").gte(since),
+                    Criteria.where("lastUpdated").exists(false)));
+        }
+        query.with(Sort.by(Sort.Direction.ASC, "_id")).limit(limit);
+        SearchHydrator.keysOnly(query);
+        return mongoTemplate.find(query, Document.class,
+                mongoTemplate.getCollectionName(ResourceDocuments.forType(type)));
+    }
+
+    /**
+     * Criteria for the documents of {@code type} that belong to the patient, in the
+     * form each collection stores the reference (as in {@link IncludeResolver}).
+     */
+    static Criteria patientCriteria(String type, String patientId) {
+        return switch (type) {
+            case "Patient" -> Criteria.where("_id").is(patientId);
+            case "Observation", "Condition", "Encounter" -> Criteria.where("subjectId").is("Patient/" + patientId);
+            case "Appointment", "Immunization" -> Criteria.where("patientId").is(patientId);
+            default -> Criteria.where("subjectId").is(patientId);
+        };
+    }
+
+    private List<Resource> load(List<Key> page) {
+        Map<String, List<Document>> byType = new LinkedHashMap<>();
+        for (Key row : page) {
+            byType.computeIfAbsent(row.type(), t -> new ArrayList<>()).add(row.key());
+        }
+
+        Map<String, Future<List<Resource>>> loads = new LinkedHashMap<>();
+        byType.forEach((type, keys) -> loads.put(type, executor.submit(() -> load(type, keys))));
+
+        List<Resource> resources = new ArrayList<>(page.size());
+        for (Future<List<Resource>> load : loads.values()) {
+            resources.addAll(await(load));
+        }
+        return resources;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Resource> load(String type, List<Document> keys) {
+        FhirContext context = serializer.getContext();
+        Class<? extends Resource> resourceClass =
+                (Class<? extends Resource>) context.getResourceDefinition(type).getImplementingClass();
+        Class<?> documentClass = ResourceDocuments.forType(type);
+        if (searchHydrator.isEnabled()) {
+            return new ArrayList<>(searchHydrator.hydrate(type, resourceClass, documentClass, keys));
+        }
+
+        List<Object> ids = keys.stream().map(key -> key.get("_id")).toList();
+        Query query = new Query(Criteria.where("_id").in(ids));
+        query.fields().include("fhirJson");
+        Map<Object, Resource> found = new HashMap<>();
+        for (Document document : mongoTemplate.find(query, Document.class,
+                mongoTemplate.getCollectionName(documentClass))) {
+            String json = document.getString("fhirJson");
+            if (json != null) {
+                Resource resource = serializer.parse(resourceClass, json);
+                if (!resource.hasId()) {
+                    resource.setId(String.valueOf(document.get("_id")));
+                }
+                found.put(document.get("_id"), resource);
+            }
+        }
+        return ids.stream().map(found::get).filter(Objects::nonNull).toList();
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalErrorException("Interrupted while reading the patient compartment", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new InternalErrorException(e.getCause());
+        }
+    }
+
+    private record Key(String type, Document key) {
+
+        String id() {
+            return String.valueOf(key.get("_id"));
+        }
+    }
+}
@@ -1,9 +1,16 @@
 package com.al.lifelog.service;
 
+import ca.uhn.fhir.rest.param.StringParam;
 import com.al.lifelog.model.MongoPatient;
+import com.al.lifelog.paging.SearchCursor;
+import com.al.lifelog.paging.SearchPage;
 import com.al.lifelog.repository.PatientRepository;
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import com.al.lifelog.cache.CacheWriteBehind;
+import com.al.lifelog.cache.NearCache;
+import com.al.lifelog.cache.SearchHydrator;
+import com.al.lifelog.cache.SingleFlight;
+import com.al.lifelog.serialization.FhirSerializer;
+import org.bson.Document;
 import org.hl7.fhir.r4.model.Patient;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
@@ -18,11 +25,11 @@ import io.micrometer.core.instrument.Counter;
 
 import java.time.Duration;
 
+import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 import java.util.stream.Collectors;
-import org.springframework.data.domain.Pageable;
-import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 import java.util.Optional;
 
 @Service
@@ -30,30 +37,42 @@ public class PatientService {
 
     private final PatientRepository repository;
     private final StringRedisTemplate redisTemplate;
-    private final FhirContext ctx;
+    private final FhirSerializer serializer;
+    private final NearCache nearCache;
+    private final SingleFlight singleFlight;
+    private final VersionedWriter versionedWriter;
+    private final CacheWriteBehind cacheWriteBehind;
+    private final SearchHydrator searchHydrator;
     private final MongoTemplate mongoTemplate;
     private final HistoryService historyService;
 
     private final Counter patientCreatedCounter;
     private final AuditService auditService;
-    private final SubscriptionService subscriptionService;
 
     @Autowired
     public PatientService(PatientRepository repository,
             StringRedisTemplate redisTemplate,
-            FhirContext ctx,
+            FhirSerializer serializer,
             MongoTemplate mongoTemplate,
             HistoryService historyService,
             AuditService auditService,
             MeterRegistry meterRegistry,
-            SubscriptionService subscriptionService) {
+            NearCache nearCache,
+            SingleFlight singleFlight,
+            VersionedWriter versionedWriter,
+            CacheWriteBehind cacheWriteBehind,
+            SearchHydrator searchHydrator) {
         this.repository = repository;
         this.redisTemplate = redisTemplate;
-        this.ctx = ctx;
+        this.serializer = serializer;
+        this.nearCache = nearCache;
+        this.singleFlight = singleFlight;
+        this.versionedWriter = versionedWriter;
+        this.cacheWriteBehind = cacheWriteBehind;
+        this.searchHydrator = searchHydrator;
         this.mongoTemplate = mongoTemplate;
         this.historyService = historyService;
         this.auditService = auditService;
-        this.subscriptionService = subscriptionService;
         this.patientCreatedCounter = Counter.builder("fhir.patient.created")
                 .description("Total number of patients created")
                 .register(meterRegistry);
@@ -95,25 +114,26 @@ public class PatientService {
                 mongoPatient.setGiven(patient.getNameFirstRep().getGivenAsSingleString());
             }
         }
+        mongoPatient.setNameKeys(NameKeys.keys(patient.getName()));
+        mongoPatient.setNameGrams(NameKeys.grams(mongoPatient.getNameKeys()));
         if (patient.hasGender()) {
             mongoPatient.setGender(patient.getGender().toCode());
         }
 
         // 3. Serialize with ID included
-        IParser parser = ctx.newJsonParser();
-        String json = parser.encodeResourceToString(patient);
+        String json = serializer.encode(patient);
         mongoPatient.setFhirJson(json);
 
         // 4. Save
         repository.save(mongoPatient);
         patientCreatedCounter.increment();
-        subscriptionService.notifySubscribers("Patient", "CREATE", json);
+        cacheWriteBehind.notifySubscribers("Patient", "CREATE", json);
 
         // 5. Save History
         historyService.saveHistory(id, "Patient", json, version, mongoPatient.getLastUpdated());
 
         // 6. Cache
-        redisTemplate.opsForValue().set("patient:" + id, json, Duration.ofMinutes(10));
+        cacheWriteBehind.put("Patient", id, json);
 
         auditService.log("create", "Patient", id, "Success", null, null);
         return patient;
@@ -125,53 +145,43 @@ public class PatientService {
             throw new IllegalArgumentException("ID cannot be null or empty for update");
         }
 
-        // Check if exists
-        Optional<MongoPatient> existingOpt = repository.findById(id);
-        long newVersion = 1L;
-
-        if (existingOpt.isPresent()) {
-            MongoPatient existing = existingOpt.get();
-            // Optimistic Locking Check
-            // If the incoming resource has a version ID, verify it matches
-            if (patient.hasMeta() && patient.getMeta().hasVersionId()) {
-                String clientVersionStr = patient.getMeta().getVersionId();
-                try {
-                    long clientVersion = Long.parseLong(clientVersionStr);
-                    if (existing.getVersionId() != null && clientVersion != existing.getVersionId()) {
-                        throw new ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException(
-                                "Version conflict: Client sent version " + clientVersion +
-                                        " but current version is " + existing.getVersionId());
-                    }
-                } catch (NumberFormatException e) {
-                    // Ignore malformed version
-                }
-            }
-
-            // Increment version
-            if (existing.getVersionId() != null) {
-                newVersion = existing.getVersionId() + 1;
-            } else {
-                newVersion = 2L; // Fallback if legacy data had no version
-            }
+        // Ensure ID matches
+        if (patient.getIdElement().isEmpty() || !patient.getIdElement().getIdPart().equals(id)) {
+            patient.setId(id);
         }
 
+        // One conditional replace on {_id, versionId}, 412 if another write got there first
+        MongoPatient mongoPatient = versionedWriter.update(MongoPatient.class, id, patient,
+                version -> toDocument(id, patient, version));
+        long newVersion = mongoPatient.getVersionId();
+        String json = mongoPatient.getFhirJson();
+
+        // Save History
+        historyService.saveHistory(id, "Patient", json, newVersion, mongoPatient.getLastUpdated());
+
+        // Cache
+        cacheWriteBehind.put("Patient", id, json);
+
+        auditService.log("update", "Patient", id, "Success", null, null);
+        return patient;
+    }
+
+    /**
+     * Stamps {@code patient} with {@code newVersion} and builds the document
+     * stored for it, search fields and JSON included.
+     */
+    public MongoPatient toDocument(String id, Patient patient, long newVersion) {
         // Update Metadata
         patient.getMeta().setVersionId(String.valueOf(newVersion));
         patient.getMeta().setLastUpdated(new java.util.Date());
 
-        // Ensure ID matches
-        if (patient.getIdElement().isEmpty() || !patient.getIdElement().getIdPart().equals(id)) {
-            patient.setId(id);
-        }
-
         // Prepare Mongo Document (similar to create but preserving ID)
         MongoPatient mongoPatient = new MongoPatient();
         mongoPatient.setId(id);
         mongoPatient.setVersionId(newVersion);
         mongoPatient.setLastUpdated(patient.getMeta().getLastUpdated());
 
-        // Populate Index Fields (Duplicate logic for now, ideally refactor to private
-        // helper)
+        // Populate Index Fields
         if (patient.hasName()) {
             if (patient.getNameFirstRep().hasFamily()) {
                 mongoPatient.setFamily(patient.getNameFirstRep().getFamily());
@@ -180,26 +190,16 @@ public class PatientService {
                 mongoPatient.setGiven(patient.getNameFirstRep().getGivenAsSingleString());
             }
         }
+        mongoPatient.setNameKeys(NameKeys.keys(patient.getName()));
+        mongoPatient.setNameGrams(NameKeys.grams(mongoPatient.getNameKeys()));
         if (patient.hasGender()) {
             mongoPatient.setGender(patient.getGender().toCode());
         }
 
         // Serialize
-        IParser parser = ctx.newJsonParser();
-        String json = parser.encodeResourceToString(patient);
+        String json = serializer.encode(patient);
         mongoPatient.setFhirJson(json);
-
-        // Save
-        repository.save(mongoPatient);
-
-        // Save History
-        historyService.saveHistory(id, "Patient", json, newVersion, mongoPatient.getLastUpdated());
-
-        // Cache
-        redisTemplate.opsForValue().set("patient:" + id, json, Duration.ofMinutes(10));
-
-        auditService.log("update", "Patient", id, "Success", null, null);
-        return patient;
+        return mongoPatient;
     }
 
     @Transactional
@@ -213,7 +213,7 @@ public class PatientService {
             // Delete from DB
             repository.deleteById(id);
             // Invalidate Cache
-            redisTemplate.delete("patient:" + id);
+            cacheWriteBehind.evict("Patient", id);
             // Audit log
             auditService.log("delete", "Patient", id, "Success", null, null);
             // Optionally: Create a "Deleted" Audit log or keep a "Tombstone" record in a
@@ -226,79 +226,151 @@ public class PatientService {
     }
 
     public Patient getPatient(String id) {
-        String cached = redisTemplate.opsForValue().get("patient:" + id);
-        if (cached != null) {
+        Patient near = nearCache.get("Patient", id, Patient.class);
+        if (near != null) {
+            auditService.log("read", "Patient", id, "Success", null, null);
+            return near;
+        }
+
+        Patient p = singleFlight.load("Patient", id, () -> loadPatient(id));
+        if (p != null) {
+            // Logged per caller, coalesced reads are still reads
             auditService.log("read", "Patient", id, "Success", null, null);
-            return ctx.newJsonParser().parseResource(Patient.class, cached);
+        }
+        return p;
+    }
+
+    private Patient loadPatient(String id) {
+        String cached = nearCache.isPending("Patient", id) ? null
+                : redisTemplate.opsForValue().get("patient:" + id);
+        if (cached != null) {
+            Patient fromRedis = serializer.parse(Patient.class, cached);
+            nearCache.put("Patient", id, fromRedis, cached.length());
+            return fromRedis;
         }
 
         Optional<MongoPatient> result = repository.findById(id);
         if (result.isPresent()) {
-            Patient p = ctx.newJsonParser().parseResource(Patient.class, result.get().getFhirJson());
+            Patient p = serializer.parse(Patient.class, result.get().getFhirJson());
             // Double check ID
             if (!p.hasId()) {
                 p.setId(id);
             }
 
-            // Re-cache if needed (though now we store correct JSON)
-            String json = ctx.newJsonParser().encodeResourceToString(p);
-            redisTemplate.opsForValue().set("patient:" + id, json, Duration.ofMinutes(10));
-            auditService.log("read", "Patient", id, "Success", null, null);
+            // Stored JSON is already the canonical encoding, cache it as is
+            redisTemplate.opsForValue().set("patient:" + id, result.get().getFhirJson(), Duration.ofMinutes(10));
+            nearCache.put("Patient", id, p, result.get().getFhirJson().length());
             return p;
         }
         return null;
     }
 
-    public List<Patient> searchPatients(String id, String name, String gender, int offset, int count) {
+    public List<Patient> searchPatients(String id, StringParam name, String gender, int offset, int count) {
+        Query query = buildSearchQuery(id, name, gender);
+
+        // Pagination (exact offset, same order as the keyset search)
+        int limit = (count > 0) ? count : 10;
+        int skip = (offset >= 0) ? offset : 0;
+        query.with(Sort.by(Sort.Direction.ASC, "_id"));
+        query.skip(skip).limit(limit);
+
+        List<MongoPatient> results = mongoTemplate.find(query, MongoPatient.class);
+
+        return results.stream()
+                .map(this::toPatient)
+                .filter(java.util.Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Keyset variant of {@link #searchPatients(String, StringParam, String, int, int)},
+     * ordered by _id and resuming right after {@code cursor}.
+     */
+    public SearchPage<Patient> searchPatients(String id, StringParam name, String gender, String cursor, int count) {
+        Query query = buildSearchQuery(id, name, gender);
+
+        int limit = (count > 0) ? count : 10;
+        SearchCursor.seek(query, cursor, limit);
+
+        if (searchHydrator.isEnabled()) {
+            // Keys only, bodies come from the caches where possible
+            SearchHydrator.keysOnly(query);
+            List<Document> keys = mongoTemplate.find(query, Document.class,
+                    mongoTemplate.getCollectionName(MongoPatient.class));
+            return SearchPage.ofBatch(keys, limit,
+                    doc -> SearchCursor.after(String.valueOf(doc.get("_id"))),
+                    page -> searchHydrator.hydrate("Patient", Patient.class, MongoPatient.class, page));
+        }
+
+        List<MongoPatient> results = mongoTemplate.find(query, MongoPatient.class);
+
+        return SearchPage.of(results, limit, mp -> SearchCursor.after(mp.getId()), this::toPatient);
+    }
+
+    private Query buildSearchQuery(String id, StringParam name, String gender) {
         Query query = new Query();
 
         if (id != null && !id.isEmpty()) {
             query.addCriteria(Criteria.where("_id").is(id));
         }
 
-        if (name != null && !name.isEmpty()) {
-            // Use regex for name search as it's more flexible for partial matches in FHIR
-            query.addCriteria(new Criteria().orOperator(
-                    Criteria.where("family").regex(name, "i"),
-                    Criteria.where("given").regex(name, "i")));
+        Criteria nameCriteria = NameKeys.criteria(name);
+        if (nameCriteria != null) {
+            query.addCriteria(nameCriteria);
         }
 
         if (gender != null && !gender.isEmpty()) {
             query.addCriteria(Criteria.where("gender").is(gender));
         }
 
-        // Pagination
-        Pageable pageable = PageRequest.of(offset / count, count);
-        query.with(pageable);
-
-        List<MongoPatient> results = mongoTemplate.find(query, MongoPatient.class);
+        return query;
+    }
 
-        return results.stream()
-                .map(mp -> {
-                    if (mp.getFhirJson() == null) {
-                        return null;
-                    }
-                    Patient p = ctx.newJsonParser().parseResource(Patient.class, mp.getFhirJson());
-                    // Ensure runtime ID is set if absent in JSON (legacy data support)
-                    if (p.getId() == null || p.getId().isEmpty()) {
-                        p.setId(mp.getId());
-                    }
-                    return p;
-                })
-                .filter(java.util.Objects::nonNull)
-                .collect(Collectors.toList());
+    private Patient toPatient(MongoPatient mp) {
+        if (mp.getFhirJson() == null) {
+            return null;
+        }
+        Patient p = serializer.parse(Patient.class, mp.getFhirJson());
+        // Ensure runtime ID is set if absent in JSON (legacy data support)
+        if (p.getId() == null || p.getId().isEmpty()) {
+            p.setId(mp.getId());
+        }
+        return p;
     }
 
     public List<Patient> getHistory(String id) {
         List<com.al.lifelog.model.MongoResourceHistory> history = historyService.getHistory(id, "Patient");
         return history.stream()
-                .map(mh -> {
-                    Patient p = ctx.newJsonParser().parseResource(Patient.class, mh.getFhirJson());
-                    p.setId(id);
-                    p.getMeta().setVersionId(String.valueOf(mh.getVersionId()));
-                    p.getMeta().setLastUpdated(mh.getLastUpdated());
-                    return p;
-                })
+                .map(mh -> fromHistory(id, mh))
                 .collect(Collectors.toList());
     }
+
+    /**
+     * Version {@code version} of {@code id}, or null if history has no such version.
+     */
+    public Patient getPatientVersion(String id, long version) {
+        com.al.lifelog.model.MongoResourceHistory mh = historyService.getVersion(id, "Patient", version);
+        if (mh != null) {
+            auditService.log("read", "Patient", id, "Success", null, null);
+            return fromHistory(id, mh);
+        }
+        // Documents older than their history rows only have the current version
+        Patient current = getPatient(id);
+        return current != null && String.valueOf(version).equals(current.getMeta().getVersionId()) ? current : null;
+    }
+
+    /**
+     * One page of {@code _history}, newest version first.
+     */
+    public SearchPage<Patient> getHistoryPage(String id, Date since, String cursor, int count) {
+        return historyService.getHistoryPage(id, "Patient", since, cursor, count, mh -> fromHistory(id, mh));
+    }
+
+    private Patient fromHistory(String id, com.al.lifelog.model.MongoResourceHistory mh) {
+        Patient p = serializer.parse(Patient.class, mh.getFhirJson());
+        p.setId(id);
+        p.getMeta().setVersionId(String.valueOf(mh.getVersionId()));
+        p.getMeta().setLastUpdated(mh.getLastUpdated());
+        return p;
+    }
 }
@@ -0,0 +1,255 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.rest.param.TokenAndListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import com.al.lifelog.model.MongoAllergyIntolerance;
+import com.al.lifelog.model.MongoAppointment;
+import com.al.lifelog.model.MongoCondition;
+import com.al.lifelog.model.MongoMedicationRequest;
+import com.al.lifelog.model.MongoPatient;
+import com.al.lifelog.model.MongoPatientSummary;
+import com.al.lifelog.serialization.FhirSerializer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.hl7.fhir.r4.model.AllergyIntolerance;
+import org.hl7.fhir.r4.model.Appointment;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Serves the per-patient clinical summary ({@link MongoPatientSummary}) with a
+ * single point read.
+ *
+ * Summaries that are missing, stale or of an older {@link PatientSummaryUpdater#FORMAT}
+ * are rebuilt from the collections when read, and in the background once per
+ * start for every patient. A rebuild replaces only the revision it started
+ * from, so an update applied meanwhile is never overwritten: the rebuild reads
+ * again instead.
+ */
+@Service
+public class PatientSummaryService {
+
+    private static final Logger log = LoggerFactory.getLogger(PatientSummaryService.class);
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final MongoTemplate mongoTemplate;
+    private final FhirSerializer serializer;
+    private final ObservationService observationService;
+    private final PatientSummaryUpdater updater;
+    private final boolean backfill;
+    private final int batchSize;
+    private final ExecutorService runner;
+
+    @Autowired
+    public PatientSummaryService(MongoTemplate mongoTemplate,
+            FhirSerializer serializer,
+            ObservationService observationService,
+            PatientSummaryUpdater updater,
+            @Value("${lifelog.summary.backfill:true}") boolean backfill,
+            @Value("${lifelog.summary.batch-size:256}") int batchSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.serializer = serializer;
+        this.observationService = observationService;
+        this.updater = updater;
+        this.backfill = backfill;
+        this.batchSize = Math.max(batchSize, 1);
+        this.runner = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "LifeLogSummaries");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    public void start() {
+        if (backfill) {
+            runner.execute(this::rebuildAll);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        runner.shutdownNow();
+    }
+
+    /**
+     * The summary of {@code patientId} as resources: active conditions, current
+     * medications, allergies, the latest vital sign per code and the next
+     * appointment. Null when there is no such patient.
+     */
+    public List<Resource> getSummary(String patientId) {
+        MongoPatientSummary summary = mongoTemplate.findById(patientId, MongoPatientSummary.class);
+        if (!isCurrent(summary)) {
+            summary = rebuild(patientId);
+            if (summary == null) {
+                return null;
+            }
+        }
+
+        Date now = new Date();
+        List<Resource> resources = new ArrayList<>();
+        addAll(resources, Condition.class, summary.getConditions());
+        addAll(resources, MedicationRequest.class, summary.getMedications());
+        addAll(resources, AllergyIntolerance.class, summary.getAllergies());
+        addAll(resources, Observation.class, summary.getVitals());
+        // Appointments are in start order; the ones since passed are dropped on the next write
+        summary.getAppointments().stream()
+                .filter(entry -> entry.getTime().after(now))
+                .findFirst()
+                .ifPresent(entry -> resources.add(serializer.parse(Appointment.class, entry.getJson())));
+        return resources;
+    }
+
+    private void addAll(List<Resource> resources, Class<? extends Resource> type,
+            List<MongoPatientSummary.Entry> entries) {
+        entries.forEach(entry -> resources.add(serializer.parse(type, entry.getJson())));
+    }
+
+    private static boolean isCurrent(MongoPatientSummary summary) {
+        return summary != null && !summary.isStale() && summary.getFormat() == PatientSummaryUpdater.FORMAT;
+    }
+
+    /**
+     * Builds the summary of {@code patientId} from the collections and stores it.
+     * Returns null when there is no such patient.
+     */
+    public MongoPatientSummary rebuild(String patientId) {
+        if (!mongoTemplate.exists(new Query(Criteria.where("_id").is(patientId)), MongoPatient.class)) {
+            return null;
+        }
+
+        MongoPatientSummary summary = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            Query revisionOnly = new Query(Criteria.where("_id").is(patientId));
+            revisionOnly.fields().include("revision");
+            MongoPatientSummary held = mongoTemplate.findOne(revisionOnly, MongoPatientSummary.class);
+
+            summary = build(patientId);
+            try {
+                if (held == null) {
+                    summary.setRevision(1);
+                    mongoTemplate.insert(summary);
+                    return summary;
+                }
+                summary.setRevision(held.getRevision() + 1);
+                Query expected = new Query(Criteria.where("_id").is(patientId)
+                        .and("revision").is(held.getRevision()));
+                if (mongoTemplate.replace(expected, summary).getMatchedCount() == 1) {
+                    return summary;
+                }
+            } catch (DuplicateKeyException e) {
+                // Created by an update meanwhile, build again from its revision
+            }
+        }
+        // Still correct for this read, the next one tries to store it again
+        return summary;
+    }
+
+    private MongoPatientSummary build(String patientId) {
+        MongoPatientSummary summary = new MongoPatientSummary();
+        summary.setId(patientId);
+        summary.setFormat(PatientSummaryUpdater.FORMAT);
+        Date now = new Date();
+
+        // Stored the way each service writes the reference, see IncludeResolver
+        apply(summary, "Condition", find(MongoCondition.class, "subjectId", "Patient/" + patientId,
+                MongoCondition::getFhirJson, Condition.class), now);
+        apply(summary, "MedicationRequest", find(MongoMedicationRequest.class, "subjectId", patientId,
+                MongoMedicationRequest::getFhirJson, MedicationRequest.class), now);
+        apply(summary, "AllergyIntolerance", find(MongoAllergyIntolerance.class, "subjectId", patientId,
+                MongoAllergyIntolerance::getFhirJson, AllergyIntolerance.class), now);
+        apply(summary, "Appointment", find(MongoAppointment.class, "patientId", patientId,
+                MongoAppointment::getFhirJson, Appointment.class), now);
+
+        // Category code in any system, as the updater checks it
+        TokenAndListParam vitalSigns = new TokenAndListParam()
+                .addAnd(new TokenParam(PatientSummaryUpdater.VITAL_SIGNS));
+        List<Observation> latest = observationService.lastN(List.of(patientId), null, vitalSigns, 1);
+        apply(summary, "Observation", latest, now);
+
+        PatientSummaryUpdater.prepare(summary, now);
+        return summary;
+    }
+
+    private void apply(MongoPatientSummary summary, String type, List<? extends Resource> resources, Date now) {
+        for (Resource resource : resources) {
+            updater.apply(summary, type, resource.getIdElement().getIdPart(), resource, now);
+        }
+    }
+
+    private <D, R extends Resource> List<R> find(Class<D> documentClass, String field, String patientRef,
+            Function<D, String> json, Class<R> resourceClass) {
+        List<R> resources = new ArrayList<>();
+        for (D document : mongoTemplate.find(new Query(Criteria.where(field).is(patientRef)), documentClass)) {
+            String body = json.apply(document);
+            if (body != null) {
+                resources.add(serializer.parse(resourceClass, body));
+            }
+        }
+        return resources;
+    }
+
+    /**
+     * Rebuilds every summary that is missing, stale or of an older format, walking
+     * the patients in {@code _id} order.
+     */
+    void rebuildAll() {
+        try {
+            long rebuilt = 0;
+            String after = null;
+            while (!Thread.currentThread().isInterrupted()) {
+                Query patients = new Query();
+                if (after != null) {
+                    patients.addCriteria(Criteria.where("_id").gt(after));
+                }
+                patients.fields().include("_id");
+                patients.with(Sort.by(Sort.Direction.ASC, "_id")).limit(batchSize);
+                List<String> ids = mongoTemplate.find(patients, MongoPatient.class).stream()
+                        .map(MongoPatient::getId).toList();
+                if (ids.isEmpty()) {
+                    break;
+                }
+
+                Query held = new Query(Criteria.where("_id").in(ids));
+                held.fields().include("stale").include("format");
+                Map<String, MongoPatientSummary> summaries = mongoTemplate.find(held, MongoPatientSummary.class)
+                        .stream().collect(Collectors.toMap(MongoPatientSummary::getId, s -> s));
+                for (String id : ids) {
+                    MongoPatientSummary summary = summaries.get(id);
+                    if (summary == null || summary.isStale() || summary.getFormat() != PatientSummaryUpdater.FORMAT) {
+                        rebuild(id);
+                        rebuilt++;
+                    }
+                }
+                after = ids.get(ids.size() - 1);
+            }
+            if (rebuilt > 0) {
+                log.info("Rebuilt {} patient summaries", rebuilt);
+            }
+        } catch (RuntimeException e) {
+            log.error("Patient summary rebuild failed", e);
+        }
+    }
+}
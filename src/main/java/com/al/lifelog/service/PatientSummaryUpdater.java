@@ -0,0 +1,458 @@
+package com.al.lifelog.service;
+
+import com.al.lifelog.model.MongoPatientSummary;
+import com.al.lifelog.serialization.FhirSerializer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.r4.model.AllergyIntolerance;
+import org.hl7.fhir.r4.model.Appointment;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps {@link MongoPatientSummary} documents up to date as resources change.
+ *
+ * {@link com.al.lifelog.cache.CacheWriteBehind} hands over every committed write
+ * and delete. Changes are queued and applied by a single background drainer,
+ * grouped per patient: one point read, the changes applied in memory, and one
+ * replace filtered on the revision that was read (retried when another writer
+ * got in between). An entry is only replaced by a higher {@code versionId} than
+ * the one it holds, so replays and late arrivals are no-ops. Summaries already
+ * holding a changed resource are looked up on {@code members}, so one that now
+ * belongs to another patient, or is no longer a vital sign, leaves them too.
+ *
+ * What cannot be worked out from the change alone (the vital sign that was the
+ * latest for its code going away, a summary not built yet) marks the summary
+ * stale instead, and {@link PatientSummaryService} rebuilds it from the
+ * collections on its next read.
+ */
+@Component
+public class PatientSummaryUpdater {
+
+    private static final Logger log = LoggerFactory.getLogger(PatientSummaryUpdater.class);
+
+    /** Bump when what goes into a summary changes, older summaries are then rebuilt. */
+    public static final int FORMAT = 1;
+
+    static final String VITAL_SIGNS = "vital-signs";
+
+    private static final Set<String> TYPES = Set.of("Patient", "Condition", "MedicationRequest",
+            "AllergyIntolerance", "Observation", "Appointment");
+    private static final Set<String> ACTIVE_CONDITION = Set.of("active", "recurrence", "relapse");
+    private static final Set<String> REFUTED = Set.of("refuted", "entered-in-error");
+    private static final Set<MedicationRequest.MedicationRequestStatus> CURRENT_MEDICATION = Set.of(
+            MedicationRequest.MedicationRequestStatus.ACTIVE, MedicationRequest.MedicationRequestStatus.ONHOLD);
+    private static final Set<Observation.ObservationStatus> RESULT = Set.of(Observation.ObservationStatus.FINAL,
+            Observation.ObservationStatus.AMENDED, Observation.ObservationStatus.CORRECTED);
+    private static final Set<Appointment.AppointmentStatus> UPCOMING = Set.of(Appointment.AppointmentStatus.PROPOSED,
+            Appointment.AppointmentStatus.PENDING, Appointment.AppointmentStatus.BOOKED);
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final MongoTemplate mongoTemplate;
+    private final FhirSerializer serializer;
+    private final Executor executor;
+    private final int batchSize;
+
+    private final Queue<Change> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Counter applied;
+    private final Counter staled;
+
+    @Autowired
+    public PatientSummaryUpdater(MongoTemplate mongoTemplate,
+            FhirSerializer serializer,
+            @Qualifier("taskExecutor") Executor executor,
+            MeterRegistry meterRegistry,
+            @Value("${lifelog.summary.batch-size:256}") int batchSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.serializer = serializer;
+        this.executor = executor;
+        this.batchSize = Math.max(batchSize, 1);
+        this.applied = Counter.builder("fhir.summary.updates")
+                .description("Resource changes applied to patient summaries")
+                .tag("result", "applied")
+                .register(meterRegistry);
+        this.staled = Counter.builder("fhir.summary.updates")
+                .description("Resource changes applied to patient summaries")
+                .tag("result", "stale")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Applies a committed write of {@code type/id} ({@code json} is the new body,
+     * null when it was deleted) to the summary of its patient, in the background.
+     */
+    public void changed(String type, String id, String json) {
+        if (!TYPES.contains(type)) {
+            return;
+        }
+        if (json != null && "Patient".equals(type)) {
+            // The summary does not hold the patient itself
+            return;
+        }
+        pending.add(new Change(type, id, json));
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (!draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            drain();
+        }
+    }
+
+    private void drain() {
+        try {
+            List<Change> batch = new ArrayList<>(batchSize);
+            Change change;
+            while ((change = pending.poll()) != null) {
+                batch.add(change);
+                if (batch.size() == batchSize) {
+                    flush(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+            }
+        } finally {
+            draining.set(false);
+            if (!pending.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+    }
+
+    void flush(List<Change> batch) {
+        Map<String, List<String>> holders = holders(batch);
+
+        // Per patient, in the order the changes were committed
+        Map<String, List<Parsed>> byPatient = new LinkedHashMap<>();
+        for (Change change : batch) {
+            try {
+                List<String> holding = "Patient".equals(change.type)
+                        ? List.of(change.id)
+                        : holders.getOrDefault(change.ref(), List.of());
+                if (change.json == null) {
+                    holding.forEach(patientId -> add(byPatient, patientId, new Parsed(change, null)));
+                    continue;
+                }
+                if ("Observation".equals(change.type) && holding.isEmpty() && !change.json.contains(VITAL_SIGNS)) {
+                    // Neither held nor a vital sign; skipping them spares parsing every ingested sample
+                    continue;
+                }
+                Resource resource = (Resource) serializer.parse(
+                        serializer.getContext().getResourceDefinition(change.type).getImplementingClass(), change.json);
+                String patientId = patientOf(resource);
+                for (String holder : holding) {
+                    if (!holder.equals(patientId)) {
+                        // Moved to another patient (or to none): gone from this summary
+                        add(byPatient, holder, new Parsed(change, null));
+                    }
+                }
+                if (patientId != null) {
+                    add(byPatient, patientId, new Parsed(change, resource));
+                }
+            } catch (RuntimeException e) {
+                log.warn("Skipping summary update for {}/{}", change.type, change.id, e);
+            }
+        }
+
+        byPatient.forEach((patientId, changes) -> {
+            try {
+                update(patientId, changes);
+            } catch (RuntimeException e) {
+                log.warn("Failed to update the summary of Patient/{}", patientId, e);
+            }
+        });
+    }
+
+    private static void add(Map<String, List<Parsed>> byPatient, String patientId, Parsed parsed) {
+        byPatient.computeIfAbsent(patientId, p -> new ArrayList<>()).add(parsed);
+    }
+
+    /**
+     * The patients whose summary holds each resource of {@code batch}, keyed by
+     * "Type/id", in one query on the members index.
+     */
+    private Map<String, List<String>> holders(List<Change> batch) {
+        Set<String> refs = new java.util.HashSet<>();
+        for (Change change : batch) {
+            if (!"Patient".equals(change.type)) {
+                refs.add(change.ref());
+            }
+        }
+        if (refs.isEmpty()) {
+            return Map.of();
+        }
+        Query query = new Query(Criteria.where("members").in(refs));
+        query.fields().include("_id").include("members");
+        Map<String, List<String>> holders = new java.util.HashMap<>();
+        for (MongoPatientSummary summary : mongoTemplate.find(query, MongoPatientSummary.class)) {
+            for (String member : summary.getMembers()) {
+                if (refs.contains(member)) {
+                    holders.computeIfAbsent(member, m -> new ArrayList<>()).add(summary.getId());
+                }
+            }
+        }
+        return holders;
+    }
+
+    private void update(String patientId, List<Parsed> changes) {
+        if (changes.stream().anyMatch(c -> "Patient".equals(c.change.type))) {
+            mongoTemplate.remove(new Query(Criteria.where("_id").is(patientId)), MongoPatientSummary.class);
+            return;
+        }
+
+        Date now = new Date();
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            MongoPatientSummary summary = mongoTemplate.findById(patientId, MongoPatientSummary.class);
+            if (summary == null || summary.isStale() || summary.getFormat() != FORMAT) {
+                break;
+            }
+            long revision = summary.getRevision();
+            boolean current = true;
+            for (Parsed parsed : changes) {
+                current &= apply(summary, parsed.change.type, parsed.change.id, parsed.resource, now);
+            }
+            if (!current) {
+                break;
+            }
+            prepare(summary, now);
+            summary.setRevision(revision + 1);
+            Query expected = new Query(Criteria.where("_id").is(patientId).and("revision").is(revision));
+            if (mongoTemplate.replace(expected, summary).getMatchedCount() == 1) {
+                applied.increment(changes.size());
+                return;
+            }
+        }
+        markStale(patientId);
+        staled.increment(changes.size());
+    }
+
+    /**
+     * Flags the summary for a rebuild. Also creates it (as stale) when missing, so
+     * that a rebuild running concurrently no longer matches and starts over.
+     */
+    private void markStale(String patientId) {
+        mongoTemplate.upsert(new Query(Criteria.where("_id").is(patientId)),
+                new Update().set("stale", true).inc("revision", 1).currentDate("lastUpdated"),
+                MongoPatientSummary.class);
+    }
+
+    /**
+     * Drops appointments already started, orders the sections and lists their members.
+     */
+    static void prepare(MongoPatientSummary summary, Date now) {
+        summary.getAppointments().removeIf(entry -> !entry.getTime().after(now));
+        summary.getAppointments().sort(Comparator.comparing(MongoPatientSummary.Entry::getTime));
+        summary.getVitals().sort(Comparator.comparing(MongoPatientSummary.Entry::getKey));
+        List<String> members = new ArrayList<>();
+        addMembers(members, "Condition", summary.getConditions());
+        addMembers(members, "MedicationRequest", summary.getMedications());
+        addMembers(members, "AllergyIntolerance", summary.getAllergies());
+        addMembers(members, "Observation", summary.getVitals());
+        addMembers(members, "Appointment", summary.getAppointments());
+        summary.setMembers(members);
+        summary.setLastUpdated(now);
+    }
+
+    private static void addMembers(List<String> members, String type, List<MongoPatientSummary.Entry> entries) {
+        entries.forEach(entry -> members.add(type + "/" + entry.getId()));
+    }
+
+    /**
+     * Applies the new state of {@code type/id} ({@code resource}, null when deleted)
+     * to {@code summary}. Returns false when the summary has to be rebuilt instead.
+     */
+    boolean apply(MongoPatientSummary summary, String type, String id, Resource resource, Date now) {
+        return switch (type) {
+            case "Condition" -> put(summary.getConditions(), id, resource, null,
+                    resource != null && isActive((Condition) resource));
+            case "MedicationRequest" -> put(summary.getMedications(), id, resource, null,
+                    resource != null && CURRENT_MEDICATION.contains(((MedicationRequest) resource).getStatus()));
+            case "AllergyIntolerance" -> put(summary.getAllergies(), id, resource, null,
+                    resource != null && isActive((AllergyIntolerance) resource));
+            case "Appointment" -> {
+                Date start = resource != null ? ((Appointment) resource).getStart() : null;
+                yield put(summary.getAppointments(), id, resource, start, start != null && start.after(now)
+                        && UPCOMING.contains(((Appointment) resource).getStatus()));
+            }
+            case "Observation" -> vital(summary.getVitals(), id, (Observation) resource);
+            default -> true;
+        };
+    }
+
+    private boolean put(List<MongoPatientSummary.Entry> entries, String id, Resource resource, Date time,
+            boolean keep) {
+        MongoPatientSummary.Entry held = find(entries, id);
+        Long version = versionOf(resource);
+        if (held != null && isOutdated(version, held)) {
+            return true;
+        }
+        entries.remove(held);
+        if (keep) {
+            entries.add(new MongoPatientSummary.Entry(id, version, null, time, serializer.encode(resource)));
+        }
+        return true;
+    }
+
+    private boolean vital(List<MongoPatientSummary.Entry> vitals, String id, Observation observation) {
+        MongoPatientSummary.Entry held = find(vitals, id);
+        Long version = versionOf(observation);
+        String key = observation != null && isVital(observation) ? observation.getCode().getCodingFirstRep().getCode() : null;
+        Date time = key != null ? effective(observation) : null;
+
+        if (held != null) {
+            if (isOutdated(version, held)) {
+                return true;
+            }
+            if (time == null || !key.equals(held.getKey()) || time.before(held.getTime())) {
+                // It was the latest of its code: which one is now is not known here
+                return false;
+            }
+            vitals.remove(held);
+        } else if (time == null) {
+            return true;
+        } else {
+            MongoPatientSummary.Entry latest = vitals.stream()
+                    .filter(entry -> key.equals(entry.getKey())).findFirst().orElse(null);
+            if (latest != null && time.before(latest.getTime())) {
+                return true;
+            }
+            vitals.remove(latest);
+        }
+        vitals.add(new MongoPatientSummary.Entry(id, version, key, time, serializer.encode(observation)));
+        return true;
+    }
+
+    private static MongoPatientSummary.Entry find(List<MongoPatientSummary.Entry> entries, String id) {
+        return entries.stream().filter(entry -> id.equals(entry.getId())).findFirst().orElse(null);
+    }
+
+    private static boolean isOutdated(Long version, MongoPatientSummary.Entry held) {
+        return version != null && held.getVersionId() != null && version <= held.getVersionId();
+    }
+
+    private static Long versionOf(Resource resource) {
+        if (resource == null || !resource.getMeta().hasVersionId()) {
+            return null;
+        }
+        try {
+            return Long.valueOf(resource.getMeta().getVersionId());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static boolean isActive(Condition condition) {
+        return hasCode(condition.getClinicalStatus(), ACTIVE_CONDITION)
+                && !hasCode(condition.getVerificationStatus(), REFUTED);
+    }
+
+    static boolean isActive(AllergyIntolerance allergy) {
+        // clinicalStatus may be left out, only an inactive or resolved one excludes
+        return (!allergy.hasClinicalStatus() || hasCode(allergy.getClinicalStatus(), Set.of("active")))
+                && !hasCode(allergy.getVerificationStatus(), REFUTED);
+    }
+
+    static boolean isVital(Observation observation) {
+        return RESULT.contains(observation.getStatus())
+                && observation.getCategory().stream().anyMatch(c -> hasCode(c, Set.of(VITAL_SIGNS)))
+                && observation.getCode().getCodingFirstRep().hasCode()
+                && effective(observation) != null;
+    }
+
+    private static Date effective(Observation observation) {
+        if (observation.hasEffectiveDateTimeType()) {
+            return observation.getEffectiveDateTimeType().getValue();
+        }
+        if (observation.hasEffectivePeriod()) {
+            return observation.getEffectivePeriod().getStart();
+        }
+        return null;
+    }
+
+    private static boolean hasCode(CodeableConcept concept, Set<String> codes) {
+        for (Coding coding : concept.getCoding()) {
+            if (codes.contains(coding.getCode())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Id of the patient {@code resource} belongs to, null when it has none.
+     */
+    static String patientOf(Resource resource) {
+        if (resource instanceof Condition condition) {
+            return patientId(condition.getSubject());
+        } else if (resource instanceof MedicationRequest request) {
+            return patientId(request.getSubject());
+        } else if (resource instanceof AllergyIntolerance allergy) {
+            return patientId(allergy.getPatient());
+        } else if (resource instanceof Observation observation) {
+            return patientId(observation.getSubject());
+        } else if (resource instanceof Appointment appointment) {
+            for (Appointment.AppointmentParticipantComponent participant : appointment.getParticipant()) {
+                String patientId = patientId(participant.getActor());
+                if (patientId != null) {
+                    return patientId;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String patientId(Reference reference) {
+        if (reference == null || !reference.hasReference()) {
+            return null;
+        }
+        IdType id = new IdType(reference.getReference());
+        return "Patient".equals(id.getResourceType()) ? id.getIdPart() : null;
+    }
+
+    record Change(String type, String id, String json) {
+
+        String ref() {
+            return type + "/" + id;
+        }
+    }
+
+    private record Parsed(Change change, Resource resource) {
+    }
+}
@@ -0,0 +1,217 @@
+package com.al.lifelog.service;
+
+import com.al.lifelog.model.MongoMigrationJob;
+import com.al.lifelog.model.MongoResourceHistory;
+import com.al.lifelog.model.ResourceDocuments;
+import com.al.lifelog.repository.MigrationJobRepository;
+import com.al.lifelog.serialization.PayloadCodec;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Rewrites the {@code fhirJson} bodies already stored in every resource
+ * collection and {@code resource_history} with the configured payload codec.
+ *
+ * Collections are walked through the driver in {@code _id} order, reading only
+ * the bodies not yet in the target form (plain strings, or binaries when the
+ * codec is {@code none}; everything with {@code force}). Each rewrite is an
+ * unordered bulk update filtered on the body it replaces, so a document written
+ * concurrently is left alone rather than overwritten with stale content. A pass
+ * is idempotent: an interrupted one is finished by starting it again.
+ */
+@Service
+public class PayloadMigrationService {
+
+    private static final Logger log = LoggerFactory.getLogger(PayloadMigrationService.class);
+
+    private static final String FIELD = "fhirJson";
+
+    private final MongoTemplate mongoTemplate;
+    private final PayloadCodec payloadCodec;
+    private final MigrationJobRepository repository;
+    private final Counter rewrittenCounter;
+    private final int batchSize;
+    private final ExecutorService runner;
+    // At most one pass per node
+    private final AtomicReference<String> running = new AtomicReference<>();
+
+    @Autowired
+    public PayloadMigrationService(MongoTemplate mongoTemplate,
+            PayloadCodec payloadCodec,
+            MigrationJobRepository repository,
+            MeterRegistry meterRegistry,
+            @Value("${lifelog.storage.migration-batch-size:500}") int batchSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.payloadCodec = payloadCodec;
+        this.repository = repository;
+        this.batchSize = Math.max(batchSize, 1);
+        this.rewrittenCounter = Counter.builder("fhir.storage.recompressed")
+                .description("Stored resource bodies rewritten with the current payload codec")
+                .register(meterRegistry);
+        this.runner = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "LifeLogRecompress");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        runner.shutdownNow();
+    }
+
+    /**
+     * Records a job and starts it in the background, or returns the one this node
+     * is already running.
+     */
+    public MongoMigrationJob startMigration(boolean force, String request) {
+        String id = UUID.randomUUID().toString();
+        if (!running.compareAndSet(null, id)) {
+            MongoMigrationJob current = getJob(running.get());
+            if (current != null) {
+                return current;
+            }
+            running.set(id);
+        }
+
+        MongoMigrationJob job = new MongoMigrationJob();
+        job.setId(id);
+        job.setStatus(MongoMigrationJob.ACCEPTED);
+        job.setRequest(request);
+        job.setCodec(payloadCodec.name());
+        job.setForce(force);
+        repository.insert(job);
+
+        runner.execute(() -> {
+            try {
+                run(job);
+            } finally {
+                running.compareAndSet(id, null);
+            }
+        });
+        return job;
+    }
+
+    public MongoMigrationJob getJob(String id) {
+        return id != null ? repository.findById(id).orElse(null) : null;
+    }
+
+    void run(MongoMigrationJob job) {
+        job.setStatus(MongoMigrationJob.IN_PROGRESS);
+        job.setStartedAt(new Date());
+        repository.save(job);
+        try {
+            List<String> collections = new ArrayList<>();
+            for (String type : new TreeSet<>(ResourceDocuments.types())) {
+                collections.add(mongoTemplate.getCollectionName(ResourceDocuments.forType(type)));
+            }
+            collections.add(mongoTemplate.getCollectionName(MongoResourceHistory.class));
+            for (String collection : collections) {
+                MongoMigrationJob.CollectionProgress progress = new MongoMigrationJob.CollectionProgress();
+                progress.setCollection(collection);
+                job.getCollections().add(progress);
+                recompress(job, progress);
+            }
+            job.setStatus(MongoMigrationJob.COMPLETED);
+            job.setFinishedAt(new Date());
+            repository.save(job);
+            log.info("Recompression {} finished with codec {}", job.getId(), job.getCodec());
+        } catch (RuntimeException e) {
+            log.error("Recompression {} failed", job.getId(), e);
+            job.setStatus(MongoMigrationJob.FAILED);
+            job.setError(e.getMessage());
+            job.setFinishedAt(new Date());
+            repository.save(job);
+        }
+    }
+
+    void recompress(MongoMigrationJob job, MongoMigrationJob.CollectionProgress progress) {
+        MongoCollection<Document> collection = mongoTemplate.getCollection(progress.getCollection());
+        List<WriteModel<Document>> batch = new ArrayList<>(batchSize);
+        try (MongoCursor<Document> cursor = collection.find(pending(job.isForce()))
+                .projection(Projections.include(FIELD))
+                .sort(Sorts.ascending("_id"))
+                .batchSize(batchSize)
+                .iterator()) {
+            while (cursor.hasNext()) {
+                Document document = cursor.next();
+                progress.setScanned(progress.getScanned() + 1);
+                Object stored = document.get(FIELD);
+                if (!job.isForce() && payloadCodec.isCurrent(stored)) {
+                    continue;
+                }
+                Object rewritten = payloadCodec.toStored(payloadCodec.fromStored(stored));
+                if (rewritten == null || rewritten.equals(stored)) {
+                    // Too small or incompressible, already in its final form
+                    continue;
+                }
+                batch.add(new UpdateOneModel<>(
+                        Filters.and(Filters.eq("_id", document.get("_id")), Filters.eq(FIELD, stored)),
+                        Updates.set(FIELD, rewritten)));
+                progress.setBytesBefore(progress.getBytesBefore() + size(stored));
+                progress.setBytesAfter(progress.getBytesAfter() + size(rewritten));
+                if (batch.size() == batchSize) {
+                    flush(job, collection, progress, batch);
+                }
+            }
+        }
+        flush(job, collection, progress, batch);
+    }
+
+    private Bson pending(boolean force) {
+        if (force) {
+            return Filters.exists(FIELD);
+        }
+        return Filters.type(FIELD, "none".equals(payloadCodec.name()) ? BsonType.BINARY : BsonType.STRING);
+    }
+
+    private void flush(MongoMigrationJob job, MongoCollection<Document> collection,
+            MongoMigrationJob.CollectionProgress progress, List<WriteModel<Document>> batch) {
+        if (!batch.isEmpty()) {
+            BulkWriteResult result = collection.bulkWrite(batch, new BulkWriteOptions().ordered(false));
+            progress.setRewritten(progress.getRewritten() + result.getModifiedCount());
+            rewrittenCounter.increment(result.getModifiedCount());
+            batch.clear();
+        }
+        // Checkpoint for $recompress-status
+        repository.save(job);
+    }
+
+    private static long size(Object stored) {
+        if (stored instanceof Binary binary) {
+            return binary.length();
+        }
+        return stored instanceof String json ? json.getBytes(StandardCharsets.UTF_8).length : 0;
+    }
+}
@@ -1,9 +1,14 @@
 package com.al.lifelog.service;
 
+import ca.uhn.fhir.rest.param.StringParam;
 import com.al.lifelog.model.MongoPractitioner;
+import com.al.lifelog.paging.SearchCursor;
+import com.al.lifelog.paging.SearchPage;
 import com.al.lifelog.repository.PractitionerRepository;
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import com.al.lifelog.cache.CacheWriteBehind;
+import com.al.lifelog.cache.NearCache;
+import com.al.lifelog.cache.SingleFlight;
+import com.al.lifelog.serialization.FhirSerializer;
 import org.hl7.fhir.r4.model.Practitioner;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
@@ -17,8 +22,7 @@ import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import java.util.stream.Collectors;
 
 @Service
@@ -26,17 +30,26 @@ public class PractitionerService {
 
     private final PractitionerRepository repository;
     private final StringRedisTemplate redisTemplate;
-    private final FhirContext ctx;
+    private final FhirSerializer serializer;
+    private final NearCache nearCache;
+    private final SingleFlight singleFlight;
+    private final CacheWriteBehind cacheWriteBehind;
     private final MongoTemplate mongoTemplate;
 
     @Autowired
     public PractitionerService(PractitionerRepository repository,
             StringRedisTemplate redisTemplate,
-            FhirContext ctx,
-            MongoTemplate mongoTemplate) {
+            FhirSerializer serializer,
+            MongoTemplate mongoTemplate,
+            NearCache nearCache,
+            SingleFlight singleFlight,
+            CacheWriteBehind cacheWriteBehind) {
         this.repository = repository;
         this.redisTemplate = redisTemplate;
-        this.ctx = ctx;
+        this.serializer = serializer;
+        this.nearCache = nearCache;
+        this.singleFlight = singleFlight;
+        this.cacheWriteBehind = cacheWriteBehind;
         this.mongoTemplate = mongoTemplate;
     }
 
@@ -51,6 +64,23 @@ public class PractitionerService {
         }
 
         // 2. Prepare Mongo Document
+        MongoPractitioner mongoPrac = toDocument(id, practitioner);
+        String json = mongoPrac.getFhirJson();
+
+        // 3. Save
+        repository.save(mongoPrac);
+
+        // 4. Cache
+        cacheWriteBehind.put("Practitioner", id, json);
+
+        return practitioner;
+    }
+
+    /**
+     * Builds the document stored for {@code practitioner}, search fields and JSON included.
+     */
+    public MongoPractitioner toDocument(String id, Practitioner practitioner) {
+        // Prepare Mongo Document
         MongoPractitioner mongoPrac = new MongoPractitioner();
         mongoPrac.setId(id);
 
@@ -62,53 +92,53 @@ public class PractitionerService {
                 mongoPrac.setGiven(practitioner.getNameFirstRep().getGivenAsSingleString());
             }
         }
+        mongoPrac.setNameKeys(NameKeys.keys(practitioner.getName()));
+        mongoPrac.setNameGrams(NameKeys.grams(mongoPrac.getNameKeys()));
 
         if (practitioner.hasIdentifier()) {
             // Just take the first identifier value
             mongoPrac.setIdentifier(practitioner.getIdentifierFirstRep().getValue());
         }
 
-        // 3. Serialize
-        IParser parser = ctx.newJsonParser();
-        String json = parser.encodeResourceToString(practitioner);
+        // Serialize
+        String json = serializer.encode(practitioner);
         mongoPrac.setFhirJson(json);
+        return mongoPrac;
+    }
 
-        // 4. Save
-        repository.save(mongoPrac);
-
-        // 5. Cache
-        redisTemplate.opsForValue().set("practitioner:" + id, json, Duration.ofMinutes(10));
+    public Practitioner getPractitioner(String id) {
+        Practitioner near = nearCache.get("Practitioner", id, Practitioner.class);
+        if (near != null) {
+            return near;
+        }
 
-        return practitioner;
+        return singleFlight.load("Practitioner", id, () -> loadPractitioner(id));
     }
 
-    public Practitioner getPractitioner(String id) {
-        String cached = redisTemplate.opsForValue().get("practitioner:" + id);
+    private Practitioner loadPractitioner(String id) {
+        String cached = nearCache.isPending("Practitioner", id) ? null
+                : redisTemplate.opsForValue().get("practitioner:" + id);
         if (cached != null) {
-            return ctx.newJsonParser().parseResource(Practitioner.class, cached);
+            Practitioner fromRedis = serializer.parse(Practitioner.class, cached);
+            nearCache.put("Practitioner", id, fromRedis, cached.length());
+            return fromRedis;
         }
 
         Optional<MongoPractitioner> result = repository.findById(id);
         if (result.isPresent()) {
-            Practitioner p = ctx.newJsonParser().parseResource(Practitioner.class, result.get().getFhirJson());
+            Practitioner p = serializer.parse(Practitioner.class, result.get().getFhirJson());
             if (!p.hasId()) {
                 p.setId(id);
             }
             redisTemplate.opsForValue().set("practitioner:" + id, result.get().getFhirJson(), Duration.ofMinutes(10));
+            nearCache.put("Practitioner", id, p, result.get().getFhirJson().length());
             return p;
         }
         return null;
     }
 
-    public List<Practitioner> searchPractitioners(String name, int offset, int count) {
-        Query query = new Query();
-
-        if (name != null && !name.isEmpty()) {
-            Criteria nameCriteria = new Criteria().orOperator(
-                    Criteria.where("family").regex(name, "i"),
-                    Criteria.where("given").regex(name, "i"));
-            query.addCriteria(nameCriteria);
-        }
+    public List<Practitioner> searchPractitioners(StringParam name, int offset, int count) {
+        Query query = buildSearchQuery(name);
 
         if (query.getQueryObject().isEmpty()) {
             if (offset == 0 && count <= 0) {
@@ -118,22 +148,51 @@ public class PractitionerService {
             }
         }
 
+        // Exact offset, same order as the keyset search
         int limit = (count > 0) ? count : 10;
         int skip = (offset >= 0) ? offset : 0;
 
-        Pageable pageable = PageRequest.of(skip / limit, limit);
-        query.with(pageable);
+        query.with(Sort.by(Sort.Direction.ASC, "_id"));
+        query.skip(skip).limit(limit);
 
         List<MongoPractitioner> results = mongoTemplate.find(query, MongoPractitioner.class);
 
         return results.stream()
-                .map(prac -> {
-                    Practitioner p = ctx.newJsonParser().parseResource(Practitioner.class, prac.getFhirJson());
-                    if (p.getId() == null || p.getId().isEmpty()) {
-                        p.setId(prac.getId());
-                    }
-                    return p;
-                })
+                .map(this::toPractitioner)
                 .collect(Collectors.toList());
     }
+
+    /**
+     * Keyset variant of {@link #searchPractitioners(StringParam, int, int)},
+     * ordered by _id and resuming right after {@code cursor}.
+     */
+    public SearchPage<Practitioner> searchPractitioners(StringParam name, String cursor, int count) {
+        Query query = buildSearchQuery(name);
+
+        int limit = (count > 0) ? count : 10;
+        SearchCursor.seek(query, cursor, limit);
+
+        List<MongoPractitioner> results = mongoTemplate.find(query, MongoPractitioner.class);
+
+        return SearchPage.of(results, limit, prac -> SearchCursor.after(prac.getId()), this::toPractitioner);
+    }
+
+    private Query buildSearchQuery(StringParam name) {
+        Query query = new Query();
+
+        Criteria nameCriteria = NameKeys.criteria(name);
+        if (nameCriteria != null) {
+            query.addCriteria(nameCriteria);
+        }
+
+        return query;
+    }
+
+    private Practitioner toPractitioner(MongoPractitioner prac) {
+        Practitioner p = serializer.parse(Practitioner.class, prac.getFhirJson());
+        if (p.getId() == null || p.getId().isEmpty()) {
+            p.setId(prac.getId());
+        }
+        return p;
+    }
 }
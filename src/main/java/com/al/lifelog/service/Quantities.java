@@ -0,0 +1,185 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.param.QuantityParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.al.lifelog.model.MongoObservation;
+import org.fhir.ucum.Decimal;
+import org.fhir.ucum.Pair;
+import org.fhir.ucum.UcumEssenceService;
+import org.fhir.ucum.UcumException;
+import org.hl7.fhir.r4.model.Quantity;
+import org.springframework.data.mongodb.core.query.Criteria;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index form of Observation quantities and the criteria behind the
+ * {@code value-quantity} family of searches.
+ *
+ * A quantity in a UCUM unit (or with no system and a code UCUM accepts) is
+ * stored converted to the canonical unit, so {@code 120 /min} and
+ * {@code 2 /s} index the same; anything else keeps its value and its code (or
+ * unit text). The value as recorded is kept as well for searches that give no
+ * unit. Searches with a unit are converted the same way before comparing.
+ */
+public final class Quantities {
+
+    public static final String UCUM = "http://unitsofmeasure.org";
+
+    // Units seen so far, bounded against arbitrary client input
+    private static final int MAX_UNITS = 10_000;
+    private static final Map<String, Boolean> UCUM_UNITS = new ConcurrentHashMap<>();
+
+    private Quantities() {
+    }
+
+    private static final class Ucum {
+        static final UcumEssenceService SERVICE = load();
+
+        private static UcumEssenceService load() {
+            try (InputStream essence = Quantities.class.getResourceAsStream("/ucum-essence.xml")) {
+                return new UcumEssenceService(essence);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (UcumException e) {
+                throw new IllegalStateException("Cannot load the UCUM definitions", e);
+            }
+        }
+    }
+
+    /**
+     * Index form of {@code quantity}, or null when it has no value.
+     */
+    public static MongoObservation.SearchQuantity index(Quantity quantity) {
+        if (quantity == null || !quantity.hasValue()) {
+            return null;
+        }
+        String code = quantity.hasCode() ? quantity.getCode() : quantity.getUnit();
+        double raw = quantity.getValue().doubleValue();
+        Pair canonical = canonical(quantity.getValue(), quantity.getSystem(), code);
+        if (canonical == null) {
+            return new MongoObservation.SearchQuantity(raw, code, raw);
+        }
+        return new MongoObservation.SearchQuantity(number(canonical), canonical.getCode(), raw);
+    }
+
+    /**
+     * Criteria on the quantity stored under {@code path} (e.g. {@code quantity},
+     * or {@code quantity} inside a component's {@code $elemMatch}).
+     */
+    public static Criteria criteria(String path, QuantityParam param) {
+        if (param == null || param.getValue() == null) {
+            throw new InvalidRequestException("Quantity search needs a number");
+        }
+        ParamPrefixEnum prefix = param.getPrefix() != null ? param.getPrefix() : ParamPrefixEnum.EQUAL;
+        BigDecimal value = param.getValue();
+        String units = param.getUnits() != null && !param.getUnits().isEmpty() ? param.getUnits() : null;
+        String system = param.getSystem() != null && !param.getSystem().isEmpty() ? param.getSystem() : null;
+
+        // Implicit range of the number as written (eq, ne) or +-10% (ap)
+        BigDecimal low;
+        BigDecimal high;
+        if (prefix == ParamPrefixEnum.APPROXIMATE) {
+            BigDecimal margin = value.abs().multiply(new BigDecimal("0.1"));
+            low = value.subtract(margin);
+            high = value.add(margin);
+        } else {
+            BigDecimal half = BigDecimal.ONE.movePointLeft(Math.max(value.scale(), 0)).divide(BigDecimal.valueOf(2));
+            low = value.subtract(half);
+            high = value.add(half);
+        }
+
+        String field;
+        Criteria unit = null;
+        if (units == null) {
+            field = path + ".raw";
+        } else {
+            Pair canonical = canonical(value, system, units);
+            field = path + ".value";
+            unit = Criteria.where(path + ".unit").is(canonical != null ? canonical.getCode() : units);
+            if (canonical != null) {
+                value = new BigDecimal(canonical.getValue().asDecimal());
+                low = converted(low, system, units);
+                high = converted(high, system, units);
+            }
+        }
+
+        if (prefix == ParamPrefixEnum.NOT_EQUAL) {
+            // Either side of the range; $not only negates the single operator after it
+            Criteria outside = unit != null ? unit : new Criteria();
+            return outside.orOperator(Criteria.where(field).lt(low.doubleValue()),
+                    Criteria.where(field).gte(high.doubleValue()));
+        }
+
+        Criteria number = unit != null ? unit.and(field) : Criteria.where(field);
+        switch (prefix) {
+            case GREATERTHAN, STARTS_AFTER -> number.gt(value.doubleValue());
+            case GREATERTHAN_OR_EQUALS -> number.gte(value.doubleValue());
+            case LESSTHAN, ENDS_BEFORE -> number.lt(value.doubleValue());
+            case LESSTHAN_OR_EQUALS -> number.lte(value.doubleValue());
+            default -> number.gte(low.doubleValue()).lt(high.doubleValue());
+        }
+        return number;
+    }
+
+    /**
+     * How values of {@code units} are indexed, or null when {@code units} is not a
+     * UCUM unit. Conversions to canonical units are affine (Cel), never worse.
+     */
+    public static Conversion conversion(String units) {
+        Pair zero = canonical(BigDecimal.ZERO, UCUM, units);
+        Pair one = canonical(BigDecimal.ONE, UCUM, units);
+        if (zero == null || one == null) {
+            return null;
+        }
+        return new Conversion(one.getCode(), number(zero), number(one) - number(zero));
+    }
+
+    /**
+     * {@code canonical = offset + scale * value} for one unit.
+     */
+    public record Conversion(String canonicalUnit, double offset, double scale) {
+
+        public double fromCanonical(double canonical) {
+            return (canonical - offset) / scale;
+        }
+    }
+
+    private static BigDecimal converted(BigDecimal value, String system, String units) {
+        Pair pair = canonical(value, system, units);
+        return pair != null ? new BigDecimal(pair.getValue().asDecimal()) : value;
+    }
+
+    private static Pair canonical(BigDecimal value, String system, String code) {
+        if (code == null || (system != null && !UCUM.equals(system)) || !isUcum(code)) {
+            return null;
+        }
+        try {
+            return Ucum.SERVICE.getCanonicalForm(new Pair(new Decimal(value.toPlainString()), code));
+        } catch (UcumException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static boolean isUcum(String code) {
+        Boolean known = UCUM_UNITS.get(code);
+        if (known == null) {
+            // validate() returns the problem, null for a valid unit
+            known = Ucum.SERVICE.validate(code) == null;
+            if (UCUM_UNITS.size() < MAX_UNITS) {
+                UCUM_UNITS.put(code, known);
+            }
+        }
+        return known;
+    }
+
+    private static double number(Pair pair) {
+        return Double.parseDouble(pair.getValue().asDecimal());
+    }
+}
@@ -0,0 +1,106 @@
+package com.al.lifelog.service;
+
+import com.al.lifelog.cache.NearCache;
+import com.al.lifelog.model.ResourceDocuments;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Date;
+
+/**
+ * Loads the stored JSON of a resource without parsing it, for the raw read path.
+ * Uses the same Redis keys and Mongo collections as the per-type services.
+ */
+@Service
+public class RawResourceService {
+
+    private final StringRedisTemplate redisTemplate;
+    private final MongoTemplate mongoTemplate;
+    private final NearCache nearCache;
+    private final AuditService auditService;
+
+    @Autowired
+    public RawResourceService(StringRedisTemplate redisTemplate,
+            MongoTemplate mongoTemplate,
+            NearCache nearCache,
+            AuditService auditService) {
+        this.redisTemplate = redisTemplate;
+        this.mongoTemplate = mongoTemplate;
+        this.nearCache = nearCache;
+        this.auditService = auditService;
+    }
+
+    public boolean supports(String resourceType) {
+        return ResourceDocuments.isStored(resourceType);
+    }
+
+    /**
+     * Returns the stored JSON for {@code resourceType/id}, or null if it does not
+     * exist. Version and lastUpdated are only known on a Mongo hit; the cached
+     * JSON already carries the meta it was written with.
+     */
+    public RawResource read(String resourceType, String id) {
+        Class<?> documentType = ResourceDocuments.forType(resourceType);
+        if (documentType == null) {
+            return null;
+        }
+
+        String cacheKey = resourceType.toLowerCase() + ":" + id;
+        String cached = nearCache.isPending(resourceType, id) ? null : redisTemplate.opsForValue().get(cacheKey);
+        if (cached != null) {
+            audit(resourceType, id);
+            return new RawResource(cached, null, null);
+        }
+
+        Query query = new Query(Criteria.where("_id").is(id));
+        query.fields().include("fhirJson").include("versionId").include("lastUpdated");
+        Document doc = mongoTemplate.findOne(query, Document.class, mongoTemplate.getCollectionName(documentType));
+        if (doc == null || doc.getString("fhirJson") == null) {
+            return null;
+        }
+
+        String json = doc.getString("fhirJson");
+        redisTemplate.opsForValue().set(cacheKey, json, Duration.ofMinutes(10));
+        audit(resourceType, id);
+
+        Number version = doc.get("versionId", Number.class);
+        return new RawResource(json, version != null ? version.longValue() : null, doc.getDate("lastUpdated"));
+    }
+
+    private void audit(String resourceType, String id) {
+        // Same audit trail the parsed read path leaves for patients
+        if ("Patient".equals(resourceType)) {
+            auditService.log("read", "Patient", id, "Success", null, null);
+        }
+    }
+
+    public static class RawResource {
+        private final String json;
+        private final Long versionId;
+        private final Date lastUpdated;
+
+        public RawResource(String json, Long versionId, Date lastUpdated) {
+            this.json = json;
+            this.versionId = versionId;
+            this.lastUpdated = lastUpdated;
+        }
+
+        public String getJson() {
+            return json;
+        }
+
+        public Long getVersionId() {
+            return versionId;
+        }
+
+        public Date getLastUpdated() {
+            return lastUpdated;
+        }
+    }
+}
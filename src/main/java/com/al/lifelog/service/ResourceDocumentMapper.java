@@ -0,0 +1,115 @@
+package com.al.lifelog.service;
+
+import org.bson.Document;
+import org.hl7.fhir.r4.model.AllergyIntolerance;
+import org.hl7.fhir.r4.model.Appointment;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Immunization;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds the stored Mongo document for any supported resource type, using the
+ * owning service's {@code toDocument} so bulk paths (bundles, $import) store the
+ * same search fields as single creates. The result is the raw BSON, ready for a
+ * bulk write against the type's collection.
+ */
+@Component
+public class ResourceDocumentMapper {
+
+    /** Document classes that carry versionId and get history rows. */
+    private static final Set<String> VERSIONED = Set.of("Patient", "Observation", "Condition", "Encounter");
+
+    private final MongoTemplate mongoTemplate;
+    private final Map<String, Mapping> mappings = new HashMap<>();
+
+    @Autowired
+    public ResourceDocumentMapper(MongoTemplate mongoTemplate,
+            PatientService patientService,
+            ObservationService observationService,
+            ConditionService conditionService,
+            EncounterService encounterService,
+            AllergyIntoleranceService allergyIntoleranceService,
+            AppointmentService appointmentService,
+            DiagnosticReportService diagnosticReportService,
+            ImmunizationService immunizationService,
+            MedicationRequestService medicationRequestService,
+            OrganizationService organizationService,
+            PractitionerService practitionerService) {
+        this.mongoTemplate = mongoTemplate;
+        register("Patient", Patient.class, (id, r, v) -> patientService.toDocument(id, (Patient) r, v));
+        register("Observation", Observation.class,
+                (id, r, v) -> observationService.toDocument(id, (Observation) r, v));
+        register("Condition", Condition.class, (id, r, v) -> conditionService.toDocument(id, (Condition) r, v));
+        register("Encounter", Encounter.class, (id, r, v) -> encounterService.toDocument(id, (Encounter) r, v));
+        register("AllergyIntolerance", AllergyIntolerance.class,
+                (id, r, v) -> allergyIntoleranceService.toDocument(id, (AllergyIntolerance) r));
+        register("Appointment", Appointment.class,
+                (id, r, v) -> appointmentService.toDocument(id, (Appointment) r));
+        register("DiagnosticReport", DiagnosticReport.class,
+                (id, r, v) -> diagnosticReportService.toDocument(id, (DiagnosticReport) r));
+        register("Immunization", Immunization.class,
+                (id, r, v) -> immunizationService.toDocument(id, (Immunization) r));
+        register("MedicationRequest", MedicationRequest.class,
+                (id, r, v) -> medicationRequestService.toDocument(id, (MedicationRequest) r));
+        register("Organization", Organization.class,
+                (id, r, v) -> organizationService.toDocument(id, (Organization) r));
+        register("Practitioner", Practitioner.class,
+                (id, r, v) -> practitionerService.toDocument(id, (Practitioner) r));
+    }
+
+    private void register(String type, Class<? extends Resource> resourceClass, DocumentFactory factory) {
+        mappings.put(type, new Mapping(resourceClass, factory));
+    }
+
+    public boolean supports(String resourceType) {
+        return resourceType != null && mappings.containsKey(resourceType);
+    }
+
+    public boolean isVersioned(String resourceType) {
+        return VERSIONED.contains(resourceType);
+    }
+
+    public Class<? extends Resource> resourceClass(String resourceType) {
+        return mappings.get(resourceType).resourceClass;
+    }
+
+    /**
+     * Stamps {@code resource} (version and lastUpdated for versioned types) and
+     * returns its stored document as BSON.
+     */
+    public Document toDocument(String resourceType, String id, Resource resource, long version) {
+        Object document = mappings.get(resourceType).factory.toDocument(id, resource, version);
+        Document bson = new Document();
+        mongoTemplate.getConverter().write(document, bson);
+        return bson;
+    }
+
+    @FunctionalInterface
+    private interface DocumentFactory {
+        Object toDocument(String id, Resource resource, long version);
+    }
+
+    private static final class Mapping {
+        private final Class<? extends Resource> resourceClass;
+        private final DocumentFactory factory;
+
+        private Mapping(Class<? extends Resource> resourceClass, DocumentFactory factory) {
+            this.resourceClass = resourceClass;
+            this.factory = factory;
+        }
+    }
+}
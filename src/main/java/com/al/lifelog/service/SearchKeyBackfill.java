@@ -0,0 +1,171 @@
+package com.al.lifelog.service;
+
+import com.al.lifelog.model.MongoCondition;
+import com.al.lifelog.model.MongoDiagnosticReport;
+import com.al.lifelog.model.MongoObservation;
+import com.al.lifelog.model.MongoPatient;
+import com.al.lifelog.model.MongoPractitioner;
+import com.al.lifelog.serialization.FhirSerializer;
+import com.al.lifelog.serialization.PayloadCodec;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Fills derived search keys on documents written before their index existed:
+ * {@code nameKeys}/{@code nameGrams} on patients and practitioners, and
+ * {@code codes} on observations, conditions and diagnostic reports (plus the
+ * category and value-quantity keys on observations). Runs once per start in
+ * the background.
+ *
+ * Only documents still missing the keys are read, and each update is filtered
+ * on the keys being absent, so a resource saved meanwhile keeps its own.
+ */
+@Service
+public class SearchKeyBackfill {
+
+    private static final Logger log = LoggerFactory.getLogger(SearchKeyBackfill.class);
+
+    private final MongoTemplate mongoTemplate;
+    private final FhirSerializer serializer;
+    private final PayloadCodec payloadCodec;
+    private final boolean enabled;
+    private final int batchSize;
+    private final ExecutorService runner;
+
+    @Autowired
+    public SearchKeyBackfill(MongoTemplate mongoTemplate,
+            FhirSerializer serializer,
+            PayloadCodec payloadCodec,
+            @Value("${lifelog.search.backfill:true}") boolean enabled,
+            @Value("${lifelog.storage.migration-batch-size:500}") int batchSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.serializer = serializer;
+        this.payloadCodec = payloadCodec;
+        this.enabled = enabled;
+        this.batchSize = Math.max(batchSize, 1);
+        this.runner = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "LifeLogSearchKeys");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    public void start() {
+        if (enabled) {
+            runner.execute(this::run);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        runner.shutdownNow();
+    }
+
+    void run() {
+        try {
+            backfill(MongoPatient.class, NameKeys.KEYS, json -> names(serializer.parse(Patient.class, json).getName()));
+            backfill(MongoPractitioner.class, NameKeys.KEYS,
+                    json -> names(serializer.parse(Practitioner.class, json).getName()));
+            backfill(MongoObservation.class, CodeTokens.FIELD, this::observationKeys);
+            // Documents that got their codes before categories were indexed
+            backfill(MongoObservation.class, ObservationService.CATEGORIES, this::observationKeys);
+            backfill(MongoCondition.class, CodeTokens.FIELD,
+                    json -> codes(serializer.parse(Condition.class, json).getCode()));
+            backfill(MongoDiagnosticReport.class, CodeTokens.FIELD,
+                    json -> codes(serializer.parse(DiagnosticReport.class, json).getCode()));
+        } catch (RuntimeException e) {
+            log.error("Search key backfill failed", e);
+        }
+    }
+
+    private static Bson names(List<HumanName> names) {
+        List<String> keys = NameKeys.keys(names);
+        return Updates.combine(Updates.set(NameKeys.KEYS, keys), Updates.set(NameKeys.GRAMS, NameKeys.grams(keys)));
+    }
+
+    private Bson observationKeys(String json) {
+        MongoObservation keys = new MongoObservation();
+        ObservationService.indexSearchFields(keys, serializer.parse(Observation.class, json));
+        MongoConverter converter = mongoTemplate.getConverter();
+        return Updates.combine(Updates.set(CodeTokens.FIELD, keys.getCodes()),
+                Updates.set(ObservationService.CATEGORIES, keys.getCategories()),
+                Updates.set("quantity", converter.convertToMongoType(keys.getQuantity())),
+                Updates.set("components", converter.convertToMongoType(keys.getComponents())));
+    }
+
+    private static Bson codes(CodeableConcept code) {
+        return Updates.set(CodeTokens.FIELD, CodeTokens.tokens(code));
+    }
+
+    long backfill(Class<?> documentClass, String field, Function<String, Bson> keys) {
+        String collectionName = mongoTemplate.getCollectionName(documentClass);
+        MongoCollection<Document> collection = mongoTemplate.getCollection(collectionName);
+        List<WriteModel<Document>> batch = new ArrayList<>(batchSize);
+        long filled = 0;
+        try (MongoCursor<Document> cursor = collection.find(Filters.exists(field, false))
+                .projection(Projections.include("fhirJson"))
+                .sort(Sorts.ascending("_id"))
+                .batchSize(batchSize)
+                .iterator()) {
+            while (cursor.hasNext()) {
+                Document document = cursor.next();
+                String json = payloadCodec.fromStored(document.get("fhirJson"));
+                if (json == null) {
+                    continue;
+                }
+                batch.add(new UpdateOneModel<>(
+                        Filters.and(Filters.eq("_id", document.get("_id")), Filters.exists(field, false)),
+                        keys.apply(json)));
+                if (batch.size() == batchSize) {
+                    filled += flush(collection, batch);
+                }
+            }
+        }
+        filled += flush(collection, batch);
+        if (filled > 0) {
+            log.info("Search keys filled on {} {}", filled, collectionName);
+        }
+        return filled;
+    }
+
+    private static long flush(MongoCollection<Document> collection, List<WriteModel<Document>> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        long modified = collection.bulkWrite(batch, new BulkWriteOptions().ordered(false)).getModifiedCount();
+        batch.clear();
+        return modified;
+    }
+}
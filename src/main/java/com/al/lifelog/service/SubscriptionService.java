@@ -7,6 +7,7 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 import java.util.concurrent.ConcurrentHashMap;
 
+import java.util.List;
 import java.util.Map;
 
 @Service
@@ -39,6 +40,21 @@ public class SubscriptionService {
                 .forEach(sub -> sendNotification(sub, action, jsonBody));
     }
 
+    /**
+     * Same as {@link #notifySubscribers(String, String, String)} for many resources,
+     * as one async task instead of one per resource.
+     */
+    @Async("taskExecutor")
+    public void notifySubscribers(String resourceType, String action, List<String> jsonBodies) {
+        List<Subscription> matching = subscriptions.values().stream()
+                .filter(sub -> sub.getStatus() == Subscription.SubscriptionStatus.ACTIVE)
+                .filter(sub -> matchesCriteria(sub.getCriteria(), resourceType))
+                .toList();
+        for (Subscription sub : matching) {
+            jsonBodies.forEach(json -> sendNotification(sub, action, json));
+        }
+    }
+
     private boolean matchesCriteria(String criteria, String resourceType) {
         if (criteria == null)
             return false;
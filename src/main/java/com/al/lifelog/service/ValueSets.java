@@ -0,0 +1,194 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local ValueSet expansion behind the token {@code :in} and {@code :not-in}
+ * modifiers.
+ *
+ * ValueSets and CodeSystems are read from the JSON files in
+ * {@code lifelog.terminology.directory}, falling back to the ones shipped with
+ * the FHIR specification. An expansion is the set of {@code system|code} keys
+ * it contains, plus the systems included as a whole when their CodeSystem is
+ * not available here to enumerate. Expansions are computed once per URL.
+ */
+@Service
+public class ValueSets {
+
+    private static final Logger log = LoggerFactory.getLogger(ValueSets.class);
+
+    /**
+     * Codes of an expanded ValueSet as {@link CodeTokens} keys.
+     */
+    public record Expansion(Set<String> tokens, Set<String> systems) {
+
+        public boolean isEmpty() {
+            return tokens.isEmpty() && systems.isEmpty();
+        }
+    }
+
+    private final DefaultProfileValidationSupport builtIn;
+    private final Map<String, ValueSet> localValueSets = new ConcurrentHashMap<>();
+    private final Map<String, CodeSystem> localCodeSystems = new ConcurrentHashMap<>();
+    private final Map<String, Expansion> expansions = new ConcurrentHashMap<>();
+
+    @Autowired
+    public ValueSets(FhirContext fhirContext,
+            @Value("${lifelog.terminology.directory:}") String directory) {
+        this.builtIn = new DefaultProfileValidationSupport(fhirContext);
+        if (directory != null && !directory.isBlank()) {
+            load(fhirContext, Paths.get(directory));
+        }
+    }
+
+    /**
+     * Expansion of the ValueSet {@code url} (optionally {@code url|version}).
+     *
+     * @throws InvalidRequestException when the ValueSet is unknown or cannot be
+     *                                 expanded locally
+     */
+    public Expansion expand(String url) {
+        String canonical = canonical(url);
+        Expansion cached = expansions.get(canonical);
+        if (cached != null) {
+            return cached;
+        }
+        Expansion expansion = expand(canonical, new HashSet<>());
+        expansions.put(canonical, expansion);
+        return expansion;
+    }
+
+    private Expansion expand(String url, Set<String> visiting) {
+        if (!visiting.add(url)) {
+            throw new InvalidRequestException("ValueSet " + url + " includes itself");
+        }
+        ValueSet valueSet = findValueSet(url);
+        if (valueSet == null) {
+            throw new InvalidRequestException("Unknown ValueSet " + url);
+        }
+        Set<String> tokens = new LinkedHashSet<>();
+        Set<String> systems = new LinkedHashSet<>();
+
+        if (valueSet.hasExpansion()) {
+            addContains(valueSet.getExpansion().getContains(), tokens);
+            return new Expansion(tokens, systems);
+        }
+
+        for (ValueSet.ConceptSetComponent include : valueSet.getCompose().getInclude()) {
+            if (include.hasFilter()) {
+                throw new InvalidRequestException("ValueSet " + url + " uses filters, which are not expanded here");
+            }
+            for (var nested : include.getValueSet()) {
+                Expansion part = expand(canonical(nested.getValue()), visiting);
+                tokens.addAll(part.tokens());
+                systems.addAll(part.systems());
+            }
+            if (!include.hasSystem()) {
+                continue;
+            }
+            if (include.hasConcept()) {
+                for (ValueSet.ConceptReferenceComponent concept : include.getConcept()) {
+                    tokens.add(CodeTokens.token(include.getSystem(), concept.getCode()));
+                }
+                continue;
+            }
+            CodeSystem codeSystem = findCodeSystem(include.getSystem());
+            if (codeSystem != null && codeSystem.getContent() == CodeSystem.CodeSystemContentMode.COMPLETE) {
+                addConcepts(include.getSystem(), codeSystem.getConcept(), tokens);
+            } else {
+                // Too large (or unknown) to enumerate: matched on the system
+                systems.add(include.getSystem());
+            }
+        }
+        for (ValueSet.ConceptSetComponent exclude : valueSet.getCompose().getExclude()) {
+            for (ValueSet.ConceptReferenceComponent concept : exclude.getConcept()) {
+                tokens.remove(CodeTokens.token(exclude.getSystem(), concept.getCode()));
+            }
+        }
+        visiting.remove(url);
+        return new Expansion(tokens, systems);
+    }
+
+    private ValueSet findValueSet(String url) {
+        ValueSet local = localValueSets.get(url);
+        if (local != null) {
+            return local;
+        }
+        IBaseResource resource = builtIn.fetchValueSet(url);
+        return resource instanceof ValueSet valueSet ? valueSet : null;
+    }
+
+    private CodeSystem findCodeSystem(String url) {
+        CodeSystem local = localCodeSystems.get(url);
+        if (local != null) {
+            return local;
+        }
+        IBaseResource resource = builtIn.fetchCodeSystem(url);
+        return resource instanceof CodeSystem codeSystem ? codeSystem : null;
+    }
+
+    private static void addContains(List<ValueSet.ValueSetExpansionContainsComponent> contains, Set<String> tokens) {
+        for (ValueSet.ValueSetExpansionContainsComponent entry : contains) {
+            if (entry.hasCode()) {
+                tokens.add(CodeTokens.token(entry.getSystem(), entry.getCode()));
+            }
+            addContains(entry.getContains(), tokens);
+        }
+    }
+
+    private static void addConcepts(String system, List<CodeSystem.ConceptDefinitionComponent> concepts,
+            Set<String> tokens) {
+        for (CodeSystem.ConceptDefinitionComponent concept : concepts) {
+            tokens.add(CodeTokens.token(system, concept.getCode()));
+            addConcepts(system, concept.getConcept(), tokens);
+        }
+    }
+
+    private void load(FhirContext fhirContext, Path directory) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.json")) {
+            for (Path file : files) {
+                try (Reader reader = Files.newBufferedReader(file)) {
+                    IBaseResource resource = fhirContext.newJsonParser().parseResource(reader);
+                    if (resource instanceof ValueSet valueSet && valueSet.hasUrl()) {
+                        localValueSets.put(valueSet.getUrl(), valueSet);
+                    } else if (resource instanceof CodeSystem codeSystem && codeSystem.hasUrl()) {
+                        localCodeSystems.put(codeSystem.getUrl(), codeSystem);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read lifelog.terminology.directory " + directory, e);
+        }
+        log.info("Loaded {} ValueSets and {} CodeSystems from {}", localValueSets.size(), localCodeSystems.size(),
+                directory);
+    }
+
+    private static String canonical(String url) {
+        int bar = url.indexOf('|');
+        return bar >= 0 ? url.substring(0, bar) : url;
+    }
+}
@@ -0,0 +1,119 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import org.bson.Document;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.util.function.LongFunction;
+
+/**
+ * Version-checked updates for the versioned resource types.
+ *
+ * The new document replaces the stored one in a single findAndReplace filtered on
+ * {@code {_id, versionId}}, so two writers can never both pass the version check.
+ * When the client sent a version (If-Match or meta.versionId) that is the only
+ * round trip. Otherwise the current version is read first (versionId only) and the
+ * replace retried a few times if another writer got in between. A full replace
+ * rather than {@code $set}, so search fields dropped from the resource are cleared.
+ */
+@Component
+public class VersionedWriter {
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final MongoTemplate mongoTemplate;
+
+    @Autowired
+    public VersionedWriter(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    /**
+     * Writes the document {@code documentFor} builds for the next version of
+     * {@code id} and returns it. Missing resources are created as version 1.
+     *
+     * @throws PreconditionFailedException if {@code resource} carries a version that
+     *                                     is not the current one
+     */
+    public <T> T update(Class<T> documentClass, String id, Resource resource, LongFunction<T> documentFor) {
+        Long clientVersion = clientVersion(resource);
+        if (clientVersion != null) {
+            T document = documentFor.apply(clientVersion + 1);
+            if (replace(documentClass, id, clientVersion, document)) {
+                return document;
+            }
+            Document current = currentVersion(documentClass, id);
+            if (current == null) {
+                // Update as create, the client's version has nothing to match against
+                return insert(documentFor.apply(1L));
+            }
+            if (current.get("versionId") != null) {
+                throw conflict(clientVersion, current);
+            }
+            // Legacy document without a version, nothing to check against either
+        }
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            Document current = currentVersion(documentClass, id);
+            if (current == null) {
+                try {
+                    return insert(documentFor.apply(1L));
+                } catch (DuplicateKeyException e) {
+                    // Created concurrently, update it instead
+                    continue;
+                }
+            }
+            Number stored = current.get("versionId", Number.class);
+            // Legacy documents without a version become version 2
+            Long expected = stored != null ? stored.longValue() : null;
+            T document = documentFor.apply(expected != null ? expected + 1 : 2L);
+            if (replace(documentClass, id, expected, document)) {
+                return document;
+            }
+        }
+        throw new PreconditionFailedException("Version conflict: " + id + " kept changing during update");
+    }
+
+    private <T> boolean replace(Class<T> documentClass, String id, Long expectedVersion, T document) {
+        Query query = new Query(Criteria.where("_id").is(id).and("versionId").is(expectedVersion));
+        // Only the previous version's id is needed to tell a match from a miss
+        query.fields().include("_id");
+        Object previous = mongoTemplate.findAndReplace(query, document, FindAndReplaceOptions.none(),
+                documentClass, mongoTemplate.getCollectionName(documentClass), Document.class);
+        return previous != null;
+    }
+
+    private <T> T insert(T document) {
+        return mongoTemplate.insert(document);
+    }
+
+    private Document currentVersion(Class<?> documentClass, String id) {
+        Query query = new Query(Criteria.where("_id").is(id));
+        query.fields().include("versionId");
+        return mongoTemplate.findOne(query, Document.class, mongoTemplate.getCollectionName(documentClass));
+    }
+
+    private static Long clientVersion(Resource resource) {
+        if (resource == null || !resource.hasMeta() || !resource.getMeta().hasVersionId()) {
+            return null;
+        }
+        try {
+            return Long.parseLong(resource.getMeta().getVersionId());
+        } catch (NumberFormatException e) {
+            // Ignore malformed version
+            return null;
+        }
+    }
+
+    private static PreconditionFailedException conflict(long clientVersion, Document current) {
+        return new PreconditionFailedException("Version conflict: Client sent version " + clientVersion
+                + " but current version is " + current.get("versionId"));
+    }
+}
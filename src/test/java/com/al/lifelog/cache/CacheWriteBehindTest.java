@@ -0,0 +1,162 @@
+package com.al.lifelog.cache;
+
+import com.al.lifelog.service.PatientSummaryUpdater;
+import com.al.lifelog.service.SubscriptionService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.redis.connection.RedisStringCommands.SetOption;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class CacheWriteBehindTest {
+
+    @Mock
+    private StringRedisTemplate redisTemplate;
+
+    @Mock
+    private StringRedisConnection connection;
+
+    @Mock
+    private NearCache nearCache;
+
+    @Mock
+    private SubscriptionService subscriptionService;
+
+    @Mock
+    private PatientSummaryUpdater summaryUpdater;
+
+    private final List<Runnable> scheduled = new ArrayList<>();
+    private SimpleMeterRegistry registry;
+    private CacheWriteBehind writeBehind;
+
+    @BeforeEach
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        Executor executor = scheduled::add;
+        writeBehind = new CacheWriteBehind(redisTemplate, nearCache, subscriptionService, summaryUpdater, executor, registry, 2);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    private void runScheduled() {
+        while (!scheduled.isEmpty()) {
+            scheduled.remove(0).run();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void pipelineTo(StringRedisConnection target) {
+        when(redisTemplate.executePipelined(any(RedisCallback.class))).thenAnswer(invocation -> {
+            ((RedisCallback<Object>) invocation.getArgument(0)).doInRedis(target);
+            return List.of();
+        });
+    }
+
+    @Test
+    public void testWithoutTransaction_ShouldPipelineInBatches() {
+        pipelineTo(connection);
+        when(nearCache.invalidationMessage(anyString(), anyString())).thenReturn("node|x");
+
+        writeBehind.put("Patient", "1", "{}");
+        writeBehind.put("Patient", "2", "{}");
+        writeBehind.evict("Observation", "3");
+
+        verify(nearCache).beginWrite("Patient", "1");
+        verifyNoInteractions(redisTemplate);
+        assertEquals(1, scheduled.size(), "One drainer for all queued ops");
+
+        runScheduled();
+
+        verify(redisTemplate, times(2)).executePipelined(any(RedisCallback.class));
+        verify(connection).set(eq("patient:1"), eq("{}"), any(Expiration.class), eq(SetOption.upsert()));
+        verify(connection).set(eq("patient:2"), eq("{}"), any(Expiration.class), eq(SetOption.upsert()));
+        verify(connection).del("observation:3");
+        verify(connection, times(3)).publish(NearCache.INVALIDATION_CHANNEL, "node|x");
+        assertEquals(3, registry.get("fhir.cache.writebehind.ops").tags("result", "ok").counter().count());
+        verify(nearCache).endWrite("Observation", "3");
+    }
+
+    @Test
+    public void testInTransaction_ShouldWaitForCommit() {
+        TransactionSynchronizationManager.initSynchronization();
+
+        writeBehind.put("Patient", "1", "{}");
+        writeBehind.notifySubscribers("Patient", "CREATE", "{}");
+
+        verifyNoInteractions(nearCache, subscriptionService);
+        assertTrue(scheduled.isEmpty());
+
+        List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+        assertEquals(1, synchronizations.size());
+        synchronizations.get(0).afterCommit();
+        synchronizations.get(0).afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+
+        verify(nearCache).beginWrite("Patient", "1");
+        verify(subscriptionService).notifySubscribers("Patient", "CREATE", "{}");
+        assertEquals(1, scheduled.size());
+        assertFalse(TransactionSynchronizationManager.hasResource(writeBehind));
+    }
+
+    @Test
+    public void testRollback_ShouldDropBufferedWork() {
+        TransactionSynchronizationManager.initSynchronization();
+
+        writeBehind.put("Patient", "1", "{}");
+        writeBehind.evict("Patient", "2");
+        TransactionSynchronizationManager.getSynchronizations().get(0)
+                .afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+
+        verifyNoInteractions(nearCache, redisTemplate, subscriptionService);
+        assertTrue(scheduled.isEmpty());
+        assertFalse(TransactionSynchronizationManager.hasResource(writeBehind));
+    }
+
+    @Test
+    public void testRedisFailure_ShouldBeCountedNotThrown() {
+        when(redisTemplate.executePipelined(any(RedisCallback.class))).thenThrow(new IllegalStateException("down"));
+
+        writeBehind.evict("Patient", "1");
+        runScheduled();
+
+        assertEquals(1, registry.get("fhir.cache.writebehind.ops").tags("result", "failed").counter().count());
+        verify(nearCache).endWrite("Patient", "1");
+    }
+
+    @Test
+    public void testReadAfterWrite_ShouldNotFindTheOldBodyBeforeTheDrain() {
+        TransactionSynchronizationManager.initSynchronization();
+        for (int i = 0; i < 1000; i++) {
+            writeBehind.put("Observation", "o" + i, "{}");
+        }
+        TransactionSynchronizationManager.getSynchronizations().get(0).afterCommit();
+
+        // Marked pending locally at commit, every Redis round trip left to the drainer
+        verify(nearCache).beginWrite("Observation", "o999");
+        verify(nearCache, never()).endWrite(anyString(), anyString());
+        verifyNoInteractions(redisTemplate);
+        assertEquals(1, scheduled.size());
+    }
+}
@@ -0,0 +1,130 @@
+package com.al.lifelog.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class NearCacheTest {
+
+    @Mock
+    private StringRedisTemplate redisTemplate;
+
+    private SimpleMeterRegistry registry;
+    private NearCache cache;
+
+    @BeforeEach
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        cache = new NearCache(redisTemplate, registry, 10_000, Duration.ofMinutes(5), Duration.ofMinutes(1));
+    }
+
+    private static Patient patient(String id, String version, String family) {
+        Patient p = new Patient();
+        p.setId(id);
+        p.getMeta().setVersionId(version);
+        p.addName().setFamily(family);
+        return p;
+    }
+
+    @Test
+    public void testGet_ShouldReturnDefensiveCopy() {
+        Patient original = patient("1", "1", "Doe");
+        cache.put("Patient", "1", original, 100);
+        original.getNameFirstRep().setFamily("Changed");
+
+        Patient first = cache.get("Patient", "1", Patient.class);
+        first.getNameFirstRep().setFamily("Mutated");
+
+        assertEquals("Doe", cache.get("Patient", "1", Patient.class).getNameFirstRep().getFamily());
+        assertEquals(2, registry.get("fhir.cache.l1.requests").tags("type", "Patient", "result", "hit")
+                .counter().count());
+    }
+
+    @Test
+    public void testInvalidate_ShouldEvictAndPublish() {
+        cache.put("Patient", "1", patient("1", "1", "Doe"), 100);
+
+        cache.invalidate("Patient", "1");
+
+        assertNull(cache.get("Patient", "1", Patient.class));
+        verify(redisTemplate).convertAndSend(eq(NearCache.INVALIDATION_CHANNEL), endsWith("|Patient:1"));
+    }
+
+    @Test
+    public void testRemoteInvalidation_ShouldEvict() {
+        cache.put("Patient", "1", patient("1", "2", "Doe"), 100);
+
+        cache.onMessage(new DefaultMessage(NearCache.INVALIDATION_CHANNEL.getBytes(StandardCharsets.UTF_8),
+                "other-node|Patient:1".getBytes(StandardCharsets.UTF_8)), null);
+
+        assertNull(cache.get("Patient", "1", Patient.class));
+    }
+
+    @Test
+    public void testNewVersion_ShouldReplaceCurrent() {
+        cache.put("Patient", "1", patient("1", "1", "Old"), 100);
+        cache.put("Patient", "1", patient("1", "2", "New"), 100);
+
+        Patient current = cache.get("Patient", "1", Patient.class);
+        assertEquals("2", current.getMeta().getVersionId());
+        assertEquals("New", current.getNameFirstRep().getFamily());
+    }
+
+    @Test
+    public void testOlderVersion_ShouldNotReplaceCurrent() {
+        cache.put("Patient", "1", patient("1", "3", "New"), 100);
+        // A slower reader that loaded an earlier version
+        cache.put("Patient", "1", patient("1", "2", "Old"), 100);
+
+        assertEquals("3", cache.get("Patient", "1", Patient.class).getMeta().getVersionId());
+    }
+
+    @Test
+    public void testEvictedVersion_ShouldNotComeBack() {
+        cache.put("Patient", "1", patient("1", "10", "Doe"), 100);
+        cache.onMessage(new DefaultMessage(NearCache.INVALIDATION_CHANNEL.getBytes(StandardCharsets.UTF_8),
+                "other-node|Patient:1".getBytes(StandardCharsets.UTF_8)), null);
+
+        // Loaded before the remote write, returning after the invalidation
+        cache.put("Patient", "1", patient("1", "9", "Older"), 100);
+        cache.put("Patient", "1", patient("1", "10", "Doe"), 100);
+        assertNull(cache.get("Patient", "1", Patient.class));
+
+        cache.put("Patient", "1", patient("1", "11", "Roe"), 100);
+        assertEquals("Roe", cache.get("Patient", "1", Patient.class).getNameFirstRep().getFamily());
+    }
+
+    @Test
+    public void testPendingWrite_ShouldKeepOlderBodiesOutUntilSent() {
+        cache.put("Patient", "1", patient("1", "1", "Doe"), 100);
+        cache.beginWrite("Patient", "1");
+        cache.beginWrite("Patient", "1");
+
+        assertNull(cache.get("Patient", "1", Patient.class));
+        assertTrue(cache.isPending("Patient", "1"));
+        // A reader that fetched the old body before the commit
+        cache.put("Patient", "1", patient("1", "1", "Doe"), 100);
+        assertNull(cache.get("Patient", "1", Patient.class));
+
+        cache.endWrite("Patient", "1");
+        assertTrue(cache.isPending("Patient", "1"), "Until every queued write is sent");
+        cache.endWrite("Patient", "1");
+        assertFalse(cache.isPending("Patient", "1"));
+        cache.put("Patient", "1", patient("1", "2", "Roe"), 100);
+        assertEquals("Roe", cache.get("Patient", "1", Patient.class).getNameFirstRep().getFamily());
+    }
+}
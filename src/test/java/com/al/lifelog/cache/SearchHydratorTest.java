@@ -0,0 +1,119 @@
+package com.al.lifelog.cache;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.al.lifelog.model.MongoObservation;
+import com.al.lifelog.serialization.FhirSerializer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class SearchHydratorTest {
+
+    @Mock
+    private StringRedisTemplate redisTemplate;
+
+    @Mock
+    private ValueOperations<String, String> valueOperations;
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private NearCache nearCache;
+
+    private final FhirContext ctx = FhirContext.forR4();
+    private SimpleMeterRegistry registry;
+    private SearchHydrator hydrator;
+
+    @BeforeEach
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        hydrator = new SearchHydrator(redisTemplate, mongoTemplate, new FhirSerializer(ctx, registry), nearCache,
+                registry, true);
+    }
+
+    private String json(String id, String version) {
+        Observation obs = new Observation();
+        obs.setId(id);
+        obs.getMeta().setVersionId(version);
+        return ctx.newJsonParser().encodeResourceToString(obs);
+    }
+
+    private static Document key(String id, long version) {
+        return new Document("_id", id).append("versionId", version);
+    }
+
+    @Test
+    public void testHydrate_ShouldReadMissesAndStaleEntriesFromMongoOnly() {
+        when(redisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.multiGet(List.of("observation:a", "observation:b", "observation:c")))
+                .thenReturn(Arrays.asList(json("a", "1"), null, json("c", "1")));
+        when(mongoTemplate.getCollectionName(MongoObservation.class)).thenReturn("observations");
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), eq("observations"))).thenReturn(List.of(
+                new Document("_id", "c").append("fhirJson", json("c", "2")),
+                new Document("_id", "b").append("fhirJson", json("b", "1"))));
+
+        List<Observation> result = hydrator.hydrate("Observation", Observation.class, MongoObservation.class,
+                List.of(key("a", 1), key("b", 1), key("c", 2)));
+
+        assertEquals(List.of("a", "b", "c"), result.stream().map(o -> o.getIdElement().getIdPart()).toList());
+        assertEquals("2", result.get(2).getMeta().getVersionId());
+
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).find(query.capture(), eq(Document.class), eq("observations"));
+        assertEquals(List.of("b", "c"), ((Document) query.getValue().getQueryObject().get("_id")).get("$in"));
+        verify(redisTemplate).executePipelined(any(RedisCallback.class));
+
+        assertEquals(1, registry.get("fhir.search.hydration").tags("type", "Observation", "source", "redis")
+                .counter().count());
+        assertEquals(2, registry.get("fhir.search.hydration").tags("type", "Observation", "source", "mongo")
+                .counter().count());
+    }
+
+    @Test
+    public void testHydrate_AllInL1_ShouldNotTouchRedisOrMongo() {
+        Observation cached = new Observation();
+        cached.setId("a");
+        cached.getMeta().setVersionId("3");
+        when(nearCache.get("Observation", "a", Observation.class)).thenReturn(cached);
+
+        List<Observation> result = hydrator.hydrate("Observation", Observation.class, MongoObservation.class,
+                List.of(key("a", 3)));
+
+        assertEquals(1, result.size());
+        verifyNoInteractions(redisTemplate, mongoTemplate);
+    }
+
+    @Test
+    public void testHydrate_DeletedSinceSearch_ShouldBeSkipped() {
+        when(redisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.multiGet(anyList())).thenReturn(Arrays.asList((String) null));
+        when(mongoTemplate.getCollectionName(MongoObservation.class)).thenReturn("observations");
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), eq("observations"))).thenReturn(List.of());
+
+        List<Observation> result = hydrator.hydrate("Observation", Observation.class, MongoObservation.class,
+                List.of(key("gone", 1)));
+
+        assertTrue(result.isEmpty());
+        verify(redisTemplate, never()).executePipelined(any(RedisCallback.class));
+    }
+}
@@ -0,0 +1,143 @@
+package com.al.lifelog.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class SingleFlightTest {
+
+    @Mock
+    private StringRedisTemplate redisTemplate;
+
+    @Mock
+    private ValueOperations<String, String> valueOperations;
+
+    private SimpleMeterRegistry registry;
+    private SingleFlight singleFlight;
+
+    @BeforeEach
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        singleFlight = new SingleFlight(redisTemplate, registry, false, Duration.ofSeconds(2));
+    }
+
+    private static Patient patient(String id) {
+        Patient p = new Patient();
+        p.setId(id);
+        p.addName().setFamily("Doe");
+        return p;
+    }
+
+    @Test
+    public void testLoad_ConcurrentMissesShareOneLoad() throws Exception {
+        int callers = 8;
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<Patient>> results = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                results.add(pool.submit(() -> singleFlight.load("Patient", "1", () -> {
+                    loads.incrementAndGet();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return patient("1");
+                })));
+            }
+
+            // Give everyone time to join the in-flight load before it finishes
+            Thread.sleep(200);
+            release.countDown();
+
+            List<Patient> patients = new ArrayList<>();
+            for (Future<Patient> result : results) {
+                patients.add(result.get(5, TimeUnit.SECONDS));
+            }
+
+            assertEquals(1, loads.get());
+            assertEquals(callers, patients.stream().distinct().count(), "Each caller gets its own instance");
+            patients.forEach(p -> assertEquals("Doe", p.getNameFirstRep().getFamily()));
+            assertEquals(callers - 1, registry.get("fhir.cache.singleflight.coalesced")
+                    .tags("type", "Patient").counter().count());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLoad_SequentialCallsLoadAgain() {
+        AtomicInteger loads = new AtomicInteger();
+
+        singleFlight.load("Patient", "1", () -> patient("1 " + loads.incrementAndGet()));
+        singleFlight.load("Patient", "1", () -> patient("1 " + loads.incrementAndGet()));
+
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testLoad_FailureIsNotCached() {
+        assertThrows(IllegalStateException.class, () -> singleFlight.load("Patient", "1", () -> {
+            throw new IllegalStateException("mongo down");
+        }));
+
+        assertNotNull(singleFlight.load("Patient", "1", () -> patient("1")));
+    }
+
+    @Test
+    public void testLoad_RedisLockHeldElsewhere_WaitsThenReadsThrough() {
+        singleFlight = new SingleFlight(redisTemplate, registry, true, Duration.ofSeconds(2));
+        when(redisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.setIfAbsent(eq("lock:patient:1"), anyString(), any(Duration.class))).thenReturn(false);
+        when(redisTemplate.hasKey("patient:1")).thenReturn(false, true);
+        when(redisTemplate.hasKey("lock:patient:1")).thenReturn(true);
+
+        Patient result = singleFlight.load("Patient", "1", () -> patient("1"));
+
+        assertNotNull(result);
+        verify(redisTemplate, times(2)).hasKey("patient:1");
+        verify(redisTemplate, never())
+                .execute(ArgumentMatchers.<RedisScript<Long>>any(), anyList(), any(Object[].class));
+    }
+
+    @Test
+    public void testLoad_RedisLockAcquired_ReleasesAfterLoad() {
+        singleFlight = new SingleFlight(redisTemplate, registry, true, Duration.ofSeconds(2));
+        when(redisTemplate.opsForValue()).thenReturn(valueOperations);
+        ArgumentCaptor<String> token = ArgumentCaptor.forClass(String.class);
+        when(valueOperations.setIfAbsent(eq("lock:patient:1"), token.capture(), any(Duration.class))).thenReturn(true);
+
+        singleFlight.load("Patient", "1", () -> patient("1"));
+
+        // Released only if it still holds this call's token, never by a plain delete
+        verify(redisTemplate).execute(ArgumentMatchers.<RedisScript<Long>>any(), eq(List.of("lock:patient:1")),
+                eq(token.getValue()));
+        verify(redisTemplate, never()).delete(anyString());
+    }
+}
@@ -0,0 +1,95 @@
+package com.al.lifelog.paging;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LazyBundleProviderTest {
+
+    private final List<String> ids = List.of("a", "b", "c", "d", "e");
+    private final List<String> cursorsSeen = new ArrayList<>();
+    // Rows whose body cannot be loaded, dropped by the mapper
+    private final Set<String> unreadable = new HashSet<>();
+
+    private SearchPage<Patient> fetch(String cursor, int count) {
+        cursorsSeen.add(cursor);
+        String after = cursor == null ? "" : SearchCursor.decode(cursor).getId();
+        List<String> rows = ids.stream()
+                .filter(id -> id.compareTo(after) > 0)
+                .limit(count + 1)
+                .collect(Collectors.toList());
+        return SearchPage.of(rows, count, SearchCursor::after, id -> {
+            if (unreadable.contains(id)) {
+                return null;
+            }
+            Patient p = new Patient();
+            p.setId(id);
+            return p;
+        });
+    }
+
+    private static List<String> idsOf(List<IBaseResource> resources) {
+        return resources.stream().map(r -> r.getIdElement().getIdPart()).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testSequentialPages_ShouldSeekFromRememberedCursor() {
+        LazyBundleProvider<Patient> provider = new LazyBundleProvider<>(this::fetch, null, null);
+
+        assertTrue(cursorsSeen.isEmpty(), "Nothing should be fetched before a page is requested");
+
+        assertEquals(List.of("a", "b"), idsOf(provider.getResources(0, 2)));
+        assertNull(provider.size());
+
+        assertEquals(List.of("c", "d"), idsOf(provider.getResources(2, 4)));
+        assertEquals(List.of("e"), idsOf(provider.getResources(4, 6)));
+        assertEquals(5, provider.size());
+
+        // One query per page, each resuming from the previous page's cursor
+        assertEquals(3, cursorsSeen.size());
+        assertNull(cursorsSeen.get(0));
+        assertEquals("b", SearchCursor.decode(cursorsSeen.get(1)).getId());
+        assertEquals("d", SearchCursor.decode(cursorsSeen.get(2)).getId());
+    }
+
+    @Test
+    public void testUnknownOffset_ShouldWalkForward() {
+        LazyBundleProvider<Patient> provider = new LazyBundleProvider<>(this::fetch, null, null);
+
+        assertEquals(List.of("d", "e"), idsOf(provider.getResources(3, 5)));
+        assertTrue(provider.getResources(7, 9).isEmpty());
+    }
+
+    @Test
+    public void testIncludes_ShouldBeAppendedPerPage() {
+        LazyBundleProvider<Patient> provider = new LazyBundleProvider<>(this::fetch, page -> {
+            Patient linked = new Patient();
+            linked.setId("inc-" + page.get(0).getIdElement().getIdPart());
+            return List.of(linked);
+        }, null);
+
+        assertEquals(List.of("c", "d", "inc-c"), idsOf(provider.getResources(2, 4)));
+    }
+
+    @Test
+    public void testDroppedRows_ShouldNotShiftLaterPages() {
+        unreadable.add("b");
+        LazyBundleProvider<Patient> provider = new LazyBundleProvider<>(this::fetch, null, null);
+
+        assertEquals(List.of("a"), idsOf(provider.getResources(0, 2)));
+        assertEquals(List.of("c", "d"), idsOf(provider.getResources(2, 4)));
+        assertEquals(List.of("e"), idsOf(provider.getResources(4, 6)));
+
+        // Each page resumed from the previous one instead of walking past "c"
+        assertEquals(3, cursorsSeen.size());
+        assertEquals("b", SearchCursor.decode(cursorsSeen.get(1)).getId());
+    }
+}
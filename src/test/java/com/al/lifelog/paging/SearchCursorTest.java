@@ -0,0 +1,79 @@
+package com.al.lifelog.paging;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SearchCursorTest {
+
+    @Test
+    public void testEncodeDecode_DateKeyed() {
+        Date date = new Date(1700000000000L);
+        String token = SearchCursor.after(date, "obs:1").encode();
+
+        SearchCursor cursor = SearchCursor.decode(token);
+
+        assertEquals(date, cursor.getSortValue());
+        assertEquals("obs:1", cursor.getId());
+    }
+
+    @Test
+    public void testEncodeDecode_IdKeyedWithoutDate() {
+        SearchCursor cursor = SearchCursor.decode(SearchCursor.after("p-9").encode());
+
+        assertNull(cursor.getSortValue());
+        assertEquals("p-9", cursor.getId());
+    }
+
+    @Test
+    public void testDecode_Garbage_ShouldThrow() {
+        assertThrows(InvalidRequestException.class, () -> SearchCursor.decode("%%not-a-cursor%%"));
+    }
+
+    @Test
+    public void testSeek_ShouldLimitToPageSizePlusOne() {
+        Query query = SearchCursor.seek(new Query(), "effectiveDateTime",
+                SearchCursor.after(new Date(), "a").encode(), 10);
+
+        assertEquals(11, query.getLimit());
+        assertTrue(query.getQueryObject().containsKey("$and"));
+        assertEquals(-1, query.getSortObject().get("effectiveDateTime"));
+        assertEquals(1, query.getSortObject().get("_id"));
+    }
+
+    @Test
+    public void testSeek_ShouldCoexistWithAnOrCriteria() {
+        Query query = new Query(new Criteria().norOperator(Criteria.where("codes").is("x")));
+
+        SearchCursor.seek(query, SearchCursor.after("a").encode(), 10);
+
+        assertTrue(query.getQueryObject().containsKey("$nor"));
+        assertTrue(query.getQueryObject().containsKey("$and"));
+    }
+
+    @Test
+    public void testSeek_WrongCursorKind_ShouldThrow() {
+        String idCursor = SearchCursor.after("a").encode();
+        assertThrows(InvalidRequestException.class,
+                () -> SearchCursor.seek(new Query(), "effectiveDateTime", idCursor, 10));
+    }
+
+    @Test
+    public void testSearchPage_ShouldTrimExtraRowAndPointAtLastKept() {
+        SearchPage<String> page = SearchPage.of(List.of("a", "b", "c"), 2,
+                SearchCursor::after, s -> s.toUpperCase());
+
+        assertEquals(List.of("A", "B"), page.getResources());
+        assertTrue(page.hasNext());
+        assertEquals("b", SearchCursor.decode(page.getNextCursor()).getId());
+
+        SearchPage<String> last = SearchPage.of(List.of("a"), 2, SearchCursor::after, s -> s);
+        assertFalse(last.hasNext());
+    }
+}
@@ -1,6 +1,9 @@
 package com.al.lifelog.provider;
 
+import com.al.lifelog.service.IncludeResolver;
+import com.al.lifelog.service.PatientEverythingService;
 import com.al.lifelog.service.PatientService;
+import com.al.lifelog.service.ValidationService;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
@@ -15,6 +18,7 @@ import java.util.Collections;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -23,6 +27,15 @@ public class PatientResourceProviderTest {
     @Mock
     private PatientService patientService;
 
+    @Mock
+    private ValidationService validationService;
+
+    @Mock
+    private IncludeResolver includeResolver;
+
+    @Mock
+    private PatientEverythingService everythingService;
+
     @InjectMocks
     private PatientResourceProvider provider;
 
@@ -54,6 +67,16 @@ public class PatientResourceProviderTest {
         });
     }
 
+    @Test
+    public void testEverything_UnknownPatient_ShouldThrowException() {
+        when(everythingService.exists("999")).thenReturn(false);
+
+        assertThrows(ResourceNotFoundException.class, () -> {
+            provider.everything(new IdType("999"), null, null, null);
+        });
+        verify(everythingService, never()).page(any(), any(), any(), any(), anyInt());
+    }
+
     @Test
     public void testCreate_ShouldCallService() {
         // Setup
@@ -73,14 +96,14 @@ public class PatientResourceProviderTest {
     @Test
     public void testSearch_ShouldCallService() {
         // Setup
-        String name = "Doe";
+        StringParam name = new StringParam("Doe");
         String gender = "male";
         int offset = 0;
         int count = 10;
         when(patientService.searchPatients(null, name, gender, offset, count)).thenReturn(Collections.emptyList());
 
         // Execute
-        provider.search(null, new StringParam(name),
+        provider.search(null, name,
                 new TokenParam("http://hl7.org/fhir/administrative-gender", gender),
                 null, null, offset, count);
 
@@ -0,0 +1,35 @@
+package com.al.lifelog.serialization;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FhirSerializerTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final FhirSerializer serializer = new FhirSerializer(FhirContext.forR4(), registry);
+
+    @Test
+    public void testRoundTrip_ShouldRecordMetersPerTypeAndOp() {
+        Patient patient = new Patient();
+        patient.setId("123");
+        patient.addName().setFamily("Doe");
+
+        String json = serializer.encode(patient);
+        Patient parsed = serializer.parse(Patient.class, json);
+        serializer.parse(Patient.class, json);
+
+        assertEquals("Doe", parsed.getNameFirstRep().getFamily());
+        assertEquals(1, registry.get("fhir.serialization.duration")
+                .tags("type", "Patient", "op", "encode").timer().count());
+        assertEquals(2, registry.get("fhir.serialization.duration")
+                .tags("type", "Patient", "op", "decode").timer().count());
+        assertEquals(2.0 * json.length(), registry.get("fhir.serialization.size")
+                .tags("type", "Patient", "op", "decode").counter().count());
+        assertEquals("characters", registry.get("fhir.serialization.size")
+                .tags("type", "Patient", "op", "decode").counter().getId().getBaseUnit());
+    }
+}
@@ -0,0 +1,37 @@
+package com.al.lifelog.serialization;
+
+import org.junit.jupiter.api.Test;
+import tools.jackson.databind.json.JsonMapper;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JsonPatchTest {
+
+    private static final JsonMapper JSON = JsonMapper.builder().build();
+
+    private static void assertRoundTrip(String source, String target) {
+        String patch = JsonPatch.diff(source, target);
+        assertEquals(JSON.readTree(target), JSON.readTree(JsonPatch.apply(source, patch)), patch);
+    }
+
+    @Test
+    public void testDiff_ShouldOnlyCarryTheChange() {
+        String source = "{\"resourceType\":\"Encounter\",\"id\":\"e1\",\"meta\":{\"versionId\":\"3\"},"
+                + "\"status\":\"in-progress\",\"class\":{\"code\":\"AMB\"}}";
+        String target = source.replace("\"3\"", "\"4\"").replace("in-progress", "finished");
+
+        String patch = JsonPatch.diff(source, target);
+
+        assertEquals("[{\"op\":\"replace\",\"path\":\"/meta/versionId\",\"value\":\"4\"},"
+                + "{\"op\":\"replace\",\"path\":\"/status\",\"value\":\"finished\"}]", patch);
+        assertRoundTrip(source, target);
+    }
+
+    @Test
+    public void testApply_ShouldHandleArraysRemovalsAndEscapedNames() {
+        assertRoundTrip("{\"a\":[1,2,3],\"b\":{\"x/y\":1,\"t~\":2}}", "{\"a\":[1,5],\"b\":{\"t~\":3}}");
+        assertRoundTrip("{\"a\":[1]}", "{\"a\":[1,{\"c\":[true]},3],\"n\":null}");
+        assertRoundTrip("{\"a\":[{\"v\":1},{\"v\":2}]}", "{\"a\":[{\"v\":0},{\"v\":1},{\"v\":2}]}");
+        assertRoundTrip("{\"a\":1}", "[1,2]");
+    }
+}
@@ -0,0 +1,69 @@
+package com.al.lifelog.serialization;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PayloadCodecTest {
+
+    private static final String SMALL = "{\"resourceType\":\"Patient\",\"id\":\"p1\"}";
+
+    private static String large() {
+        StringBuilder json = new StringBuilder("{\"resourceType\":\"Observation\",\"component\":[");
+        for (int i = 0; i < 50; i++) {
+            json.append(i > 0 ? "," : "").append("{\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"")
+                    .append(8480 + i).append("-6\"}]},\"valueQuantity\":{\"value\":").append(120 + i)
+                    .append(",\"unit\":\"mmHg\"}}");
+        }
+        return json.append("]}").toString();
+    }
+
+    @Test
+    public void testEncode_ShouldCompressLargeBodiesAndKeepSmallOnesPlain() {
+        PayloadCodec codec = new PayloadCodec("zstd", 3, "", 256);
+        String json = large();
+
+        byte[] stored = codec.encode(json);
+        assertTrue(stored.length < json.length() / 3, "compressed to " + stored.length);
+        assertEquals(json, codec.decode(stored));
+
+        assertArrayEquals(SMALL.getBytes(StandardCharsets.UTF_8), codec.encode(SMALL));
+        assertEquals(SMALL, codec.decode(SMALL.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testFromStored_ShouldReadLegacyStringsAndOtherCodecs() {
+        PayloadCodec zstd = new PayloadCodec("zstd", 3, "", 256);
+        PayloadCodec gzip = new PayloadCodec("gzip", 3, "", 256);
+        String json = large();
+
+        Object gzipped = gzip.toStored(json);
+        assertInstanceOf(Binary.class, gzipped);
+        assertEquals(json, zstd.fromStored(gzipped));
+        assertEquals(json, zstd.fromStored(json));
+        assertFalse(zstd.isCurrent(gzipped));
+        assertFalse(zstd.isCurrent(json));
+        assertTrue(zstd.isCurrent(zstd.toStored(json)));
+        assertTrue(zstd.isCurrent(SMALL));
+        assertTrue(new PayloadCodec("none", 3, "", 256).isCurrent(json));
+    }
+
+    @Test
+    public void testListener_ShouldCompressOnSaveAndDecodeOnLoad() {
+        PayloadMongoListener listener = new PayloadMongoListener(new PayloadCodec("zstd", 3, "", 256));
+        String json = large();
+        Document document = new Document("_id", "o1").append("fhirJson", json);
+
+        listener.onBeforeSave(new BeforeSaveEvent<>(new Object(), document, "observations"));
+        assertInstanceOf(Binary.class, document.get("fhirJson"));
+
+        listener.onAfterLoad(new AfterLoadEvent<>(document, Object.class, "observations"));
+        assertEquals(json, document.get("fhirJson"));
+    }
+}
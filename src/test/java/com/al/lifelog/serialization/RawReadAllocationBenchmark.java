@@ -0,0 +1,112 @@
+package com.al.lifelog.serialization;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Allocation per read: parse + re-encode (what the HAPI read does) versus the raw
+ * passthrough in {@link RawResourceJson}. Measured with the per-thread allocation
+ * counter, so it needs a HotSpot JVM but no extra tooling.
+ *
+ * Not picked up by the default surefire includes; run it explicitly with
+ * {@code mvn test -Dtest=RawReadAllocationBenchmark}.
+ */
+public class RawReadAllocationBenchmark {
+
+    private static final int WARMUP = 2_000;
+    private static final int ITERATIONS = 5_000;
+
+    private final FhirContext ctx = FhirContext.forR4();
+
+    @Test
+    public void benchmarkAllocationsPerRead() throws Exception {
+        report("Patient", patientJson(), Patient.class);
+        report("Observation", observationJson(), Observation.class);
+    }
+
+    private void report(String type, String json, Class<? extends IBaseResource> resourceType) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        assumeAllocationCounter(threads);
+
+        Runnable parsed = () -> {
+            IBaseResource resource = ctx.newJsonParser().parseResource(resourceType, json);
+            byte[] out = ctx.newJsonParser().encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+            sink(out);
+        };
+        Date now = new Date();
+        Runnable raw = () -> {
+            try {
+                sink(RawResourceJson.patch(json, "bench-1", 4L, now).getBody());
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        };
+
+        long parsedBytes = allocatedPerOp(threads, parsed);
+        long rawBytes = allocatedPerOp(threads, raw);
+
+        System.out.printf("%-12s parse+encode: %,8d B/read   raw: %,8d B/read   (%.1fx less)%n",
+                type, parsedBytes, rawBytes, (double) parsedBytes / rawBytes);
+        assertTrue(rawBytes < parsedBytes, "Raw read should allocate less than parse + encode");
+    }
+
+    private static long allocatedPerOp(com.sun.management.ThreadMXBean threads, Runnable op) {
+        for (int i = 0; i < WARMUP; i++) {
+            op.run();
+        }
+        long thread = Thread.currentThread().threadId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < ITERATIONS; i++) {
+            op.run();
+        }
+        return (threads.getThreadAllocatedBytes(thread) - before) / ITERATIONS;
+    }
+
+    private static void assumeAllocationCounter(com.sun.management.ThreadMXBean threads) {
+        org.junit.jupiter.api.Assumptions.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    private static volatile int blackhole;
+
+    private static void sink(byte[] bytes) {
+        blackhole += bytes.length;
+    }
+
+    private String patientJson() {
+        Patient patient = new Patient();
+        patient.setId("bench-1");
+        patient.getMeta().setVersionId("3").setLastUpdated(new Date());
+        patient.addName().setFamily("Doe").addGiven("John").addGiven("Q");
+        patient.addIdentifier().setSystem("urn:oid:1.2.36.146.595.217.0.1").setValue("12345");
+        patient.setGender(AdministrativeGender.MALE);
+        patient.addTelecom().setValue("555-0100");
+        patient.addAddress().addLine("1 Main St").setCity("Springfield").setPostalCode("12345");
+        return ctx.newJsonParser().encodeResourceToString(patient);
+    }
+
+    private String observationJson() {
+        Observation obs = new Observation();
+        obs.setId("bench-2");
+        obs.setStatus(Observation.ObservationStatus.FINAL);
+        obs.setSubject(new Reference("Patient/bench-1"));
+        obs.getCode().addCoding().setSystem("http://loinc.org").setCode("8867-4").setDisplay("Heart rate");
+        obs.setValue(new Quantity().setValue(72).setUnit("beats/minute")
+                .setSystem("http://unitsofmeasure.org").setCode("/min"));
+        obs.setEffective(new org.hl7.fhir.r4.model.DateTimeType(new Date()));
+        return ctx.newJsonParser().encodeResourceToString(obs);
+    }
+}
@@ -0,0 +1,60 @@
+package com.al.lifelog.serialization;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RawResourceJsonTest {
+
+    private final FhirContext ctx = FhirContext.forR4();
+
+    @Test
+    public void testPatch_ShouldForceIdAndMeta() throws IOException {
+        String stored = "{\"resourceType\":\"Patient\",\"id\":\"old\",\"meta\":{\"versionId\":\"1\","
+                + "\"lastUpdated\":\"2020-01-01T00:00:00.000+00:00\",\"source\":\"#a\"},\"gender\":\"male\"}";
+        Date now = new Date(1700000000000L);
+
+        RawResourceJson raw = RawResourceJson.patch(stored, "123", 3L, now);
+
+        Patient p = ctx.newJsonParser().parseResource(Patient.class,
+                new String(raw.getBody(), StandardCharsets.UTF_8));
+        assertEquals("123", p.getIdElement().getIdPart());
+        assertEquals("3", p.getMeta().getVersionId());
+        assertEquals(now, p.getMeta().getLastUpdated());
+        assertEquals("#a", p.getMeta().getSource());
+        assertEquals("male", p.getGender().toCode());
+        assertEquals("3", raw.getVersionId());
+    }
+
+    @Test
+    public void testPatch_WithoutVersion_ShouldKeepStoredMeta() throws IOException {
+        String stored = "{\"resourceType\":\"Patient\",\"meta\":{\"versionId\":\"7\"},\"active\":true}";
+
+        RawResourceJson raw = RawResourceJson.patch(stored, "abc", null, null);
+
+        String body = new String(raw.getBody(), StandardCharsets.UTF_8);
+        assertTrue(body.startsWith("{\"resourceType\":\"Patient\",\"id\":\"abc\""));
+        assertEquals("7", raw.getVersionId());
+        assertNull(raw.getLastUpdated());
+    }
+
+    @Test
+    public void testPatch_MissingMeta_ShouldAddIt() throws IOException {
+        RawResourceJson raw = RawResourceJson.patch("{\"resourceType\":\"Organization\",\"name\":\"X\"}",
+                "org-1", 1L, new Date());
+
+        String body = new String(raw.getBody(), StandardCharsets.UTF_8);
+        assertTrue(body.contains("\"meta\":{\"versionId\":\"1\""));
+    }
+
+    @Test
+    public void testPatch_NotAnObject_ShouldThrow() {
+        assertThrows(IOException.class, () -> RawResourceJson.patch("[]", "x", null, null));
+    }
+}
@@ -0,0 +1,185 @@
+package com.al.lifelog.service;
+
+import com.al.lifelog.model.MongoExportJob;
+import com.al.lifelog.model.MongoObservation;
+import com.al.lifelog.repository.ExportJobRepository;
+import com.al.lifelog.serialization.PayloadCodec;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class BulkExportServiceTest {
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private ExportJobRepository repository;
+
+    @Mock
+    private MongoCollection<Document> collection;
+
+    @TempDir
+    Path directory;
+
+    private BulkExportService service;
+
+    @BeforeEach
+    public void setUp() {
+        service = new BulkExportService(mongoTemplate, new PayloadCodec("zstd", 3, "", 256), repository, new SimpleMeterRegistry(), directory.toString(),
+                2, 100, Duration.ofMinutes(5), 1, "node-1", false);
+        lenient().when(repository.save(any(MongoExportJob.class))).thenAnswer(i -> i.getArgument(0));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        service.stop();
+    }
+
+    private MongoExportJob job(String currentType, String lastId) {
+        MongoExportJob job = new MongoExportJob();
+        job.setId("job-1");
+        job.setStatus(MongoExportJob.IN_PROGRESS);
+        job.setTypes(List.of("Observation"));
+        job.setCurrentType(currentType);
+        job.setLastId(lastId);
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(MongoExportJob.class))).thenReturn(job);
+        return job;
+    }
+
+    @SuppressWarnings("unchecked")
+    private ArgumentCaptor<Bson> cursorOver(Document... documents) {
+        when(mongoTemplate.getCollectionName(MongoObservation.class)).thenReturn("observations");
+        when(mongoTemplate.getCollection("observations")).thenReturn(collection);
+        FindIterable<Document> find = mock(FindIterable.class, RETURNS_SELF);
+        ArgumentCaptor<Bson> filter = ArgumentCaptor.forClass(Bson.class);
+        when(collection.find(filter.capture())).thenReturn(find);
+
+        Iterator<Document> source = List.of(documents).iterator();
+        MongoCursor<Document> cursor = mock(MongoCursor.class);
+        when(cursor.hasNext()).thenAnswer(i -> source.hasNext());
+        when(cursor.next()).thenAnswer(i -> source.next());
+        when(find.iterator()).thenReturn(cursor);
+        return filter;
+    }
+
+    private static Document stored(String id) {
+        return new Document("_id", id).append("versionId", 1L)
+                .append("fhirJson", "{\"resourceType\":\"Observation\",\"status\":\"final\"}");
+    }
+
+    private List<String> lines(String file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(directory.resolve("job-1").resolve(file))),
+                StandardCharsets.UTF_8))) {
+            return reader.lines().toList();
+        }
+    }
+
+    @Test
+    public void testRun_ShouldStreamStoredJsonIntoGzipFiles() throws IOException {
+        MongoExportJob job = job(null, null);
+        cursorOver(stored("o1"), stored("o2"), stored("o3"));
+
+        service.run("job-1");
+
+        assertEquals(MongoExportJob.COMPLETED, job.getStatus());
+        assertEquals(List.of("Observation-1.ndjson.gz", "Observation-2.ndjson.gz"),
+                job.getOutput().stream().map(MongoExportJob.OutputFile::getFile).toList());
+        assertEquals(3, job.getResources());
+        assertTrue(job.getBytes() > 0);
+        List<String> first = lines("Observation-1.ndjson.gz");
+        assertEquals(2, first.size());
+        assertTrue(first.get(0).contains("\"id\":\"o1\""), first.get(0));
+        assertTrue(first.get(0).contains("\"versionId\":\"1\""), first.get(0));
+        assertEquals(1, lines("Observation-2.ndjson.gz").size());
+        assertEquals(List.of("Observation"), job.getCompletedTypes());
+    }
+
+    @Test
+    public void testRun_ShouldResumeAfterCheckpoint() throws IOException {
+        MongoExportJob job = job("Observation", "o2");
+        job.getOutput().add(new MongoExportJob.OutputFile("Observation", "Observation-1.ndjson.gz", 2, 10));
+        ArgumentCaptor<Bson> filter = cursorOver(stored("o3"));
+
+        service.run("job-1");
+
+        assertEquals(new Document("$gt", "o2"), ((Document) filter.getValue()).get("_id"));
+        assertEquals("Observation-2.ndjson.gz", job.getOutput().get(1).getFile());
+        assertEquals(List.of("Observation-2.ndjson.gz"), List.of(directory.resolve("job-1").toFile().list()));
+        assertEquals(MongoExportJob.COMPLETED, job.getStatus());
+    }
+
+    @Test
+    public void testRun_ShouldRefreshTheHeartbeatWhileWritingAFile() {
+        service.stop();
+        service = new BulkExportService(mongoTemplate, new PayloadCodec("zstd", 3, "", 256), repository,
+                new SimpleMeterRegistry(), directory.toString(), 10, 100, Duration.ZERO, 1, "node-1", false);
+        job(null, null);
+        cursorOver(stored("o1"), stored("o2"), stored("o3"));
+
+        service.run("job-1");
+
+        // One file, but the heartbeat kept moving
+        verify(mongoTemplate, times(3)).updateFirst(any(Query.class),
+                argThat((Update u) -> u.getUpdateObject().get("$set", Document.class).containsKey("heartbeat")),
+                eq(MongoExportJob.class));
+    }
+
+    @Test
+    public void testRun_ShouldOnlyClaimJobsWhoseFilesAreHere() {
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(MongoExportJob.class))).thenReturn(null);
+
+        service.run("job-1");
+
+        ArgumentCaptor<Query> claim = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).findAndModify(claim.capture(), any(Update.class), any(FindAndModifyOptions.class),
+                eq(MongoExportJob.class));
+        Document node = claim.getValue().getQueryObject().get("node", Document.class);
+        assertEquals(java.util.Arrays.asList("node-1", null), node.get("$in"));
+    }
+
+    @Test
+    public void testRun_JobHeldElsewhereShouldNotRun() {
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(MongoExportJob.class))).thenReturn(null);
+
+        service.run("job-1");
+
+        verify(mongoTemplate, never()).getCollection(anyString());
+        verifyNoInteractions(repository);
+    }
+}
@@ -0,0 +1,152 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.al.lifelog.cache.CacheWriteBehind;
+import com.al.lifelog.model.MongoImportJob;
+import com.al.lifelog.model.MongoObservation;
+import com.al.lifelog.model.MongoResourceHistory;
+import com.al.lifelog.repository.ImportJobRepository;
+import com.al.lifelog.serialization.FhirSerializer;
+import com.al.lifelog.serialization.PayloadCodec;
+import com.mongodb.bulk.BulkWriteError;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class BulkImportServiceTest {
+
+    private static final String OBSERVATION = "{\"resourceType\":\"Observation\",\"id\":\"%s\",\"status\":\"final\"}";
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private ResourceDocumentMapper documentMapper;
+
+    @Mock
+    private CacheWriteBehind cacheWriteBehind;
+
+    @Mock
+    private SubscriptionService subscriptionService;
+
+    @Mock
+    private ImportJobRepository repository;
+
+    @Mock
+    private BulkOperations observationOps;
+
+    @Mock
+    private BulkOperations historyOps;
+
+    @TempDir
+    Path directory;
+
+    private BulkImportService service;
+
+    @BeforeEach
+    public void setUp() {
+        FhirSerializer serializer = new FhirSerializer(FhirContext.forR4(), new SimpleMeterRegistry());
+        service = new BulkImportService(mongoTemplate, serializer, new PayloadCodec("zstd", 3, "", 256), documentMapper, cacheWriteBehind,
+                subscriptionService, repository, new SimpleMeterRegistry(), directory.toString(), 2, 2, 0, 100);
+
+        lenient().doReturn(Observation.class).when(documentMapper).resourceClass("Observation");
+        lenient().when(documentMapper.isVersioned("Observation")).thenReturn(true);
+        lenient().when(documentMapper.toDocument(eq("Observation"), anyString(), any(Observation.class), eq(1L)))
+                .thenAnswer(i -> new Document("_id", i.getArgument(1)).append("versionId", 1L)
+                        .append("lastUpdated", new Date()).append("fhirJson", "{}"));
+        lenient().when(mongoTemplate.getCollectionName(MongoObservation.class)).thenReturn("observations");
+        lenient().when(mongoTemplate.bulkOps(BulkMode.UNORDERED, "observations")).thenReturn(observationOps);
+        lenient().when(mongoTemplate.bulkOps(BulkMode.UNORDERED, MongoResourceHistory.class)).thenReturn(historyOps);
+        lenient().when(observationOps.insert(anyList())).thenReturn(observationOps);
+        lenient().when(historyOps.insert(anyList())).thenReturn(historyOps);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        service.stop();
+    }
+
+    private static MongoImportJob job(String url) {
+        MongoImportJob job = new MongoImportJob();
+        job.setId("job-1");
+        job.setInputs(List.of(new MongoImportJob.Input("Observation", url)));
+        return job;
+    }
+
+    @Test
+    public void testImportChunk_ShouldRejectBadLinesAndDuplicatesOnly() {
+        BulkOperationException failure = mock(BulkOperationException.class);
+        when(failure.getErrors()).thenReturn(List.of(new BulkWriteError(11000, "dup", new BsonDocument(), 1)));
+        when(observationOps.execute()).thenThrow(failure);
+        MongoImportJob job = job("obs.ndjson");
+
+        service.importChunk(job, job.getInputs().get(0), 10, List.of(
+                String.format(OBSERVATION, "o1"), "{not json", "", String.format(OBSERVATION, "o1"),
+                String.format(OBSERVATION, "o2")));
+
+        verify(historyOps).insert(argThat((List<?> rows) -> rows.size() == 2));
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).updateFirst(any(Query.class), update.capture(), eq(MongoImportJob.class));
+        Document inc = (Document) update.getValue().getUpdateObject().get("$inc");
+        assertEquals(4L, inc.get("read"));
+        assertEquals(2L, inc.get("imported"));
+        assertEquals(2L, inc.get("rejected"));
+        String pushed = update.getValue().getUpdateObject().get("$push").toString();
+        assertTrue(pushed.contains("line=11") && pushed.contains("line=13"), pushed);
+        verifyNoInteractions(cacheWriteBehind, subscriptionService);
+    }
+
+    @Test
+    public void testRun_ShouldChunkGzipInputAndComplete() throws IOException {
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(directory.resolve("obs.ndjson.gz")))) {
+            for (String id : List.of("o1", "o2", "o3")) {
+                out.write((String.format(OBSERVATION, id) + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        MongoImportJob job = job("obs.ndjson.gz");
+        when(repository.findById("job-1")).thenReturn(Optional.of(job));
+
+        service.run(job);
+
+        assertEquals(MongoImportJob.COMPLETED, job.getStatus());
+        verify(observationOps, times(2)).insert(anyList());
+        verify(mongoTemplate, times(2)).updateFirst(any(Query.class), any(Update.class), eq(MongoImportJob.class));
+    }
+
+    @Test
+    public void testResolve_ShouldStayInsideImportDirectory() {
+        assertEquals(directory.resolve("a/obs.ndjson").toAbsolutePath().normalize(), service.resolve("a/obs.ndjson"));
+        assertNull(service.resolve("../etc/passwd"));
+        assertNull(service.resolve("file:/etc/passwd"));
+    }
+}
@@ -0,0 +1,218 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import com.al.lifelog.cache.CacheWriteBehind;
+import com.al.lifelog.model.MongoEncounter;
+import com.al.lifelog.model.MongoObservation;
+import com.al.lifelog.model.MongoPatient;
+import com.al.lifelog.model.MongoResourceHistory;
+import com.al.lifelog.serialization.FhirSerializer;
+import com.al.lifelog.serialization.PayloadCodec;
+import com.mongodb.bulk.BulkWriteError;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class BundleTransactionServiceTest {
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private CacheWriteBehind cacheWriteBehind;
+
+    @Mock
+    private AuditService auditService;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @Mock
+    private PatientService patientService;
+
+    @Mock
+    private ObservationService observationService;
+
+    @Mock
+    private EncounterService encounterService;
+
+    @Mock
+    private BulkOperations patientOps;
+
+    @Mock
+    private BulkOperations observationOps;
+
+    @Mock
+    private BulkOperations encounterOps;
+
+    @Mock
+    private BulkOperations historyOps;
+
+    private FhirSerializer serializer;
+    private BundleTransactionService service;
+
+    @BeforeEach
+    public void setUp() {
+        serializer = new FhirSerializer(FhirContext.forR4(), new SimpleMeterRegistry());
+        ResourceDocumentMapper documentMapper = new ResourceDocumentMapper(mongoTemplate, patientService,
+                observationService, mock(ConditionService.class), encounterService,
+                mock(AllergyIntoleranceService.class), mock(AppointmentService.class),
+                mock(DiagnosticReportService.class), mock(ImmunizationService.class),
+                mock(MedicationRequestService.class), mock(OrganizationService.class),
+                mock(PractitionerService.class));
+        service = new BundleTransactionService(mongoTemplate, serializer, new PayloadCodec("zstd", 3, "", 256), documentMapper, cacheWriteBehind,
+                auditService, transactionManager, new SimpleMeterRegistry(), 100);
+
+        MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE,
+                new MongoMappingContext());
+        lenient().when(mongoTemplate.getConverter()).thenReturn(converter);
+        lenient().when(mongoTemplate.getCollectionName(MongoPatient.class)).thenReturn("patients");
+        lenient().when(mongoTemplate.getCollectionName(MongoObservation.class)).thenReturn("observations");
+        lenient().when(mongoTemplate.getCollectionName(MongoEncounter.class)).thenReturn("encounters");
+        lenient().when(mongoTemplate.bulkOps(any(BulkMode.class), eq("patients"))).thenReturn(patientOps);
+        lenient().when(mongoTemplate.bulkOps(any(BulkMode.class), eq("observations"))).thenReturn(observationOps);
+        lenient().when(mongoTemplate.bulkOps(any(BulkMode.class), eq("encounters"))).thenReturn(encounterOps);
+        lenient().when(mongoTemplate.bulkOps(BulkMode.UNORDERED, MongoResourceHistory.class)).thenReturn(historyOps);
+        lenient().when(historyOps.insert(anyList())).thenReturn(historyOps);
+
+        lenient().when(patientService.toDocument(anyString(), any(Patient.class), anyLong()))
+                .thenAnswer(i -> {
+                    MongoPatient doc = new MongoPatient(i.getArgument(0), serializer.encode((Patient) i.getArgument(1)));
+                    doc.setVersionId(i.getArgument(2));
+                    doc.setLastUpdated(new Date());
+                    return doc;
+                });
+        lenient().when(observationService.toDocument(anyString(), any(Observation.class), anyLong()))
+                .thenAnswer(i -> {
+                    Observation obs = i.getArgument(1);
+                    MongoObservation doc = new MongoObservation(i.getArgument(0), serializer.encode(obs));
+                    doc.setVersionId(i.getArgument(2));
+                    doc.setLastUpdated(new Date());
+                    return doc;
+                });
+        lenient().when(encounterService.toDocument(anyString(), any(Encounter.class), anyLong()))
+                .thenAnswer(i -> {
+                    MongoEncounter doc = new MongoEncounter();
+                    doc.setId(i.getArgument(0));
+                    doc.setVersionId(i.getArgument(2));
+                    doc.setFhirJson(serializer.encode((Encounter) i.getArgument(1)));
+                    return doc;
+                });
+    }
+
+    private static Observation observation(String encounterRef) {
+        Observation obs = new Observation();
+        obs.setStatus(Observation.ObservationStatus.FINAL);
+        obs.setEncounter(new Reference(encounterRef));
+        return obs;
+    }
+
+    @Test
+    public void testTransaction_ShouldResolvePlaceholdersAndWriteOneBulkPerType() {
+        Bundle bundle = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        bundle.addEntry().setResource(new Patient())
+                .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+        bundle.addEntry().setFullUrl("urn:uuid:enc-1").setResource(new Encounter())
+                .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Encounter");
+        bundle.addEntry().setResource(observation("urn:uuid:enc-1"))
+                .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Observation");
+        bundle.addEntry().setResource(observation("urn:uuid:enc-1"))
+                .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Observation");
+
+        Bundle response = service.execute(bundle);
+
+        assertEquals(Bundle.BundleType.TRANSACTIONRESPONSE, response.getType());
+        assertEquals(4, response.getEntry().size());
+        response.getEntry().forEach(e -> assertEquals("201 Created", e.getResponse().getStatus()));
+        String encounterId = response.getEntry().get(1).getResponse().getLocation().split("/")[1];
+
+        ArgumentCaptor<Object> inserted = ArgumentCaptor.forClass(Object.class);
+        verify(observationOps, times(2)).insert(inserted.capture());
+        String json = ((Document) inserted.getValue()).getString("fhirJson");
+        assertTrue(json.contains("Encounter/" + encounterId), json);
+        verify(observationOps, times(1)).execute();
+        verify(encounterOps, times(1)).execute();
+        verify(patientOps, times(1)).execute();
+        verify(historyOps).insert(argThat((List<?> rows) -> rows.size() == 4));
+        verify(mongoTemplate).bulkOps(BulkMode.ORDERED, "observations");
+        verify(transactionManager).commit(any());
+        // Subscribers hear of the same creates as outside a bundle
+        verify(cacheWriteBehind).notifySubscribers(eq("Patient"), eq("CREATE"), anyString());
+        verify(cacheWriteBehind, times(2)).notifySubscribers(eq("Observation"), eq("CREATE"), anyString());
+        verify(cacheWriteBehind, never()).notifySubscribers(eq("Encounter"), anyString(), anyString());
+    }
+
+    @Test
+    public void testTransaction_StaleIfMatchShouldFailWholeBundle() {
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), eq("observations")))
+                .thenReturn(List.of(new Document("_id", "o1").append("versionId", 5L)));
+        Bundle bundle = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        bundle.addEntry().setResource(observation("Encounter/e1"))
+                .getRequest().setMethod(Bundle.HTTPVerb.PUT).setUrl("Observation/o1").setIfMatch("W/\"3\"");
+
+        assertThrows(PreconditionFailedException.class, () -> service.execute(bundle));
+        verify(mongoTemplate, never()).bulkOps(any(BulkMode.class), anyString());
+        verify(transactionManager).rollback(any());
+    }
+
+    @Test
+    public void testBatch_DuplicateShouldOnlyFailThatEntry() {
+        BulkOperationException failure = mock(BulkOperationException.class);
+        when(failure.getErrors()).thenReturn(List.of(new BulkWriteError(11000, "dup", new BsonDocument(), 0)));
+        when(observationOps.execute()).thenThrow(failure);
+
+        Bundle bundle = new Bundle().setType(Bundle.BundleType.BATCH);
+        bundle.addEntry().setResource(observation("Encounter/e1"))
+                .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Observation");
+        bundle.addEntry().setResource(observation("Encounter/e1"))
+                .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Observation");
+        bundle.addEntry().getRequest().setMethod(Bundle.HTTPVerb.GET).setUrl("Observation/o1");
+
+        Bundle response = service.execute(bundle);
+
+        assertEquals(Bundle.BundleType.BATCHRESPONSE, response.getType());
+        assertEquals("409 Conflict", response.getEntry().get(0).getResponse().getStatus());
+        assertNotNull(response.getEntry().get(0).getResponse().getOutcome());
+        assertEquals("201 Created", response.getEntry().get(1).getResponse().getStatus());
+        assertEquals("400 Bad Request", response.getEntry().get(2).getResponse().getStatus());
+        verify(mongoTemplate).bulkOps(BulkMode.UNORDERED, "observations");
+        verify(historyOps).insert(argThat((List<?> rows) -> rows.size() == 1));
+        verifyNoInteractions(transactionManager);
+    }
+
+    @Test
+    public void testParseVersion_ShouldAcceptWeakEtags() {
+        assertEquals(3L, BundleTransactionService.parseVersion("W/\"3\""));
+        assertEquals(3L, BundleTransactionService.parseVersion("3"));
+        assertNull(BundleTransactionService.parseVersion("W/\"abc\""));
+    }
+}
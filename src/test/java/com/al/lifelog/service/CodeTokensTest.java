@@ -0,0 +1,65 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.TokenParamModifier;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CodeTokensTest {
+
+    private static ValueSets valueSets;
+
+    @BeforeAll
+    public static void setUp() {
+        valueSets = new ValueSets(FhirContext.forR4(), "");
+    }
+
+    private static String query(TokenParam code) {
+        return CodeTokens.criteria(code, valueSets).getCriteriaObject().toJson();
+    }
+
+    @Test
+    public void testTokens_ShouldKeepEveryCodingWithAndWithoutSystem() {
+        CodeableConcept concept = new CodeableConcept();
+        concept.addCoding().setSystem("http://loinc.org").setCode("8867-4");
+        concept.addCoding().setCode("HR");
+
+        assertEquals(List.of("http://loinc.org|8867-4", "8867-4", "|HR", "HR"), CodeTokens.tokens(concept));
+    }
+
+    @Test
+    public void testCriteria_ShouldMapEachTokenForm() {
+        assertEquals("{\"codes\": \"http://loinc.org|8867-4\"}",
+                query(new TokenParam("http://loinc.org", "8867-4")));
+        assertEquals("{\"codes\": \"|HR\"}", query(new TokenParam("", "HR")));
+        assertEquals("{\"codes\": \"8867-4\"}", query(new TokenParam("8867-4")));
+        assertTrue(query(new TokenParam("http://loinc.org", "")).contains("^http://loinc\\\\.org\\\\|"));
+
+        TokenParam not = new TokenParam("http://loinc.org", "8867-4").setModifier(TokenParamModifier.NOT);
+        assertEquals("{\"$nor\": [{\"codes\": \"http://loinc.org|8867-4\"}]}", query(not));
+
+        TokenParam text = new TokenParam(null, "heart").setModifier(TokenParamModifier.TEXT);
+        assertThrows(InvalidRequestException.class, () -> query(text));
+    }
+
+    @Test
+    public void testCriteria_ShouldExpandLocalValueSetForIn() {
+        TokenParam in = new TokenParam(null, "http://hl7.org/fhir/ValueSet/observation-status")
+                .setModifier(TokenParamModifier.IN);
+
+        String query = query(in);
+
+        assertTrue(query.contains("\"$in\""), query);
+        assertTrue(query.contains("http://hl7.org/fhir/observation-status|final"), query);
+
+        TokenParam unknown = new TokenParam(null, "http://example.org/ValueSet/none").setModifier(TokenParamModifier.IN);
+        assertThrows(InvalidRequestException.class, () -> query(unknown));
+    }
+}
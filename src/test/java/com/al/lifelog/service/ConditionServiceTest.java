@@ -10,9 +10,13 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.ValueOperations;
 import org.mockito.Spy;
 import ca.uhn.fhir.context.FhirContext;
+import com.al.lifelog.cache.CacheWriteBehind;
+import com.al.lifelog.cache.NearCache;
+import com.al.lifelog.cache.SingleFlight;
+import com.al.lifelog.serialization.FhirSerializer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 
 import java.util.List;
 
@@ -29,14 +33,23 @@ public class ConditionServiceTest {
     @Mock
     private StringRedisTemplate redisTemplate;
 
-    @Mock
-    private ValueOperations<String, String> valueOperations;
-
     @Mock
     private HistoryService historyService;
 
     @Spy
-    private FhirContext ctx = FhirContext.forR4();
+    private FhirSerializer serializer = new FhirSerializer(FhirContext.forR4(), new SimpleMeterRegistry());
+
+    @Mock
+    private NearCache nearCache;
+
+    @Mock
+    private SingleFlight singleFlight;
+
+    @Mock
+    private CacheWriteBehind cacheWriteBehind;
+
+    @Mock
+    private VersionedWriter versionedWriter;
 
     @InjectMocks
     private ConditionService service;
@@ -53,12 +66,12 @@ public class ConditionServiceTest {
             mc.setId("cond-1");
             return mc;
         });
-        when(redisTemplate.opsForValue()).thenReturn(valueOperations);
 
         Condition result = service.createCondition(cond);
 
         assertEquals("cond-1", result.getIdElement().getIdPart());
         verify(repository).save(any(MongoCondition.class));
+        verify(cacheWriteBehind).put(eq("Condition"), anyString(), anyString());
     }
 
     @Mock
@@ -71,7 +84,7 @@ public class ConditionServiceTest {
         when(mongoTemplate.find(any(org.springframework.data.mongodb.core.query.Query.class), eq(MongoCondition.class)))
                 .thenReturn(List.of(mc));
 
-        List<Condition> results = service.searchConditions(null, "E11", 0, 10);
+        List<Condition> results = service.searchConditions(null, new ca.uhn.fhir.rest.param.TokenParam("E11"), 0, 10);
 
         assertEquals(1, results.size());
         verify(mongoTemplate).find(any(org.springframework.data.mongodb.core.query.Query.class),
@@ -10,9 +10,13 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.ValueOperations;
 import org.mockito.Spy;
 import ca.uhn.fhir.context.FhirContext;
+import com.al.lifelog.cache.CacheWriteBehind;
+import com.al.lifelog.cache.NearCache;
+import com.al.lifelog.cache.SingleFlight;
+import com.al.lifelog.serialization.FhirSerializer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 
 import java.util.List;
 
@@ -29,14 +33,23 @@ public class EncounterServiceTest {
     @Mock
     private StringRedisTemplate redisTemplate;
 
-    @Mock
-    private ValueOperations<String, String> valueOperations;
-
     @Mock
     private HistoryService historyService;
 
     @Spy
-    private FhirContext ctx = FhirContext.forR4();
+    private FhirSerializer serializer = new FhirSerializer(FhirContext.forR4(), new SimpleMeterRegistry());
+
+    @Mock
+    private NearCache nearCache;
+
+    @Mock
+    private SingleFlight singleFlight;
+
+    @Mock
+    private CacheWriteBehind cacheWriteBehind;
+
+    @Mock
+    private VersionedWriter versionedWriter;
 
     @InjectMocks
     private EncounterService service;
@@ -52,12 +65,12 @@ public class EncounterServiceTest {
             me.setId("enc-1");
             return me;
         });
-        when(redisTemplate.opsForValue()).thenReturn(valueOperations);
 
         Encounter result = service.createEncounter(enc);
 
         assertEquals("enc-1", result.getIdElement().getIdPart());
         verify(repository).save(any(MongoEncounter.class));
+        verify(cacheWriteBehind).put(eq("Encounter"), anyString(), anyString());
     }
 
     @Mock
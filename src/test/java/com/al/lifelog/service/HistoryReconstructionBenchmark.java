@@ -0,0 +1,131 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.al.lifelog.model.MongoResourceHistory;
+import com.al.lifelog.serialization.JsonPatch;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Delta-encoded history: bytes written per version against full copies, and the
+ * cost of rebuilding a version from its snapshot plus up to
+ * {@code interval - 1} patches. Plain timing loops in the style of
+ * {@code RawReadAllocationBenchmark}, so no extra tooling is needed.
+ *
+ * Not picked up by the default surefire includes; run it explicitly with
+ * {@code mvn test -Dtest=HistoryReconstructionBenchmark}.
+ */
+public class HistoryReconstructionBenchmark {
+
+    private static final int VERSIONS = 10;
+    private static final int WARMUP = 2_000;
+    private static final int ITERATIONS = 10_000;
+
+    private final FhirContext ctx = FhirContext.forR4();
+
+    @Test
+    public void benchmarkDeltaHistory() {
+        List<String> versions = new ArrayList<>();
+        Encounter encounter = encounter();
+        for (int v = 1; v <= VERSIONS; v++) {
+            encounter.getMeta().setVersionId(String.valueOf(v)).setLastUpdated(new Date(1700000000000L + v * 60_000L));
+            encounter.setStatus(v == VERSIONS ? Encounter.EncounterStatus.FINISHED
+                    : Encounter.EncounterStatus.INPROGRESS);
+            encounter.getLocationFirstRep().setLocation(new Reference("Location/bed-" + v));
+            versions.add(ctx.newJsonParser().encodeResourceToString(encounter));
+        }
+
+        long fullBytes = 0;
+        long deltaBytes = versions.get(0).length();
+        List<MongoResourceHistory> rows = new ArrayList<>();
+        rows.add(row(1, versions.get(0), null));
+        for (int v = 2; v <= VERSIONS; v++) {
+            String patch = JsonPatch.diff(versions.get(v - 2), versions.get(v - 1));
+            rows.add(row(v, null, patch));
+            deltaBytes += patch.length();
+        }
+        for (String json : versions) {
+            fullBytes += json.length();
+        }
+
+        Runnable rebuild = () -> sink(HistoryService.rebuild(copies(rows)).size());
+        Runnable parseLatest = () -> sink(ctx.newJsonParser()
+                .parseResource(Encounter.class, versions.get(VERSIONS - 1)).getLocation().size());
+
+        double rebuildMicros = microsPerOp(rebuild);
+        double parseMicros = microsPerOp(parseLatest);
+
+        System.out.printf("History of %d versions: full copies %,d chars, snapshot + deltas %,d chars (%.1fx less)%n",
+                VERSIONS, fullBytes, deltaBytes, (double) fullBytes / deltaBytes);
+        System.out.printf("Rebuild all %d versions: %.1f us   HAPI parse of one version: %.1f us%n",
+                VERSIONS, rebuildMicros, parseMicros);
+        assertEquals(versions.get(VERSIONS - 1).length(),
+                HistoryService.rebuild(copies(rows)).get(VERSIONS - 1).getFhirJson().length());
+        assertTrue(deltaBytes * 3 < fullBytes, "Deltas should be much smaller than full copies");
+    }
+
+    private Encounter encounter() {
+        Encounter encounter = new Encounter();
+        encounter.setId("bench-1");
+        encounter.setSubject(new Reference("Patient/bench-1"));
+        encounter.setClass_(new Coding("http://terminology.hl7.org/CodeSystem/v3-ActCode", "IMP", "inpatient"));
+        encounter.addType(new CodeableConcept(new Coding("http://snomed.info/sct", "183452005",
+                "Emergency hospital admission")));
+        encounter.addIdentifier().setSystem("urn:oid:1.2.36.146.595.217.0.1").setValue("enc-12345");
+        encounter.addReasonCode().setText("Community acquired pneumonia");
+        for (String role : List.of("ATND", "ADM", "CON", "DIS")) {
+            encounter.addParticipant().setIndividual(new Reference("Practitioner/" + role.toLowerCase() + "-7"))
+                    .addType().addCoding().setSystem("http://terminology.hl7.org/CodeSystem/v3-ParticipationType")
+                    .setCode(role);
+        }
+        for (String code : List.of("J18.9", "E11.9", "I10")) {
+            encounter.addDiagnosis().setCondition(new Reference("Condition/dx-" + code)).setRank(1)
+                    .setUse(new CodeableConcept(new Coding("http://terminology.hl7.org/CodeSystem/diagnosis-role",
+                            "AD", "Admission diagnosis")));
+        }
+        encounter.addAccount(new Reference("Account/acct-998877"));
+        encounter.setPriority(new CodeableConcept(new Coding(
+                "http://terminology.hl7.org/CodeSystem/v3-ActPriority", "EM", "emergency")));
+        encounter.setPeriod(new Period().setStart(new Date(1700000000000L)));
+        encounter.getHospitalization().setAdmitSource(new CodeableConcept(new Coding(
+                "http://terminology.hl7.org/CodeSystem/admit-source", "emd", "From accident/emergency department")));
+        encounter.setServiceProvider(new Reference("Organization/general-hospital"));
+        encounter.addLocation();
+        return encounter;
+    }
+
+    private static MongoResourceHistory row(long version, String json, String patch) {
+        return new MongoResourceHistory(null, "bench-1", "Encounter", version, new Date(), null, json, patch);
+    }
+
+    private static List<MongoResourceHistory> copies(List<MongoResourceHistory> rows) {
+        return rows.stream().map(r -> row(r.getVersionId(), r.getFhirJson(), r.getPatch())).toList();
+    }
+
+    private static double microsPerOp(Runnable op) {
+        for (int i = 0; i < WARMUP; i++) {
+            op.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            op.run();
+        }
+        return (System.nanoTime() - start) / 1000.0 / ITERATIONS;
+    }
+
+    private static volatile int blackhole;
+
+    private static void sink(int value) {
+        blackhole += value;
+    }
+}
@@ -0,0 +1,170 @@
+package com.al.lifelog.service;
+
+import com.al.lifelog.model.MongoResourceHistory;
+import com.al.lifelog.paging.SearchPage;
+import com.al.lifelog.repository.HistoryRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class HistoryServiceTest {
+
+    @Mock
+    private HistoryRepository historyRepository;
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    private final List<MongoResourceHistory> rows = new ArrayList<>();
+    private HistoryService historyService;
+
+    @BeforeEach
+    public void setUp() {
+        historyService = new HistoryService(historyRepository, mongoTemplate, new SimpleMeterRegistry(), 4, 1_000_000);
+        lenient().when(historyRepository.save(any(MongoResourceHistory.class))).thenAnswer(i -> {
+            MongoResourceHistory row = i.getArgument(0);
+            rows.add(copy(row));
+            return row;
+        });
+        lenient().when(historyRepository.findByResourceIdAndResourceTypeAndVersionIdBetweenOrderByVersionIdAsc(
+                eq("e1"), eq("Encounter"), anyLong(), anyLong())).thenAnswer(i -> rows.stream()
+                        .filter(r -> r.getVersionId() > (Long) i.getArgument(2)
+                                && r.getVersionId() < (Long) i.getArgument(3))
+                        .sorted(Comparator.comparing(MongoResourceHistory::getVersionId))
+                        .map(HistoryServiceTest::copy).toList());
+        lenient().when(historyRepository.findByResourceIdAndResourceTypeOrderByVersionIdDesc("e1", "Encounter"))
+                .thenAnswer(i -> rows.stream()
+                        .sorted(Comparator.comparing(MongoResourceHistory::getVersionId).reversed())
+                        .map(HistoryServiceTest::copy).toList());
+    }
+
+    // Rebuilding fills in fhirJson, stored rows must not see that
+    private static MongoResourceHistory copy(MongoResourceHistory row) {
+        return new MongoResourceHistory(row.getId(), row.getResourceId(), row.getResourceType(), row.getVersionId(),
+                row.getLastUpdated(), row.getExpireAt(), row.getFhirJson(), row.getPatch());
+    }
+
+    private static String encounter(long version) {
+        return "{\"resourceType\":\"Encounter\",\"id\":\"e1\",\"meta\":{\"versionId\":\"" + version + "\"},"
+                + "\"status\":\"" + (version % 2 == 0 ? "in-progress" : "arrived") + "\","
+                + "\"subject\":{\"reference\":\"Patient/p1\"},\"class\":{\"system\":"
+                + "\"http://terminology.hl7.org/CodeSystem/v3-ActCode\",\"code\":\"AMB\"},"
+                + "\"type\":[{\"coding\":[{\"system\":\"http://snomed.info/sct\",\"code\":\"185349003\","
+                + "\"display\":\"Encounter for check up\"}]}],\"identifier\":[{\"system\":"
+                + "\"urn:oid:1.2.36.146.595.217.0.1\",\"value\":\"enc-0001\"}],"
+                + "\"reasonCode\":[{\"text\":\"Routine follow-up after discharge\"}],"
+                + "\"serviceProvider\":{\"reference\":\"Organization/general-hospital\"},"
+                + "\"location\":[{\"location\":{\"reference\":\"Location/ward-" + version + "\"}}]}";
+    }
+
+    @Test
+    public void testSaveHistory_ShouldWriteDeltasBetweenSnapshots() {
+        for (long v = 1; v <= 9; v++) {
+            historyService.saveHistory("e1", "Encounter", encounter(v), v, new Date());
+        }
+
+        List<Long> snapshots = rows.stream().filter(MongoResourceHistory::isSnapshot)
+                .map(MongoResourceHistory::getVersionId).toList();
+        assertEquals(List.of(1L, 5L, 9L), snapshots);
+        MongoResourceHistory delta = rows.get(1);
+        assertNull(delta.getFhirJson());
+        assertTrue(delta.getPatch().length() * 2 < encounter(2).length(), delta.getPatch());
+    }
+
+    @Test
+    public void testSaveHistory_DeltaShouldKeepItsChainFromExpiring() {
+        Date first = new Date(0);
+        Date later = new Date(MongoResourceHistory.RETENTION.toMillis());
+        historyService.saveHistory("e1", "Encounter", encounter(1), 1L, first);
+        historyService.saveHistory("e1", "Encounter", encounter(2), 2L, first);
+        historyService.saveHistory("e1", "Encounter", encounter(3), 3L, later);
+
+        assertEquals(MongoResourceHistory.expiry(first), rows.get(0).getExpireAt());
+        assertEquals(MongoResourceHistory.expiry(later), rows.get(2).getExpireAt());
+        // The snapshot and the delta before version 3 now expire with it
+        verify(historyRepository).extendExpiry("Encounter", "e1", 1L, 3L, MongoResourceHistory.expiry(later));
+    }
+
+    @Test
+    public void testGetHistoryAndVersion_ShouldRebuildEveryVersion() {
+        for (long v = 1; v <= 7; v++) {
+            historyService.saveHistory("e1", "Encounter", encounter(v), v, new Date());
+        }
+
+        List<MongoResourceHistory> history = historyService.getHistory("e1", "Encounter");
+        assertEquals(7, history.size());
+        for (MongoResourceHistory row : history) {
+            assertTrue(row.getFhirJson().contains("\"versionId\":\"" + row.getVersionId() + "\""));
+            assertTrue(row.getFhirJson().contains("Location/ward-" + row.getVersionId()));
+        }
+        assertTrue(historyService.getVersion("e1", "Encounter", 7).getFhirJson().contains("ward-7"));
+        assertNull(historyService.getVersion("e1", "Encounter", 8));
+    }
+
+    @Test
+    public void testGetHistoryPage_ShouldPageNewestFirstAndReadTheChainBelow() {
+        for (long v = 1; v <= 7; v++) {
+            historyService.saveHistory("e1", "Encounter", encounter(v), v, new Date());
+        }
+        when(historyRepository
+                .findByResourceTypeAndResourceIdAndVersionIdLessThanAndLastUpdatedGreaterThanEqualOrderByVersionIdDesc(
+                        eq("Encounter"), eq("e1"), anyLong(), any(Date.class), any(Limit.class)))
+                .thenAnswer(i -> rows.stream()
+                        .filter(r -> r.getVersionId() < (Long) i.getArgument(2))
+                        .sorted(Comparator.comparing(MongoResourceHistory::getVersionId).reversed())
+                        .limit(((Limit) i.getArgument(4)).max())
+                        .map(HistoryServiceTest::copy).toList());
+
+        SearchPage<Long> first = historyService.getHistoryPage("e1", "Encounter", null, null, 3,
+                row -> row.getFhirJson().contains("ward-" + row.getVersionId()) ? row.getVersionId() : -1L);
+        assertEquals(List.of(7L, 6L, 5L), first.getResources());
+        assertTrue(first.hasNext());
+
+        SearchPage<Long> second = historyService.getHistoryPage("e1", "Encounter", null, first.getNextCursor(), 3,
+                row -> row.getFhirJson().contains("ward-" + row.getVersionId()) ? row.getVersionId() : -1L);
+        assertEquals(List.of(4L, 3L, 2L), second.getResources());
+        verify(historyRepository).findByResourceIdAndResourceTypeAndVersionIdBetweenOrderByVersionIdAsc(
+                "e1", "Encounter", -2L, 2L);
+    }
+
+    @Test
+    public void testGetVersion_ShouldCacheRebuiltVersions() {
+        for (long v = 1; v <= 3; v++) {
+            historyService.saveHistory("e1", "Encounter", encounter(v), v, new Date());
+        }
+        clearInvocations(historyRepository);
+
+        assertSame(historyService.getVersion("e1", "Encounter", 3), historyService.getVersion("e1", "Encounter", 3));
+        verify(historyRepository, times(1))
+                .findByResourceIdAndResourceTypeAndVersionIdBetweenOrderByVersionIdAsc(anyString(), anyString(),
+                        anyLong(), anyLong());
+    }
+
+    @Test
+    public void testRebuild_ShouldDropDeltasWithoutTheirSnapshot() {
+        for (long v = 1; v <= 3; v++) {
+            historyService.saveHistory("e1", "Encounter", encounter(v), v, new Date());
+        }
+        // Snapshot expired by the TTL
+        rows.remove(0);
+
+        assertTrue(historyService.getHistory("e1", "Encounter").isEmpty());
+        historyService.saveHistory("e1", "Encounter", encounter(4), 4L, new Date());
+        assertTrue(rows.get(rows.size() - 1).isSnapshot());
+    }
+}
@@ -0,0 +1,123 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.Include;
+import com.al.lifelog.cache.SearchHydrator;
+import com.al.lifelog.model.MongoObservation;
+import com.al.lifelog.model.MongoPatient;
+import com.al.lifelog.serialization.FhirSerializer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class IncludeResolverTest {
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private SearchHydrator searchHydrator;
+
+    @Mock
+    private AuditService auditService;
+
+    private IncludeResolver resolver;
+
+    @BeforeEach
+    public void setUp() {
+        FhirSerializer serializer = new FhirSerializer(FhirContext.forR4(), new SimpleMeterRegistry());
+        resolver = new IncludeResolver(serializer, mongoTemplate, searchHydrator, auditService, 50);
+    }
+
+    private static Observation observation(String id, String subject) {
+        Observation obs = new Observation();
+        obs.setId(id);
+        obs.setSubject(new Reference(subject));
+        return obs;
+    }
+
+    private static Patient patient(String id) {
+        Patient p = new Patient();
+        p.setId(id);
+        return p;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testInclude_ShouldLoadEachTargetTypeOnce() {
+        when(searchHydrator.fetch(eq("Patient"), eq(Patient.class), eq(MongoPatient.class), anyCollection()))
+                .thenReturn(List.of(patient("p1"), patient("p2")));
+
+        List<IBaseResource> included = resolver.resolve(
+                List.of(observation("o1", "Patient/p1"), observation("o2", "Patient/p2"),
+                        observation("o3", "Patient/p1")),
+                Set.of(new Include("Observation:patient"), new Include("Observation:subject")), null);
+
+        assertEquals(2, included.size());
+        ArgumentCaptor<Collection<String>> ids = ArgumentCaptor.forClass(Collection.class);
+        verify(searchHydrator, times(1)).fetch(eq("Patient"), eq(Patient.class), eq(MongoPatient.class),
+                ids.capture());
+        assertEquals(List.of("p1", "p2"), List.copyOf(ids.getValue()));
+        // One audit record per included patient, written together
+        verify(auditService).logAll("read", "Patient", List.of("p1", "p2"), "Success");
+    }
+
+    @Test
+    public void testRevInclude_ShouldQueryOnceAndDropDuplicates() {
+        Patient p1 = patient("p1");
+        Observation o1 = observation("o1", "Patient/p1");
+        when(mongoTemplate.getCollectionName(MongoObservation.class)).thenReturn("observations");
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), eq("observations")))
+                .thenReturn(List.of(new Document("_id", "o1")));
+        when(searchHydrator.hydrate(eq("Observation"), eq(Observation.class), eq(MongoObservation.class), anyList()))
+                .thenReturn(List.of(o1, o1));
+
+        List<IBaseResource> included = resolver.resolve(List.of(p1, patient("p2")), null,
+                Set.of(new Include("Observation:patient")));
+
+        assertEquals(List.of(o1), included);
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).find(query.capture(), eq(Document.class), eq("observations"));
+        assertEquals(List.of("Patient/p1", "Patient/p2"),
+                ((Document) query.getValue().getQueryObject().get("subjectId")).get("$in"));
+        assertEquals(50, query.getValue().getLimit());
+        verify(auditService).logAll("read", "Patient", List.of(), "Success");
+    }
+
+    @Test
+    public void testUnsupportedInclude_ShouldBeIgnored() {
+        List<IBaseResource> included = resolver.resolve(List.of(observation("o1", "Patient/p1")),
+                Set.of(new Include("Observation:performer"), new Include("Observation:unknown")),
+                Set.of(new Include("Goal:patient")));
+
+        assertTrue(included.isEmpty());
+        verifyNoInteractions(mongoTemplate, searchHydrator);
+        verify(auditService).logAll("read", "Patient", List.of(), "Success");
+    }
+
+    @Test
+    public void testElementPath_ShouldDropWhereClause() {
+        assertEquals("Observation.subject", IncludeResolver.elementPath("Observation.subject.where(resolve() is Patient)"));
+        assertEquals("Observation.subject", IncludeResolver.elementPath("Observation.subject"));
+    }
+}
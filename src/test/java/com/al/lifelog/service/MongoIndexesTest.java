@@ -0,0 +1,63 @@
+package com.al.lifelog.service;
+
+import com.al.lifelog.model.MongoAuditEvent;
+import com.al.lifelog.model.MongoResourceHistory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class MongoIndexesTest {
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private IndexOperations historyIndexes;
+
+    private MongoIndexes mongoIndexes;
+
+    @BeforeEach
+    public void setUp() {
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setInitialEntitySet(Set.of(MongoResourceHistory.class, MongoAuditEvent.class));
+        mappingContext.afterPropertiesSet();
+        when(mongoTemplate.getConverter())
+                .thenReturn(new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext));
+        mongoIndexes = new MongoIndexes(mongoTemplate);
+    }
+
+    @Test
+    public void testRun_ShouldCreateDeclaredIndexesButLeaveAuditTtlOff() {
+        when(mongoTemplate.indexOps(MongoResourceHistory.class)).thenReturn(historyIndexes);
+
+        mongoIndexes.run();
+
+        ArgumentCaptor<IndexDefinition> created = ArgumentCaptor.forClass(IndexDefinition.class);
+        verify(historyIndexes, atLeastOnce()).createIndex(created.capture());
+        List<String> names = created.getAllValues().stream()
+                .map(index -> index.getIndexOptions().getString("name"))
+                .toList();
+        assertTrue(names.contains("by_resource_version"));
+        assertTrue(created.getAllValues().stream()
+                .anyMatch(index -> index.getIndexKeys().containsKey("expireAt")
+                        && index.getIndexOptions().containsKey("expireAfterSeconds")));
+        verify(mongoTemplate, never()).indexOps(MongoAuditEvent.class);
+    }
+}
@@ -0,0 +1,42 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.rest.param.StringParam;
+import com.al.lifelog.paging.SearchCursor;
+import org.bson.Document;
+import org.hl7.fhir.r4.model.HumanName;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NameKeysTest {
+
+    @Test
+    public void testKeys_ShouldFoldCaseAndAccentsPerWord() {
+        HumanName name = new HumanName().setFamily("García-Márquez").addGiven("José").addGiven("Ana");
+
+        List<String> keys = NameKeys.keys(List.of(name));
+
+        assertEquals(List.of("garcia marquez", "garcia", "marquez", "jose", "ana"), keys);
+        assertTrue(NameKeys.grams(keys).containsAll(List.of("gar", "rqu", "jos", "ana")));
+    }
+
+    @Test
+    public void testCriteria_ShouldAnchorStartsWithAndUseGramsForContains() {
+        Document startsWith = NameKeys.criteria(new StringParam("GARC")).getCriteriaObject();
+        assertEquals("^garc", startsWith.get(NameKeys.KEYS).toString());
+
+        StringParam contains = new StringParam("Árqu");
+        contains.setContains(true);
+        String query = NameKeys.criteria(contains).getCriteriaObject().toJson();
+        assertTrue(query.contains("\"$all\": [\"arq\", \"rqu\"]"), query);
+        assertTrue(query.contains("\"pattern\": \"arqu\""), query);
+
+        Query paged = SearchCursor.seek(new Query(NameKeys.criteria(contains)), SearchCursor.after("p1").encode(), 10);
+        assertTrue(paged.getQueryObject().containsKey("$and"));
+
+        assertNull(NameKeys.criteria(new StringParam("")));
+    }
+}
@@ -0,0 +1,117 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.al.lifelog.model.MongoObservationChunk;
+import com.al.lifelog.serialization.FhirSerializer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class ObservationChunkServiceTest {
+
+    private static final long HOUR = 3_600_000L;
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    private ObservationChunkService service;
+
+    @BeforeEach
+    public void setUp() {
+        FhirSerializer serializer = new FhirSerializer(FhirContext.forR4(), new SimpleMeterRegistry());
+        service = new ObservationChunkService(mongoTemplate, serializer, true, Duration.ofHours(1));
+    }
+
+    private static Observation heartRate(long time, double value) {
+        Observation obs = new Observation();
+        obs.setStatus(Observation.ObservationStatus.FINAL);
+        obs.getCode().addCoding().setSystem("http://loinc.org").setCode("8867-4");
+        obs.setSubject(new Reference("Patient/123"));
+        obs.setDevice(new Reference("Device/watch"));
+        obs.setEffective(new DateTimeType(new Date(time)));
+        obs.getValueQuantity().setValue(value).setSystem(Quantities.UCUM).setCode("/min");
+        return obs;
+    }
+
+    /** The chunk {@link ObservationChunkService#write} would have built from {@code samples}. */
+    private static MongoObservationChunk chunk(List<ObservationChunkService.Sample> samples) {
+        MongoObservationChunk chunk = samples.get(0).header();
+        chunk.setId(samples.get(0).chunkId());
+        chunk.setOffsets(new ArrayList<>());
+        chunk.setValues(new ArrayList<>());
+        for (ObservationChunkService.Sample sample : samples) {
+            chunk.getOffsets().add(sample.time().getTime() - chunk.getStart().getTime());
+            chunk.getValues().add(sample.value());
+        }
+        chunk.setFirst(samples.stream().map(ObservationChunkService.Sample::time).min(Date::compareTo).orElseThrow());
+        chunk.setLast(samples.stream().map(ObservationChunkService.Sample::time).max(Date::compareTo).orElseThrow());
+        chunk.setLastUpdated(new Date());
+        return chunk;
+    }
+
+    @Test
+    public void testSample_ShouldExpandBackFromItsChunk() {
+        long time = 1_700_000_123_456L;
+        ObservationChunkService.Sample sample = service.sample(heartRate(time, 72));
+        ObservationChunkService.Sample sameStream = service.sample(heartRate(time + 1000, 75));
+
+        assertNotNull(sample);
+        assertEquals(sample.chunkId(), sameStream.chunkId());
+        assertEquals(new Date(time - time % HOUR), sample.header().getStart());
+        assertNotEquals(sample.chunkId(), service.sample(heartRate(time + HOUR, 72)).chunkId());
+        // Client ids have to stay readable, so those samples are stored as they are
+        Observation withId = heartRate(time, 72);
+        withId.setId("mine");
+        assertNull(service.sample(withId));
+
+        when(mongoTemplate.findById(sample.chunkId(), MongoObservationChunk.class))
+                .thenReturn(chunk(List.of(sample, sameStream)));
+        Observation read = service.read(sample.id());
+
+        assertEquals(sample.id(), read.getIdElement().getIdPart());
+        assertEquals("1", read.getMeta().getVersionId());
+        assertEquals(new Date(time), read.getEffectiveDateTimeType().getValue());
+        assertEquals(0, new BigDecimal("72").compareTo(read.getValueQuantity().getValue()));
+        assertEquals("/min", read.getValueQuantity().getCode());
+        assertEquals("Device/watch", read.getDevice().getReference());
+        assertNull(service.read("not-a-sample"));
+    }
+
+    @Test
+    public void testSearch_ShouldStopAtChunksThatCannotReachThePage() {
+        long time = 1_700_000_000_000L;
+        MongoObservationChunk recent = chunk(List.of(service.sample(heartRate(time + 1000, 70)),
+                service.sample(heartRate(time + 3000, 72)), service.sample(heartRate(time + 2000, 71))));
+        MongoObservationChunk older = new MongoObservationChunk();
+        // Reading its samples would fail: it must be skipped on its last alone
+        older.setLast(new Date(time));
+        when(mongoTemplate.stream(any(Query.class), eq(MongoObservationChunk.class)))
+                .thenReturn(Stream.of(recent, older));
+
+        List<Observation> page = service.search(List.of("Patient/123"), null, null, null, 2);
+
+        assertEquals(2, page.size());
+        assertEquals(new Date(time + 3000), page.get(0).getEffectiveDateTimeType().getValue());
+        assertEquals(new Date(time + 2000), page.get(1).getEffectiveDateTimeType().getValue());
+    }
+}
@@ -0,0 +1,161 @@
+package com.al.lifelog.service;
+
+import com.al.lifelog.cache.CacheWriteBehind;
+import com.al.lifelog.model.MongoObservation;
+import com.al.lifelog.model.MongoResourceHistory;
+import com.mongodb.bulk.BulkWriteError;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonDocument;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class ObservationIngestServiceTest {
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private ObservationService observationService;
+
+    @Mock
+    private ObservationChunkService chunkService;
+
+    @Mock
+    private CacheWriteBehind cacheWriteBehind;
+
+    @Mock
+    private SubscriptionService subscriptionService;
+
+    @Mock
+    private PatientSummaryUpdater summaryUpdater;
+
+    @Mock
+    private BulkOperations observationOps;
+
+    @Mock
+    private BulkOperations historyOps;
+
+    private SimpleMeterRegistry registry;
+    private ObservationIngestService service;
+
+    @BeforeEach
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        service = new ObservationIngestService(mongoTemplate, observationService, chunkService, cacheWriteBehind,
+                subscriptionService, summaryUpdater, registry, 10, Duration.ofMillis(50), 100, 1);
+        lenient().when(observationService.toDocument(anyString(), any(Observation.class), eq(1L)))
+                .thenAnswer(invocation -> {
+                    MongoObservation doc = new MongoObservation(invocation.getArgument(0), "{}");
+                    doc.setVersionId(1L);
+                    return doc;
+                });
+        lenient().when(mongoTemplate.bulkOps(BulkMode.UNORDERED, MongoObservation.class)).thenReturn(observationOps);
+        lenient().when(mongoTemplate.bulkOps(BulkMode.UNORDERED, MongoResourceHistory.class)).thenReturn(historyOps);
+        lenient().when(observationOps.insert(anyList())).thenReturn(observationOps);
+        lenient().when(historyOps.insert(anyList())).thenReturn(historyOps);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        service.stop();
+    }
+
+    private static Observation observation(String id) {
+        Observation obs = new Observation();
+        if (id != null) {
+            obs.setId(id);
+        }
+        obs.setStatus(Observation.ObservationStatus.FINAL);
+        obs.getCode().addCoding().setSystem("http://loinc.org").setCode("8867-4");
+        return obs;
+    }
+
+    @Test
+    public void testIngest_ShouldWriteOneBatchWithOutcomePerItem() {
+        service.start();
+        Observation invalid = new Observation();
+
+        List<ObservationIngestService.Outcome> outcomes = service.ingest(
+                Arrays.asList(observation("a"), invalid, observation(null), null), Duration.ofSeconds(5));
+
+        assertEquals(List.of(201, 400, 201, 400),
+                outcomes.stream().map(ObservationIngestService.Outcome::getStatus).toList());
+        assertEquals("a", outcomes.get(0).getId());
+        assertNotNull(outcomes.get(2).getId());
+        verify(observationOps, times(1)).insert(argThat((List<?> docs) -> docs.size() == 2));
+        verify(historyOps, times(1)).insert(argThat((List<?> docs) -> docs.size() == 2));
+        verify(cacheWriteBehind).put("Observation", "a", "{}");
+        verify(subscriptionService).notifySubscribers(eq("Observation"), eq("CREATE"), anyList());
+        assertEquals(2, registry.get("fhir.observation.created").counter().count());
+    }
+
+    @Test
+    public void testFlush_DuplicateShouldOnlyFailThatItem() {
+        BulkOperationException failure = mock(BulkOperationException.class);
+        when(failure.getErrors()).thenReturn(List.of(new BulkWriteError(11000, "dup", new BsonDocument(), 1)));
+        when(observationOps.execute()).thenThrow(failure);
+
+        List<ObservationIngestService.Pending> batch = new ArrayList<>();
+        for (String id : List.of("a", "b", "c")) {
+            batch.add(new ObservationIngestService.Pending(id, new MongoObservation(id, "{}")));
+        }
+        service.flush(batch);
+
+        assertEquals(201, batch.get(0).getResult().join().getStatus());
+        assertEquals(409, batch.get(1).getResult().join().getStatus());
+        assertEquals(201, batch.get(2).getResult().join().getStatus());
+        verify(historyOps).insert(argThat((List<?> docs) -> docs.size() == 2));
+        verify(cacheWriteBehind, never()).put("Observation", "b", "{}");
+    }
+
+    @Test
+    public void testFlush_HistoryFailureShouldStillReportCreated() {
+        when(historyOps.execute()).thenThrow(new IllegalStateException("history down"));
+        ObservationIngestService.Pending pending =
+                new ObservationIngestService.Pending("a", new MongoObservation("a", "{}"));
+
+        service.flush(List.of(pending));
+
+        assertTrue(pending.getResult().join().isSuccess());
+    }
+
+    @Test
+    public void testFlush_SamplesShouldGoToTheirChunksOnly() {
+        ObservationChunkService.Sample sample = new ObservationChunkService.Sample("chunk.5", new java.util.Date(),
+                72.0, "{\"resourceType\":\"Observation\"}", new com.al.lifelog.model.MongoObservationChunk());
+        ObservationIngestService.Pending chunked = new ObservationIngestService.Pending("chunk.5", sample);
+        ObservationIngestService.Pending stored =
+                new ObservationIngestService.Pending("a", new MongoObservation("a", "{}"));
+
+        service.flush(List.of(chunked, stored));
+
+        assertEquals(201, chunked.getResult().join().getStatus());
+        assertEquals("chunk.5", chunked.getResult().join().getId());
+        verify(chunkService).write(List.of(sample));
+        verify(observationOps).insert(argThat((List<?> docs) -> docs.size() == 1));
+        verify(historyOps).insert(argThat((List<?> docs) -> docs.size() == 1));
+        verify(cacheWriteBehind, never()).put(eq("Observation"), eq("chunk.5"), anyString());
+        // Summaries only hear about samples from here, the rest comes through the cache write
+        verify(summaryUpdater).changed("Observation", "chunk.5", sample.json());
+        assertEquals(2, registry.get("fhir.observation.created").counter().count());
+    }
+}
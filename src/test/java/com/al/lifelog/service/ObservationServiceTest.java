@@ -1,18 +1,36 @@
 package com.al.lifelog.service;
 
+import ca.uhn.fhir.rest.param.CompositeParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.param.QuantityParam;
+import ca.uhn.fhir.rest.param.TokenAndListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import com.al.lifelog.model.MongoObservation;
 import com.al.lifelog.repository.ObservationRepository;
 import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Reference;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.ValueOperations;
 import org.mockito.Spy;
 import ca.uhn.fhir.context.FhirContext;
+import com.al.lifelog.cache.CacheWriteBehind;
+import com.al.lifelog.cache.NearCache;
+import com.al.lifelog.cache.SearchHydrator;
+import com.al.lifelog.cache.SingleFlight;
+import com.al.lifelog.serialization.FhirSerializer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationResults;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.math.BigDecimal;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -28,9 +46,6 @@ public class ObservationServiceTest {
     @Mock
     private StringRedisTemplate redisTemplate;
 
-    @Mock
-    private ValueOperations<String, String> valueOperations;
-
     @Mock
     private HistoryService historyService;
 
@@ -38,7 +53,28 @@ public class ObservationServiceTest {
     private org.springframework.data.mongodb.core.MongoTemplate mongoTemplate;
 
     @Spy
-    private FhirContext ctx = FhirContext.forR4();
+    private MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Spy
+    private FhirSerializer serializer = new FhirSerializer(FhirContext.forR4(), new SimpleMeterRegistry());
+
+    @Mock
+    private NearCache nearCache;
+
+    @Mock
+    private SingleFlight singleFlight;
+
+    @Mock
+    private CacheWriteBehind cacheWriteBehind;
+
+    @Mock
+    private VersionedWriter versionedWriter;
+
+    @Mock
+    private SearchHydrator searchHydrator;
+
+    @Mock
+    private ObservationChunkService chunkService;
 
     @InjectMocks
     private ObservationService service;
@@ -62,7 +98,6 @@ public class ObservationServiceTest {
             assertEquals("obs-1", mo.getId());
             return mo;
         });
-        when(redisTemplate.opsForValue()).thenReturn(valueOperations);
 
         // Execute
         Observation result = service.createObservation(obs);
@@ -70,6 +105,7 @@ public class ObservationServiceTest {
         // Verify
         assertEquals("obs-1", result.getIdElement().getIdPart());
         verify(repository).save(any(MongoObservation.class));
+        verify(cacheWriteBehind).put(eq("Observation"), anyString(), anyString());
     }
 
     @Test
@@ -80,15 +116,18 @@ public class ObservationServiceTest {
         obs.setId(id);
         obs.setSubject(new Reference("Patient/123"));
 
-        when(repository.save(any(MongoObservation.class))).thenReturn(new MongoObservation());
-        when(redisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(versionedWriter.update(eq(MongoObservation.class), eq(id), eq(obs), any()))
+                .thenAnswer(invocation -> invocation.<java.util.function.LongFunction<MongoObservation>>getArgument(3)
+                        .apply(4L));
 
         // Execute
         Observation result = service.updateObservation(id, obs);
 
         // Verify
         assertEquals(id, result.getIdElement().getIdPart());
-        verify(repository).save(any(MongoObservation.class));
+        assertEquals("4", result.getMeta().getVersionId());
+        verify(historyService).saveHistory(eq(id), eq("Observation"), anyString(), eq(4L), any());
+        verify(cacheWriteBehind).put(eq("Observation"), anyString(), anyString());
     }
 
     @Test
@@ -110,4 +149,106 @@ public class ObservationServiceTest {
         verify(mongoTemplate).find(any(org.springframework.data.mongodb.core.query.Query.class),
                 eq(MongoObservation.class));
     }
+
+    @Test
+    public void testSearch_ByCodeAndValue_ShouldCombineFiltersBesideTheCursor() {
+        TokenParam heartRate = new TokenParam("http://loinc.org", "8867-4");
+        ObservationService.ValueFilters values = new ObservationService.ValueFilters(
+                new QuantityParam(ParamPrefixEnum.GREATERTHAN, new BigDecimal("120"), Quantities.UCUM, "/min"),
+                new CompositeParam<>(heartRate, new QuantityParam("lt200")), null, null);
+        String cursor = com.al.lifelog.paging.SearchCursor.after(new java.util.Date(), "obs-1").encode();
+        when(mongoTemplate.find(any(Query.class), eq(MongoObservation.class))).thenReturn(List.of());
+
+        service.searchObservations(List.of("123"), heartRate, null, values, cursor, 10);
+
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).find(query.capture(), eq(MongoObservation.class));
+        org.bson.Document filter = query.getValue().getQueryObject();
+        assertTrue(filter.containsKey("$and"), filter.toJson());
+        String filters = filter.get("$or").toString();
+        assertTrue(filters.contains("quantity.unit") && filters.contains("quantity.raw")
+                && filters.contains("http://loinc.org|8867-4"), filters);
+    }
+
+    @Test
+    public void testLastN_ShouldGroupIdsThenLoadOnlyTheWinners() {
+        TokenAndListParam vitals = new TokenAndListParam().addAnd(new TokenParam(
+                "http://terminology.hl7.org/CodeSystem/observation-category", "vital-signs"));
+        org.bson.Document heartRate = new org.bson.Document("_id", new org.bson.Document("code", "8867-4"))
+                .append("ids", List.of("obs-2", "obs-1"));
+        when(mongoTemplate.aggregate(any(Aggregation.class), nullable(String.class), eq(org.bson.Document.class)))
+                .thenReturn(new AggregationResults<>(List.of(heartRate), new org.bson.Document()));
+        when(mongoTemplate.find(any(Query.class), eq(MongoObservation.class))).thenReturn(List.of(
+                new MongoObservation("obs-1", "{\"resourceType\":\"Observation\",\"id\":\"obs-1\"}"),
+                new MongoObservation("obs-2", "{\"resourceType\":\"Observation\",\"id\":\"obs-2\"}")));
+
+        List<Observation> latest = service.lastN(List.of("123"), null, vitals, 2);
+
+        assertEquals(List.of("obs-2", "obs-1"),
+                latest.stream().map(o -> o.getIdElement().getIdPart()).toList());
+        ArgumentCaptor<Aggregation> aggregation = ArgumentCaptor.forClass(Aggregation.class);
+        verify(mongoTemplate).aggregate(aggregation.capture(), nullable(String.class), eq(org.bson.Document.class));
+        String pipeline = aggregation.getValue().toString();
+        assertTrue(pipeline.contains("Patient/123") && pipeline.contains("observation-category|vital-signs"),
+                pipeline);
+        assertTrue(pipeline.contains("\"$firstN\"") && pipeline.contains("\"n\" : 2"), pipeline);
+        assertThrows(InvalidRequestException.class, () -> service.lastN(List.of("123"), null, null, 0));
+    }
+
+    @Test
+    public void testAggregate_ShouldBucketInMongoAndReturnTheAskedUnit() {
+        java.util.Date hour = new java.util.Date(1_700_000_000_000L);
+        // Stored canonically, so per second
+        org.bson.Document bucket = new org.bson.Document("_id", hour).append("count", 3)
+                .append("avg", 1.5).append("max", 2.0);
+        when(mongoTemplate.aggregate(any(Aggregation.class), nullable(String.class), eq(org.bson.Document.class)))
+                .thenReturn(new AggregationResults<>(List.of(bucket), new org.bson.Document()));
+        when(chunkService.unionWith(eq("Patient/123"), anyString(), anyList(), isNull()))
+                .thenReturn(new org.bson.Document("$unionWith", new org.bson.Document("coll", "observation_chunks")));
+
+        ObservationService.Series series = service.aggregate("Patient/123",
+                new TokenAndListParam().addAnd(new TokenParam("http://loinc.org", "8867-4")), null, "1h",
+                new java.util.LinkedHashSet<>(List.of("avg", "max", "count")), "/min");
+
+        assertEquals(1, series.points().size());
+        ObservationService.Point point = series.points().get(0);
+        assertEquals(hour, point.start());
+        assertEquals(90.0, point.values().get("avg"), 1e-9);
+        assertEquals(120.0, point.values().get("max"), 1e-9);
+        assertEquals(3.0, point.values().get("count"));
+
+        ArgumentCaptor<Aggregation> aggregation = ArgumentCaptor.forClass(Aggregation.class);
+        verify(mongoTemplate).aggregate(aggregation.capture(), nullable(String.class), eq(org.bson.Document.class));
+        String pipeline = aggregation.getValue().toString();
+        assertTrue(pipeline.contains("\"$dateTrunc\"") && pipeline.contains("\"unit\" : \"hour\"")
+                && pipeline.contains("quantity.value") && pipeline.contains("observation_chunks"), pipeline);
+
+        assertEquals("/min", series.unit());
+
+        assertThrows(InvalidRequestException.class, () -> service.aggregate("123", null, null, "1fortnight",
+                java.util.Set.of("avg"), null));
+        assertThrows(InvalidRequestException.class, () -> service.aggregate("123", null, null, "1h",
+                java.util.Set.of("median"), null));
+    }
+
+    @Test
+    public void testAggregate_WithoutUnitShouldNotMixUnits() {
+        java.util.Date hour = new java.util.Date(1_700_000_000_000L);
+        TokenAndListParam glucose = new TokenAndListParam().addAnd(new TokenParam("http://loinc.org", "2339-0"));
+
+        // mg/dL and mmol/L values: no common scale to average them on
+        when(mongoTemplate.aggregate(any(Aggregation.class), nullable(String.class), eq(org.bson.Document.class)))
+                .thenReturn(new AggregationResults<>(List.of(new org.bson.Document("_id", hour).append("count", 2)
+                        .append("units", List.of("g.m-3", "mol.m-3")).append("avg", 5.0)), new org.bson.Document()));
+        assertThrows(InvalidRequestException.class, () -> service.aggregate("123", glucose, null, "1h",
+                java.util.Set.of("avg"), null));
+
+        when(mongoTemplate.aggregate(any(Aggregation.class), nullable(String.class), eq(org.bson.Document.class)))
+                .thenReturn(new AggregationResults<>(List.of(new org.bson.Document("_id", hour).append("count", 2)
+                        .append("units", List.of("g.m-3")).append("avg", 900.0)), new org.bson.Document()));
+        ObservationService.Series series = service.aggregate("123", glucose, null, "1h",
+                java.util.Set.of("avg"), null);
+        assertEquals("g.m-3", series.unit());
+        assertEquals(900.0, series.points().get(0).values().get("avg"), 1e-9);
+    }
 }
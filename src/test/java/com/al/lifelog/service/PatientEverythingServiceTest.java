@@ -0,0 +1,107 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.al.lifelog.cache.SearchHydrator;
+import com.al.lifelog.model.MongoCondition;
+import com.al.lifelog.model.MongoObservation;
+import com.al.lifelog.model.MongoPatient;
+import com.al.lifelog.paging.SearchCursor;
+import com.al.lifelog.paging.SearchPage;
+import com.al.lifelog.serialization.FhirSerializer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class PatientEverythingServiceTest {
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private SearchHydrator searchHydrator;
+
+    private PatientEverythingService service;
+
+    @BeforeEach
+    public void setUp() {
+        FhirSerializer serializer = new FhirSerializer(FhirContext.forR4(), new SimpleMeterRegistry());
+        service = new PatientEverythingService(mongoTemplate, searchHydrator, serializer);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        service.stop();
+    }
+
+    private static Document stored(String id, String json) {
+        return new Document("_id", id).append("fhirJson", json);
+    }
+
+    @Test
+    public void testPage_ShouldQueryEveryTypeAndLoadOnlyThePage() {
+        when(mongoTemplate.getCollectionName(MongoPatient.class)).thenReturn("patients");
+        when(mongoTemplate.getCollectionName(MongoObservation.class)).thenReturn("observations");
+        lenient().when(mongoTemplate.getCollectionName(MongoCondition.class)).thenReturn("conditions");
+        Map<String, List<Document>> keys = Map.of(
+                "patients", List.of(new Document("_id", "123")),
+                "observations", List.of(new Document("_id", "o1"), new Document("_id", "o2"), new Document("_id", "o3")),
+                "conditions", List.of(new Document("_id", "c1")));
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), anyString())).thenAnswer(call -> {
+            Query query = call.getArgument(0);
+            String collection = call.getArgument(2);
+            if (query.getFieldsObject().containsKey("fhirJson")) {
+                return "patients".equals(collection)
+                        ? List.of(stored("123", "{\"resourceType\":\"Patient\",\"id\":\"123\"}"))
+                        : List.of(stored("o1", "{\"resourceType\":\"Observation\",\"id\":\"o1\"}"));
+            }
+            return keys.get(collection);
+        });
+
+        SearchPage<Resource> page = service.page("123", PatientEverythingService.types(List.of()), null, null, 2);
+
+        assertEquals(List.of("Patient/123", "Observation/o1"), page.getResources().stream()
+                .map(r -> r.fhirType() + "/" + r.getIdElement().getIdPart()).toList());
+        assertEquals("Observation/o1", SearchCursor.decode(page.getNextCursor()).getId());
+        verify(mongoTemplate).find(argThat((Query q) -> "Patient/123".equals(q.getQueryObject().get("subjectId"))),
+                eq(Document.class), eq("observations"));
+        // Only the page is loaded, never the extra row
+        verify(mongoTemplate).find(argThat((Query q) -> q.getQueryObject().toJson().contains("[\"o1\"]")),
+                eq(Document.class), eq("observations"));
+    }
+
+    @Test
+    public void testPage_CursorShouldResumeWithinItsType() {
+        when(mongoTemplate.getCollectionName(MongoObservation.class)).thenReturn("observations");
+        when(mongoTemplate.getCollectionName(MongoCondition.class)).thenReturn("conditions");
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), anyString())).thenReturn(List.of());
+        List<String> types = PatientEverythingService.types(List.of("Condition", "Observation"));
+        String cursor = SearchCursor.after("Observation/o1").encode();
+
+        SearchPage<Resource> page = service.page("123", types, null, cursor, 2);
+
+        assertTrue(page.getResources().isEmpty());
+        assertEquals(List.of("Observation", "Condition"), types);
+        verify(mongoTemplate).find(argThat((Query q) -> q.getQueryObject().toJson().contains("{\"$gt\": \"o1\"}")),
+                eq(Document.class), eq("observations"));
+        verify(mongoTemplate).find(argThat((Query q) -> !q.getQueryObject().containsKey("_id")),
+                eq(Document.class), eq("conditions"));
+        assertThrows(InvalidRequestException.class, () -> PatientEverythingService.types(List.of("Organization")));
+    }
+}
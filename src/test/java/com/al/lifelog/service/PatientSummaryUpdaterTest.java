@@ -0,0 +1,150 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.al.lifelog.model.MongoPatientSummary;
+import com.al.lifelog.serialization.FhirSerializer;
+import com.mongodb.client.result.UpdateResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class PatientSummaryUpdaterTest {
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    private FhirSerializer serializer;
+    private PatientSummaryUpdater updater;
+
+    @BeforeEach
+    public void setUp() {
+        serializer = new FhirSerializer(FhirContext.forR4(), new SimpleMeterRegistry());
+        updater = new PatientSummaryUpdater(mongoTemplate, serializer, Runnable::run, new SimpleMeterRegistry(), 10);
+    }
+
+    private static Condition condition(String id, String version, String clinicalStatus) {
+        Condition condition = new Condition();
+        condition.setId(id);
+        condition.getMeta().setVersionId(version);
+        condition.setSubject(new Reference("Patient/123"));
+        condition.getClinicalStatus().addCoding()
+                .setSystem("http://terminology.hl7.org/CodeSystem/condition-clinical").setCode(clinicalStatus);
+        return condition;
+    }
+
+    private static Observation heartRate(String id, long time) {
+        Observation obs = new Observation();
+        obs.setId(id);
+        obs.getMeta().setVersionId("1");
+        obs.setStatus(Observation.ObservationStatus.FINAL);
+        obs.addCategory().addCoding()
+                .setSystem("http://terminology.hl7.org/CodeSystem/observation-category").setCode("vital-signs");
+        obs.getCode().addCoding().setSystem("http://loinc.org").setCode("8867-4");
+        obs.setSubject(new Reference("Patient/123"));
+        obs.setEffective(new DateTimeType(new Date(time)));
+        return obs;
+    }
+
+    @Test
+    public void testApply_ShouldKeepTheNewestVersionAndTheLatestVital() {
+        MongoPatientSummary summary = new MongoPatientSummary();
+        Date now = new Date();
+
+        assertTrue(updater.apply(summary, "Condition", "c1", condition("c1", "2", "active"), now));
+        // A replayed or late older version changes nothing
+        assertTrue(updater.apply(summary, "Condition", "c1", condition("c1", "1", "resolved"), now));
+        assertEquals(List.of("c1"), summary.getConditions().stream().map(MongoPatientSummary.Entry::getId).toList());
+        assertTrue(updater.apply(summary, "Condition", "c1", condition("c1", "3", "resolved"), now));
+        assertTrue(summary.getConditions().isEmpty());
+
+        assertTrue(updater.apply(summary, "Observation", "o2", heartRate("o2", 2000), now));
+        assertTrue(updater.apply(summary, "Observation", "o1", heartRate("o1", 1000), now));
+        assertTrue(updater.apply(summary, "Observation", "o3", heartRate("o3", 3000), now));
+        assertEquals(List.of("o3"), summary.getVitals().stream().map(MongoPatientSummary.Entry::getId).toList());
+        assertEquals("8867-4", summary.getVitals().get(0).getKey());
+        // Which reading is the latest once it is gone needs the collection
+        assertFalse(updater.apply(summary, "Observation", "o3", null, now));
+    }
+
+    @Test
+    public void testFlush_ShouldReplaceTheRevisionReadOrMarkStale() {
+        MongoPatientSummary summary = new MongoPatientSummary();
+        summary.setId("123");
+        summary.setRevision(4);
+        summary.setFormat(PatientSummaryUpdater.FORMAT);
+        when(mongoTemplate.findById("123", MongoPatientSummary.class)).thenReturn(summary);
+        when(mongoTemplate.replace(any(Query.class), any(MongoPatientSummary.class)))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+
+        updater.changed("Condition", "c1", serializer.encode(condition("c1", "1", "active")));
+        // Not a vital sign: dropped before parsing
+        updater.changed("Observation", "x", "{\"resourceType\":\"Observation\",\"status\":\"final\"}");
+
+        verify(mongoTemplate).replace(argThat((Query q) -> Long.valueOf(4).equals(q.getQueryObject().get("revision"))),
+                argThat((MongoPatientSummary s) -> s.getRevision() == 5
+                        && s.getMembers().equals(List.of("Condition/c1"))));
+
+        // Lost the race every time: left for the next read to rebuild
+        when(mongoTemplate.replace(any(Query.class), any(MongoPatientSummary.class)))
+                .thenReturn(UpdateResult.acknowledged(0, 0L, null));
+        updater.changed("Condition", "c2", serializer.encode(condition("c2", "1", "active")));
+
+        verify(mongoTemplate).upsert(any(Query.class),
+                argThat((Update u) -> u.getUpdateObject().get("$set", org.bson.Document.class).getBoolean("stale")),
+                eq(MongoPatientSummary.class));
+    }
+
+    @Test
+    public void testFlush_ShouldDropEntriesThatLeftTheirSummary() {
+        MongoPatientSummary holder = new MongoPatientSummary();
+        holder.setId("old");
+        holder.setMembers(List.of("Condition/c1", "Observation/o1"));
+        when(mongoTemplate.find(any(Query.class), eq(MongoPatientSummary.class))).thenReturn(List.of(holder));
+        MongoPatientSummary old = new MongoPatientSummary();
+        old.setId("old");
+        old.setFormat(PatientSummaryUpdater.FORMAT);
+        updater.apply(old, "Condition", "c1", condition("c1", "1", "active"), new Date());
+        updater.apply(old, "Observation", "o1", heartRate("o1", 1000), new Date());
+        when(mongoTemplate.findById("old", MongoPatientSummary.class)).thenReturn(old);
+        when(mongoTemplate.findById("123", MongoPatientSummary.class)).thenReturn(null);
+        when(mongoTemplate.replace(any(Query.class), any(MongoPatientSummary.class)))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+
+        Condition moved = condition("c1", "2", "active");
+        updater.flush(List.of(new PatientSummaryUpdater.Change("Condition", "c1", serializer.encode(moved))));
+
+        // Gone from the old patient, the new one's summary is built on its next read
+        verify(mongoTemplate).replace(any(Query.class), argThat((MongoPatientSummary s) -> s.getConditions().isEmpty()
+                && s.getMembers().equals(List.of("Observation/o1"))));
+        verify(mongoTemplate).upsert(argThat((Query q) -> "123".equals(q.getQueryObject().get("_id"))),
+                any(Update.class), eq(MongoPatientSummary.class));
+
+        // Held as a vital: still looked at without its category, and the summary rebuilt
+        Observation recategorized = heartRate("o1", 1000);
+        recategorized.getMeta().setVersionId("2");
+        recategorized.getCategory().clear();
+        updater.flush(List.of(new PatientSummaryUpdater.Change("Observation", "o1",
+                serializer.encode(recategorized))));
+
+        verify(mongoTemplate).upsert(argThat((Query q) -> "old".equals(q.getQueryObject().get("_id"))),
+                any(Update.class), eq(MongoPatientSummary.class));
+    }
+}
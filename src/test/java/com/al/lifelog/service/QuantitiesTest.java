@@ -0,0 +1,70 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.param.QuantityParam;
+import com.al.lifelog.model.MongoObservation;
+import org.bson.Document;
+import org.hl7.fhir.r4.model.Quantity;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class QuantitiesTest {
+
+    @Test
+    public void testIndex_ShouldStoreUcumInCanonicalUnits() {
+        MongoObservation.SearchQuantity perMinute = Quantities.index(
+                new Quantity().setValue(120).setSystem(Quantities.UCUM).setCode("/min"));
+        MongoObservation.SearchQuantity perSecond = Quantities.index(
+                new Quantity().setValue(2).setSystem(Quantities.UCUM).setCode("/s"));
+
+        assertEquals(perSecond.getUnit(), perMinute.getUnit());
+        assertEquals(perSecond.getValue(), perMinute.getValue(), 1e-9);
+        assertEquals(120.0, perMinute.getRaw());
+
+        MongoObservation.SearchQuantity local = Quantities.index(
+                new Quantity().setValue(3).setSystem("http://example.org/units").setCode("scoops"));
+        assertEquals("scoops", local.getUnit());
+        assertEquals(3.0, local.getValue());
+    }
+
+    @Test
+    public void testCriteria_ShouldCompareInCanonicalUnits() {
+        QuantityParam heartRate = new QuantityParam(ParamPrefixEnum.GREATERTHAN, new BigDecimal("120"),
+                Quantities.UCUM, "/min");
+        Document greater = Quantities.criteria("quantity", heartRate).getCriteriaObject();
+
+        MongoObservation.SearchQuantity stored = Quantities.index(
+                new Quantity().setValue(120).setSystem(Quantities.UCUM).setCode("/min"));
+        assertEquals(stored.getUnit(), greater.get("quantity.unit"));
+        assertEquals(stored.getValue(), ((Document) greater.get("quantity.value")).getDouble("$gt"), 1e-9);
+
+        // No unit: the number as recorded, within the precision it was written with
+        Document equal = Quantities.criteria("quantity", new QuantityParam("5.4")).getCriteriaObject();
+        Document range = (Document) equal.get("quantity.raw");
+        assertEquals(5.35, range.getDouble("$gte"), 1e-9);
+        assertEquals(5.45, range.getDouble("$lt"), 1e-9);
+
+        Document approximate = Quantities.criteria("quantity", new QuantityParam("ap100")).getCriteriaObject();
+        assertEquals(90.0, ((Document) approximate.get("quantity.raw")).getDouble("$gte"), 1e-9);
+    }
+
+    @Test
+    public void testCriteria_NotEqualShouldMatchBothSidesOfTheRange() {
+        Document notEqual = Quantities.criteria("quantity", new QuantityParam("ne120")).getCriteriaObject();
+
+        List<Document> either = notEqual.getList("$or", Document.class);
+        assertEquals(2, either.size());
+        assertEquals(119.5, ((Document) either.get(0).get("quantity.raw")).getDouble("$lt"), 1e-9);
+        assertEquals(120.5, ((Document) either.get(1).get("quantity.raw")).getDouble("$gte"), 1e-9);
+
+        QuantityParam heartRate = new QuantityParam(ParamPrefixEnum.NOT_EQUAL, new BigDecimal("120"),
+                Quantities.UCUM, "/min");
+        Document withUnit = Quantities.criteria("quantity", heartRate).getCriteriaObject();
+        assertNotNull(withUnit.get("quantity.unit"));
+        assertEquals(2, withUnit.getList("$or", Document.class).size());
+    }
+}
@@ -0,0 +1,119 @@
+package com.al.lifelog.service;
+
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import com.al.lifelog.model.MongoObservation;
+import org.bson.Document;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class VersionedWriterTest {
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    private VersionedWriter writer;
+
+    @BeforeEach
+    public void setUp() {
+        writer = new VersionedWriter(mongoTemplate);
+        lenient().when(mongoTemplate.getCollectionName(MongoObservation.class)).thenReturn("observations");
+    }
+
+    private static MongoObservation document(long version) {
+        MongoObservation doc = new MongoObservation();
+        doc.setId("obs-1");
+        doc.setVersionId(version);
+        return doc;
+    }
+
+    private static Observation withVersion(String version) {
+        Observation obs = new Observation();
+        obs.setId("obs-1");
+        if (version != null) {
+            obs.getMeta().setVersionId(version);
+        }
+        return obs;
+    }
+
+    private void replaceMatches(boolean matches) {
+        when(mongoTemplate.findAndReplace(any(Query.class), any(MongoObservation.class),
+                any(FindAndReplaceOptions.class), eq(MongoObservation.class), eq("observations"), eq(Document.class)))
+                .thenReturn(matches ? new Document("_id", "obs-1") : null);
+    }
+
+    private void storedVersion(Long version) {
+        when(mongoTemplate.findOne(any(Query.class), eq(Document.class), eq("observations")))
+                .thenReturn(new Document("_id", "obs-1").append("versionId", version));
+    }
+
+    @Test
+    public void testClientVersionMatches_ShouldReplaceInOneRoundTrip() {
+        replaceMatches(true);
+
+        MongoObservation written = writer.update(MongoObservation.class, "obs-1", withVersion("3"),
+                VersionedWriterTest::document);
+
+        assertEquals(4L, written.getVersionId());
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).findAndReplace(query.capture(), any(MongoObservation.class),
+                any(FindAndReplaceOptions.class), eq(MongoObservation.class), eq("observations"), eq(Document.class));
+        assertEquals(new Document("_id", "obs-1").append("versionId", 3L), query.getValue().getQueryObject());
+        verify(mongoTemplate, never()).findOne(any(Query.class), eq(Document.class), anyString());
+    }
+
+    @Test
+    public void testClientVersionStale_ShouldFailWith412() {
+        replaceMatches(false);
+        storedVersion(5L);
+
+        assertThrows(PreconditionFailedException.class, () -> writer.update(MongoObservation.class, "obs-1",
+                withVersion("3"), VersionedWriterTest::document));
+        verify(mongoTemplate, never()).insert(any(MongoObservation.class));
+    }
+
+    @Test
+    public void testNoClientVersion_ShouldReplaceCurrentVersion() {
+        storedVersion(7L);
+        replaceMatches(true);
+
+        MongoObservation written = writer.update(MongoObservation.class, "obs-1", withVersion(null),
+                VersionedWriterTest::document);
+
+        assertEquals(8L, written.getVersionId());
+    }
+
+    @Test
+    public void testMissing_ShouldInsertVersionOne() {
+        when(mongoTemplate.findOne(any(Query.class), eq(Document.class), eq("observations"))).thenReturn(null);
+        when(mongoTemplate.insert(any(MongoObservation.class))).thenAnswer(i -> i.getArgument(0));
+
+        MongoObservation written = writer.update(MongoObservation.class, "obs-1", withVersion(null),
+                VersionedWriterTest::document);
+
+        assertEquals(1L, written.getVersionId());
+    }
+
+    @Test
+    public void testConcurrentWriters_ShouldGiveUpWith412() {
+        storedVersion(7L);
+        replaceMatches(false);
+
+        assertThrows(PreconditionFailedException.class, () -> writer.update(MongoObservation.class, "obs-1",
+                withVersion(null), VersionedWriterTest::document));
+        verify(mongoTemplate, times(3)).findAndReplace(any(Query.class), any(MongoObservation.class),
+                any(FindAndReplaceOptions.class), eq(MongoObservation.class), eq("observations"), eq(Document.class));
+    }
+}